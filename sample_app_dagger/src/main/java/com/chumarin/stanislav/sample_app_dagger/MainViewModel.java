@@ -3,13 +3,11 @@ package com.chumarin.stanislav.sample_app_dagger;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.chumarin.stanislav.sample_app_dagger.util.BaseViewModel;
-import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
-import vit.khudenko.android.sessiontracker.SessionTracker;
+import vit.khudenko.android.sessiontracker.rx.RxSessionTracker;
 
 import java.util.concurrent.TimeUnit;
 
@@ -18,7 +16,7 @@ public class MainViewModel extends BaseViewModel {
     @NonNull
     private final String sessionId;
     @NonNull
-    private final SessionTracker<Session.Event, Session.State> sessionTracker;
+    private final RxSessionTracker<Session.Event, Session.State> sessionTracker;
 
     @NonNull
     private final BehaviorSubject<State> state = BehaviorSubject.createDefault(State.Idle.INSTANCE);
@@ -27,7 +25,7 @@ public class MainViewModel extends BaseViewModel {
     private Disposable disposable;
 
     public MainViewModel(@NonNull String sessionId,
-                         @NonNull SessionTracker<Session.Event, Session.State> sessionTracker) {
+                         @NonNull RxSessionTracker<Session.Event, Session.State> sessionTracker) {
         this.sessionId = sessionId;
         this.sessionTracker = sessionTracker;
     }
@@ -35,9 +33,9 @@ public class MainViewModel extends BaseViewModel {
     void onLogOutButtonClicked() {
         state.onNext(State.Progress.INSTANCE);
 
-        disposable = Completable.fromAction(() -> sessionTracker.consumeEvent(sessionId, Session.Event.LOGOUT))
-                .subscribeOn(Schedulers.io())
-                .delay(2, TimeUnit.SECONDS, Schedulers.io())
+        disposable = sessionTracker.consumeEvent(sessionId, Session.Event.LOGOUT)
+                .ignoreElement()
+                .delay(2, TimeUnit.SECONDS)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(() -> state.onNext(State.Success.INSTANCE));
     }
@@ -45,9 +43,9 @@ public class MainViewModel extends BaseViewModel {
     void onLogOutAndForgetButtonClicked() {
         state.onNext(State.Progress.INSTANCE);
 
-        disposable = Completable.fromAction(() -> sessionTracker.consumeEvent(sessionId, Session.Event.LOGOUT_AND_FORGET))
-                .subscribeOn(Schedulers.io())
-                .delay(2, TimeUnit.SECONDS, Schedulers.io())
+        disposable = sessionTracker.consumeEvent(sessionId, Session.Event.LOGOUT_AND_FORGET)
+                .ignoreElement()
+                .delay(2, TimeUnit.SECONDS)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(() -> state.onNext(State.Success.INSTANCE));
     }
@@ -19,6 +19,7 @@ import vit.khudenko.android.sessiontracker.ISessionStateTransitionsSupplier;
 import vit.khudenko.android.sessiontracker.ISessionTrackerStorage;
 import vit.khudenko.android.sessiontracker.SessionTracker;
 import vit.khudenko.android.sessiontracker.Transition;
+import vit.khudenko.android.sessiontracker.rx.RxSessionTracker;
 
 @Module
 class AppModule {
@@ -41,6 +42,14 @@ class AppModule {
         );
     }
 
+    @Provides
+    @Singleton
+    public RxSessionTracker<Session.Event, Session.State> provideRxSessionTracker(
+            @NonNull SessionTracker<Session.Event, Session.State> sessionTracker
+    ) {
+        return new RxSessionTracker<>(sessionTracker);
+    }
+
     @Provides
     @Singleton
     public ISessionStateTransitionsSupplier<Session.Event, Session.State> stateTransitionsSupplier() {
@@ -7,7 +7,7 @@ import com.chumarin.stanislav.sample_app_dagger.Session;
 import dagger.Module;
 import dagger.Provides;
 import dagger.multibindings.IntoMap;
-import vit.khudenko.android.sessiontracker.SessionTracker;
+import vit.khudenko.android.sessiontracker.rx.RxSessionTracker;
 
 import javax.inject.Named;
 
@@ -32,7 +32,7 @@ public class UserModule {
     @IntoMap
     @ViewModelKey(MainViewModel.class)
     public ViewModel provideMainViewModel(@Named(UserModule.SESSION_ID) String sessionId,
-                                          SessionTracker<Session.Event, Session.State> sessionTracker) {
+                                          RxSessionTracker<Session.Event, Session.State> sessionTracker) {
         return new MainViewModel(sessionId, sessionTracker);
     }
 
@@ -7,19 +7,16 @@ import com.chumarin.stanislav.sample_app_dagger.util.BaseViewModel;
 import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.BehaviorSubject;
-import vit.khudenko.android.sessiontracker.SessionRecord;
-import vit.khudenko.android.sessiontracker.SessionTracker;
+import vit.khudenko.android.sessiontracker.rx.RxSessionTracker;
 
 import javax.inject.Inject;
-import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 public class LoginViewModel extends BaseViewModel {
 
     @NonNull
-    private final SessionTracker<Session.Event, Session.State> sessionTracker;
+    private final RxSessionTracker<Session.Event, Session.State> sessionTracker;
     @NonNull
     private final BehaviorSubject<State> state = BehaviorSubject.createDefault(State.Idle.INSTANCE);
 
@@ -27,29 +24,16 @@ public class LoginViewModel extends BaseViewModel {
     private Disposable disposable;
 
     @Inject
-    LoginViewModel(@NonNull SessionTracker<Session.Event, Session.State> sessionTracker) {
+    LoginViewModel(@NonNull RxSessionTracker<Session.Event, Session.State> sessionTracker) {
         this.sessionTracker = sessionTracker;
     }
 
     void onLoginButtonClicked(@NonNull String userId) {
         state.onNext(State.Progress.INSTANCE);
 
-        disposable = Observable.fromCallable(() -> {
-            synchronized (sessionTracker) {
-                Optional<SessionRecord<Session.State>> optionalSessionRecord = sessionTracker.getSessionRecords()
-                        .stream()
-                        .filter(record -> record.sessionId().equals(userId))
-                        .findFirst();
-                if (optionalSessionRecord.isPresent()) {
-                    sessionTracker.consumeEvent(userId, Session.Event.LOGIN);
-                } else {
-                    sessionTracker.trackSession(userId, Session.State.ACTIVE);
-                }
-            }
-            return userId;
-        })
-                .subscribeOn(Schedulers.io())
-                .delay(2, TimeUnit.SECONDS, Schedulers.io())
+        disposable = sessionTracker.trackOrConsume(userId, Session.State.ACTIVE, Session.Event.LOGIN)
+                .map(trackedOrConsumed -> userId)
+                .delay(2, TimeUnit.SECONDS)
                 .observeOn(AndroidSchedulers.mainThread())
                 .subscribe(loggedInUserId -> state.onNext(new State.Success(loggedInUserId)));
     }
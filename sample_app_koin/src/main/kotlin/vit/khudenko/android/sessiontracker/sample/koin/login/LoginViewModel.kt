@@ -21,13 +21,7 @@ class LoginViewModel(
         state.value = State.Progress
 
         viewModelScope.launch {
-            val targetSessionRecord = sessionTracker.getSessionRecords()
-                .firstOrNull { record -> record.sessionId == sessionId }
-            if (targetSessionRecord == null) {
-                sessionTracker.trackSession(sessionId, Session.State.ACTIVE)
-            } else {
-                sessionTracker.consumeEvent(sessionId, Session.Event.LOGIN)
-            }
+            sessionTracker.trackOrConsume(sessionId, Session.State.ACTIVE, Session.Event.LOGIN)
             delay(2000)
             state.value = State.Success(sessionId)
         }
@@ -0,0 +1,215 @@
+package vit.khudenko.android.sessiontracker.coroutines
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import vit.khudenko.android.sessiontracker.ISessionTrackerStorage
+import vit.khudenko.android.sessiontracker.SessionAction
+import vit.khudenko.android.sessiontracker.SessionId
+import vit.khudenko.android.sessiontracker.SessionRecord
+import vit.khudenko.android.sessiontracker.SessionTracker
+
+/**
+ * A suspending facade for [`SessionTracker`][SessionTracker].
+ *
+ * All calls are sent to a single writer coroutine (an actor), which runs on the [`ioDispatcher`][ioDispatcher] and
+ * invokes the wrapped `SessionTracker` one call at a time. Callers never block a thread waiting for the
+ * `SessionTracker` lock or for the [`ISessionTrackerStorage`][ISessionTrackerStorage] I/O, they just suspend until
+ * their call is processed. Every call takes the `SessionTracker` lock for its own duration only, so a long queue of
+ * calls does not starve other users of the lock, e.g. direct callers or
+ * [`SessionTimeouts`][vit.khudenko.android.sessiontracker.SessionTimeouts].
+ *
+ * Calls are processed in the order they were submitted. Note, once submitted, a call is processed even if the
+ * calling coroutine is cancelled.
+ *
+ * For the facade to be effective, the wrapped `SessionTracker` should not be called directly by other code.
+ *
+ * [`SessionTracker.Listener`][SessionTracker.Listener] callbacks are invoked on the [`ioDispatcher`][ioDispatcher].
+ *
+ * @param sessionTracker [`SessionTracker`][SessionTracker] to wrap.
+ * @param scope [`CoroutineScope`][CoroutineScope] of the actor coroutine. Once the scope is cancelled, all pending
+ * and subsequent calls fail with [`CancellationException`][kotlinx.coroutines.CancellationException].
+ * @param ioDispatcher [`CoroutineDispatcher`][CoroutineDispatcher] to run the actor coroutine (and thus the storage
+ * I/O) on.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class CoroutineSessionTracker<Event : Enum<Event>, State : Enum<State>>(
+    private val sessionTracker: SessionTracker<Event, State>,
+    scope: CoroutineScope,
+    ioDispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+
+    private val requests = Channel<Request<Event, State, *>>(
+        capacity = Channel.UNLIMITED,
+        onUndeliveredElement = { request -> request.result.cancel() }
+    )
+
+    init {
+        scope.launch(ioDispatcher) {
+            try {
+                for (request in requests) {
+                    // receiving does not check for cancellation if a request is available already
+                    if (!isActive) {
+                        request.result.cancel()
+                        break
+                    }
+                    // every call takes the SessionTracker lock on its own, so other lock users are not starved
+                    request.execute(sessionTracker)
+                }
+            } finally {
+                requests.cancel()
+            }
+        }
+    }
+
+    /**
+     * @see [SessionTracker.version]
+     */
+    val version: Long
+        get() = sessionTracker.version
+
+    /**
+     * @see [SessionTracker.initialize]
+     */
+    suspend fun initialize(sessionTrackerListener: SessionTracker.Listener<Event, State>) {
+        submit { it.initialize(sessionTrackerListener) }
+    }
+
+    /**
+     * @see [SessionTracker.getSessionRecords]
+     */
+    suspend fun getSessionRecords(): List<SessionRecord<State>> {
+        return submit { it.getSessionRecords() }
+    }
+
+    /**
+     * @see [SessionTracker.trackSession]
+     */
+    suspend fun trackSession(sessionId: SessionId, state: State) {
+        submit { it.trackSession(sessionId, state) }
+    }
+
+    /**
+     * @see [SessionTracker.untrackSession]
+     */
+    suspend fun untrackSession(sessionId: SessionId) {
+        submit { it.untrackSession(sessionId) }
+    }
+
+    /**
+     * @see [SessionTracker.untrackAllSessions]
+     */
+    suspend fun untrackAllSessions() {
+        submit { it.untrackAllSessions() }
+    }
+
+    /**
+     * @see [SessionTracker.untrackSessions]
+     */
+    suspend fun untrackSessions(states: Set<State>): Int {
+        return submit { it.untrackSessions(states) }
+    }
+
+    /**
+     * @see [SessionTracker.untrackSessions]
+     */
+    suspend fun untrackSessions(predicate: (SessionRecord<State>) -> Boolean): Int {
+        return submit { it.untrackSessions(predicate) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvent]
+     */
+    suspend fun consumeEvent(sessionId: SessionId, event: Event): Boolean {
+        return submit { it.consumeEvent(sessionId, event) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvent]
+     */
+    suspend fun consumeEvent(sessionId: SessionId, event: Event, idempotencyKey: String): Boolean {
+        return submit { it.consumeEvent(sessionId, event, idempotencyKey) }
+    }
+
+    /**
+     * @see [SessionTracker.compareAndConsume]
+     */
+    suspend fun compareAndConsume(
+        sessionId: SessionId,
+        expectedState: State,
+        event: Event
+    ): SessionTracker.CompareAndConsumeResult {
+        return submit { it.compareAndConsume(sessionId, expectedState, event) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEventForAll]
+     */
+    suspend fun consumeEventForAll(event: Event, states: Set<State>): Int {
+        return submit { it.consumeEventForAll(event, states) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEventForAll]
+     */
+    suspend fun consumeEventForAll(event: Event, predicate: (SessionRecord<State>) -> Boolean): Int {
+        return submit { it.consumeEventForAll(event, predicate) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvents]
+     */
+    suspend fun consumeEvents(events: List<Pair<SessionId, Event>>, coalesceCallbacks: Boolean = false): Int {
+        return submit { it.consumeEvents(events, coalesceCallbacks) }
+    }
+
+    /**
+     * @see [SessionTracker.trackOrConsume]
+     */
+    suspend fun trackOrConsume(sessionId: SessionId, initialState: State, event: Event): Boolean {
+        return submit { it.trackOrConsume(sessionId, initialState, event) }
+    }
+
+    /**
+     * @see [SessionTracker.compute]
+     */
+    suspend fun compute(sessionId: SessionId, function: (State?) -> SessionAction<Event, State>): State? {
+        return submit { it.compute(sessionId, function) }
+    }
+
+    /**
+     * @see [SessionTracker.observeSessionRecords]
+     */
+    fun observeSessionRecords(): Flow<List<SessionRecord<State>>> = sessionTracker.observeSessionRecords()
+
+    /**
+     * @see [SessionTracker.observeSession]
+     */
+    fun observeSession(sessionId: SessionId): Flow<State?> = sessionTracker.observeSession(sessionId)
+
+    private suspend fun <T> submit(action: (SessionTracker<Event, State>) -> T): T {
+        val request = Request(action, CompletableDeferred())
+        requests.send(request)
+        return request.result.await()
+    }
+
+    private class Request<Event : Enum<Event>, State : Enum<State>, T>(
+        private val action: (SessionTracker<Event, State>) -> T,
+        val result: CompletableDeferred<T>
+    ) {
+        fun execute(sessionTracker: SessionTracker<Event, State>) {
+            try {
+                result.complete(action.invoke(sessionTracker))
+            } catch (e: Throwable) {
+                result.completeExceptionally(e)
+            }
+        }
+    }
+}
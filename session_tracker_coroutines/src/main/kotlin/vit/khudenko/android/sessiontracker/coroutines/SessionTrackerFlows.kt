@@ -0,0 +1,43 @@
+package vit.khudenko.android.sessiontracker.coroutines
+
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.map
+import vit.khudenko.android.sessiontracker.SessionId
+import vit.khudenko.android.sessiontracker.SessionRecord
+import vit.khudenko.android.sessiontracker.SessionTracker
+
+/**
+ * @return a conflated [`Flow`][Flow] of the tracked session records. Once `SessionTracker` is initialized, the flow
+ * emits the current session records, and then every subsequent change.
+ *
+ * Emissions are immutable snapshots shared between all collectors. A slow collector never blocks `SessionTracker`,
+ * instead it skips the intermediate snapshots and receives the most recent one.
+ *
+ * @see [SessionTracker.addSessionRecordsObserver]
+ */
+fun <Event : Enum<Event>, State : Enum<State>>
+        SessionTracker<Event, State>.observeSessionRecords(): Flow<List<SessionRecord<State>>> {
+    return callbackFlow {
+        val observer = SessionTracker.SessionRecordsObserver<State> { sessionRecords -> trySend(sessionRecords) }
+        addSessionRecordsObserver(observer)
+        awaitClose { removeSessionRecordsObserver(observer) }
+    }.conflate()
+}
+
+/**
+ * @return a conflated [`Flow`][Flow] of the session tracking state of the session with the given `sessionId`, `null`
+ * while the session is not tracked. Only distinct states are emitted.
+ *
+ * @see [observeSessionRecords]
+ */
+fun <Event : Enum<Event>, State : Enum<State>> SessionTracker<Event, State>.observeSession(
+    sessionId: SessionId
+): Flow<State?> {
+    return observeSessionRecords()
+        .map { sessionRecords -> sessionRecords.firstOrNull { it.sessionId == sessionId }?.state }
+        .distinctUntilChanged()
+}
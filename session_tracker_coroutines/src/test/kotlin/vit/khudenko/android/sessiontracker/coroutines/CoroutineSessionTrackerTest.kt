@@ -0,0 +1,161 @@
+package vit.khudenko.android.sessiontracker.coroutines
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.ISessionTrackerStorage
+import vit.khudenko.android.sessiontracker.SessionId
+import vit.khudenko.android.sessiontracker.SessionRecord
+import vit.khudenko.android.sessiontracker.SessionTracker
+import vit.khudenko.android.sessiontracker.Transition
+import java.util.concurrent.Executors
+
+class CoroutineSessionTrackerTest {
+
+    enum class Event {
+        LOGIN, LOGOUT
+    }
+
+    enum class State {
+        ACTIVE, INACTIVE
+    }
+
+    private val sessionId = SessionId("session_id")
+
+    private lateinit var storage: ISessionTrackerStorage<State>
+    private lateinit var listener: SessionTracker.Listener<Event, State>
+    private lateinit var scope: CoroutineScope
+
+    @Before
+    fun setUp() {
+        storage = mock {
+            on { readAllSessionRecords() } doReturn emptyList()
+        }
+        listener = mock()
+        scope = CoroutineScope(Job())
+    }
+
+    @After
+    fun tearDown() {
+        scope.cancel()
+    }
+
+    private fun createSessionTracker() = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = {
+            listOf(
+                Transition(Event.LOGIN, listOf(State.INACTIVE, State.ACTIVE)),
+                Transition(Event.LOGOUT, listOf(State.ACTIVE, State.INACTIVE))
+            )
+        },
+        autoUntrackStates = emptySet(),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock()
+    )
+
+    @Test
+    fun `calls are delegated to the session tracker`() = runBlocking {
+        val tracker = CoroutineSessionTracker(createSessionTracker(), scope, Dispatchers.IO)
+
+        tracker.initialize(listener)
+        tracker.trackSession(sessionId, State.ACTIVE)
+
+        assertTrue(tracker.consumeEvent(sessionId, Event.LOGOUT))
+        assertFalse(tracker.consumeEvent(sessionId, Event.LOGOUT))
+        assertEquals(listOf(SessionRecord(sessionId, State.INACTIVE)), tracker.getSessionRecords())
+
+        tracker.untrackSession(sessionId)
+        assertEquals(emptyList<SessionRecord<State>>(), tracker.getSessionRecords())
+
+        tracker.trackSession(sessionId, State.ACTIVE)
+        tracker.untrackAllSessions()
+        assertEquals(emptyList<SessionRecord<State>>(), tracker.getSessionRecords())
+
+        verify(storage).updateSessionRecord(SessionRecord(sessionId, State.INACTIVE))
+        verify(listener).onAllSessionsTrackingStopped(any(), any())
+    }
+
+    @Test
+    fun `storage I-O runs on the io dispatcher, one call at a time`() = runBlocking {
+        val ioThreadName = "session-tracker-io"
+        val storageThreadNames = mutableSetOf<String>()
+        var concurrentCalls = 0
+        var maxConcurrentCalls = 0
+        storage = mock {
+            on { readAllSessionRecords() } doReturn emptyList()
+            on { createSessionRecord(any()) } doAnswer {
+                synchronized(storageThreadNames) {
+                    storageThreadNames.add(Thread.currentThread().name.substringBefore(" @")) // drop debug coroutine name
+                    concurrentCalls++
+                    maxConcurrentCalls = maxOf(maxConcurrentCalls, concurrentCalls)
+                }
+                Thread.sleep(1)
+                synchronized(storageThreadNames) { concurrentCalls-- }
+                Unit
+            }
+        }
+        val executor = Executors.newFixedThreadPool(4) { runnable -> Thread(runnable, ioThreadName) }
+        try {
+            val ioDispatcher = executor.asCoroutineDispatcher()
+            val tracker = CoroutineSessionTracker(createSessionTracker(), scope, ioDispatcher)
+            tracker.initialize(listener)
+
+            (1..100)
+                .map { index ->
+                    async(Dispatchers.Default) { tracker.trackSession(SessionId("session_$index"), State.ACTIVE) }
+                }
+                .awaitAll()
+
+            assertEquals(100, tracker.getSessionRecords().size)
+            assertEquals(setOf(ioThreadName), storageThreadNames)
+            assertEquals(1, maxConcurrentCalls)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun `session tracker exceptions are propagated to the caller`() = runBlocking {
+        val tracker = CoroutineSessionTracker(createSessionTracker(), scope, Dispatchers.IO)
+
+        try {
+            tracker.trackSession(sessionId, State.ACTIVE) // not initialized
+            fail()
+        } catch (e: RuntimeException) {
+            assertEquals("SessionTracker must be initialized before calling its #trackSession method", e.message)
+        }
+    }
+
+    @Test
+    fun `calls fail once the scope is cancelled`() = runBlocking {
+        val tracker = CoroutineSessionTracker(createSessionTracker(), scope, Dispatchers.IO)
+        tracker.initialize(listener)
+
+        scope.cancel()
+
+        try {
+            tracker.getSessionRecords()
+            fail()
+        } catch (e: CancellationException) {
+            // expected
+        }
+    }
+}
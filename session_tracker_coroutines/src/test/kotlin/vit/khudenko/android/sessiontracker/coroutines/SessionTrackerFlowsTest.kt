@@ -0,0 +1,124 @@
+package vit.khudenko.android.sessiontracker.coroutines
+
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.ISessionTrackerStorage
+import vit.khudenko.android.sessiontracker.SessionId
+import vit.khudenko.android.sessiontracker.SessionRecord
+import vit.khudenko.android.sessiontracker.SessionTracker
+import vit.khudenko.android.sessiontracker.Transition
+
+class SessionTrackerFlowsTest {
+
+    enum class Event {
+        LOGIN, LOGOUT
+    }
+
+    enum class State {
+        ACTIVE, INACTIVE
+    }
+
+    private val sessionId = SessionId("session_id")
+
+    private fun createSessionTracker(): SessionTracker<Event, State> {
+        val storage = mock<ISessionTrackerStorage<State>> {
+            on { readAllSessionRecords() } doReturn emptyList()
+        }
+        return SessionTracker(
+            sessionTrackerStorage = storage,
+            sessionStateTransitionsSupplier = {
+                listOf(
+                    Transition(Event.LOGIN, listOf(State.INACTIVE, State.ACTIVE)),
+                    Transition(Event.LOGOUT, listOf(State.ACTIVE, State.INACTIVE))
+                )
+            },
+            autoUntrackStates = emptySet(),
+            mode = SessionTracker.Mode.STRICT,
+            logger = mock()
+        ).apply { initialize(mock()) }
+    }
+
+    @Test
+    fun `observeSessionRecords emits the current and then the most recent session records`() = runBlocking {
+        val sessionTracker = createSessionTracker()
+        val emissions = mutableListOf<List<SessionRecord<State>>>()
+
+        val job = launch { sessionTracker.observeSessionRecords().toList(emissions) }
+        settle()
+        assertEquals(listOf(emptyList<SessionRecord<State>>()), emissions)
+
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+        settle()
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), emissions.last())
+
+        // the collector is not resumed in between, so the snapshots following the first one are conflated
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId, Event.LOGIN)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId, Event.LOGIN)
+        settle()
+
+        assertEquals(
+            listOf(
+                emptyList(),
+                listOf(SessionRecord(sessionId, State.ACTIVE)),
+                listOf(SessionRecord(sessionId, State.INACTIVE)),
+                listOf(SessionRecord(sessionId, State.ACTIVE))
+            ),
+            emissions
+        )
+
+        job.cancel()
+    }
+
+    @Test
+    fun `observeSession emits distinct states of the session`() = runBlocking {
+        val sessionTracker = createSessionTracker()
+        val emissions = mutableListOf<State?>()
+
+        val job = launch { sessionTracker.observeSession(sessionId).toList(emissions) }
+        settle()
+
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+        settle()
+        sessionTracker.trackSession(SessionId("other_session_id"), State.ACTIVE)
+        settle()
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        settle()
+        sessionTracker.untrackSession(sessionId)
+        settle()
+
+        assertEquals(listOf(null, State.ACTIVE, State.INACTIVE, null), emissions)
+
+        job.cancel()
+    }
+
+    @Test
+    fun `observer is removed once the collection is cancelled`() = runBlocking {
+        val sessionTracker = createSessionTracker()
+        val emissions = mutableListOf<List<SessionRecord<State>>>()
+
+        val job = launch { sessionTracker.observeSessionRecords().toList(emissions) }
+        settle()
+        job.cancelAndJoin()
+
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+        settle()
+
+        assertEquals(listOf(emptyList<SessionRecord<State>>()), emissions)
+    }
+
+    /**
+     * Lets the coroutines of the `runBlocking` event loop run until they suspend.
+     */
+    private suspend fun settle() {
+        repeat(10) { yield() }
+    }
+}
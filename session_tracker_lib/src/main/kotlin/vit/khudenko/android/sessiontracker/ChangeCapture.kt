@@ -0,0 +1,418 @@
+package vit.khudenko.android.sessiontracker
+
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.EnumSet
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Change data capture: a [`Listener`][SessionTracker.Listener] streaming every session tracking start, session
+ * tracking state change and session tracking stop to a [`Sink`][Sink], e.g. to ship them to an analytics pipeline.
+ * Register it via [`SessionTracker.addListener()`][SessionTracker.addListener].
+ *
+ * The listener callbacks only put the changes into a bounded lock-free queue, so the `SessionTracker` is never
+ * blocked by the sink. The changes are encoded and written to the sink in batches by a drain task on the
+ * [`executor`][executor], one batch at a time. If the queue is full, then a change is dropped according to the
+ * [`overflowPolicy`][overflowPolicy]. Changes, that failed to be encoded (e.g. a session ID longer than 65535 bytes
+ * in modified UTF-8) or written (the sink has thrown an exception), are dropped as well. If the `executor` rejects
+ * the drain task (e.g. it has been shut down), then the queued changes are dropped. All of them are counted.
+ *
+ * A change is encoded as the following record (big-endian, see [`DataOutputStream`][DataOutputStream]):
+ * - 1 byte: [`Change.Type`][Change.Type] ordinal;
+ * - 8 bytes: timestamp, in milliseconds;
+ * - 8 bytes: [`SessionRecord.version`][SessionRecord.version];
+ * - 2 bytes length + modified UTF-8 bytes: session ID, see
+ * [`DataOutputStream.writeUTF()`][DataOutputStream.writeUTF];
+ * - 2 bytes: old state ordinal, or `-1` for a session tracking start;
+ * - 2 bytes: new state ordinal, or `-1` for a session tracking stop.
+ *
+ * Use [`readChanges()`][readChanges] to decode the records.
+ *
+ * @param sink [`Sink`][Sink] to write the encoded changes to, it is called from one thread at a time.
+ * @param executor [`Executor`][Executor] to run the drain task on.
+ * @param capacity max number of the changes in the queue.
+ * @param overflowPolicy [`OverflowPolicy`][OverflowPolicy] for a full queue.
+ * @param clock [`Clock`][SessionTimeouts.Clock] to timestamp the changes with, defaults to the wall clock.
+ *
+ * @throws [IllegalArgumentException] if `capacity` is not positive.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class ChangeCapture<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    private val sink: Sink,
+    private val executor: Executor,
+    val capacity: Int = 4096,
+    val overflowPolicy: OverflowPolicy = OverflowPolicy.DROP_NEWEST,
+    private val clock: SessionTimeouts.Clock = SessionTimeouts.Clock { System.currentTimeMillis() }
+) : SessionTracker.Listener<Event, State>, SessionTracker.BulkListener<Event, State> {
+
+    companion object {
+        private const val MAX_BATCH_SIZE = 256
+        private const val NO_STATE = -1
+
+        /**
+         * Decodes the records written by a `ChangeCapture`. An incomplete record at the end is ignored.
+         *
+         * @param input [`InputStream`][InputStream] to read the records from, it is not closed.
+         * @param stateEnumValues all the values of the [`State`][State] enum.
+         */
+        @JvmStatic
+        fun <State : Enum<State>> readChanges(
+            input: InputStream,
+            stateEnumValues: EnumSet<State>
+        ): List<Change<State>> {
+            val stateEnumValuesList = stateEnumValues.toList()
+            fun readState(ordinal: Int): State? = if (ordinal == NO_STATE) null else stateEnumValuesList[ordinal]
+            val dataInput = DataInputStream(input)
+            val changes = mutableListOf<Change<State>>()
+            while (true) {
+                try {
+                    val type = Change.Type.values()[dataInput.readByte().toInt()]
+                    val timestampMillis = dataInput.readLong()
+                    val version = dataInput.readLong()
+                    val sessionId = SessionId(dataInput.readUTF())
+                    val oldState = readState(dataInput.readShort().toInt())
+                    val newState = readState(dataInput.readShort().toInt())
+                    changes.add(Change(type, timestampMillis, sessionId, version, oldState, newState))
+                } catch (e: EOFException) {
+                    break
+                }
+            }
+            return changes
+        }
+    }
+
+    /**
+     * A session tracking change.
+     *
+     * @param oldState `null` for [`Type.TRACKED`][Type.TRACKED].
+     * @param newState `null` for [`Type.UNTRACKED`][Type.UNTRACKED].
+     */
+    data class Change<State : Enum<State>>(
+        val type: Type,
+        val timestampMillis: Long,
+        val sessionId: SessionId,
+        val version: Long,
+        val oldState: State?,
+        val newState: State?
+    ) {
+        enum class Type {
+            TRACKED,
+            STATE_CHANGED,
+            UNTRACKED
+        }
+
+        /**
+         * A workaround for accessing [sessionId] from a Java codebase (since SessionId is a Kotlin value class).
+         */
+        @JvmName("sessionId")
+        fun sessionId(): SessionId = sessionId
+    }
+
+    /**
+     * What to do with a change, if the queue is full.
+     */
+    enum class OverflowPolicy {
+
+        /**
+         * Drop the change.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the oldest change in the queue, to make room for the change.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * A destination for the encoded changes.
+     */
+    fun interface Sink {
+
+        /**
+         * Writes a batch of the encoded change records.
+         *
+         * @param bytes buffer with the records, it is reused once the call returns.
+         * @param length number of the bytes to write, starting from the beginning of the buffer.
+         *
+         * @throws [IOException] if the write has failed, the records are dropped then (so they are on any other
+         * exception).
+         */
+        @Throws(IOException::class)
+        fun write(bytes: ByteArray, length: Int)
+    }
+
+    /**
+     * A [`Sink`][Sink] appending the records to files named `changes-<index>.bin` in the [`directory`][directory].
+     * Once the current file would exceed [`maxFileBytes`][maxFileBytes], a new file with the next index is started,
+     * and files older than the [`maxFiles`][maxFiles] most recent ones are deleted. Records are never split between
+     * files, so every file can be decoded on its own. Writing continues in the most recent file after a restart.
+     *
+     * @throws [IllegalArgumentException] if `maxFileBytes` or `maxFiles` is not positive.
+     */
+    class RotatingFileSink @JvmOverloads constructor(
+        private val directory: File,
+        val maxFileBytes: Long = 1024 * 1024L,
+        val maxFiles: Int = 4
+    ) : Sink, Closeable {
+
+        companion object {
+            private val FILE_NAME_REGEX = Regex("changes-(\\d+)\\.bin")
+        }
+
+        init {
+            require(maxFileBytes > 0) { "maxFileBytes must be positive" }
+            require(maxFiles > 0) { "maxFiles must be positive" }
+        }
+
+        private var fileIndex = -1L
+        private var fileBytes = 0L
+        private var output: FileOutputStream? = null
+
+        /**
+         * @return files written so far (including the current one), from the oldest to the most recent one.
+         */
+        @Synchronized
+        fun files(): List<File> {
+            return fileIndices().map { file(it) }
+        }
+
+        @Synchronized
+        override fun write(bytes: ByteArray, length: Int) {
+            if (fileIndex < 0) {
+                directory.mkdirs()
+                fileIndex = fileIndices().lastOrNull() ?: 0L
+                fileBytes = file(fileIndex).length()
+            }
+            if (fileBytes > 0 && fileBytes + length > maxFileBytes) {
+                close()
+                fileIndex++
+                fileBytes = 0
+                fileIndices().filter { it <= fileIndex - maxFiles }.forEach { file(it).delete() }
+            }
+            val output = this.output ?: FileOutputStream(file(fileIndex), true).also { this.output = it }
+            output.write(bytes, 0, length)
+            fileBytes += length
+        }
+
+        @Synchronized
+        override fun close() {
+            output?.close()
+            output = null
+        }
+
+        private fun file(index: Long) = File(directory, "changes-$index.bin")
+
+        private fun fileIndices(): List<Long> {
+            return (directory.list() ?: emptyArray())
+                .mapNotNull { FILE_NAME_REGEX.matchEntire(it)?.groupValues?.get(1)?.toLong() }
+                .sorted()
+        }
+    }
+
+    init {
+        require(capacity > 0) { "capacity must be positive" }
+    }
+
+    private val changes = ConcurrentLinkedQueue<Change<State>>()
+    // Number of the changes in the queue, including the ones being put. A slot is reserved before putting a change,
+    // so the queue never exceeds the capacity.
+    private val queued = AtomicInteger()
+    private val scheduled = AtomicBoolean()
+    private val drain = Runnable { drainChanges() }
+    private val buffer = Buffer()
+    private val dataOutput = DataOutputStream(buffer)
+
+    private val published = AtomicLong()
+    private val dropped = AtomicLong()
+    private val written = AtomicLong()
+
+    /**
+     * Number of the changes put into the queue.
+     */
+    val publishedCount: Long
+        get() = published.get()
+
+    /**
+     * Number of the changes dropped, either on a queue overflow, on an encoding failure or on a sink failure.
+     */
+    val droppedCount: Long
+        get() = dropped.get()
+
+    /**
+     * Number of the changes written to the sink.
+     */
+    val writtenCount: Long
+        get() = written.get()
+
+    override fun onSessionTrackerInitialized(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionRecords: List<SessionRecord<State>>
+    ) {
+        // restored sessions are not changes
+    }
+
+    override fun onSessionTrackingStarted(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionRecord: SessionRecord<State>
+    ) {
+        publish(Change.Type.TRACKED, sessionRecord, null, sessionRecord.state)
+    }
+
+    override fun onSessionStateChanged(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionRecord: SessionRecord<State>,
+        oldState: State
+    ) {
+        publish(Change.Type.STATE_CHANGED, sessionRecord, oldState, sessionRecord.state)
+    }
+
+    override fun onSessionTrackingStopped(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionRecord: SessionRecord<State>
+    ) {
+        publish(Change.Type.UNTRACKED, sessionRecord, sessionRecord.state, null)
+    }
+
+    override fun onSessionsTrackingStopped(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionRecords: List<SessionRecord<State>>
+    ) {
+        sessionRecords.forEach { publish(Change.Type.UNTRACKED, it, it.state, null) }
+    }
+
+    override fun onAllSessionsTrackingStopped(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionRecords: List<SessionRecord<State>>
+    ) {
+        sessionRecords.forEach { publish(Change.Type.UNTRACKED, it, it.state, null) }
+    }
+
+    private fun publish(type: Change.Type, sessionRecord: SessionRecord<State>, oldState: State?, newState: State?) {
+        val change = Change(type, clock.nowMillis(), sessionRecord.sessionId, sessionRecord.version, oldState, newState)
+        when (overflowPolicy) {
+            OverflowPolicy.DROP_NEWEST -> {
+                if (!reserveSlot()) {
+                    dropped.incrementAndGet()
+                    return
+                }
+            }
+            OverflowPolicy.DROP_OLDEST -> {
+                while (!reserveSlot()) {
+                    // the drain task may have taken it in the meantime, then there is room already
+                    if (pollChange() != null) {
+                        dropped.incrementAndGet()
+                    }
+                }
+            }
+        }
+        changes.offer(change)
+        published.incrementAndGet()
+        scheduleDrain()
+    }
+
+    private fun reserveSlot(): Boolean {
+        while (true) {
+            val size = queued.get()
+            if (size >= capacity) {
+                return false
+            }
+            if (queued.compareAndSet(size, size + 1)) {
+                return true
+            }
+        }
+    }
+
+    private fun pollChange(): Change<State>? {
+        val change = changes.poll()
+        if (change != null) {
+            queued.decrementAndGet()
+        }
+        return change
+    }
+
+    private fun scheduleDrain() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            executor.execute(drain)
+        } catch (e: RuntimeException) {
+            // e.g. a RejectedExecutionException, nothing is going to drain the queue, and the SessionTracker call
+            // must not fail
+            scheduled.set(false)
+            while (pollChange() != null) {
+                dropped.incrementAndGet()
+            }
+        }
+    }
+
+    private fun drainChanges() {
+        try {
+            while (true) {
+                buffer.reset()
+                var batchSize = 0
+                while (batchSize < MAX_BATCH_SIZE) {
+                    val change = pollChange() ?: break
+                    val bufferSize = buffer.size()
+                    try {
+                        encode(change)
+                        batchSize++
+                    } catch (e: Exception) {
+                        // drop the partially encoded record
+                        buffer.truncate(bufferSize)
+                        dropped.incrementAndGet()
+                    }
+                }
+                if (batchSize == 0) {
+                    break
+                }
+                try {
+                    sink.write(buffer.bytes(), buffer.size())
+                    written.addAndGet(batchSize.toLong())
+                } catch (e: Exception) {
+                    dropped.addAndGet(batchSize.toLong())
+                }
+            }
+        } finally {
+            scheduled.set(false)
+            // a change could have been published after the last poll
+            if (changes.isNotEmpty()) {
+                scheduleDrain()
+            }
+        }
+    }
+
+    private fun encode(change: Change<State>) {
+        dataOutput.writeByte(change.type.ordinal)
+        dataOutput.writeLong(change.timestampMillis)
+        dataOutput.writeLong(change.version)
+        dataOutput.writeUTF(change.sessionId.value)
+        dataOutput.writeShort(change.oldState?.ordinal ?: NO_STATE)
+        dataOutput.writeShort(change.newState?.ordinal ?: NO_STATE)
+    }
+
+    /**
+     * Gives access to the buffer without copying it.
+     */
+    private class Buffer : ByteArrayOutputStream(MAX_BATCH_SIZE * 64) {
+        fun bytes(): ByteArray = buf
+
+        fun truncate(size: Int) {
+            count = size
+        }
+    }
+}
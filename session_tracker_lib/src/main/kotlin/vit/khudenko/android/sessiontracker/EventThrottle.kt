@@ -0,0 +1,135 @@
+package vit.khudenko.android.sessiontracker
+
+/**
+ * Per-session rate limiting and debouncing of the events passed to
+ * [`SessionTracker.consumeEvent()`][SessionTracker.consumeEvent], to protect the storage and the listeners from
+ * flapping inputs (e.g. a network going up and down). Pass an instance via the `SessionTracker` constructor. An
+ * instance holds configuration only, so it may be shared between `SessionTracker`s.
+ *
+ * Rate limiting: an event with a configured [`RateLimit`][RateLimit] is dropped (`consumeEvent()` returns `false`)
+ * if the session has run out of tokens for the event. Every session has its own token bucket per rate limited event.
+ *
+ * Debouncing: the first of the [`debouncedEvents`][debouncedEvents] received for a session opens a debounce window
+ * of [`debounceWindowMillis`][debounceWindowMillis]. The event is not applied right away, instead only the last
+ * debounced event received within the window is applied to the session once the window is over (earlier ones are
+ * dropped). `consumeEvent()` returns `false` for a debounced event. Debouncing relies on the
+ * [`SessionTimeouts`][SessionTimeouts] timers, so `SessionTimeouts` must be passed to the `SessionTracker` as well.
+ *
+ * Rate limiting applies before debouncing. Events applied by `SessionTimeouts` (idle timeouts, scheduled and
+ * debounced events), as well as events applied by other `SessionTracker` methods, are not throttled.
+ *
+ * The per-session state is kept along with the session in a few longs, it is dropped once the session is untracked
+ * and is not persisted.
+ *
+ * @param rateLimits rate limits per event.
+ * @param debouncedEvents events to debounce.
+ * @param debounceWindowMillis duration of a debounce window.
+ * @param clock [`Clock`][SessionTimeouts.Clock] to measure time with.
+ *
+ * @throws [IllegalArgumentException] if `debounceWindowMillis` is not positive while `debouncedEvents` is not empty.
+ *
+ * @param [Event] event parameter of enum type.
+ */
+class EventThrottle<Event : Enum<Event>> @JvmOverloads constructor(
+    rateLimits: Map<Event, RateLimit> = emptyMap(),
+    debouncedEvents: Set<Event> = emptySet(),
+    val debounceWindowMillis: Long = 0L,
+    private val clock: SessionTimeouts.Clock = SessionTimeouts.Clock.MONOTONIC
+) {
+
+    /**
+     * A token bucket of [`burst`][burst] tokens, refilled with one token every
+     * [`refillIntervalMillis`][refillIntervalMillis]. Every event takes one token.
+     *
+     * @param burst max number of events allowed in a row.
+     * @param refillIntervalMillis sustained rate of the events, as the interval between them.
+     */
+    data class RateLimit(
+        val burst: Int,
+        val refillIntervalMillis: Long
+    ) {
+        init {
+            require(burst > 0) { "burst must be positive" }
+            require(refillIntervalMillis > 0) { "refillIntervalMillis must be positive" }
+        }
+    }
+
+    internal enum class Admission {
+        ADMITTED,
+        RATE_LIMITED,
+        DEBOUNCED
+    }
+
+    init {
+        require(debouncedEvents.isEmpty() || debounceWindowMillis > 0) { "debounceWindowMillis must be positive" }
+    }
+
+    private val rateLimits: Map<Event, RateLimit> = HashMap(rateLimits)
+    private val rateLimitSlots: Map<Event, Int> =
+        rateLimits.keys.withIndex().associate { (index, event) -> event to index }
+    private val debouncedEvents: Set<Event> = HashSet(debouncedEvents)
+
+    internal val debounces: Boolean
+        get() = debouncedEvents.isNotEmpty()
+
+    /**
+     * @return a new per-session state, or `null` if nothing is configured.
+     */
+    internal fun newSessionState(): SessionState<Event>? {
+        if (rateLimits.isEmpty() && debouncedEvents.isEmpty()) {
+            return null
+        }
+        return SessionState(LongArray(rateLimits.size) { Long.MIN_VALUE })
+    }
+
+    /**
+     * Must be called while holding the `SessionTracker` lock.
+     */
+    internal fun admit(
+        sessionId: SessionId,
+        event: Event,
+        sessionState: SessionState<Event>,
+        sessionTimeouts: SessionTimeouts<Event, *>?
+    ): Admission {
+        val nowMillis = clock.nowMillis()
+        val slot = rateLimitSlots[event]
+        if (slot != null && !sessionState.tryAcquire(slot, rateLimits.getValue(event), nowMillis)) {
+            return Admission.RATE_LIMITED
+        }
+        if (sessionTimeouts == null || event !in debouncedEvents) {
+            return Admission.ADMITTED
+        }
+        if (nowMillis >= sessionState.debounceWindowEndMillis) {
+            sessionState.debounceWindowEndMillis = nowMillis + debounceWindowMillis
+        }
+        // the previous event of the window (if any) is superseded by this one
+        sessionState.debouncedEvent?.cancel()
+        sessionState.debouncedEvent = sessionTimeouts.scheduleEvent(
+            sessionId,
+            event,
+            sessionState.debounceWindowEndMillis - nowMillis
+        )
+        return Admission.DEBOUNCED
+    }
+
+    /**
+     * Throttling state of a session.
+     *
+     * Token buckets are kept as theoretical arrival times of the next event (GCRA), a single long per bucket.
+     */
+    internal class SessionState<Event : Enum<Event>>(
+        private val theoreticalArrivalTimes: LongArray
+    ) {
+        var debounceWindowEndMillis = Long.MIN_VALUE
+        var debouncedEvent: SessionTimeouts.ScheduledEvent<Event>? = null
+
+        fun tryAcquire(slot: Int, rateLimit: RateLimit, nowMillis: Long): Boolean {
+            val theoreticalArrivalTime = maxOf(theoreticalArrivalTimes[slot], nowMillis)
+            if (theoreticalArrivalTime - nowMillis > (rateLimit.burst - 1) * rateLimit.refillIntervalMillis) {
+                return false
+            }
+            theoreticalArrivalTimes[slot] = theoreticalArrivalTime + rateLimit.refillIntervalMillis
+            return true
+        }
+    }
+}
@@ -3,7 +3,11 @@ package vit.khudenko.android.sessiontracker
 import android.annotation.SuppressLint
 import android.content.SharedPreferences
 import org.json.JSONArray
+import org.json.JSONException
 import org.json.JSONObject
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
 import java.util.EnumSet
 
 /**
@@ -36,6 +40,20 @@ interface ISessionTrackerStorage<State : Enum<State>> {
      */
     fun readAllSessionRecords(): List<SessionRecord<State>>
 
+    /**
+     * This is called by `SessionTracker` from within the
+     * [`SessionTracker.initialize()`][SessionTracker.initialize] call, right after
+     * [`readAllSessionRecords()`][readAllSessionRecords].
+     *
+     * The implementation should return the max [`SessionRecord.version`][SessionRecord.version] it has ever persisted,
+     * including the versions of the session records deleted since then. `SessionTracker` continues numbering from it,
+     * so a version is never assigned twice, even if the session with that version has been untracked before a restart.
+     *
+     * The default implementation returns `0`, then `SessionTracker` continues from the max version of the session
+     * records returned by `readAllSessionRecords()`, so the versions of untracked sessions may be assigned again.
+     */
+    fun readMaxVersion(): Long = 0L
+
     /**
      * This method is called by `SessionTracker` from within the
      * [`SessionTracker.consumeEvent()`][SessionTracker.consumeEvent] call.
@@ -46,6 +64,22 @@ interface ISessionTrackerStorage<State : Enum<State>> {
      */
     fun updateSessionRecord(sessionRecord: SessionRecord<State>)
 
+    /**
+     * This method is called by `SessionTracker` from within the
+     * [`SessionTracker.consumeEventForAll()`][SessionTracker.consumeEventForAll] call, to persist all the session
+     * records updated by the call at once.
+     *
+     * The default implementation calls [`updateSessionRecord()`][updateSessionRecord] for every session record,
+     * override it if the storage is able to write a batch of changes cheaper.
+     *
+     * The implementation must not defer actual persisting for future.
+     *
+     * @param sessionRecords [`SessionRecord`][SessionRecord]s, at most one per session ID.
+     */
+    fun updateSessionRecords(sessionRecords: List<SessionRecord<State>>) {
+        sessionRecords.forEach { updateSessionRecord(it) }
+    }
+
     /**
      * This method is called by `SessionTracker` from within the
      * [`SessionTracker.untrackSession()`][SessionTracker.untrackSession] call.
@@ -56,6 +90,22 @@ interface ISessionTrackerStorage<State : Enum<State>> {
      */
     fun deleteSessionRecord(sessionId: SessionId)
 
+    /**
+     * This method is called by `SessionTracker` from within the
+     * [`SessionTracker.untrackSessions()`][SessionTracker.untrackSessions] call, to delete all the session records
+     * of the untracked sessions at once.
+     *
+     * The default implementation calls [`deleteSessionRecord()`][deleteSessionRecord] for every session ID,
+     * override it if the storage is able to write a batch of changes cheaper.
+     *
+     * The implementation must not defer actual persisting for future.
+     *
+     * @param sessionIds [`SessionId`][SessionId]s of the session records to delete.
+     */
+    fun deleteSessionRecords(sessionIds: List<SessionId>) {
+        sessionIds.forEach { deleteSessionRecord(it) }
+    }
+
     /**
      * This method is called by `SessionTracker` from within the
      * [`SessionTracker.untrackAllSessions()`][SessionTracker.untrackAllSessions] call.
@@ -64,6 +114,32 @@ interface ISessionTrackerStorage<State : Enum<State>> {
      */
     fun deleteAllSessionRecords()
 
+    /**
+     * An optional interface for an `ISessionTrackerStorage` implementation, to be passed the event, that has caused
+     * a session record update, e.g. to keep an audit trail. If the storage implements this interface, then
+     * `SessionTracker` calls these methods instead of
+     * [`updateSessionRecord()`][ISessionTrackerStorage.updateSessionRecord] and
+     * [`updateSessionRecords()`][ISessionTrackerStorage.updateSessionRecords].
+     */
+    interface EventAware<State : Enum<State>> {
+
+        /**
+         * Same as [`ISessionTrackerStorage.updateSessionRecord()`][ISessionTrackerStorage.updateSessionRecord].
+         *
+         * @param sessionRecord [`SessionRecord`][SessionRecord]
+         * @param event the event, that has caused the update.
+         */
+        fun updateSessionRecord(sessionRecord: SessionRecord<State>, event: Enum<*>)
+
+        /**
+         * Same as [`ISessionTrackerStorage.updateSessionRecords()`][ISessionTrackerStorage.updateSessionRecords].
+         *
+         * @param sessionRecords [`SessionRecord`][SessionRecord]s, at most one per session ID.
+         * @param events the events, that have caused the updates, in the order of the `sessionRecords`.
+         */
+        fun updateSessionRecords(sessionRecords: List<SessionRecord<State>>, events: List<Enum<*>>)
+    }
+
     class SharedPrefsImpl<State : Enum<State>>(
         private val prefs: SharedPreferences,
         stateEnumValues: EnumSet<State>,
@@ -71,8 +147,10 @@ interface ISessionTrackerStorage<State : Enum<State>> {
 
         companion object {
             private const val KEY_SESSION_RECORDS = "session_records"
+            private const val KEY_MAX_VERSION = "max_version"
             private const val KEY_SESSION_ID = "id"
             private const val KEY_SESSION_STATE = "state"
+            private const val KEY_SESSION_VERSION = "version"
         }
 
         private val stateEnumValuesList: List<State> = stateEnumValues.toList()
@@ -87,6 +165,10 @@ interface ISessionTrackerStorage<State : Enum<State>> {
             return sessionRecords
         }
 
+        override fun readMaxVersion(): Long {
+            return maxVersion(readAllSessionRecords())
+        }
+
         override fun createSessionRecord(sessionRecord: SessionRecord<State>) {
             saveSessionRecords(
                 readAllSessionRecords() + sessionRecord
@@ -105,33 +187,66 @@ interface ISessionTrackerStorage<State : Enum<State>> {
             )
         }
 
+        override fun updateSessionRecords(sessionRecords: List<SessionRecord<State>>) {
+            val updatedSessionRecords = sessionRecords.associateBy { it.sessionId }
+            saveSessionRecords(
+                readAllSessionRecords().map { updatedSessionRecords[it.sessionId] ?: it }
+            )
+        }
+
         override fun deleteSessionRecord(sessionId: SessionId) {
+            val sessionRecords = readAllSessionRecords()
             saveSessionRecords(
-                readAllSessionRecords().filter { it.sessionId != sessionId }
+                sessionRecords.filter { it.sessionId != sessionId },
+                maxVersion(sessionRecords)
+            )
+        }
+
+        override fun deleteSessionRecords(sessionIds: List<SessionId>) {
+            val deletedSessionIds = sessionIds.toSet()
+            val sessionRecords = readAllSessionRecords()
+            saveSessionRecords(
+                sessionRecords.filter { it.sessionId !in deletedSessionIds },
+                maxVersion(sessionRecords)
             )
         }
 
         override fun deleteAllSessionRecords() {
-            saveSessionRecords(emptyList())
+            val sessionRecords = readAllSessionRecords()
+            saveSessionRecords(emptyList(), maxVersion(sessionRecords))
+        }
+
+        /**
+         * The versions of the remaining session records are persisted with them, so only the max version of the
+         * deleted ones is saved separately.
+         */
+        private fun maxVersion(sessionRecords: List<SessionRecord<State>>): Long {
+            return sessionRecords.fold(prefs.getLong(KEY_MAX_VERSION, 0L)) { maxVersion, sessionRecord ->
+                maxOf(maxVersion, sessionRecord.version)
+            }
         }
 
         @SuppressLint("ApplySharedPref")
-        private fun saveSessionRecords(sessionRecords: List<SessionRecord<State>>) {
-            prefs.edit()
+        private fun saveSessionRecords(sessionRecords: List<SessionRecord<State>>, maxVersion: Long? = null) {
+            val editor = prefs.edit()
                 .putString(
                     KEY_SESSION_RECORDS,
                     JSONArray(
                         sessionRecords.map { sessionRecordToJson(it) }
                     ).toString()
                 )
-                .commit()
+            if (maxVersion != null) {
+                editor.putLong(KEY_MAX_VERSION, maxVersion)
+            }
+            editor.commit()
         }
 
         private fun sessionRecordToJson(sessionRecord: SessionRecord<State>): JSONObject {
             return JSONObject(
                 mapOf(
                     KEY_SESSION_ID to sessionRecord.sessionId.value,
-                    KEY_SESSION_STATE to sessionRecord.state.ordinal
+                    KEY_SESSION_STATE to sessionRecord.state.ordinal,
+                    KEY_SESSION_VERSION to sessionRecord.version
                 )
             )
         }
@@ -139,7 +254,280 @@ interface ISessionTrackerStorage<State : Enum<State>> {
         private fun jsonToSessionRecord(json: JSONObject): SessionRecord<State> {
             return SessionRecord(
                 SessionId(json.getString(KEY_SESSION_ID)),
-                stateEnumValuesList[json.getInt(KEY_SESSION_STATE)]
+                stateEnumValuesList[json.getInt(KEY_SESSION_STATE)],
+                // records persisted by older versions of the library have no version
+                json.optLong(KEY_SESSION_VERSION, 0L)
+            )
+        }
+    }
+
+    /**
+     * An append-only implementation: every change is appended to a log file as a small entry with the resulting
+     * session record (or a deletion), and the log is periodically compacted into a snapshot file with the full set
+     * of the session records. So persisting a change costs a tiny append instead of rewriting all the session
+     * records, and the log keeps the recent history of changes. An entry of a session record update keeps the name of
+     * the event, that has caused the update (see [`EventAware`][EventAware]), so the log is an audit trail.
+     *
+     * [`readAllSessionRecords()`][readAllSessionRecords] restores the session records by reading the snapshot and
+     * replaying the log on top of it. The log is compacted once it has [`snapshotInterval`][snapshotInterval]
+     * entries, which bounds the restore time. An incomplete entry at the end of the log (e.g. if the app has been
+     * killed in the middle of a write) is ignored. The entries of a batch (e.g. of an
+     * [`updateSessionRecords()`][updateSessionRecords] call) are followed by a commit entry, and are only restored if
+     * the commit entry has been written, so a batch is never restored partially.
+     *
+     * Every write is synced to the disk before returning. The session records are cached in memory, the cache is
+     * updated only once a write has succeeded.
+     *
+     * @param directory directory to keep the files in, exclusively. It is created if it does not exist.
+     * @param stateEnumValues all the values of the [`State`][State] enum.
+     * @param snapshotInterval max number of the log entries.
+     *
+     * @throws [IllegalArgumentException] if `snapshotInterval` is not positive.
+     */
+    class AppendLogImpl<State : Enum<State>> @JvmOverloads constructor(
+        private val directory: File,
+        stateEnumValues: EnumSet<State>,
+        val snapshotInterval: Int = 1000
+    ) : ISessionTrackerStorage<State>, ISessionTrackerStorage.EventAware<State> {
+
+        companion object {
+            private const val SNAPSHOT_FILE_NAME = "snapshot.json"
+            private const val LOG_FILE_NAME = "log"
+            private const val KEY_SEQUENCE_NUMBER = "seq"
+            private const val KEY_SESSION_RECORDS = "session_records"
+            private const val KEY_MAX_VERSION = "max_version"
+            private const val KEY_OPERATION = "op"
+            private const val KEY_SESSION_ID = "id"
+            private const val KEY_SESSION_STATE = "state"
+            private const val KEY_SESSION_VERSION = "version"
+            private const val KEY_BATCH = "batch"
+            private const val KEY_EVENT = "event"
+            private const val OPERATION_PUT = "put"
+            private const val OPERATION_DELETE = "delete"
+            private const val OPERATION_COMMIT = "commit"
+        }
+
+        init {
+            require(snapshotInterval > 0) { "snapshotInterval must be positive" }
+        }
+
+        private val stateEnumValuesList: List<State> = stateEnumValues.toList()
+        private val snapshotFile = File(directory, SNAPSHOT_FILE_NAME)
+        private val logFile = File(directory, LOG_FILE_NAME)
+
+        private var sessionRecords: LinkedHashMap<SessionId, SessionRecord<State>>? = null
+        // Sequence number of the last written entry, log entries not newer than the snapshot are skipped on restore.
+        private var sequenceNumber = 0L
+        private var logLength = 0
+        // Whether the log may end with an incomplete entry, then the next write compacts it into a snapshot.
+        private var logTorn = false
+        // Max version of the session records ever put, it is kept in the snapshot as the records may be deleted.
+        private var maxVersion = 0L
+
+        override fun readAllSessionRecords(): List<SessionRecord<State>> {
+            return loadedSessionRecords().values.toList()
+        }
+
+        override fun readMaxVersion(): Long {
+            loadedSessionRecords()
+            return maxVersion
+        }
+
+        override fun createSessionRecord(sessionRecord: SessionRecord<State>) {
+            write(listOf(putEntry(sessionRecord)))
+        }
+
+        override fun updateSessionRecord(sessionRecord: SessionRecord<State>) {
+            write(listOf(putEntry(sessionRecord)))
+        }
+
+        override fun updateSessionRecords(sessionRecords: List<SessionRecord<State>>) {
+            write(sessionRecords.map { putEntry(it) })
+        }
+
+        override fun updateSessionRecord(sessionRecord: SessionRecord<State>, event: Enum<*>) {
+            write(listOf(putEntry(sessionRecord, event)))
+        }
+
+        override fun updateSessionRecords(sessionRecords: List<SessionRecord<State>>, events: List<Enum<*>>) {
+            write(sessionRecords.zip(events) { sessionRecord, event -> putEntry(sessionRecord, event) })
+        }
+
+        override fun deleteSessionRecord(sessionId: SessionId) {
+            write(listOf(deleteEntry(sessionId)))
+        }
+
+        override fun deleteSessionRecords(sessionIds: List<SessionId>) {
+            write(sessionIds.map { deleteEntry(it) })
+        }
+
+        override fun deleteAllSessionRecords() {
+            val sessionRecords = loadedSessionRecords()
+            writeSnapshot(emptyMap(), sequenceNumber, maxVersion)
+            sessionRecords.clear()
+        }
+
+        private fun loadedSessionRecords(): LinkedHashMap<SessionId, SessionRecord<State>> {
+            this.sessionRecords?.let { return it }
+            val sessionRecords = LinkedHashMap<SessionId, SessionRecord<State>>()
+            if (snapshotFile.exists()) {
+                val snapshot = JSONObject(snapshotFile.readText())
+                sequenceNumber = snapshot.getLong(KEY_SEQUENCE_NUMBER)
+                maxVersion = snapshot.getLong(KEY_MAX_VERSION)
+                val jsonArray = snapshot.getJSONArray(KEY_SESSION_RECORDS)
+                for (i in 0 until jsonArray.length()) {
+                    val sessionRecord = jsonToSessionRecord(jsonArray.getJSONObject(i))
+                    sessionRecords[sessionRecord.sessionId] = sessionRecord
+                }
+            }
+            if (logFile.exists()) {
+                // entries of a batch are applied once the commit entry of the batch has been read
+                val batch = mutableListOf<JSONObject>()
+                for (line in logFile.readLines()) {
+                    val entry = try {
+                        JSONObject(line)
+                    } catch (e: JSONException) {
+                        // an incomplete write, nothing is written after it
+                        logTorn = true
+                        break
+                    }
+                    when {
+                        entry.optBoolean(KEY_BATCH) -> batch.add(entry)
+                        entry.getString(KEY_OPERATION) == OPERATION_COMMIT -> {
+                            batch.forEach { batchEntry -> applyLogEntry(sessionRecords, batchEntry) }
+                            batch.clear()
+                        }
+                        else -> applyLogEntry(sessionRecords, entry)
+                    }
+                }
+                if (batch.isNotEmpty()) {
+                    // an incomplete batch, it is dropped as a whole
+                    logTorn = true
+                }
+            }
+            this.sessionRecords = sessionRecords
+            if (logTorn) {
+                // subsequent entries must not be appended to the incomplete one
+                writeSnapshot(sessionRecords, sequenceNumber, maxVersion)
+            }
+            return sessionRecords
+        }
+
+        private fun applyLogEntry(sessionRecords: MutableMap<SessionId, SessionRecord<State>>, entry: JSONObject) {
+            // entries compacted into the snapshot, the log deletion has been interrupted
+            val entrySequenceNumber = entry.getLong(KEY_SEQUENCE_NUMBER)
+            if (entrySequenceNumber > sequenceNumber) {
+                applyEntry(sessionRecords, entry)
+                sequenceNumber = entrySequenceNumber
+                maxVersion = maxOf(maxVersion, entry.optLong(KEY_SESSION_VERSION))
+                logLength++
+            }
+        }
+
+        private fun write(entries: List<JSONObject>) {
+            if (entries.isEmpty()) {
+                return
+            }
+            val sessionRecords = loadedSessionRecords()
+            // the cached state is only updated once the entries have been written, so a failed write leaves it intact
+            var lastSequenceNumber = sequenceNumber
+            var updatedMaxVersion = maxVersion
+            entries.forEach { entry ->
+                entry.put(KEY_SEQUENCE_NUMBER, ++lastSequenceNumber)
+                updatedMaxVersion = maxOf(updatedMaxVersion, entry.optLong(KEY_SESSION_VERSION))
+            }
+            if (logTorn || logLength + entries.size > snapshotInterval) {
+                val updatedSessionRecords = LinkedHashMap(sessionRecords)
+                entries.forEach { entry -> applyEntry(updatedSessionRecords, entry) }
+                writeSnapshot(updatedSessionRecords, lastSequenceNumber, updatedMaxVersion)
+                this.sessionRecords = updatedSessionRecords
+            } else {
+                try {
+                    appendToLog(entries)
+                } catch (e: IOException) {
+                    // a part of the entries may have been written
+                    logTorn = true
+                    throw e
+                }
+                entries.forEach { entry -> applyEntry(sessionRecords, entry) }
+                logLength += entries.size
+            }
+            sequenceNumber = lastSequenceNumber
+            maxVersion = updatedMaxVersion
+        }
+
+        private fun applyEntry(sessionRecords: MutableMap<SessionId, SessionRecord<State>>, entry: JSONObject) {
+            when (entry.getString(KEY_OPERATION)) {
+                OPERATION_PUT -> {
+                    val sessionRecord = jsonToSessionRecord(entry)
+                    sessionRecords[sessionRecord.sessionId] = sessionRecord
+                }
+                OPERATION_DELETE -> sessionRecords.remove(SessionId(entry.getString(KEY_SESSION_ID)))
+            }
+        }
+
+        private fun appendToLog(entries: List<JSONObject>) {
+            val lines = if (entries.size == 1) {
+                entries
+            } else {
+                entries.map { it.put(KEY_BATCH, true) } + JSONObject().put(KEY_OPERATION, OPERATION_COMMIT)
+            }
+            directory.mkdirs()
+            FileOutputStream(logFile, true).use { out ->
+                out.write(lines.joinToString(separator = "\n", postfix = "\n").toByteArray())
+                out.fd.sync()
+            }
+        }
+
+        private fun writeSnapshot(
+            sessionRecords: Map<SessionId, SessionRecord<State>>,
+            sequenceNumber: Long,
+            maxVersion: Long
+        ) {
+            directory.mkdirs()
+            val snapshot = JSONObject()
+                .put(KEY_SEQUENCE_NUMBER, sequenceNumber)
+                .put(KEY_MAX_VERSION, maxVersion)
+                .put(KEY_SESSION_RECORDS, JSONArray(sessionRecords.values.map { sessionRecordToJson(it) }))
+            val tmpFile = File(directory, "$SNAPSHOT_FILE_NAME.tmp")
+            FileOutputStream(tmpFile).use { out ->
+                out.write(snapshot.toString().toByteArray())
+                out.fd.sync()
+            }
+            if (!tmpFile.renameTo(snapshotFile)) {
+                throw IOException("Unable to rename $tmpFile to $snapshotFile")
+            }
+            logFile.delete()
+            logLength = 0
+            logTorn = false
+        }
+
+        private fun putEntry(sessionRecord: SessionRecord<State>, event: Enum<*>? = null): JSONObject {
+            val entry = sessionRecordToJson(sessionRecord).put(KEY_OPERATION, OPERATION_PUT)
+            if (event != null) {
+                entry.put(KEY_EVENT, event.name)
+            }
+            return entry
+        }
+
+        private fun deleteEntry(sessionId: SessionId): JSONObject {
+            return JSONObject()
+                .put(KEY_OPERATION, OPERATION_DELETE)
+                .put(KEY_SESSION_ID, sessionId.value)
+        }
+
+        private fun sessionRecordToJson(sessionRecord: SessionRecord<State>): JSONObject {
+            return JSONObject()
+                .put(KEY_SESSION_ID, sessionRecord.sessionId.value)
+                .put(KEY_SESSION_STATE, sessionRecord.state.ordinal)
+                .put(KEY_SESSION_VERSION, sessionRecord.version)
+        }
+
+        private fun jsonToSessionRecord(json: JSONObject): SessionRecord<State> {
+            return SessionRecord(
+                SessionId(json.getString(KEY_SESSION_ID)),
+                stateEnumValuesList[json.getInt(KEY_SESSION_STATE)],
+                json.getLong(KEY_SESSION_VERSION)
             )
         }
     }
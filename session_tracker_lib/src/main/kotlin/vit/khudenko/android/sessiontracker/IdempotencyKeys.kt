@@ -0,0 +1,112 @@
+package vit.khudenko.android.sessiontracker
+
+/**
+ * A bounded, time-windowed memory of the idempotency keys passed to
+ * [`SessionTracker.consumeEvent(sessionId, event, idempotencyKey)`][SessionTracker.consumeEvent], along with the
+ * outcomes of the calls. Pass an instance via the `SessionTracker` constructor, an instance can not be shared between
+ * `SessionTracker`s. `SessionTracker` has no `IdempotencyKeys` by default.
+ *
+ * Per session, up to [`capacityPerSession`][capacityPerSession] most recent keys are kept, each for
+ * [`windowMillis`][windowMillis] at most. Keys are kept as 64-bit (FNV-1a) hashes in flat preallocated arrays, so the
+ * memory footprint per session is fixed and a lookup is a scan of a few longs.
+ *
+ * Note, this means two different keys having the same hash are taken for the same key: a call with a new key is then
+ * wrongly treated as a retry, it gets the outcome of the other call and its event is not applied. The hash is not
+ * cryptographic, so keys chosen by an adversary may collide on purpose. For random keys (e.g. UUIDs) the probability
+ * of a collision among the `capacityPerSession` remembered keys of a session is about `capacityPerSession² / 2⁶⁵`,
+ * i.e. below `10⁻¹⁶` with the default capacity. If this is not acceptable, de-duplicate the calls before calling
+ * `SessionTracker`.
+ *
+ * Keys of a session are forgotten once the session is untracked.
+ *
+ * @param capacityPerSession max number of keys to remember per session.
+ * @param windowMillis how long to remember a key for.
+ * @param clock [`Clock`][SessionTimeouts.Clock] to measure time with.
+ *
+ * @throws [IllegalArgumentException] if `capacityPerSession` or `windowMillis` is not positive.
+ */
+class IdempotencyKeys @JvmOverloads constructor(
+    val capacityPerSession: Int = 16,
+    val windowMillis: Long = 60_000L,
+    private val clock: SessionTimeouts.Clock = SessionTimeouts.Clock.MONOTONIC
+) {
+
+    init {
+        require(capacityPerSession > 0) { "capacityPerSession must be positive" }
+        require(windowMillis > 0) { "windowMillis must be positive" }
+    }
+
+    private val keysPerSession = HashMap<SessionId, Keys>()
+    private var attached = false
+
+    internal fun attach() {
+        check(!attached) {
+            "${IdempotencyKeys::class.java.simpleName} can not be shared between " +
+                    "${SessionTracker::class.java.simpleName} instances"
+        }
+        attached = true
+    }
+
+    /**
+     * @return outcome of the call made with the key, or `null` if the key is not known (or has expired).
+     */
+    @Synchronized
+    internal fun get(sessionId: SessionId, key: String): Boolean? {
+        val keys = keysPerSession[sessionId] ?: return null
+        return keys.get(hash(key), clock.nowMillis() - windowMillis)
+    }
+
+    @Synchronized
+    internal fun put(sessionId: SessionId, key: String, outcome: Boolean) {
+        keysPerSession.getOrPut(sessionId) { Keys(capacityPerSession) }.put(hash(key), clock.nowMillis(), outcome)
+    }
+
+    @Synchronized
+    internal fun remove(sessionId: SessionId) {
+        keysPerSession.remove(sessionId)
+    }
+
+    @Synchronized
+    internal fun clear() {
+        keysPerSession.clear()
+    }
+
+    private fun hash(key: String): Long {
+        // 64-bit FNV-1a
+        var hash = -0x340d631b7bdddcdbL
+        for (char in key) {
+            hash = (hash xor char.code.toLong()) * 0x100000001b3L
+        }
+        return hash
+    }
+
+    /**
+     * A ring buffer of the most recent keys of a session.
+     */
+    private class Keys(capacity: Int) {
+        private val hashes = LongArray(capacity)
+        private val timestamps = LongArray(capacity)
+        private val outcomes = BooleanArray(capacity)
+        private var nextIndex = 0
+        private var size = 0
+
+        fun get(hash: Long, notBeforeMillis: Long): Boolean? {
+            for (index in 0 until size) {
+                if (hashes[index] == hash && timestamps[index] >= notBeforeMillis) {
+                    return outcomes[index]
+                }
+            }
+            return null
+        }
+
+        fun put(hash: Long, timestampMillis: Long, outcome: Boolean) {
+            hashes[nextIndex] = hash
+            timestamps[nextIndex] = timestampMillis
+            outcomes[nextIndex] = outcome
+            nextIndex = (nextIndex + 1) % hashes.size
+            if (size < hashes.size) {
+                size++
+            }
+        }
+    }
+}
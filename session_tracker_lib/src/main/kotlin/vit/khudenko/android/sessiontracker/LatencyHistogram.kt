@@ -0,0 +1,114 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A fixed-size, allocation-free (on the recording path) latency histogram with log-linear buckets,
+ * similar in spirit to HdrHistogram.
+ *
+ * Values are grouped by their highest set bit, each power-of-two range being split into
+ * [`SUB_BUCKET_COUNT`][SUB_BUCKET_COUNT] linear sub-buckets. This gives a relative error of at most 12.5% for any
+ * recorded value, while the whole histogram occupies a few kilobytes regardless of the value range.
+ *
+ * Recording is thread-safe and lock-free. [`snapshot()`][snapshot] is not atomic in respect to concurrent
+ * recording, which is acceptable for metrics export.
+ */
+class LatencyHistogram {
+
+    companion object {
+        private const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+        private const val BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+
+        internal fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) {
+                return value.toInt()
+            }
+            val highestBit = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val shift = highestBit - SUB_BUCKET_BITS
+            val subBucket = ((value ushr shift) and (SUB_BUCKET_COUNT - 1).toLong()).toInt()
+            return (shift + 1) * SUB_BUCKET_COUNT + subBucket
+        }
+
+        internal fun bucketUpperBound(index: Int): Long {
+            if (index < SUB_BUCKET_COUNT) {
+                return index.toLong()
+            }
+            val shift = index / SUB_BUCKET_COUNT - 1
+            val subBucket = index % SUB_BUCKET_COUNT
+            val lowerBound = (SUB_BUCKET_COUNT + subBucket).toLong() shl shift
+            return lowerBound + (1L shl shift) - 1
+        }
+    }
+
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val totalSum = AtomicLong()
+    private val maxValue = AtomicLong()
+
+    /**
+     * @param value a non-negative value, e.g. a duration in nanoseconds. Negative values are recorded as `0`.
+     */
+    fun record(value: Long) {
+        val nonNegativeValue = value.coerceAtLeast(0L)
+        counts.incrementAndGet(bucketIndex(nonNegativeValue))
+        totalSum.addAndGet(nonNegativeValue)
+        var currentMax = maxValue.get()
+        while (nonNegativeValue > currentMax && !maxValue.compareAndSet(currentMax, nonNegativeValue)) {
+            currentMax = maxValue.get()
+        }
+    }
+
+    fun snapshot(): Snapshot {
+        val bucketCounts = LongArray(BUCKET_COUNT) { counts.get(it) }
+        return Snapshot(
+            count = bucketCounts.sum(),
+            sum = totalSum.get(),
+            max = maxValue.get(),
+            bucketCounts = bucketCounts
+        )
+    }
+
+    /**
+     * An immutable copy of the [`LatencyHistogram`][LatencyHistogram] state.
+     */
+    class Snapshot internal constructor(
+        val count: Long,
+        val sum: Long,
+        val max: Long,
+        private val bucketCounts: LongArray
+    ) {
+
+        val mean: Double
+            get() = if (count == 0L) 0.0 else sum.toDouble() / count
+
+        /**
+         * @param percentile a value in the `[0.0, 100.0]` range.
+         *
+         * @return the (bucket upper bound) value, below or at which the given percentile of recorded values fall.
+         * Returns `0` if nothing has been recorded.
+         *
+         * @throws [IllegalArgumentException] if percentile is out of the `[0.0, 100.0]` range.
+         */
+        fun valueAtPercentile(percentile: Double): Long {
+            require(percentile in 0.0..100.0) { "percentile must be in [0.0, 100.0] range" }
+            if (count == 0L) {
+                return 0L
+            }
+            val targetCount = Math.ceil(percentile / 100.0 * count).toLong().coerceIn(1L, count)
+            var accumulatedCount = 0L
+            for (index in bucketCounts.indices) {
+                accumulatedCount += bucketCounts[index]
+                if (accumulatedCount >= targetCount) {
+                    return bucketUpperBound(index).coerceAtMost(max)
+                }
+            }
+            return max
+        }
+
+        override fun toString(): String {
+            return "${Snapshot::class.java.simpleName}(count=$count, mean=$mean, " +
+                    "p50=${valueAtPercentile(50.0)}, p99=${valueAtPercentile(99.0)}, max=$max)"
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A FIFO queue of [`SessionTracker.Listener`][SessionTracker.Listener] callbacks, that are delivered on the
+ * [`executor`][executor] one at a time, in the order of enqueueing, regardless of the executor's own ordering and
+ * parallelism.
+ */
+internal class ListenerDispatchQueue(private val executor: Executor) {
+
+    private val tasks = ConcurrentLinkedQueue<Runnable>()
+    private val scheduled = AtomicBoolean()
+    private val drain = Runnable { drainTasks() }
+
+    fun enqueue(task: Runnable) {
+        tasks.offer(task)
+    }
+
+    /**
+     * Submits the delivery of the enqueued callbacks to the executor, unless it has been submitted already.
+     */
+    fun dispatch() {
+        if (tasks.isNotEmpty() && scheduled.compareAndSet(false, true)) {
+            executor.execute(drain)
+        }
+    }
+
+    private fun drainTasks() {
+        try {
+            while (true) {
+                val task = tasks.poll() ?: break
+                task.run()
+            }
+        } finally {
+            scheduled.set(false)
+            // a task could have been enqueued after the last poll, or a callback could have thrown
+            dispatch()
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package vit.khudenko.android.sessiontracker
+
+/**
+ * Defines which callbacks a [`SessionTracker.Listener`][SessionTracker.Listener] registered via
+ * [`SessionTracker.addListener()`][SessionTracker.addListener] is interested in. A `null` criterion matches anything.
+ *
+ * - [`states`][states] - for `onSessionStateChanged()` either the old or the new state must be one of these states,
+ *     for other callbacks the session record state must be one of these states.
+ * - [`events`][events] - `onSessionStateChanged()` must be caused by one of these events. Does not affect other
+ *     callbacks.
+ * - [`sessionIds`][sessionIds] - the session ID must be one of these IDs.
+ *
+ * For `onSessionTrackerInitialized()` and `onAllSessionsTrackingStopped()` the session records are filtered by the
+ * `states` and `sessionIds`. `onAllSessionsTrackingStopped()` is skipped if none of the session records match.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class ListenerFilter<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    val states: Set<State>? = null,
+    val events: Set<Event>? = null,
+    val sessionIds: Set<SessionId>? = null
+) {
+
+    internal fun matches(sessionRecord: SessionRecord<State>): Boolean {
+        return (states == null || sessionRecord.state in states)
+                && (sessionIds == null || sessionRecord.sessionId in sessionIds)
+    }
+
+    internal fun matchesSessionId(sessionId: SessionId): Boolean {
+        return sessionIds == null || sessionId in sessionIds
+    }
+
+    internal fun matchesState(state: State): Boolean {
+        return states == null || state in states
+    }
+
+    internal fun matchesStateChange(event: Event, oldState: State, newState: State): Boolean {
+        return (events == null || event in events)
+                && (states == null || oldState in states || newState in states)
+    }
+
+    override fun toString(): String {
+        return "${ListenerFilter::class.java.simpleName}(states=$states, events=$events, sessionIds=$sessionIds)"
+    }
+}
@@ -0,0 +1,86 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.EnumMap
+
+/**
+ * Listeners registered via [`SessionTracker.addListener()`][SessionTracker.addListener].
+ *
+ * Registration is copy-on-write: every change publishes a new immutable array of registrations along with new empty
+ * dispatch tables. Dispatch tables map a state (or an event and a state change) to the registrations interested in
+ * it, so a callback only visits the interested listeners. Tables are filled lazily and are only accessed while
+ * `SessionTracker` holds its lock.
+ */
+internal class ListenerRegistry<Event : Enum<Event>, State : Enum<State>> {
+
+    class Registration<Event : Enum<Event>, State : Enum<State>>(
+        val listener: SessionTracker.Listener<Event, State>,
+        val filter: ListenerFilter<Event, State>
+    )
+
+    private class Tables<Event : Enum<Event>, State : Enum<State>>(
+        val registrations: Array<Registration<Event, State>>
+    ) {
+        var byState: EnumMap<State, Array<Registration<Event, State>>>? = null
+        var byStateChange: EnumMap<Event, EnumMap<State, EnumMap<State, Array<Registration<Event, State>>>>>? = null
+    }
+
+    @Volatile
+    private var tables = Tables<Event, State>(emptyArray())
+
+    val registrations: Array<Registration<Event, State>>
+        get() = tables.registrations
+
+    @Synchronized
+    fun add(listener: SessionTracker.Listener<Event, State>, filter: ListenerFilter<Event, State>) {
+        tables = Tables(tables.registrations + Registration(listener, filter))
+    }
+
+    @Synchronized
+    fun remove(listener: SessionTracker.Listener<Event, State>) {
+        val registrations = tables.registrations
+        if (registrations.any { it.listener === listener }) {
+            tables = Tables(registrations.filterNot { it.listener === listener }.toTypedArray())
+        }
+    }
+
+    /**
+     * @return registrations interested in a session in the given state, not taking session IDs into account.
+     */
+    fun forState(state: State): Array<Registration<Event, State>> {
+        val tables = this.tables
+        if (tables.registrations.isEmpty()) {
+            return tables.registrations
+        }
+        val byState = tables.byState ?: EnumMap<State, Array<Registration<Event, State>>>(enumClassOf(state))
+            .also { tables.byState = it }
+        return byState.getOrPut(state) {
+            tables.registrations.filter { it.filter.matchesState(state) }.toTypedArray()
+        }
+    }
+
+    /**
+     * @return registrations interested in the state change, not taking session IDs into account.
+     */
+    fun forStateChange(event: Event, oldState: State, newState: State): Array<Registration<Event, State>> {
+        val tables = this.tables
+        if (tables.registrations.isEmpty()) {
+            return tables.registrations
+        }
+        val byEvent = tables.byStateChange
+            ?: EnumMap<Event, EnumMap<State, EnumMap<State, Array<Registration<Event, State>>>>>(enumClassOf(event))
+                .also { tables.byStateChange = it }
+        return byEvent
+            .getOrPut(event) { EnumMap(enumClassOf(oldState)) }
+            .getOrPut(oldState) { EnumMap(enumClassOf(newState)) }
+            .getOrPut(newState) {
+                tables.registrations.filter { it.filter.matchesStateChange(event, oldState, newState) }.toTypedArray()
+            }
+    }
+
+    private fun <E : Enum<E>> enumClassOf(value: E): Class<E> {
+        // a constant with a body is an instance of an anonymous subclass of the enum class
+        val valueClass = value.javaClass
+        @Suppress("UNCHECKED_CAST")
+        return (if (valueClass.isEnum) valueClass else valueClass.superclass) as Class<E>
+    }
+}
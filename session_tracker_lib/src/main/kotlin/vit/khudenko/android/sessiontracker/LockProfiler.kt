@@ -0,0 +1,165 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.PriorityQueue
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * An opt-in profiler of the [`SessionTracker`][SessionTracker] lock. Pass an instance via the
+ * `SessionTracker` constructor to make it record, per public `SessionTracker` method:
+ * - time spent waiting for the lock,
+ * - time spent holding the lock,
+ * - the longest lock holders with their session IDs,
+ * - the calls, where [`ISessionTrackerStorage`][ISessionTrackerStorage] I/O took most of the lock hold time.
+ *
+ * A call is recorded once the outermost public method releases the lock, nested calls (e.g. made from a listener
+ * callback) are a part of it.
+ *
+ * Use [`report()`][report] to obtain the collected data. A profiler may be shared by several `SessionTracker`
+ * instances: the statistics are accumulated with atomic updates, so the trackers do not serialize on the profiler
+ * (only a call entering the longest lock holders takes a lock). As a consequence, a report taken while calls are
+ * recorded is not an atomic snapshot of all the statistics.
+ *
+ * @param longestHoldersCapacity how many of the longest lock holders to keep.
+ *
+ * @throws [IllegalArgumentException] if longestHoldersCapacity is not positive.
+ */
+class LockProfiler(
+    private val longestHoldersCapacity: Int = 16
+) {
+
+    init {
+        require(longestHoldersCapacity > 0) { "longestHoldersCapacity must be positive" }
+    }
+
+    private val operationCount = SessionTracker.Operation.values().size
+    private val counts = AtomicLongArray(operationCount)
+    private val totalWaitNanos = AtomicLongArray(operationCount)
+    private val maxWaitNanos = AtomicLongArray(operationCount)
+    private val totalHoldNanos = AtomicLongArray(operationCount)
+    private val maxHoldNanos = AtomicLongArray(operationCount)
+    private val storageDominatedCounts = AtomicLongArray(operationCount)
+
+    // guarded by itself
+    private val longestHolders = PriorityQueue<Holder>(longestHoldersCapacity) { a, b ->
+        a.holdNanos.compareTo(b.holdNanos)
+    }
+
+    // hold time a call must exceed to enter the longest holders, once there are enough of them
+    @Volatile
+    private var longestHoldersMinNanos = -1L
+
+    internal fun onLockReleased(
+        operation: SessionTracker.Operation,
+        sessionId: SessionId?,
+        waitNanos: Long,
+        holdNanos: Long,
+        storageNanos: Long
+    ) {
+        val index = operation.ordinal
+        counts.incrementAndGet(index)
+        totalWaitNanos.addAndGet(index, waitNanos)
+        updateMax(maxWaitNanos, index, waitNanos)
+        totalHoldNanos.addAndGet(index, holdNanos)
+        updateMax(maxHoldNanos, index, holdNanos)
+        if (isStorageDominated(holdNanos, storageNanos)) {
+            storageDominatedCounts.incrementAndGet(index)
+        }
+        if (holdNanos > longestHoldersMinNanos) {
+            synchronized(longestHolders) {
+                if (longestHolders.size < longestHoldersCapacity) {
+                    longestHolders.add(Holder(operation, sessionId, holdNanos, storageNanos))
+                } else if (longestHolders.peek()!!.holdNanos < holdNanos) {
+                    longestHolders.poll()
+                    longestHolders.add(Holder(operation, sessionId, holdNanos, storageNanos))
+                }
+                if (longestHolders.size == longestHoldersCapacity) {
+                    longestHoldersMinNanos = longestHolders.peek()!!.holdNanos
+                }
+            }
+        }
+    }
+
+    fun report(): Report {
+        return Report(
+            operations = SessionTracker.Operation.values().associateWith { operation ->
+                val index = operation.ordinal
+                OperationStats(
+                    count = counts.get(index),
+                    totalWaitNanos = totalWaitNanos.get(index),
+                    maxWaitNanos = maxWaitNanos.get(index),
+                    totalHoldNanos = totalHoldNanos.get(index),
+                    maxHoldNanos = maxHoldNanos.get(index),
+                    storageDominatedCount = storageDominatedCounts.get(index)
+                )
+            },
+            longestHolders = synchronized(longestHolders) { longestHolders.sortedByDescending { it.holdNanos } }
+        )
+    }
+
+    fun reset() {
+        for (index in 0 until operationCount) {
+            counts.set(index, 0)
+            totalWaitNanos.set(index, 0)
+            maxWaitNanos.set(index, 0)
+            totalHoldNanos.set(index, 0)
+            maxHoldNanos.set(index, 0)
+            storageDominatedCounts.set(index, 0)
+        }
+        synchronized(longestHolders) {
+            longestHolders.clear()
+            longestHoldersMinNanos = -1L
+        }
+    }
+
+    private fun updateMax(values: AtomicLongArray, index: Int, value: Long) {
+        while (true) {
+            val current = values.get(index)
+            if (current >= value || values.compareAndSet(index, current, value)) {
+                return
+            }
+        }
+    }
+
+    /**
+     * @param operations lock statistics per `SessionTracker` method.
+     * @param longestHolders the longest lock holders, sorted by the hold time in descending order.
+     */
+    data class Report(
+        val operations: Map<SessionTracker.Operation, OperationStats>,
+        val longestHolders: List<Holder>
+    )
+
+    /**
+     * Durations are in nanoseconds.
+     *
+     * @param storageDominatedCount number of calls, where storage I/O took more than a half of the lock hold time.
+     */
+    data class OperationStats(
+        val count: Long,
+        val totalWaitNanos: Long,
+        val maxWaitNanos: Long,
+        val totalHoldNanos: Long,
+        val maxHoldNanos: Long,
+        val storageDominatedCount: Long
+    )
+
+    /**
+     * A single `SessionTracker` method call that has held the lock. Durations are in nanoseconds.
+     *
+     * @param sessionId ID of the session the call was made for, `null` for calls not specific to a session.
+     */
+    data class Holder(
+        val operation: SessionTracker.Operation,
+        val sessionId: SessionId?,
+        val holdNanos: Long,
+        val storageNanos: Long
+    ) {
+        /**
+         * Whether storage I/O took more than a half of the lock hold time.
+         */
+        val storageDominated: Boolean
+            get() = isStorageDominated(holdNanos, storageNanos)
+    }
+}
+
+private fun isStorageDominated(holdNanos: Long, storageNanos: Long) = storageNanos * 2 > holdNanos
@@ -0,0 +1,42 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+
+/**
+ * Calls the action for every item and gathers the results, in the order of the items. With an executor, the items
+ * are processed in parallel (the calling thread takes the first item), otherwise one by one on the calling thread.
+ *
+ * Either way the action is complete for all the items before returning: if it fails for any item, then the first
+ * failure (in the order of the items) is rethrown once all the items have been processed.
+ */
+internal fun <T, R> scatterGather(items: List<T>, executor: ExecutorService?, action: (T) -> R): List<R> {
+    val results = ArrayList<R>(items.size)
+    var error: Throwable? = null
+    if (executor == null || items.size <= 1) {
+        items.forEach { item ->
+            try {
+                results.add(action.invoke(item))
+            } catch (e: Throwable) {
+                error = error ?: e
+            }
+        }
+    } else {
+        val futures = items.drop(1).map { item -> executor.submit(Callable { action.invoke(item) }) }
+        try {
+            results.add(action.invoke(items.first()))
+        } catch (e: Throwable) {
+            error = e
+        }
+        futures.forEach { future ->
+            try {
+                results.add(future.get())
+            } catch (e: ExecutionException) {
+                error = error ?: e.cause ?: e
+            }
+        }
+    }
+    error?.let { throw it }
+    return results
+}
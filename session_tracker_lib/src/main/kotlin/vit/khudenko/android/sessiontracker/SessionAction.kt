@@ -0,0 +1,45 @@
+package vit.khudenko.android.sessiontracker
+
+/**
+ * An action to perform for a session, as returned from the
+ * [`SessionTracker.compute()`][SessionTracker.compute] function.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+sealed class SessionAction<Event : Enum<Event>, State : Enum<State>> {
+
+    /**
+     * Start tracking the session in the given state.
+     *
+     * @see [SessionTracker.trackSession]
+     */
+    class Track<Event : Enum<Event>, State : Enum<State>>(val state: State) : SessionAction<Event, State>() {
+        override fun toString() = "Track($state)"
+    }
+
+    /**
+     * Apply the event to the session.
+     *
+     * @see [SessionTracker.consumeEvent]
+     */
+    class ConsumeEvent<Event : Enum<Event>, State : Enum<State>>(val event: Event) : SessionAction<Event, State>() {
+        override fun toString() = "ConsumeEvent($event)"
+    }
+
+    /**
+     * Stop tracking the session.
+     *
+     * @see [SessionTracker.untrackSession]
+     */
+    class Untrack<Event : Enum<Event>, State : Enum<State>> : SessionAction<Event, State>() {
+        override fun toString() = "Untrack"
+    }
+
+    /**
+     * Do nothing.
+     */
+    class None<Event : Enum<Event>, State : Enum<State>> : SessionAction<Event, State>() {
+        override fun toString() = "None"
+    }
+}
@@ -3,16 +3,51 @@ package vit.khudenko.android.sessiontracker
 /**
  * A representation of a session tracked by [`SessionTracker`][SessionTracker].
  *
+ * Session records are compared by [sessionId] and [state] only, the [version] does not affect equality (so a record
+ * created without a version equals the tracked one). [`copy()`][copy] keeps the version, unless a new one is passed.
+ *
+ * @param version a version stamp of the session record. `SessionTracker` assigns it the current
+ * [`SessionTracker.version`][SessionTracker.version] every time the session is tracked or changes its session
+ * tracking state, so the version of a session only grows, and a record with the same version as the one seen
+ * before is guaranteed to be unchanged. `0` means the version is unknown, e.g. for a record persisted before versions
+ * were introduced.
+ *
  * @see SessionTracker.Listener
  * @see ISessionTrackerStorage
  */
-data class SessionRecord<State : Enum<State>>(
+class SessionRecord<State : Enum<State>> @JvmOverloads constructor(
     val sessionId: SessionId,
-    val state: State
+    val state: State,
+    val version: Long = 0L
 ) {
+
     /**
      * A workaround for accessing [sessionId] from a Java codebase (since SessionId is a Kotlin value class).
      */
     @JvmName("sessionId")
     fun sessionId(): SessionId = sessionId
+
+    operator fun component1(): SessionId = sessionId
+
+    operator fun component2(): State = state
+
+    fun copy(
+        sessionId: SessionId = this.sessionId,
+        state: State = this.state,
+        version: Long = this.version
+    ): SessionRecord<State> = SessionRecord(sessionId, state, version)
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is SessionRecord<*>) return false
+        return sessionId == other.sessionId && state == other.state
+    }
+
+    override fun hashCode(): Int {
+        return 31 * sessionId.hashCode() + state.hashCode()
+    }
+
+    override fun toString(): String {
+        return "${SessionRecord::class.java.simpleName}(sessionId=$sessionId, state=$state, version=$version)"
+    }
 }
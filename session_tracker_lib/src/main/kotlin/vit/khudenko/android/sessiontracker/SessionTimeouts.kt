@@ -0,0 +1,341 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Session timers: idle timeouts and scheduled events. Pass an instance via the `SessionTracker` constructor, an
+ * instance can not be shared between `SessionTracker`s.
+ *
+ * Idle timeouts: once a session has been sitting in a session tracking state for longer than the timeout configured
+ * for the state, the configured event is applied to the session, as if by
+ * [`SessionTracker.compareAndConsume()`][SessionTracker.compareAndConsume] with the state as the expected one.
+ * A timeout is (re)started every time a session gets into a state with a configured timeout (including sessions
+ * restored by [`SessionTracker.initialize()`][SessionTracker.initialize]), or on [`touch()`][touch]. It is cancelled
+ * once the session leaves the state or is untracked.
+ *
+ * Scheduled events: see [`scheduleEvent()`][scheduleEvent]. A scheduled event is applied to the session, as if by
+ * [`SessionTracker.consumeEvent()`][SessionTracker.consumeEvent], once its delay has passed. Scheduled events are
+ * cancelled once the session is untracked. Scheduled events are not persisted.
+ *
+ * Timers are kept in a hashed timing wheel of [`wheelSize`][wheelSize] slots, [`tickMillis`][tickMillis] each, so
+ * starting and cancelling a timer is O(1) regardless of the number of sessions and timers, and no timer task is
+ * created per timer. The timers resolution is `tickMillis`: a timer fires within one tick after its deadline. Timers
+ * that expire within the same [`advance()`][advance] call fire in the order of their deadlines.
+ *
+ * `SessionTimeouts` does not create threads, expired timers are fired by [`advance()`][advance] calls. Call it
+ * periodically, e.g. via [`scheduleAtFixedRate()`][scheduleAtFixedRate].
+ *
+ * @param timeouts timeouts per session tracking state.
+ * @param tickMillis duration of a timing wheel tick.
+ * @param wheelSize number of the timing wheel slots. Timers longer than `wheelSize * tickMillis` are supported,
+ * they just take a few wheel revolutions.
+ * @param clock [`Clock`][Clock] to measure time with, defaults to [`Clock.MONOTONIC`][Clock.MONOTONIC].
+ *
+ * @throws [IllegalArgumentException] if a timeout duration, `tickMillis` or `wheelSize` is not positive.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class SessionTimeouts<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    timeouts: Map<State, Timeout<Event>> = emptyMap(),
+    val tickMillis: Long = 1000L,
+    val wheelSize: Int = 512,
+    private val clock: Clock = Clock.MONOTONIC
+) {
+
+    /**
+     * @param durationMillis how long a session may stay in the state.
+     * @param event event to apply to the session once the timeout expires.
+     */
+    data class Timeout<Event : Enum<Event>>(
+        val durationMillis: Long,
+        val event: Event
+    ) {
+        init {
+            require(durationMillis > 0) { "durationMillis must be positive" }
+        }
+    }
+
+    /**
+     * A source of time for [`SessionTimeouts`][SessionTimeouts], injectable for testing.
+     */
+    fun interface Clock {
+
+        fun nowMillis(): Long
+
+        companion object {
+
+            /**
+             * A [`Clock`][Clock] based on [`System.nanoTime()`][System.nanoTime], not affected by wall clock changes.
+             */
+            @JvmField
+            val MONOTONIC = Clock { TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) }
+        }
+    }
+
+    /**
+     * A handle of an event scheduled via [`scheduleEvent()`][scheduleEvent].
+     */
+    class ScheduledEvent<Event : Enum<Event>> internal constructor(
+        private val owner: SessionTimeouts<Event, *>,
+        private val entry: Entry<Event, *>
+    ) {
+        val sessionId: SessionId
+            get() = entry.sessionId
+
+        val event: Event
+            get() = entry.event
+
+        /**
+         * A workaround for accessing [sessionId] from a Java codebase (since SessionId is a Kotlin value class).
+         */
+        @JvmName("sessionId")
+        fun sessionId(): SessionId = sessionId
+
+        /**
+         * Cancels the event.
+         *
+         * @return `true` if the event has been cancelled, `false` if it has already been fired or cancelled.
+         */
+        fun cancel(): Boolean = owner.cancelScheduledEvent(entry)
+    }
+
+    init {
+        require(tickMillis > 0) { "tickMillis must be positive" }
+        require(wheelSize > 0) { "wheelSize must be positive" }
+    }
+
+    private val timeouts: Map<State, Timeout<Event>> = HashMap(timeouts)
+    private val wheel = arrayOfNulls<Entry<Event, State>>(wheelSize)
+    private val timeoutEntries = HashMap<SessionId, Entry<Event, State>>()
+    private val scheduledEventEntries = HashMap<SessionId, MutableSet<Entry<Event, State>>>()
+    private val startedAtMillis = clock.nowMillis()
+    // All the ticks up to (and including) this one have been processed.
+    private var currentTick = 0L
+    private var nextSequenceNumber = 0L
+    private var sessionTracker: SessionTracker<Event, State>? = null
+
+    /**
+     * Fires the timers, that have expired since the previous call, by applying the events to the sessions.
+     *
+     * @return number of the fired timers.
+     */
+    fun advance(): Int {
+        val sessionTracker = requireSessionTracker()
+        val firedCount = synchronized(sessionTracker) {
+            // firing may start and cancel timers, so the wheel is not iterated at this point
+            pollExpiredEntries().count { entry ->
+                // a timer may have been cancelled by firing a previous one, e.g. if the session has been untracked
+                if (!remove(entry)) {
+                    return@count false
+                }
+                val state = entry.state
+                if (state == null) {
+                    sessionTracker.consumeTimerEvent(entry.sessionId, entry.event)
+                } else {
+                    sessionTracker.compareAndConsume(entry.sessionId, state, entry.event)
+                }
+                true
+            }
+        }
+        // the callbacks of the fired timers are delivered once the lock is released
+        sessionTracker.dispatchListenerCallbacks()
+        return firedCount
+    }
+
+    /**
+     * Restarts the idle timeout of the session (if any), e.g. on a user activity within the session.
+     */
+    @JvmName("touch")
+    fun touch(sessionId: SessionId) {
+        synchronized(requireSessionTracker()) {
+            val entry = timeoutEntries[sessionId] ?: return
+            schedule(sessionId, entry.state!!)
+        }
+    }
+
+    /**
+     * Schedules the event to be applied to the session once the delay has passed. A session may have any number of
+     * scheduled events.
+     *
+     * @param sessionId [`SessionId`][SessionId] of a tracked session.
+     * @param event [`Event`][Event] to apply.
+     * @param delayMillis delay, must not be negative.
+     *
+     * @return [`ScheduledEvent`][ScheduledEvent] to cancel the event with, or `null` if the session is not tracked.
+     *
+     * @throws [IllegalArgumentException] if `delayMillis` is negative.
+     */
+    @JvmName("scheduleEvent")
+    fun scheduleEvent(sessionId: SessionId, event: Event, delayMillis: Long): ScheduledEvent<Event>? {
+        require(delayMillis >= 0) { "delayMillis must not be negative" }
+        val sessionTracker = requireSessionTracker()
+        synchronized(sessionTracker) {
+            if (!sessionTracker.isTracking(sessionId)) {
+                return null
+            }
+            val entry = Entry<Event, State>(sessionId, event, null, deadlineTick(delayMillis), nextSequenceNumber++)
+            link(entry)
+            scheduledEventEntries.getOrPut(sessionId) { LinkedHashSet() }.add(entry)
+            return ScheduledEvent(this, entry)
+        }
+    }
+
+    /**
+     * Calls [`advance()`][advance] on the executor every [`tickMillis`][tickMillis].
+     *
+     * @return [`ScheduledFuture`][ScheduledFuture] to cancel the calls with.
+     */
+    fun scheduleAtFixedRate(executor: ScheduledExecutorService): ScheduledFuture<*> {
+        return executor.scheduleAtFixedRate({ advance() }, tickMillis, tickMillis, TimeUnit.MILLISECONDS)
+    }
+
+    internal fun attach(sessionTracker: SessionTracker<Event, State>) {
+        check(this.sessionTracker == null) {
+            "${SessionTimeouts::class.java.simpleName} can not be shared between " +
+                    "${SessionTracker::class.java.simpleName} instances"
+        }
+        this.sessionTracker = sessionTracker
+    }
+
+    /**
+     * (Re)starts the idle timeout of the session. Must be called while holding the `SessionTracker` lock.
+     */
+    internal fun schedule(sessionId: SessionId, state: State) {
+        timeoutEntries.remove(sessionId)?.let { unlink(it) }
+        val timeout = timeouts[state] ?: return
+        val entry = Entry(sessionId, timeout.event, state, deadlineTick(timeout.durationMillis), nextSequenceNumber++)
+        link(entry)
+        timeoutEntries[sessionId] = entry
+    }
+
+    /**
+     * Cancels all the timers of the session. Must be called while holding the `SessionTracker` lock.
+     */
+    internal fun cancel(sessionId: SessionId) {
+        timeoutEntries.remove(sessionId)?.let { unlink(it) }
+        scheduledEventEntries.remove(sessionId)?.forEach { unlink(it) }
+    }
+
+    /**
+     * Must be called while holding the `SessionTracker` lock.
+     */
+    internal fun cancelAll() {
+        timeoutEntries.clear()
+        scheduledEventEntries.clear()
+        wheel.fill(null)
+    }
+
+    private fun cancelScheduledEvent(scheduledEventEntry: Entry<Event, *>): Boolean {
+        @Suppress("UNCHECKED_CAST")
+        val entry = scheduledEventEntry as Entry<Event, State>
+        synchronized(requireSessionTracker()) {
+            if (!remove(entry)) {
+                return false
+            }
+            unlink(entry)
+            return true
+        }
+    }
+
+    /**
+     * @return `false` if the timer has been fired or cancelled already.
+     */
+    private fun remove(entry: Entry<Event, State>): Boolean {
+        if (entry.state != null) {
+            if (timeoutEntries[entry.sessionId] !== entry) {
+                return false
+            }
+            timeoutEntries.remove(entry.sessionId)
+            return true
+        }
+        val entries = scheduledEventEntries[entry.sessionId]
+        if (entries == null || !entries.remove(entry)) {
+            return false
+        }
+        if (entries.isEmpty()) {
+            scheduledEventEntries.remove(entry.sessionId)
+        }
+        return true
+    }
+
+    private fun requireSessionTracker(): SessionTracker<Event, State> {
+        return checkNotNull(sessionTracker) {
+            "${SessionTimeouts::class.java.simpleName} is not passed to a ${SessionTracker::class.java.simpleName}"
+        }
+    }
+
+    private fun deadlineTick(delayMillis: Long): Long {
+        val deadlineMillis = clock.nowMillis() - startedAtMillis + delayMillis
+        return maxOf(currentTick + 1, (deadlineMillis + tickMillis - 1) / tickMillis)
+    }
+
+    private fun pollExpiredEntries(): List<Entry<Event, State>> {
+        val targetTick = (clock.nowMillis() - startedAtMillis) / tickMillis
+        if (targetTick <= currentTick) {
+            return emptyList()
+        }
+        val expiredEntries = mutableListOf<Entry<Event, State>>()
+        // every slot has to be visited at most once, no matter how many ticks have passed
+        val ticks = minOf(targetTick - currentTick, wheelSize.toLong())
+        for (tick in currentTick + 1..currentTick + ticks) {
+            var entry = wheel[(tick % wheelSize).toInt()]
+            while (entry != null) {
+                val next = entry.next
+                if (entry.deadlineTick <= targetTick) {
+                    unlink(entry)
+                    expiredEntries.add(entry)
+                }
+                entry = next
+            }
+        }
+        currentTick = targetTick
+        expiredEntries.sortWith(compareBy({ it.deadlineTick }, { it.sequenceNumber }))
+        return expiredEntries
+    }
+
+    private fun link(entry: Entry<Event, State>) {
+        val slot = (entry.deadlineTick % wheelSize).toInt()
+        entry.linked = true
+        entry.slot = slot
+        entry.next = wheel[slot]
+        wheel[slot]?.prev = entry
+        wheel[slot] = entry
+    }
+
+    private fun unlink(entry: Entry<Event, State>) {
+        if (!entry.linked) {
+            // an expired entry, that is about to be fired
+            return
+        }
+        entry.linked = false
+        val prev = entry.prev
+        val next = entry.next
+        if (prev == null) {
+            wheel[entry.slot] = next
+        } else {
+            prev.next = next
+        }
+        next?.prev = prev
+        entry.prev = null
+        entry.next = null
+    }
+
+    /**
+     * A timing wheel entry: either an idle timeout (with the `state`), or a scheduled event.
+     */
+    internal class Entry<Event : Enum<Event>, State : Enum<State>>(
+        val sessionId: SessionId,
+        val event: Event,
+        val state: State?,
+        val deadlineTick: Long,
+        val sequenceNumber: Long
+    ) {
+        var linked = false
+        var slot = 0
+        var prev: Entry<Event, State>? = null
+        var next: Entry<Event, State>? = null
+    }
+}
@@ -2,6 +2,11 @@ package vit.khudenko.android.sessiontracker
 
 import android.util.Log
 import vit.khudenko.android.fsm.StateMachine
+import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * ## TL;DR
@@ -22,7 +27,7 @@ import vit.khudenko.android.fsm.StateMachine
  *
  * In SessionTracker framework, sessions are represented by session tracking records - instances of
  * [`SessionRecord`][SessionRecord]. It is an immutable data structure of 2 fields - session ID and
- * session tracking state.
+ * session tracking state, stamped with a [`version`][SessionRecord.version].
  *
  * Note, there are two (partially intersecting) types of session state:
  * 1. The session state that is tracked by SessionTracker, which is always an instance of enum by the contract.
@@ -145,8 +150,8 @@ import vit.khudenko.android.fsm.StateMachine
  *
  * ## Threading
  *
- * SessionTracker is thread-safe. Public methods are declared as `synchronized`. Thread-safe compound actions are
- * possible by using synchronized statement on `SessionTracker` instance:
+ * SessionTracker is thread-safe. Public methods synchronize on the `SessionTracker` instance. Thread-safe compound
+ * actions are possible by using synchronized statement on `SessionTracker` instance:
  *
  * ```kotlin
  *     synchronized(sessionTracker) {
@@ -155,13 +160,17 @@ import vit.khudenko.android.fsm.StateMachine
  *     }
  * ```
  *
- * SessionTracker is a synchronous tool, meaning it neither creates threads nor uses thread-pools.
+ * SessionTracker is a synchronous tool, meaning it neither creates threads nor uses thread-pools. By default, listener
+ * callbacks are invoked synchronously while `SessionTracker` holds its lock. Pass a `listenerExecutor` via the
+ * constructor to have the callbacks delivered on that executor instead, once the lock is released. Callbacks queued by
+ * a compound action are delivered once the outermost lock is released, call
+ * [`dispatchListenerCallbacks()`][dispatchListenerCallbacks] right after the `synchronized` block to deliver them.
  *
  * ## Miscellaneous
  *
  * Typical SessionTracker usage implies being a singleton in your app.
  */
-class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
+class SessionTracker<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
     private val sessionTrackerStorage: ISessionTrackerStorage<State>,
     private val sessionStateTransitionsSupplier: ISessionStateTransitionsSupplier<Event, State>,
     /**
@@ -175,13 +184,94 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
     private val autoUntrackStates: Set<State>,
     private val mode: Mode,
     private val logger: Logger = Logger.DefaultImpl(),
-    private val logTag: String = TAG
+    private val logTag: String = TAG,
+    /**
+     * Receives `SessionTracker` latencies, counters and gauges. Defaults to [`Metrics.NoOp`][Metrics.NoOp].
+     *
+     * @see [Metrics.DefaultImpl]
+     */
+    private val metrics: Metrics = Metrics.NoOp,
+    /**
+     * If set, then `SessionTracker` reports lock wait and hold time of every public method call to it.
+     * This is an opt-in instrumentation mode, by default it is turned off.
+     *
+     * @see [LockProfiler]
+     */
+    private val lockProfiler: LockProfiler? = null,
+    /**
+     * If set, then `SessionTracker` checks the duration of every [`ISessionTrackerStorage`][ISessionTrackerStorage]
+     * call and every [`Listener`][Listener] callback against the [`Watchdog`][Watchdog] time budgets.
+     * By default it is turned off.
+     */
+    private val watchdog: Watchdog? = null,
+    /**
+     * If set, then every [`consumeEvent()`][consumeEvent] outcome is recorded to this journal.
+     * By default it is turned off.
+     */
+    private val transitionJournal: TransitionJournal<Event, State>? = null,
+    /**
+     * If set, then every [`consumeEvent()`][consumeEvent] outcome is counted by this statistics collector.
+     * By default it is turned off.
+     */
+    private val transitionStatistics: TransitionStatistics<Event, State>? = null,
+    /**
+     * If set, then [`Listener`][Listener] callbacks are not invoked while `SessionTracker` holds its lock. Instead,
+     * they are queued and delivered on this executor once the lock is released, one at a time and in the same order
+     * they would have been invoked synchronously. The executor's own ordering and parallelism do not matter.
+     *
+     * Note, a callback may observe a newer `SessionTracker` state than the one it reports.
+     * By default it is not set, so callbacks are invoked synchronously.
+     *
+     * @see [CallbackSequenceAware]
+     */
+    private val listenerExecutor: Executor? = null,
+    /**
+     * If set, then sessions sitting in a session tracking state for too long get the configured events applied.
+     * By default it is turned off.
+     *
+     * @see [SessionTimeouts]
+     */
+    private val sessionTimeouts: SessionTimeouts<Event, State>? = null,
+    /**
+     * Remembers the idempotency keys passed to [`consumeEvent()`][consumeEvent], required for de-duplicating the
+     * calls by the idempotency key. By default it is turned off.
+     *
+     * @see [IdempotencyKeys]
+     */
+    private val idempotencyKeys: IdempotencyKeys? = null,
+    /**
+     * If set, then events passed to [`consumeEvent()`][consumeEvent] are rate limited and/or debounced per session.
+     * Debouncing requires [`sessionTimeouts`][sessionTimeouts] to be set as well. By default it is turned off.
+     *
+     * @see [EventThrottle]
+     */
+    private val eventThrottle: EventThrottle<Event>? = null,
+    /**
+     * If `true`, then a transition with a multi-state [`statePath`][Transition.statePath] persists the final state
+     * of the path only, instead of persisting every intermediate state. Listener callbacks are still invoked per
+     * state, before the final state is persisted. By default it is `false`.
+     */
+    private val persistFinalStateOnly: Boolean = false,
+    /**
+     * If set, then every call, that may change the session records, as well as the
+     * [`getSessionRecords()`][getSessionRecords] calls, are recorded to this trace, to be replayed by a
+     * [`TraceReplayer`][TraceReplayer]. By default it is turned off.
+     */
+    private val traceRecorder: TraceRecorder<Event, State>? = null
 ) {
 
     companion object {
         internal val TAG = SessionTracker::class.java.simpleName
     }
 
+    init {
+        require(eventThrottle?.debounces != true || sessionTimeouts != null) {
+            "${EventThrottle::class.java.simpleName} debouncing requires ${SessionTimeouts::class.java.simpleName}"
+        }
+        sessionTimeouts?.attach(this)
+        idempotencyKeys?.attach()
+    }
+
     /**
      * Defines misuse/misconfiguration tolerance and amount of logging.
      *
@@ -300,6 +390,46 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
         )
     }
 
+    /**
+     * An observer of the tracked session records, see
+     * [`addSessionRecordsObserver()`][SessionTracker.addSessionRecordsObserver].
+     */
+    fun interface SessionRecordsObserver<State : Enum<State>> {
+
+        /**
+         * @param sessionRecords an immutable snapshot of the currently tracked session records. The same snapshot
+         * instance is passed to all observers.
+         */
+        fun onSessionRecordsChanged(sessionRecords: List<SessionRecord<State>>)
+    }
+
+    /**
+     * An optional interface for a [`Listener`][Listener] implementation. Every listener callback gets a sequence
+     * number, incremented by one per callback. If the listener implements this interface, then the sequence number
+     * is passed to it right before the callback, on the same thread.
+     */
+    interface CallbackSequenceAware {
+        fun onCallbackSequenceNumber(sequenceNumber: Long)
+    }
+
+    /**
+     * An optional interface for a [`Listener`][Listener] implementation, to be notified about bulk operations with
+     * a single callback. A listener not implementing this interface gets a per-session callback instead.
+     */
+    interface BulkListener<Event : Enum<Event>, State : Enum<State>> {
+
+        /**
+         * The `SessionTracker` has removed sessions from the list of tracked sessions. This happens as a result
+         * of calling [`SessionTracker.untrackSessions()`][untrackSessions].
+         *
+         * Otherwise, [`Listener.onSessionTrackingStopped()`][Listener.onSessionTrackingStopped] is called per session.
+         */
+        fun onSessionsTrackingStopped(
+            sessionTracker: SessionTracker<Event, State>,
+            sessionRecords: List<SessionRecord<State>>
+        )
+    }
+
     interface Logger {
         fun d(tag: String, message: String)
         fun w(tag: String, message: String)
@@ -323,11 +453,305 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
         }
     }
 
+    /**
+     * Public `SessionTracker` methods, as reported to [`LockProfiler`][LockProfiler].
+     */
+    enum class Operation {
+        INITIALIZE,
+        GET_SESSION_RECORDS,
+        TRACK_SESSION,
+        UNTRACK_SESSION,
+        UNTRACK_ALL_SESSIONS,
+        CONSUME_EVENT,
+        TRACK_OR_CONSUME,
+        COMPUTE,
+        COMPARE_AND_CONSUME,
+        CONSUME_EVENT_FOR_ALL,
+        UNTRACK_SESSIONS,
+        CONSUME_EVENTS
+    }
+
+    /**
+     * A result of [`compareAndConsume()`][compareAndConsume].
+     */
+    enum class CompareAndConsumeResult {
+
+        /**
+         * The session was in the expected state, and the event has caused a session tracking state change.
+         */
+        APPLIED,
+
+        /**
+         * The session was not in the expected state, so the event has not been consumed.
+         */
+        STATE_MISMATCH,
+
+        /**
+         * The session was in the expected state, but the event has been ignored by the session state machine.
+         */
+        IGNORED,
+
+        /**
+         * The session is not tracked (or is being untracked).
+         */
+        UNKNOWN_SESSION
+    }
+
+    /**
+     * [`ISessionTrackerStorage`][ISessionTrackerStorage] calls, as reported to [`Metrics`][Metrics].
+     */
+    enum class StorageOperation {
+        READ_ALL, CREATE, UPDATE, UPDATE_BATCH, DELETE, DELETE_BATCH, DELETE_ALL
+    }
+
+    /**
+     * [`Listener`][Listener] callbacks, as reported to [`Watchdog`][Watchdog].
+     */
+    enum class ListenerCallback {
+        ON_SESSION_TRACKER_INITIALIZED,
+        ON_SESSION_TRACKING_STARTED,
+        ON_SESSION_STATE_CHANGED,
+        ON_SESSION_TRACKING_STOPPED,
+        ON_SESSIONS_TRACKING_STOPPED,
+        ON_ALL_SESSIONS_TRACKING_STOPPED
+    }
+
+    /**
+     * An instrumentation surface, through which `SessionTracker` reports latencies, counters and gauges.
+     *
+     * All callbacks are invoked synchronously while `SessionTracker` holds its lock, so implementations must be cheap
+     * and must not call `SessionTracker` back. Durations are in nanoseconds.
+     *
+     * @see [Metrics.NoOp]
+     * @see [Metrics.DefaultImpl]
+     */
+    interface Metrics {
+
+        /**
+         * An event has been consumed for a session, by [`consumeEvent()`][consumeEvent] or by any other
+         * `SessionTracker` method applying events (including the batch and bulk ones, and the events fired by
+         * [`SessionTimeouts`][SessionTimeouts]). Reported once per event, events dropped by the
+         * [`EventThrottle`][EventThrottle] are not reported.
+         *
+         * @param accepted whether the event has caused a session tracking state change.
+         * @param lockWaitNanos time spent waiting for the `SessionTracker` lock. For a call consuming a few events,
+         * it is reported with the first event, and is `0` for the rest.
+         * @param stateMachineNanos time spent in the session state machine and in `SessionTracker` itself while
+         * consuming the event, excluding storage and listener time.
+         * @param storageNanos time spent in [`ISessionTrackerStorage`][ISessionTrackerStorage] calls while consuming
+         * the event. Note, batch calls persist the whole batch once all the events are consumed, that is not
+         * included.
+         * @param listenerNanos time spent in [`Listener`][Listener] callbacks while consuming the event.
+         */
+        fun onEventConsumed(
+            accepted: Boolean,
+            lockWaitNanos: Long,
+            stateMachineNanos: Long,
+            storageNanos: Long,
+            listenerNanos: Long
+        )
+
+        /**
+         * A session has been added to the list of tracked sessions by [`trackSession()`][trackSession].
+         */
+        fun onSessionTracked()
+
+        /**
+         * One or more sessions have been removed from the list of tracked sessions.
+         */
+        fun onSessionsUntracked(count: Int)
+
+        /**
+         * The number of tracked sessions in the given session tracking state has changed by `delta`.
+         */
+        fun onSessionCountChanged(state: Enum<*>, delta: Int)
+
+        /**
+         * An [`ISessionTrackerStorage`][ISessionTrackerStorage] call has completed (successfully or not).
+         */
+        fun onStorageCall(operation: StorageOperation, durationNanos: Long)
+
+        /**
+         * An event passed to [`consumeEvent()`][consumeEvent] has been dropped by the [`EventThrottle`][EventThrottle]
+         * rate limit.
+         */
+        fun onEventRateLimited() {}
+
+        /**
+         * An event passed to [`consumeEvent()`][consumeEvent] has been deferred by the [`EventThrottle`][EventThrottle]
+         * debouncing.
+         */
+        fun onEventDebounced() {}
+
+        /**
+         * Default [`Metrics`][Metrics], which does nothing. `SessionTracker` skips time measurements entirely
+         * if configured with this instance.
+         */
+        object NoOp : Metrics {
+            override fun onEventConsumed(
+                accepted: Boolean,
+                lockWaitNanos: Long,
+                stateMachineNanos: Long,
+                storageNanos: Long,
+                listenerNanos: Long
+            ) {}
+
+            override fun onSessionTracked() {}
+            override fun onSessionsUntracked(count: Int) {}
+            override fun onSessionCountChanged(state: Enum<*>, delta: Int) {}
+            override fun onStorageCall(operation: StorageOperation, durationNanos: Long) {}
+        }
+
+        /**
+         * A low-overhead [`Metrics`][Metrics] implementation, that aggregates reported values in atomic counters and
+         * [`LatencyHistogram`][LatencyHistogram]s. Use [`snapshot()`][snapshot] to scrape the aggregated values.
+         */
+        class DefaultImpl : Metrics {
+
+            private val consumeEventLockWait = LatencyHistogram()
+            private val consumeEventStateMachine = LatencyHistogram()
+            private val consumeEventStorage = LatencyHistogram()
+            private val consumeEventListener = LatencyHistogram()
+            private val eventsAccepted = AtomicLong()
+            private val eventsIgnored = AtomicLong()
+            private val sessionsTracked = AtomicLong()
+            private val sessionsUntracked = AtomicLong()
+            private val sessionsPerState = ConcurrentHashMap<String, AtomicLong>()
+            private val storageCalls = StorageOperation.values().map { LatencyHistogram() }
+            private val eventsRateLimited = AtomicLong()
+            private val eventsDebounced = AtomicLong()
+
+            override fun onEventConsumed(
+                accepted: Boolean,
+                lockWaitNanos: Long,
+                stateMachineNanos: Long,
+                storageNanos: Long,
+                listenerNanos: Long
+            ) {
+                if (accepted) {
+                    eventsAccepted.incrementAndGet()
+                } else {
+                    eventsIgnored.incrementAndGet()
+                }
+                consumeEventLockWait.record(lockWaitNanos)
+                consumeEventStateMachine.record(stateMachineNanos)
+                consumeEventStorage.record(storageNanos)
+                consumeEventListener.record(listenerNanos)
+            }
+
+            override fun onSessionTracked() {
+                sessionsTracked.incrementAndGet()
+            }
+
+            override fun onSessionsUntracked(count: Int) {
+                sessionsUntracked.addAndGet(count.toLong())
+            }
+
+            override fun onSessionCountChanged(state: Enum<*>, delta: Int) {
+                sessionsPerState.getOrPut(state.name) { AtomicLong() }.addAndGet(delta.toLong())
+            }
+
+            override fun onStorageCall(operation: StorageOperation, durationNanos: Long) {
+                storageCalls[operation.ordinal].record(durationNanos)
+            }
+
+            override fun onEventRateLimited() {
+                eventsRateLimited.incrementAndGet()
+            }
+
+            override fun onEventDebounced() {
+                eventsDebounced.incrementAndGet()
+            }
+
+            fun snapshot(): Snapshot {
+                return Snapshot(
+                    consumeEventLockWait = consumeEventLockWait.snapshot(),
+                    consumeEventStateMachine = consumeEventStateMachine.snapshot(),
+                    consumeEventStorage = consumeEventStorage.snapshot(),
+                    consumeEventListener = consumeEventListener.snapshot(),
+                    eventsAccepted = eventsAccepted.get(),
+                    eventsIgnored = eventsIgnored.get(),
+                    sessionsTracked = sessionsTracked.get(),
+                    sessionsUntracked = sessionsUntracked.get(),
+                    sessionsPerState = sessionsPerState.mapValues { (_, counter) -> counter.get() },
+                    storageCalls = StorageOperation.values().associateWith { storageCalls[it.ordinal].snapshot() },
+                    eventsRateLimited = eventsRateLimited.get(),
+                    eventsDebounced = eventsDebounced.get()
+                )
+            }
+
+            /**
+             * An immutable view of the values aggregated by [`DefaultImpl`][DefaultImpl].
+             *
+             * @param sessionsPerState number of tracked sessions per session tracking state name.
+             */
+            data class Snapshot(
+                val consumeEventLockWait: LatencyHistogram.Snapshot,
+                val consumeEventStateMachine: LatencyHistogram.Snapshot,
+                val consumeEventStorage: LatencyHistogram.Snapshot,
+                val consumeEventListener: LatencyHistogram.Snapshot,
+                val eventsAccepted: Long,
+                val eventsIgnored: Long,
+                val sessionsTracked: Long,
+                val sessionsUntracked: Long,
+                val sessionsPerState: Map<String, Long>,
+                val storageCalls: Map<StorageOperation, LatencyHistogram.Snapshot>,
+                val eventsRateLimited: Long,
+                val eventsDebounced: Long
+            )
+        }
+    }
+
+    /**
+     * A version of the whole set of tracked session records. It is incremented every time a session is tracked,
+     * untracked or changes its session tracking state, so comparing it to a previously seen value is a cheap way
+     * to find out whether there were any changes since then, e.g. before calling
+     * [`getSessionRecords()`][getSessionRecords].
+     *
+     * On [`initialize()`][initialize] the version is restored as the max version ever persisted, see
+     * [`ISessionTrackerStorage.readMaxVersion()`][ISessionTrackerStorage.readMaxVersion].
+     * May be read without holding the `SessionTracker` lock.
+     *
+     * @see [SessionRecord.version]
+     */
+    @Volatile
+    var version: Long = 0L
+        private set
+
     private var initialized: Boolean = false
     private val sessionsMap = LinkedHashMap<SessionId, SessionInfo<Event, State>>()
     private var persisting = false
+    // The storage, if it is passed the events causing the session record updates.
+    @Suppress("UNCHECKED_CAST")
+    private val eventAwareStorage = sessionTrackerStorage as? ISessionTrackerStorage.EventAware<State>
     private var listener: Listener<Event, State>? = null
 
+    private val sessionRecordsObservers = CopyOnWriteArrayList<SessionRecordsObserver<State>>()
+    // Nesting level of the public method calls, snapshots are published on leaving the outermost call only.
+    private var lockDepth = 0
+    private var sessionRecordsChanged = false
+    private var sessionRecordsSnapshot: List<SessionRecord<State>>? = null
+
+    private val listenerDispatchQueue: ListenerDispatchQueue? = listenerExecutor?.let { ListenerDispatchQueue(it) }
+    private var callbackSequenceNumber = 0L
+
+    // Session records updated by the ongoing batch call (or by a multi-state transition, if persistFinalStateOnly is
+    // set) with the events causing the updates, to be persisted once the call is complete.
+    private var pendingSessionRecordUpdates: LinkedHashMap<SessionId, Pair<SessionRecord<State>, Event?>>? = null
+
+    private val listenerRegistry = ListenerRegistry<Event, State>()
+    // The event being consumed by a session state machine, used to dispatch state changes.
+    private var consumingEvent: Event? = null
+
+    private val instrumented = metrics !== Metrics.NoOp || lockProfiler != null || watchdog != null
+    // Time source of the instrumentation, replaced by tests.
+    internal var nanoClock: () -> Long = { System.nanoTime() }
+    // Storage and listener time accumulated while holding the lock, only maintained if instrumented.
+    private var storageNanos = 0L
+    private var listenerNanos = 0L
+    // Lock wait time of the ongoing call, to be reported along with the first event consumed by the call.
+    private var unreportedLockWaitNanos = 0L
+
     /**
      * Must be called before calling any other methods.
      *
@@ -347,62 +771,77 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
      * errors while creating session tracking state machine. For a relaxed [`mode`][mode] it just logs an error
      * message and skips such session from tracking.
      */
-    @Synchronized
     fun initialize(sessionTrackerListener: Listener<Event, State>) {
-        val startedAt = System.currentTimeMillis()
+        locked(Operation.INITIALIZE, null) {
+            val startedAt = System.currentTimeMillis()
 
-        if (initialized) {
-            logger.w(logTag, "initialize: already initialized, skipping..")
-            return
-        }
+            if (initialized) {
+                logger.w(logTag, "initialize: already initialized, skipping..")
+                return
+            }
 
-        if (mode.verbose) {
-            logger.d(logTag, "initialize: starting..")
-        }
+            if (mode.verbose) {
+                logger.d(logTag, "initialize: starting..")
+            }
 
-        this.listener = sessionTrackerListener
+            this.listener = sessionTrackerListener
 
-        val loadedSessionRecords = sessionTrackerStorage.readAllSessionRecords()
+            val (loadedSessionRecords, maxVersion) = doStorageCall(StorageOperation.READ_ALL, null) {
+                sessionTrackerStorage.readAllSessionRecords() to sessionTrackerStorage.readMaxVersion()
+            }
+            traceRecorder?.record(Operation.INITIALIZE, sessionRecords = loadedSessionRecords)
 
-        loadedSessionRecords
-            .filter { sessionRecord ->
-                sessionRecord.state in autoUntrackStates
-            }.forEach { (sessionId, state) ->
-                val explanation = "session with ID '${sessionId.value}' is in auto-untrack state (${state})"
-                if (mode.strict) {
-                    throw RuntimeException("Unable to initialize $logTag: $explanation")
-                } else {
-                    logger.e(logTag, "initialize: $explanation, rejecting this session")
+            loadedSessionRecords
+                .filter { sessionRecord ->
+                    sessionRecord.state in autoUntrackStates
+                }.forEach { (sessionId, state) ->
+                    val explanation = "session with ID '${sessionId.value}' is in auto-untrack state (${state})"
+                    if (mode.strict) {
+                        throw RuntimeException("Unable to initialize $logTag: $explanation")
+                    } else {
+                        logger.e(logTag, "initialize: $explanation, rejecting this session")
+                    }
                 }
-            }
 
-        val initializedSessionRecords = mutableMapOf<SessionId, SessionRecord<State>>()
+            val initializedSessionRecords = mutableMapOf<SessionId, SessionRecord<State>>()
 
-        loadedSessionRecords
-            .filterNot { sessionRecord ->
-                sessionRecord.state in autoUntrackStates
-            }
-            .map { sessionRecord ->
-                val stateMachine = try {
-                    setupSessionStateMachine(sessionRecord)
-                } catch (e: Exception) {
-                    throw RuntimeException(
-                        "Unable to initialize $logTag: error creating ${StateMachine::class.java.simpleName}", e
+            loadedSessionRecords
+                .filterNot { sessionRecord ->
+                    sessionRecord.state in autoUntrackStates
+                }
+                .map { sessionRecord ->
+                    val stateMachine = try {
+                        setupSessionStateMachine(sessionRecord)
+                    } catch (e: Exception) {
+                        throw RuntimeException(
+                            "Unable to initialize $logTag: error creating ${StateMachine::class.java.simpleName}", e
+                        )
+                    }
+                    sessionRecord to stateMachine
+                }
+                .forEach { (sessionRecord, stateMachine) ->
+                    sessionsMap[sessionRecord.sessionId] = SessionInfo(
+                        stateMachine,
+                        sessionRecord.version,
+                        eventThrottle?.newSessionState()
                     )
+                    initializedSessionRecords[sessionRecord.sessionId] = sessionRecord
+                    metrics.onSessionCountChanged(sessionRecord.state, 1)
+                    sessionTimeouts?.schedule(sessionRecord.sessionId, sessionRecord.state)
                 }
-                sessionRecord to stateMachine
-            }
-            .forEach { (sessionRecord, stateMachine) ->
-                sessionsMap[sessionRecord.sessionId] = SessionInfo(stateMachine)
-                initializedSessionRecords[sessionRecord.sessionId] = sessionRecord
-            }
 
-        initialized = true
+            // the rejected session records count too, their versions have been assigned already
+            version = loadedSessionRecords.fold(maxVersion) { maxVersion, sessionRecord ->
+                maxOf(maxVersion, sessionRecord.version)
+            }
+            initialized = true
+            sessionRecordsChanged = true
 
-        sessionTrackerListener.onSessionTrackerInitialized(this, initializedSessionRecords.values.toList())
+            notifySessionTrackerInitialized(initializedSessionRecords.values.toList())
 
-        if (mode.verbose) {
-            logger.d(logTag, "initialize: done, took ${System.currentTimeMillis() - startedAt} ms")
+            if (mode.verbose) {
+                logger.d(logTag, "initialize: done, took ${System.currentTimeMillis() - startedAt} ms")
+            }
         }
     }
 
@@ -412,11 +851,11 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
      * @throws [RuntimeException] for a strict [`mode`][mode], if `SessionTracker` has not been initialized.
      * For a relaxed [`mode`][mode] it just logs an error message and returns an empty list.
      */
-    @Synchronized
-    fun getSessionRecords(): List<SessionRecord<State>> {
-        return if (ensureInitialized("getSessionRecords")) {
-            val sessionRecords = sessionsMap.entries.map {
-                SessionRecord(sessionId = it.key, state = it.value.stateMachine.getCurrentState())
+    fun getSessionRecords(): List<SessionRecord<State>> = locked(Operation.GET_SESSION_RECORDS, null) {
+        traceRecorder?.record(Operation.GET_SESSION_RECORDS)
+        if (ensureInitialized("getSessionRecords")) {
+            val sessionRecords = sessionsMap.entries.map { (sessionId, sessionInfo) ->
+                sessionInfo.toSessionRecord(sessionId)
             }.toMutableList()
             if (mode.verbose) {
                 val dump = sessionRecords.joinToString(
@@ -453,39 +892,53 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
      * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
      * and does nothing.
      */
-    @Synchronized
     @JvmName("trackSession")
     fun trackSession(sessionId: SessionId, state: State) {
-        if (!ensureInitialized("trackSession")) {
-            return
+        locked(Operation.TRACK_SESSION, sessionId) {
+            traceRecorder?.record(Operation.TRACK_SESSION, sessionId, state = state)
+            if (!ensureInitialized("trackSession")) {
+                return
+            }
+            if (mode.verbose) {
+                logger.d(logTag, "trackSession: sessionId = '${sessionId.value}', state = $state")
+            }
+            if (!ensureNotPersisting("trackSession")) {
+                return
+            }
+            if (sessionsMap.contains(sessionId)) {
+                logger.w(logTag, "trackSession: session with ID '${sessionId.value}' already exists")
+            } else {
+                doTrackSession("trackSession", sessionId, state)
+            }
         }
-        if (mode.verbose) {
-            logger.d(logTag, "trackSession: sessionId = '${sessionId.value}', state = $state")
+    }
+
+    private fun doTrackSession(method: String, sessionId: SessionId, state: State): Boolean {
+        if (state in autoUntrackStates) {
+            val explanation = "session with ID '${sessionId.value}' is in auto-untrack state ($state)"
+            require(mode.strict.not()) { "Unable to track session: $explanation" }
+            logger.e(logTag, "$method: $explanation, rejecting this session")
+            return false
         }
-        if (!ensureNotPersisting("trackSession")) {
-            return
+        val sessionRecord = SessionRecord(sessionId, state, version + 1)
+        val stateMachine = try {
+            setupSessionStateMachine(sessionRecord)
+        } catch (e: Exception) {
+            throw RuntimeException(
+                "$logTag failed to track session: error creating ${StateMachine::class.java.simpleName}", e
+            )
         }
-        if (sessionsMap.contains(sessionId)) {
-            logger.w(logTag, "trackSession: session with ID '${sessionId.value}' already exists")
-        } else {
-            if (state in autoUntrackStates) {
-                val explanation = "session with ID '${sessionId.value}' is in auto-untrack state ($state)"
-                require(mode.strict.not()) { "Unable to track session: $explanation" }
-                logger.e(logTag, "trackSession: $explanation, rejecting this session")
-            } else {
-                val sessionRecord = SessionRecord(sessionId, state)
-                val stateMachine = try {
-                    setupSessionStateMachine(sessionRecord)
-                } catch (e: Exception) {
-                    throw RuntimeException(
-                        "$logTag failed to track session: error creating ${StateMachine::class.java.simpleName}", e
-                    )
-                }
-                doPersistAction { sessionTrackerStorage.createSessionRecord(sessionRecord) }
-                sessionsMap[sessionId] = SessionInfo(stateMachine)
-                listener!!.onSessionTrackingStarted(this@SessionTracker, sessionRecord)
-            }
+        doPersistAction(StorageOperation.CREATE, sessionId) {
+            sessionTrackerStorage.createSessionRecord(sessionRecord)
         }
+        sessionsMap[sessionId] = SessionInfo(stateMachine, sessionRecord.version, eventThrottle?.newSessionState())
+        version = sessionRecord.version
+        sessionRecordsChanged = true
+        sessionTimeouts?.schedule(sessionId, state)
+        metrics.onSessionTracked()
+        metrics.onSessionCountChanged(state, 1)
+        notifySessionTrackingStarted(sessionRecord)
+        return true
     }
 
     /**
@@ -508,28 +961,20 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
      * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
      * and does nothing.
      */
-    @Synchronized
     @JvmName("untrackSession")
     fun untrackSession(sessionId: SessionId) {
-        if (!ensureInitialized("untrackSession")) {
-            return
-        }
-        if (mode.verbose) {
-            logger.d(logTag, "untrackSession: sessionId = '${sessionId.value}'")
-        }
-        if (!ensureNotPersisting("untrackSession")) {
-            return
-        }
-        val sessionInfo = sessionsMap[sessionId]
-        if (sessionInfo == null) {
-            logger.d(logTag, "untrackSession: no session with ID '${sessionId.value}' found")
-        } else {
-            if (sessionInfo.isUntracking) {
-                logger.w(logTag, "untrackSession: session with ID '${sessionId.value}' is already untracking")
-            } else {
-                sessionsMap[sessionId] = sessionInfo.copy(isUntracking = true)
-                doUntrackSession(sessionId, sessionInfo.stateMachine)
+        locked(Operation.UNTRACK_SESSION, sessionId) {
+            traceRecorder?.record(Operation.UNTRACK_SESSION, sessionId)
+            if (!ensureInitialized("untrackSession")) {
+                return
+            }
+            if (mode.verbose) {
+                logger.d(logTag, "untrackSession: sessionId = '${sessionId.value}'")
+            }
+            if (!ensureNotPersisting("untrackSession")) {
+                return
             }
+            untrackSession("untrackSession", sessionId, sessionsMap[sessionId])
         }
     }
 
@@ -551,34 +996,125 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
      * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
      * and does nothing.
      */
-    @Synchronized
     fun untrackAllSessions() {
-        if (!ensureInitialized("untrackAllSessions")) {
-            return
-        }
-        if (!ensureNotPersisting("untrackAllSessions")) {
-            return
+        locked(Operation.UNTRACK_ALL_SESSIONS, null) {
+            traceRecorder?.record(Operation.UNTRACK_ALL_SESSIONS)
+            if (!ensureInitialized("untrackAllSessions")) {
+                return
+            }
+            if (!ensureNotPersisting("untrackAllSessions")) {
+                return
+            }
+            if (sessionsMap.isEmpty()) {
+                if (mode.verbose) {
+                    logger.d(logTag, "untrackAllSessions: no sessions found")
+                }
+            } else {
+                if (mode.verbose) {
+                    logger.d(logTag, "untrackAllSessions")
+                }
+
+                doPersistAction(StorageOperation.DELETE_ALL, null) { sessionTrackerStorage.deleteAllSessionRecords() }
+
+                sessionsMap.values.forEach { it.stateMachine.removeAllListeners() }
+
+                val sessionRecords = sessionsMap.entries.map { (sessionId, sessionInfo) ->
+                    sessionInfo.toSessionRecord(sessionId)
+                }
+
+                sessionsMap.clear()
+                forgetAllSessions()
+                version++
+                sessionRecordsChanged = true
+
+                metrics.onSessionsUntracked(sessionRecords.size)
+                sessionRecords.forEach { metrics.onSessionCountChanged(it.state, -1) }
+
+                notifyAllSessionsTrackingStopped(sessionRecords)
+            }
         }
-        if (sessionsMap.isEmpty()) {
-            if (mode.verbose) {
-                logger.d(logTag, "untrackAllSessions: no sessions found")
+    }
+
+    /**
+     * Stops tracking every tracked session, that is in one of the specified [`states`][states].
+     *
+     * This is a shortcut for the following [`untrackSessions()`][untrackSessions] call:
+     *
+     * ```
+     *     untrackSessions { sessionRecord -> sessionRecord.state in states }
+     * ```
+     *
+     * @param states session tracking states of the sessions to untrack.
+     *
+     * @return number of untracked sessions.
+     */
+    fun untrackSessions(states: Set<State>): Int {
+        return untrackSessions { sessionRecord -> sessionRecord.state in states }
+    }
+
+    /**
+     * Stops tracking every tracked session, that matches the [`predicate`][predicate], removes corresponding session
+     * records from persistent storage with a single
+     * [`ISessionTrackerStorage.deleteSessionRecords()`][ISessionTrackerStorage.deleteSessionRecords] call and
+     * notifies session tracker listener with a single
+     * [`BulkListener.onSessionsTrackingStopped()`][BulkListener.onSessionsTrackingStopped] callback (or with
+     * [`Listener.onSessionTrackingStopped()`][Listener.onSessionTrackingStopped] per session, if the listener does
+     * not implement [`BulkListener`][BulkListener]).
+     *
+     * If no tracked sessions match the `predicate`, then this call does nothing.
+     *
+     * Note, this method does not modify session tracking state of the session records.
+     *
+     * The `predicate` is called while `SessionTracker` holds its lock, so it must be cheap and must not call
+     * `SessionTracker` back.
+     *
+     * @param predicate selects the sessions to untrack.
+     *
+     * @return number of untracked sessions.
+     *
+     * @throws [RuntimeException] for a strict [`mode`][mode], if `SessionTracker` has not been initialized.
+     * For a relaxed [`mode`][mode] it just logs an error message and returns 0.
+     * @throws [RuntimeException] for a strict [`mode`][mode], if this call is initiated from the
+     * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
+     * and returns 0.
+     */
+    fun untrackSessions(predicate: (SessionRecord<State>) -> Boolean): Int {
+        return locked(Operation.UNTRACK_SESSIONS, null) {
+            if (!ensureInitialized("untrackSessions") || !ensureNotPersisting("untrackSessions")) {
+                traceRecorder?.record(Operation.UNTRACK_SESSIONS)
+                return 0
+            }
+            val sessionRecords = sessionsMap
+                .filter { (_, sessionInfo) -> !sessionInfo.isUntracking }
+                .map { (sessionId, sessionInfo) -> sessionInfo.toSessionRecord(sessionId) }
+                .filter { sessionRecord -> predicate.invoke(sessionRecord) }
+            traceRecorder?.record(Operation.UNTRACK_SESSIONS, sessionIds = sessionRecords.map { it.sessionId })
+            if (sessionRecords.isEmpty()) {
+                if (mode.verbose) {
+                    logger.d(logTag, "untrackSessions: no sessions found")
+                }
+                return 0
             }
-        } else {
             if (mode.verbose) {
-                logger.d(logTag, "untrackAllSessions")
+                logger.d(logTag, "untrackSessions: ${sessionRecords.size} sessions")
             }
 
-            doPersistAction { sessionTrackerStorage.deleteAllSessionRecords() }
-
-            sessionsMap.values.forEach { it.stateMachine.removeAllListeners() }
+            doPersistAction(StorageOperation.DELETE_BATCH, null) {
+                sessionTrackerStorage.deleteSessionRecords(sessionRecords.map { it.sessionId })
+            }
 
-            val sessionRecords = sessionsMap.entries.map { (sessionId, sessionInfo) ->
-                SessionRecord(sessionId, sessionInfo.stateMachine.getCurrentState())
+            sessionRecords.forEach { sessionRecord ->
+                sessionsMap.remove(sessionRecord.sessionId)!!.stateMachine.removeAllListeners()
+                forgetSession(sessionRecord.sessionId)
             }
+            version++
+            sessionRecordsChanged = true
 
-            sessionsMap.clear()
+            metrics.onSessionsUntracked(sessionRecords.size)
+            sessionRecords.forEach { metrics.onSessionCountChanged(it.state, -1) }
 
-            listener!!.onAllSessionsTrackingStopped(this@SessionTracker, sessionRecords)
+            notifySessionsTrackingStopped(sessionRecords)
+            sessionRecords.size
         }
     }
 
@@ -607,43 +1143,751 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
      * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
      * and returns false.
      */
-    @Synchronized
     @JvmName("consumeEvent")
-    fun consumeEvent(sessionId: SessionId, event: Event): Boolean {
-        if (!ensureInitialized("consumeEvent")) {
-            return false
-        }
-        if (mode.verbose) {
+    fun consumeEvent(sessionId: SessionId, event: Event): Boolean = locked(Operation.CONSUME_EVENT, sessionId) {
+        traceRecorder?.record(Operation.CONSUME_EVENT, sessionId, event)
+        doConsumeEvent(sessionId, event)
+    }
+
+    /**
+     * Same as [`consumeEvent(sessionId, event)`][consumeEvent], but de-duplicates the calls by the idempotency key:
+     * if a call with the same key has already been made for the session recently, then this call returns the
+     * outcome of that call, without touching the session state machine or the storage, and without taking the
+     * `SessionTracker` lock in most cases.
+     *
+     * Keys are remembered per session, only if the session is still tracked after the call, for a limited time and
+     * up to a limited number of keys per session, see [`IdempotencyKeys`][IdempotencyKeys]. Requires
+     * [`idempotencyKeys`][idempotencyKeys] to be set.
+     *
+     * @param sessionId [`SessionId`][SessionId].
+     * @param event [`Event`][Event].
+     * @param idempotencyKey a key, that is the same for all the retries of a single logical event.
+     *
+     * @return flag whether the event was consumed (meaning moving to a new state) or ignored.
+     *
+     * @throws [RuntimeException] for the same reasons as [`consumeEvent(sessionId, event)`][consumeEvent].
+     * @throws [RuntimeException] for a strict [`mode`][mode], if [`idempotencyKeys`][idempotencyKeys] is not set.
+     * For a relaxed [`mode`][mode] it just logs an error message and consumes the event without de-duplicating.
+     */
+    @JvmName("consumeEvent")
+    fun consumeEvent(sessionId: SessionId, event: Event, idempotencyKey: String): Boolean {
+        val idempotencyKeys = this.idempotencyKeys
+        if (idempotencyKeys == null) {
+            val explanation = "consumeEvent: idempotency keys are not remembered, " +
+                    "$logTag is created without ${IdempotencyKeys::class.java.simpleName}"
+            if (mode.strict) {
+                throw RuntimeException(explanation)
+            } else {
+                logger.e(logTag, explanation)
+            }
+            return consumeEvent(sessionId, event)
+        }
+        idempotencyKeys.get(sessionId, idempotencyKey)?.let { outcome ->
+            return outcome
+        }
+        return locked(Operation.CONSUME_EVENT, sessionId) {
+            // the original call may have been completed while waiting for the lock
+            val outcome = idempotencyKeys.get(sessionId, idempotencyKey)
+            if (outcome != null) {
+                if (mode.verbose) {
+                    logger.d(
+                        logTag,
+                        "consumeEvent: event = '$event', duplicate idempotency key '$idempotencyKey' " +
+                                "for session with ID '${sessionId.value}'"
+                    )
+                }
+                outcome
+            } else {
+                traceRecorder?.record(Operation.CONSUME_EVENT, sessionId, event)
+                doConsumeEvent(sessionId, event).also { consumed ->
+                    if (isTracking(sessionId)) {
+                        idempotencyKeys.put(sessionId, idempotencyKey, consumed)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an observer of the tracked session records.
+     *
+     * Once `SessionTracker` is initialized, the observer receives the current session records immediately, and then
+     * a new snapshot after every public method call that has changed the session records or their states. A compound
+     * change (e.g. a state change followed by auto-untracking) is published as a single snapshot. The snapshot is
+     * built once per change and shared between all observers.
+     *
+     * The observer is called synchronously while `SessionTracker` holds its lock, so it must be cheap (e.g. just hand
+     * the snapshot over to another thread) and must not call `SessionTracker` back.
+     *
+     * @param observer [`SessionRecordsObserver`][SessionRecordsObserver] to add.
+     *
+     * @see [removeSessionRecordsObserver]
+     */
+    fun addSessionRecordsObserver(observer: SessionRecordsObserver<State>) {
+        synchronized(this) {
+            sessionRecordsObservers.add(observer)
+            if (initialized) {
+                observer.onSessionRecordsChanged(getSessionRecordsSnapshot())
+            }
+        }
+    }
+
+    /**
+     * Removes an observer previously added via [`addSessionRecordsObserver()`][addSessionRecordsObserver].
+     * The observer may still receive a snapshot, that is being published concurrently with this call.
+     */
+    fun removeSessionRecordsObserver(observer: SessionRecordsObserver<State>) {
+        sessionRecordsObservers.remove(observer)
+    }
+
+    /**
+     * Registers an additional [`Listener`][Listener], that is notified after the listener passed to
+     * [`initialize()`][initialize], and only about the callbacks matching the [`filter`][filter].
+     *
+     * Note, a listener added after `SessionTracker` has been initialized does not get
+     * [`onSessionTrackerInitialized()`][Listener.onSessionTrackerInitialized].
+     *
+     * Registration is copy-on-write, so adding and removing listeners is relatively expensive, while dispatching
+     * callbacks is not affected by it.
+     *
+     * @param listener [`Listener`][Listener] to add.
+     * @param filter [`ListenerFilter`][ListenerFilter], by default the listener gets all callbacks.
+     *
+     * @see [removeListener]
+     */
+    @JvmOverloads
+    fun addListener(listener: Listener<Event, State>, filter: ListenerFilter<Event, State> = ListenerFilter()) {
+        listenerRegistry.add(listener, filter)
+    }
+
+    /**
+     * Unregisters a listener previously added via [`addListener()`][addListener].
+     */
+    fun removeListener(listener: Listener<Event, State>) {
+        listenerRegistry.remove(listener)
+    }
+
+    /**
+     * Delivers the listener callbacks queued for the `listenerExecutor`, unless the calling thread still holds the
+     * `SessionTracker` lock. Public methods do this on their own, so it is only needed right after the `synchronized`
+     * block of a compound action (see "Threading" section of the `SessionTracker` docs). No-op if `SessionTracker`
+     * has no `listenerExecutor`.
+     */
+    fun dispatchListenerCallbacks() {
+        // a call nested in a compound action leaves the callbacks queued, otherwise a direct executor would run them
+        // under the lock
+        if (listenerDispatchQueue != null && !Thread.holdsLock(this)) {
+            listenerDispatchQueue.dispatch()
+        }
+    }
+
+    /**
+     * Atomically either starts tracking a session (if it is not tracked yet) or applies the event to it.
+     *
+     * This is a shortcut for the following [`compute()`][compute] call, requiring a single session lookup:
+     *
+     * ```
+     *     compute(sessionId) { state ->
+     *         if (state == null) SessionAction.Track(initialState) else SessionAction.ConsumeEvent(event)
+     *     }
+     * ```
+     *
+     * Events are not throttled by the [`eventThrottle`][eventThrottle].
+     *
+     * @param sessionId [`SessionId`][SessionId].
+     * @param initialState [`State`][State] - initial session tracking state, if the session is not tracked.
+     * @param event [`Event`][Event] to consume, if the session is tracked.
+     *
+     * @return `true` if the session has been tracked or the event has caused a state change, `false` otherwise.
+     *
+     * @throws [RuntimeException] for the same reasons as [`trackSession()`][trackSession] and
+     * [`consumeEvent()`][consumeEvent].
+     */
+    @JvmName("trackOrConsume")
+    fun trackOrConsume(sessionId: SessionId, initialState: State, event: Event): Boolean {
+        return locked(Operation.TRACK_OR_CONSUME, sessionId) {
+            traceRecorder?.record(Operation.TRACK_OR_CONSUME, sessionId, event, initialState)
+            if (!ensureInitialized("trackOrConsume") || !ensureNotPersisting("trackOrConsume")) {
+                return false
+            }
+            if (mode.verbose) {
+                logger.d(
+                    logTag,
+                    "trackOrConsume: sessionId = '${sessionId.value}', initialState = $initialState, event = '$event'"
+                )
+            }
+            val sessionInfo = sessionsMap[sessionId]
+            if (sessionInfo == null) {
+                doTrackSession("trackOrConsume", sessionId, initialState)
+            } else {
+                consumeEventForSession("trackOrConsume", sessionId, sessionInfo, event)
+            }
+        }
+    }
+
+    /**
+     * Atomically decides on and performs a [`SessionAction`][SessionAction] for a session, depending on its current
+     * session tracking state. The whole call is a single critical section: no other call can change the session
+     * between the [`function`][function] call and the action.
+     *
+     * The `function` is called while `SessionTracker` holds its lock, so it must be cheap and must not call
+     * `SessionTracker` back.
+     *
+     * Events are not throttled by the [`eventThrottle`][eventThrottle].
+     *
+     * @param sessionId [`SessionId`][SessionId].
+     * @param function returns the action to perform, given the current session tracking state (`null` if the session
+     * is not tracked):
+     * - [`SessionAction.Track`][SessionAction.Track] - start tracking the session, ignored if it is tracked already.
+     * - [`SessionAction.ConsumeEvent`][SessionAction.ConsumeEvent] - apply the event, ignored if the session is not
+     *     tracked.
+     * - [`SessionAction.Untrack`][SessionAction.Untrack] - stop tracking the session, ignored if it is not tracked.
+     * - [`SessionAction.None`][SessionAction.None] - do nothing.
+     *
+     * @return the session tracking state after the action, `null` if the session is not tracked.
+     *
+     * @throws [RuntimeException] for the same reasons as [`trackSession()`][trackSession],
+     * [`untrackSession()`][untrackSession] and [`consumeEvent()`][consumeEvent].
+     */
+    @JvmName("compute")
+    fun compute(sessionId: SessionId, function: (State?) -> SessionAction<Event, State>): State? {
+        return locked(Operation.COMPUTE, sessionId) {
+            if (!ensureInitialized("compute") || !ensureNotPersisting("compute")) {
+                traceRecorder?.record(Operation.COMPUTE, sessionId, action = SessionAction.None())
+                return null
+            }
+            val sessionInfo = sessionsMap[sessionId]
+            val action = function.invoke(sessionInfo?.stateMachine?.getCurrentState())
+            traceRecorder?.record(Operation.COMPUTE, sessionId, action = action)
+            if (mode.verbose) {
+                logger.d(logTag, "compute: sessionId = '${sessionId.value}', action = $action")
+            }
+            when (action) {
+                is SessionAction.Track -> if (sessionInfo == null) {
+                    doTrackSession("compute", sessionId, action.state)
+                } else {
+                    logger.w(logTag, "compute: session with ID '${sessionId.value}' already exists")
+                }
+                is SessionAction.ConsumeEvent -> {
+                    consumeEventForSession("compute", sessionId, sessionInfo, action.event)
+                }
+                is SessionAction.Untrack -> untrackSession("compute", sessionId, sessionInfo)
+                is SessionAction.None -> Unit
+            }
+            sessionsMap[sessionId]?.takeUnless { it.isUntracking }?.stateMachine?.getCurrentState()
+        }
+    }
+
+    /**
+     * Applies the event to the session, only if the session is in the expected session tracking state. The state
+     * check and the event consuming are done in a single critical section, so no other call can change the session
+     * in between.
+     *
+     * Otherwise this method behaves the same as [`consumeEvent()`][consumeEvent], except that the event is not
+     * throttled by the [`eventThrottle`][eventThrottle].
+     *
+     * @param sessionId [`SessionId`][SessionId].
+     * @param expectedState [`State`][State] the session is expected to be in.
+     * @param event [`Event`][Event].
+     *
+     * @return [`CompareAndConsumeResult`][CompareAndConsumeResult].
+     *
+     * @throws [RuntimeException] for a strict [`mode`][mode], if `SessionTracker` has not been initialized.
+     * For a relaxed [`mode`][mode] it just logs an error message and returns
+     * [`CompareAndConsumeResult.UNKNOWN_SESSION`][CompareAndConsumeResult.UNKNOWN_SESSION].
+     * @throws [RuntimeException] for a strict [`mode`][mode], if this call is initiated from the
+     * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
+     * and returns [`CompareAndConsumeResult.IGNORED`][CompareAndConsumeResult.IGNORED].
+     */
+    @JvmName("compareAndConsume")
+    fun compareAndConsume(sessionId: SessionId, expectedState: State, event: Event): CompareAndConsumeResult {
+        return locked(Operation.COMPARE_AND_CONSUME, sessionId) {
+            traceRecorder?.record(Operation.COMPARE_AND_CONSUME, sessionId, event, expectedState)
+            if (!ensureInitialized("compareAndConsume")) {
+                // no session is tracked yet
+                return CompareAndConsumeResult.UNKNOWN_SESSION
+            }
+            if (!ensureNotPersisting("compareAndConsume")) {
+                return CompareAndConsumeResult.IGNORED
+            }
+            if (mode.verbose) {
+                logger.d(
+                    logTag,
+                    "compareAndConsume: sessionId = '${sessionId.value}', expectedState = $expectedState, " +
+                            "event = '$event'"
+                )
+            }
+            val sessionInfo = sessionsMap[sessionId]
+            when {
+                sessionInfo == null || sessionInfo.isUntracking -> {
+                    consumeEventForSession("compareAndConsume", sessionId, sessionInfo, event)
+                    CompareAndConsumeResult.UNKNOWN_SESSION
+                }
+                sessionInfo.stateMachine.getCurrentState() != expectedState -> {
+                    if (mode.verbose) {
+                        logger.d(
+                            logTag,
+                            "compareAndConsume: session with ID '${sessionId.value}' is in state " +
+                                    "${sessionInfo.stateMachine.getCurrentState()}, expected $expectedState"
+                        )
+                    }
+                    CompareAndConsumeResult.STATE_MISMATCH
+                }
+                consumeEventForSession("compareAndConsume", sessionId, sessionInfo, event) -> {
+                    CompareAndConsumeResult.APPLIED
+                }
+                else -> CompareAndConsumeResult.IGNORED
+            }
+        }
+    }
+
+    /**
+     * Applies the specified [`event`][event] to every tracked session, that is in one of the specified
+     * [`states`][states].
+     *
+     * This is a shortcut for the following [`consumeEventForAll()`][consumeEventForAll] call:
+     *
+     * ```
+     *     consumeEventForAll(event) { sessionRecord -> sessionRecord.state in states }
+     * ```
+     *
+     * Events are not throttled by the [`eventThrottle`][eventThrottle].
+     *
+     * @param event [`Event`][Event].
+     * @param states session tracking states of the sessions to apply the event to.
+     *
+     * @return number of sessions, for which the event has caused a session tracking state change.
+     */
+    fun consumeEventForAll(event: Event, states: Set<State>): Int {
+        return consumeEventForAll(event) { sessionRecord -> sessionRecord.state in states }
+    }
+
+    /**
+     * Applies the specified [`event`][event] to every tracked session, that matches the [`predicate`][predicate].
+     *
+     * Unlike calling [`consumeEvent()`][consumeEvent] per session, the whole call is a single critical section, and
+     * all the updated session records are persisted with a single
+     * [`ISessionTrackerStorage.updateSessionRecords()`][ISessionTrackerStorage.updateSessionRecords] call. Note, the
+     * batch is persisted once the event has been applied to all the matching sessions, so listener callbacks for the
+     * affected sessions are invoked before their session records are persisted.
+     *
+     * Otherwise, for every matching session this method behaves the same as [`consumeEvent()`][consumeEvent],
+     * including the automatic untracking of the sessions, that appear in one of the
+     * [`autoUntrackStates`][autoUntrackStates]. Events are not throttled by the [`eventThrottle`][eventThrottle].
+     *
+     * The `predicate` is called while `SessionTracker` holds its lock, so it must be cheap and must not call
+     * `SessionTracker` back.
+     *
+     * @param event [`Event`][Event].
+     * @param predicate selects the sessions to apply the event to.
+     *
+     * @return number of sessions, for which the event has caused a session tracking state change.
+     *
+     * @throws [RuntimeException] for a strict [`mode`][mode], if `SessionTracker` has not been initialized.
+     * For a relaxed [`mode`][mode] it just logs an error message and returns 0.
+     * @throws [RuntimeException] for a strict [`mode`][mode], if this call is initiated from the
+     * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
+     * and returns 0.
+     */
+    fun consumeEventForAll(event: Event, predicate: (SessionRecord<State>) -> Boolean): Int {
+        return locked(Operation.CONSUME_EVENT_FOR_ALL, null) {
+            if (!ensureInitialized("consumeEventForAll") || !ensureNotPersisting("consumeEventForAll")) {
+                traceRecorder?.record(Operation.CONSUME_EVENT_FOR_ALL, event = event)
+                return 0
+            }
+            val matchingSessionIds = sessionsMap
+                .filter { (sessionId, sessionInfo) ->
+                    !sessionInfo.isUntracking && predicate.invoke(sessionInfo.toSessionRecord(sessionId))
+                }
+                .keys
+            traceRecorder?.record(
+                Operation.CONSUME_EVENT_FOR_ALL, event = event, sessionIds = matchingSessionIds.toList()
+            )
+            if (mode.verbose) {
+                logger.d(logTag, "consumeEventForAll: event = '$event', ${matchingSessionIds.size} sessions matched")
+            }
+            batchingSessionRecordUpdates {
+                matchingSessionIds.count { sessionId ->
+                    // a listener may have untracked the session in the meantime
+                    val sessionInfo = sessionsMap[sessionId]
+                    sessionInfo != null && consumeEventForSession("consumeEventForAll", sessionId, sessionInfo, event)
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a batch of events, e.g. the events buffered while offline, in the given order.
+     *
+     * The whole call is a single critical section, and every affected session is persisted once, with its final
+     * session record, all of them with a single
+     * [`ISessionTrackerStorage.updateSessionRecords()`][ISessionTrackerStorage.updateSessionRecords] call. Session
+     * records are persisted once all the events have been applied, so listener callbacks are invoked before the
+     * session records are persisted.
+     *
+     * If [`coalesceCallbacks`][coalesceCallbacks] is `true`, then the events of every session are first run through
+     * the session state transitions (as returned by the
+     * [`sessionStateTransitionsSupplier`][sessionStateTransitionsSupplier]) to find the final state of the session,
+     * and only the net change is applied: the listener gets a single
+     * [`onSessionStateChanged()`][Listener.onSessionStateChanged] callback per session, from the initial state to the
+     * final one, and no callback at all for a session that ends up in its initial state (e.g. for a LOGIN, LOGOUT
+     * sequence). Otherwise, the listener gets a callback per transition, same as for
+     * [`consumeEvent()`][consumeEvent] calls.
+     *
+     * Note, with `coalesceCallbacks` the session state machine does not go through the intermediate states: it is
+     * replaced with a new `StateMachine` starting in the final state. So the transitions are never run by a state
+     * machine, and nothing attached to the replaced state machine is carried over. Listeners added via
+     * [`addListener()`][addListener] get the net change as if it was caused by the last event, that has changed the
+     * state of the session, which is what their [`ListenerFilter`][ListenerFilter] events are matched against.
+     *
+     * Events for sessions, that are not tracked, are ignored. If a session appears in one of the
+     * [`autoUntrackStates`][autoUntrackStates], then it is untracked, and the rest of its events are ignored.
+     * Events are not throttled by the [`eventThrottle`][eventThrottle].
+     *
+     * @param events pairs of [`SessionId`][SessionId] and [`Event`][Event] to apply.
+     * @param coalesceCallbacks whether to notify the listener about the net session tracking state changes only.
+     *
+     * @return number of sessions, whose session tracking state has changed as a net result of the batch.
+     *
+     * @throws [RuntimeException] for a strict [`mode`][mode], if `SessionTracker` has not been initialized.
+     * For a relaxed [`mode`][mode] it just logs an error message and returns 0.
+     * @throws [RuntimeException] for a strict [`mode`][mode], if this call is initiated from the
+     * [`sessionTrackerStorage`][sessionTrackerStorage]. For a relaxed [`mode`][mode] it just logs an error message
+     * and returns 0.
+     */
+    @JvmOverloads
+    fun consumeEvents(events: List<Pair<SessionId, Event>>, coalesceCallbacks: Boolean = false): Int {
+        return locked(Operation.CONSUME_EVENTS, null) {
+            traceRecorder?.record(
+                Operation.CONSUME_EVENTS, events = events.toList(), coalesceCallbacks = coalesceCallbacks
+            )
+            if (!ensureInitialized("consumeEvents") || !ensureNotPersisting("consumeEvents")) {
+                return 0
+            }
+            if (mode.verbose) {
+                logger.d(logTag, "consumeEvents: ${events.size} events, coalesceCallbacks = $coalesceCallbacks")
+            }
+            val eventsPerSession = LinkedHashMap<SessionId, MutableList<Event>>()
+            events.forEach { (sessionId, event) -> eventsPerSession.getOrPut(sessionId) { ArrayList() }.add(event) }
+            batchingSessionRecordUpdates {
+                eventsPerSession.count { (sessionId, sessionEvents) ->
+                    val initialState = sessionsMap[sessionId]?.stateMachine?.getCurrentState()
+                    if (coalesceCallbacks) {
+                        consumeEventsCoalesced(sessionId, sessionEvents)
+                    } else {
+                        sessionEvents.forEach { event ->
+                            // a listener may have untracked the session in the meantime
+                            consumeEventForSession("consumeEvents", sessionId, sessionsMap[sessionId], event)
+                        }
+                    }
+                    val sessionInfo = sessionsMap[sessionId]
+                    initialState != null && (sessionInfo == null || sessionInfo.isUntracking ||
+                            sessionInfo.stateMachine.getCurrentState() != initialState)
+                }
+            }
+        }
+    }
+
+    private fun consumeEventsCoalesced(sessionId: SessionId, events: List<Event>) {
+        val sessionInfo = sessionsMap[sessionId]
+        if (sessionInfo == null || sessionInfo.isUntracking) {
+            events.forEach { event -> consumeEventForSession("consumeEvents", sessionId, sessionInfo, event) }
+            return
+        }
+        val initialState = sessionInfo.stateMachine.getCurrentState()
+        val statePaths = sessionStateTransitionsSupplier.getStateTransitions(sessionId)
+            .associate { transition -> (transition.event to transition.statePath.first()) to transition.statePath }
+        var state = initialState
+        var lastAppliedEvent: Event? = null
+        events.forEach { event ->
+            reportingEventConsumed {
+                val statePath = statePaths[event to state]
+                if (state in autoUntrackStates) {
+                    onEventOutcome(sessionId, event, null, null, TransitionJournal.Outcome.UNTRACKED)
+                    false
+                } else if (statePath == null) {
+                    onEventOutcome(sessionId, event, state, state, TransitionJournal.Outcome.IGNORED)
+                    false
+                } else {
+                    // the session is untracked as soon as it appears in an auto-untrack state
+                    val newState = statePath.drop(1).firstOrNull { it in autoUntrackStates } ?: statePath.last()
+                    onEventOutcome(sessionId, event, state, newState, TransitionJournal.Outcome.APPLIED)
+                    state = newState
+                    lastAppliedEvent = event
+                    true
+                }
+            }
+        }
+        if (state == initialState) {
+            if (mode.verbose) {
+                logger.d(logTag, "consumeEvents: no net state change for session with ID '${sessionId.value}'")
+            }
+            return
+        }
+        // the state machine can not be fast-forwarded, so it is replaced with one starting in the final state
+        sessionInfo.stateMachine.removeAllListeners()
+        val stateMachine = setupSessionStateMachine(SessionRecord(sessionId, state))
+        sessionsMap[sessionId] = sessionInfo.copy(stateMachine = stateMachine)
+        // the net change is dispatched to the registered listeners as caused by the last applied event
+        consumingEvent = lastAppliedEvent
+        try {
+            onSessionStateChanged(sessionId, initialState, state)
+        } finally {
+            consumingEvent = null
+        }
+    }
+
+    private inline fun <T> batchingSessionRecordUpdates(action: () -> T): T {
+        if (pendingSessionRecordUpdates != null) {
+            // a nested call (from a listener callback), the outermost call persists the whole batch
+            return action.invoke()
+        }
+        val pendingUpdates = LinkedHashMap<SessionId, Pair<SessionRecord<State>, Event?>>()
+        pendingSessionRecordUpdates = pendingUpdates
+        val result = try {
+            action.invoke()
+        } finally {
+            pendingSessionRecordUpdates = null
+        }
+        // persisted on normal completion only, so a storage failure never hides an exception thrown by the action
+        if (pendingUpdates.isNotEmpty()) {
+            val sessionRecords = pendingUpdates.values.map { (sessionRecord, _) -> sessionRecord }
+            val events = pendingUpdates.values.mapNotNull { (_, event) -> event }
+            doPersistAction(StorageOperation.UPDATE_BATCH, null) {
+                if (eventAwareStorage != null && events.size == sessionRecords.size) {
+                    eventAwareStorage.updateSessionRecords(sessionRecords, events)
+                } else {
+                    sessionTrackerStorage.updateSessionRecords(sessionRecords)
+                }
+            }
+        }
+        return result
+    }
+
+    /**
+     * Applies an event fired by [`SessionTimeouts`][SessionTimeouts], bypassing the [`eventThrottle`][eventThrottle].
+     */
+    internal fun consumeTimerEvent(sessionId: SessionId, event: Event): Boolean {
+        return locked(Operation.CONSUME_EVENT, sessionId) {
+            traceRecorder?.record(Operation.CONSUME_EVENT, sessionId, event, timer = true)
+            doConsumeEvent(sessionId, event, throttled = false)
+        }
+    }
+
+    private fun doConsumeEvent(sessionId: SessionId, event: Event, throttled: Boolean = true): Boolean {
+        if (!ensureInitialized("consumeEvent")) {
+            return false
+        }
+        if (mode.verbose) {
             logger.d(logTag, "consumeEvent: sessionId = '${sessionId.value}', event = '$event'")
         }
         if (!ensureNotPersisting("consumeEvent")) {
             return false
         }
         val sessionInfo = sessionsMap[sessionId]
+        if (throttled && sessionInfo != null && !isThrottleAdmitted(sessionId, sessionInfo, event)) {
+            return false
+        }
+        return consumeEventForSession("consumeEvent", sessionId, sessionInfo, event)
+    }
+
+    private fun isThrottleAdmitted(
+        sessionId: SessionId,
+        sessionInfo: SessionInfo<Event, State>,
+        event: Event
+    ): Boolean {
+        val throttleState = sessionInfo.throttleState
+        if (eventThrottle == null || throttleState == null || sessionInfo.isUntracking) {
+            return true
+        }
+        when (eventThrottle.admit(sessionId, event, throttleState, sessionTimeouts)) {
+            EventThrottle.Admission.ADMITTED -> return true
+            EventThrottle.Admission.RATE_LIMITED -> {
+                metrics.onEventRateLimited()
+                if (mode.verbose) {
+                    logger.d(
+                        logTag,
+                        "consumeEvent: event '$event' is rate limited for session with ID '${sessionId.value}'"
+                    )
+                }
+            }
+            EventThrottle.Admission.DEBOUNCED -> {
+                metrics.onEventDebounced()
+                if (mode.verbose) {
+                    logger.d(
+                        logTag,
+                        "consumeEvent: event '$event' is debounced for session with ID '${sessionId.value}'"
+                    )
+                }
+            }
+        }
+        return false
+    }
+
+    private fun consumeEventForSession(
+        method: String,
+        sessionId: SessionId,
+        sessionInfo: SessionInfo<Event, State>?,
+        event: Event
+    ): Boolean = reportingEventConsumed {
         if (sessionInfo == null) {
-            logger.w(logTag, "consumeEvent: no session with ID '${sessionId.value}' found")
+            logger.w(logTag, "$method: no session with ID '${sessionId.value}' found")
+            onEventOutcome(sessionId, event, null, null, TransitionJournal.Outcome.UNTRACKED)
         } else {
+            val oldState = sessionInfo.stateMachine.getCurrentState()
             if (sessionInfo.isUntracking) {
-                logger.w(logTag, "consumeEvent: event = '$event', session with ID '${sessionId.value}' is already untracking")
-            } else if (sessionInfo.stateMachine.consumeEvent(event)) {
-                return true
+                logger.w(logTag, "$method: event = '$event', session with ID '${sessionId.value}' is already untracking")
+                onEventOutcome(sessionId, event, oldState, oldState, TransitionJournal.Outcome.UNTRACKED)
+            } else if (applyEvent(sessionInfo.stateMachine, event)) {
+                val newState = sessionInfo.stateMachine.getCurrentState()
+                onEventOutcome(sessionId, event, oldState, newState, TransitionJournal.Outcome.APPLIED)
+                return@reportingEventConsumed true
+            } else {
+                onEventOutcome(sessionId, event, oldState, oldState, TransitionJournal.Outcome.IGNORED)
             }
             if (mode.verbose) {
                 logger.d(
-                    logTag, "consumeEvent: event '$event' was ignored for session with ID '${sessionId.value}' " +
+                    logTag, "$method: event '$event' was ignored for session with ID '${sessionId.value}' " +
                             "in state ${sessionInfo.stateMachine.getCurrentState()}, " +
                             "isUntracking = ${sessionInfo.isUntracking}"
                 )
             }
         }
-        return false
+        false
+    }
+
+    /**
+     * Reports the [`Metrics.onEventConsumed()`][Metrics.onEventConsumed] for the event consumed by the action.
+     *
+     * @param action returns whether the event has caused a session tracking state change.
+     */
+    private inline fun reportingEventConsumed(action: () -> Boolean): Boolean {
+        if (!instrumented) {
+            return action.invoke()
+        }
+        val startedAt = nanoClock.invoke()
+        val storageNanosBefore = storageNanos
+        val listenerNanosBefore = listenerNanos
+        var accepted = false
+        try {
+            accepted = action.invoke()
+            return accepted
+        } finally {
+            val storageNanosSpent = storageNanos - storageNanosBefore
+            val listenerNanosSpent = listenerNanos - listenerNanosBefore
+            metrics.onEventConsumed(
+                accepted = accepted,
+                lockWaitNanos = unreportedLockWaitNanos,
+                stateMachineNanos = nanoClock.invoke() - startedAt - storageNanosSpent - listenerNanosSpent,
+                storageNanos = storageNanosSpent,
+                listenerNanos = listenerNanosSpent
+            )
+            unreportedLockWaitNanos = 0L
+        }
+    }
+
+    private fun applyEvent(stateMachine: StateMachine<Event, State>, event: Event): Boolean {
+        consumingEvent = event
+        try {
+            if (persistFinalStateOnly && pendingSessionRecordUpdates == null) {
+                return persistingFinalStates { stateMachine.consumeEvent(event) }
+            }
+            return stateMachine.consumeEvent(event)
+        } finally {
+            consumingEvent = null
+        }
+    }
+
+    /**
+     * Collects the session record updates made by the action (e.g. per state of a transition path), and persists
+     * only the last update of every session once the action has completed normally.
+     */
+    private inline fun <T> persistingFinalStates(action: () -> T): T {
+        val pendingUpdates = LinkedHashMap<SessionId, Pair<SessionRecord<State>, Event?>>()
+        pendingSessionRecordUpdates = pendingUpdates
+        val result = try {
+            action.invoke()
+        } finally {
+            pendingSessionRecordUpdates = null
+        }
+        pendingUpdates.values.forEach { (sessionRecord, event) -> persistSessionRecordUpdate(sessionRecord, event) }
+        return result
+    }
+
+    private fun persistSessionRecordUpdate(sessionRecord: SessionRecord<State>, event: Event?) {
+        doPersistAction(StorageOperation.UPDATE, sessionRecord.sessionId) {
+            if (eventAwareStorage != null && event != null) {
+                eventAwareStorage.updateSessionRecord(sessionRecord, event)
+            } else {
+                sessionTrackerStorage.updateSessionRecord(sessionRecord)
+            }
+        }
+    }
+
+    private fun untrackSession(method: String, sessionId: SessionId, sessionInfo: SessionInfo<Event, State>?) {
+        if (sessionInfo == null) {
+            logger.d(logTag, "$method: no session with ID '${sessionId.value}' found")
+        } else {
+            if (sessionInfo.isUntracking) {
+                logger.w(logTag, "$method: session with ID '${sessionId.value}' is already untracking")
+            } else {
+                val updatedSessionInfo = sessionInfo.copy(isUntracking = true)
+                sessionsMap[sessionId] = updatedSessionInfo
+                doUntrackSession(sessionId, updatedSessionInfo)
+            }
+        }
+    }
+
+    private fun onEventOutcome(
+        sessionId: SessionId,
+        event: Event,
+        oldState: State?,
+        newState: State?,
+        outcome: TransitionJournal.Outcome
+    ) {
+        transitionJournal?.record(sessionId, event, oldState, newState, outcome)
+        if (transitionStatistics != null) {
+            when (outcome) {
+                TransitionJournal.Outcome.APPLIED -> transitionStatistics.onApplied(event, oldState!!)
+                TransitionJournal.Outcome.IGNORED -> transitionStatistics.onIgnored(event, oldState!!)
+                TransitionJournal.Outcome.UNTRACKED -> transitionStatistics.onUntracked(event)
+            }
+        }
     }
 
-    private fun doUntrackSession(sessionId: SessionId, stateMachine: StateMachine<Event, State>) {
-        stateMachine.removeAllListeners()
-        doPersistAction { sessionTrackerStorage.deleteSessionRecord(sessionId) }
+    private fun doUntrackSession(sessionId: SessionId, sessionInfo: SessionInfo<Event, State>) {
+        sessionInfo.stateMachine.removeAllListeners()
+        doPersistAction(StorageOperation.DELETE, sessionId) { sessionTrackerStorage.deleteSessionRecord(sessionId) }
         sessionsMap.remove(sessionId)
-        listener!!.onSessionTrackingStopped(this@SessionTracker, SessionRecord(sessionId, stateMachine.getCurrentState()))
+        forgetSession(sessionId)
+        version++
+        sessionRecordsChanged = true
+        val sessionRecord = sessionInfo.toSessionRecord(sessionId)
+        metrics.onSessionsUntracked(1)
+        metrics.onSessionCountChanged(sessionRecord.state, -1)
+        notifySessionTrackingStopped(sessionRecord)
+    }
+
+    /**
+     * Drops everything kept for the untracked session.
+     */
+    private fun forgetSession(sessionId: SessionId) {
+        pendingSessionRecordUpdates?.remove(sessionId)
+        sessionTimeouts?.cancel(sessionId)
+        idempotencyKeys?.remove(sessionId)
+    }
+
+    private fun forgetAllSessions() {
+        pendingSessionRecordUpdates?.clear()
+        sessionTimeouts?.cancelAll()
+        idempotencyKeys?.clear()
+    }
+
+    /**
+     * Must be called while holding the `SessionTracker` lock.
+     */
+    internal fun isTracking(sessionId: SessionId): Boolean {
+        return sessionsMap[sessionId]?.isUntracking == false
     }
 
     private fun ensureInitialized(method: String): Boolean {
@@ -687,49 +1931,295 @@ class SessionTracker<Event : Enum<Event>, State : Enum<State>>(
 
         stateMachine.addListener(object : StateMachine.Listener<State> {
             override fun onStateChanged(oldState: State, newState: State) {
-                val baseLogMessage = "onStateChanged: '$oldState' -> '$newState', sessionId = '${sessionId.value}'"
+                onSessionStateChanged(sessionId, oldState, newState)
+            }
+        })
 
-                val sessionInfo = sessionsMap[sessionId]
+        return stateMachine
+    }
 
-                checkNotNull(sessionInfo) { "$baseLogMessage - session not found" }
-                check(sessionInfo.isUntracking.not()) { "$baseLogMessage - session is untracking" }
+    private fun onSessionStateChanged(sessionId: SessionId, oldState: State, newState: State) {
+        val baseLogMessage = "onStateChanged: '$oldState' -> '$newState', sessionId = '${sessionId.value}'"
 
-                if (mode.verbose) {
-                    logger.d(logTag, baseLogMessage)
-                }
+        val sessionInfo = sessionsMap[sessionId]
 
-                val updatedSessionRecord = SessionRecord(sessionId, newState)
+        checkNotNull(sessionInfo) { "$baseLogMessage - session not found" }
+        check(sessionInfo.isUntracking.not()) { "$baseLogMessage - session is untracking" }
 
-                if (newState in autoUntrackStates) {
-                    logger.d(logTag, "$baseLogMessage, going to auto-untrack session..")
-                    val updatedSessionInfo = sessionInfo.copy(isUntracking = true)
-                    sessionsMap[sessionId] = updatedSessionInfo
-                    stateMachine.removeAllListeners()
-                    listener!!.onSessionStateChanged(this@SessionTracker, updatedSessionRecord, oldState)
-                    if (sessionsMap.containsKey(sessionId)) {
-                        doUntrackSession(sessionId, updatedSessionInfo.stateMachine)
-                    }
-                } else {
-                    doPersistAction { sessionTrackerStorage.updateSessionRecord(updatedSessionRecord) }
-                    listener!!.onSessionStateChanged(this@SessionTracker, updatedSessionRecord, oldState)
+        if (mode.verbose) {
+            logger.d(logTag, baseLogMessage)
+        }
+
+        val updatedSessionRecord = SessionRecord(sessionId, newState, ++version)
+        sessionRecordsChanged = true
+
+        metrics.onSessionCountChanged(oldState, -1)
+        metrics.onSessionCountChanged(newState, 1)
+
+        if (newState in autoUntrackStates) {
+            logger.d(logTag, "$baseLogMessage, going to auto-untrack session..")
+            val updatedSessionInfo = sessionInfo.copy(
+                version = updatedSessionRecord.version,
+                isUntracking = true
+            )
+            sessionsMap[sessionId] = updatedSessionInfo
+            sessionInfo.stateMachine.removeAllListeners()
+            notifySessionStateChanged(updatedSessionRecord, oldState)
+            if (sessionsMap.containsKey(sessionId)) {
+                doUntrackSession(sessionId, updatedSessionInfo)
+            }
+        } else {
+            sessionsMap[sessionId] = sessionInfo.copy(version = updatedSessionRecord.version)
+            sessionTimeouts?.schedule(sessionId, newState)
+            val pendingUpdates = pendingSessionRecordUpdates
+            if (pendingUpdates != null) {
+                pendingUpdates[sessionId] = updatedSessionRecord to consumingEvent
+            } else {
+                persistSessionRecordUpdate(updatedSessionRecord, consumingEvent)
+            }
+            notifySessionStateChanged(updatedSessionRecord, oldState)
+        }
+    }
+
+    private inline fun <T> locked(operation: Operation, sessionId: SessionId?, action: () -> T): T {
+        try {
+            return lockedInstrumented(operation, sessionId, action)
+        } finally {
+            dispatchListenerCallbacks()
+        }
+    }
+
+    private inline fun <T> lockedInstrumented(operation: Operation, sessionId: SessionId?, action: () -> T): T {
+        if (!instrumented) {
+            return synchronized(this) { publishingSessionRecords(action) }
+        }
+        val requestedAt = nanoClock.invoke()
+        synchronized(this) {
+            val acquiredAt = nanoClock.invoke()
+            val storageNanosBefore = storageNanos
+            // a nested call (e.g. from a listener callback) is a part of the outer call, which is reported as a whole
+            val outermost = lockDepth == 0
+            if (outermost) {
+                unreportedLockWaitNanos = acquiredAt - requestedAt
+            }
+            try {
+                return publishingSessionRecords(action)
+            } finally {
+                if (outermost && lockProfiler != null) {
+                    val holdNanos = nanoClock.invoke() - acquiredAt
+                    val storageNanosSpent = storageNanos - storageNanosBefore
+                    lockProfiler.onLockReleased(
+                        operation, sessionId, acquiredAt - requestedAt, holdNanos, storageNanosSpent
+                    )
                 }
             }
-        })
+        }
+    }
 
-        return stateMachine
+    private inline fun <T> publishingSessionRecords(action: () -> T): T {
+        lockDepth++
+        try {
+            return action.invoke()
+        } finally {
+            lockDepth--
+            if (lockDepth == 0 && sessionRecordsChanged) {
+                publishSessionRecords()
+            }
+        }
+    }
+
+    private fun publishSessionRecords() {
+        sessionRecordsChanged = false
+        sessionRecordsSnapshot = null
+        if (sessionRecordsObservers.isNotEmpty()) {
+            val snapshot = getSessionRecordsSnapshot()
+            sessionRecordsObservers.forEach { it.onSessionRecordsChanged(snapshot) }
+        }
+    }
+
+    private fun getSessionRecordsSnapshot(): List<SessionRecord<State>> {
+        if (sessionRecordsChanged) {
+            // called in the middle of a change, the cached snapshot (if any) is stale
+            sessionRecordsSnapshot = null
+        }
+        return sessionRecordsSnapshot ?: Collections.unmodifiableList(
+            sessionsMap.map { (sessionId, sessionInfo) -> sessionInfo.toSessionRecord(sessionId) }
+        ).also { sessionRecordsSnapshot = it }
     }
 
-    private fun doPersistAction(action: () -> Unit) {
+    private fun doPersistAction(operation: StorageOperation, sessionId: SessionId?, action: () -> Unit) {
         persisting = true
         try {
-            action.invoke()
+            doStorageCall(operation, sessionId, action)
         } finally {
             persisting = false
         }
     }
 
+    private inline fun <T> doStorageCall(operation: StorageOperation, sessionId: SessionId?, action: () -> T): T {
+        if (!instrumented) {
+            return action.invoke()
+        }
+        val startedAt = nanoClock.invoke()
+        try {
+            return action.invoke()
+        } finally {
+            val durationNanos = nanoClock.invoke() - startedAt
+            storageNanos += durationNanos
+            metrics.onStorageCall(operation, durationNanos)
+            watchdog?.onStorageCall(operation, sessionId, durationNanos)
+        }
+    }
+
+    private fun notifySessionTrackerInitialized(sessionRecords: List<SessionRecord<State>>) {
+        notifyListener(ListenerCallback.ON_SESSION_TRACKER_INITIALIZED, null, listener!!) {
+            it.onSessionTrackerInitialized(this, sessionRecords)
+        }
+        for (registration in listenerRegistry.registrations) {
+            val filteredSessionRecords = sessionRecords.filter { registration.filter.matches(it) }
+            notifyListener(ListenerCallback.ON_SESSION_TRACKER_INITIALIZED, null, registration.listener) {
+                it.onSessionTrackerInitialized(this, filteredSessionRecords)
+            }
+        }
+    }
+
+    private fun notifySessionTrackingStarted(sessionRecord: SessionRecord<State>) {
+        val sessionId = sessionRecord.sessionId
+        notifyListener(ListenerCallback.ON_SESSION_TRACKING_STARTED, sessionId, listener!!) {
+            it.onSessionTrackingStarted(this, sessionRecord)
+        }
+        for (registration in listenerRegistry.forState(sessionRecord.state)) {
+            if (registration.filter.matchesSessionId(sessionId)) {
+                notifyListener(ListenerCallback.ON_SESSION_TRACKING_STARTED, sessionId, registration.listener) {
+                    it.onSessionTrackingStarted(this, sessionRecord)
+                }
+            }
+        }
+    }
+
+    private fun notifySessionStateChanged(sessionRecord: SessionRecord<State>, oldState: State) {
+        val sessionId = sessionRecord.sessionId
+        notifyListener(ListenerCallback.ON_SESSION_STATE_CHANGED, sessionId, listener!!) {
+            it.onSessionStateChanged(this, sessionRecord, oldState)
+        }
+        val event = consumingEvent ?: return
+        for (registration in listenerRegistry.forStateChange(event, oldState, sessionRecord.state)) {
+            if (registration.filter.matchesSessionId(sessionId)) {
+                notifyListener(ListenerCallback.ON_SESSION_STATE_CHANGED, sessionId, registration.listener) {
+                    it.onSessionStateChanged(this, sessionRecord, oldState)
+                }
+            }
+        }
+    }
+
+    private fun notifySessionTrackingStopped(sessionRecord: SessionRecord<State>) {
+        val sessionId = sessionRecord.sessionId
+        notifyListener(ListenerCallback.ON_SESSION_TRACKING_STOPPED, sessionId, listener!!) {
+            it.onSessionTrackingStopped(this, sessionRecord)
+        }
+        for (registration in listenerRegistry.forState(sessionRecord.state)) {
+            if (registration.filter.matchesSessionId(sessionId)) {
+                notifyListener(ListenerCallback.ON_SESSION_TRACKING_STOPPED, sessionId, registration.listener) {
+                    it.onSessionTrackingStopped(this, sessionRecord)
+                }
+            }
+        }
+    }
+
+    private fun notifySessionsTrackingStopped(sessionRecords: List<SessionRecord<State>>) {
+        notifySessionsTrackingStopped(listener!!, sessionRecords)
+        for (registration in listenerRegistry.registrations) {
+            val filteredSessionRecords = sessionRecords.filter { registration.filter.matches(it) }
+            if (filteredSessionRecords.isNotEmpty()) {
+                notifySessionsTrackingStopped(registration.listener, filteredSessionRecords)
+            }
+        }
+    }
+
+    private fun notifySessionsTrackingStopped(
+        listener: Listener<Event, State>,
+        sessionRecords: List<SessionRecord<State>>
+    ) {
+        if (listener is BulkListener<*, *>) {
+            notifyListener(ListenerCallback.ON_SESSIONS_TRACKING_STOPPED, null, listener) {
+                @Suppress("UNCHECKED_CAST")
+                (it as BulkListener<Event, State>).onSessionsTrackingStopped(this, sessionRecords)
+            }
+        } else {
+            sessionRecords.forEach { sessionRecord ->
+                notifyListener(ListenerCallback.ON_SESSION_TRACKING_STOPPED, sessionRecord.sessionId, listener) {
+                    it.onSessionTrackingStopped(this, sessionRecord)
+                }
+            }
+        }
+    }
+
+    private fun notifyAllSessionsTrackingStopped(sessionRecords: List<SessionRecord<State>>) {
+        notifyListener(ListenerCallback.ON_ALL_SESSIONS_TRACKING_STOPPED, null, listener!!) {
+            it.onAllSessionsTrackingStopped(this, sessionRecords)
+        }
+        for (registration in listenerRegistry.registrations) {
+            val filteredSessionRecords = sessionRecords.filter { registration.filter.matches(it) }
+            if (filteredSessionRecords.isNotEmpty()) {
+                notifyListener(ListenerCallback.ON_ALL_SESSIONS_TRACKING_STOPPED, null, registration.listener) {
+                    it.onAllSessionsTrackingStopped(this, filteredSessionRecords)
+                }
+            }
+        }
+    }
+
+    private inline fun notifyListener(
+        callback: ListenerCallback,
+        sessionId: SessionId?,
+        listener: Listener<Event, State>,
+        crossinline action: (Listener<Event, State>) -> Unit
+    ) {
+        val sequenceNumber = ++callbackSequenceNumber
+        if (listenerDispatchQueue != null) {
+            listenerDispatchQueue.enqueue(Runnable {
+                if (listener is CallbackSequenceAware) {
+                    listener.onCallbackSequenceNumber(sequenceNumber)
+                }
+                if (watchdog == null) {
+                    action.invoke(listener)
+                } else {
+                    val startedAt = nanoClock.invoke()
+                    try {
+                        action.invoke(listener)
+                    } finally {
+                        watchdog.onListenerCallback(callback, sessionId, nanoClock.invoke() - startedAt)
+                    }
+                }
+            })
+            return
+        }
+        if (listener is CallbackSequenceAware) {
+            listener.onCallbackSequenceNumber(sequenceNumber)
+        }
+        if (!instrumented) {
+            action.invoke(listener)
+            return
+        }
+        val startedAt = nanoClock.invoke()
+        val storageNanosBefore = storageNanos
+        try {
+            action.invoke(listener)
+        } finally {
+            val durationNanos = nanoClock.invoke() - startedAt
+            // storage calls made by the listener (by calling SessionTracker back) are accounted as storage time
+            listenerNanos += durationNanos - (storageNanos - storageNanosBefore)
+            watchdog?.onListenerCallback(callback, sessionId, durationNanos)
+        }
+    }
+
     private data class SessionInfo<Event : Enum<Event>, State : Enum<State>>(
         val stateMachine: StateMachine<Event, State>,
+        val version: Long,
+        val throttleState: EventThrottle.SessionState<Event>?,
         val isUntracking: Boolean = false
-    )
+    ) {
+        fun toSessionRecord(sessionId: SessionId): SessionRecord<State> {
+            return SessionRecord(sessionId, stateMachine.getCurrentState(), version)
+        }
+    }
 }
@@ -0,0 +1,220 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.ExecutorService
+
+/**
+ * A facade partitioning sessions across a few independent [`SessionTracker`][SessionTracker]s (shards) by
+ * [`SessionId`][SessionId] hash, so calls for sessions of different shards do not contend for a single lock.
+ *
+ * Every shard should have its own [`ISessionTrackerStorage`][ISessionTrackerStorage] partition (e.g. its own
+ * `SharedPreferences` file), and the same configuration otherwise. Note, the number of shards must not change between
+ * app launches, otherwise sessions are looked up in wrong shards.
+ *
+ * Per-session calls are routed to the shard of the session. Calls spanning all the sessions (e.g.
+ * [`getSessionRecords()`][getSessionRecords] or [`untrackAllSessions()`][untrackAllSessions]) are scattered to all the
+ * shards and their results are gathered. If an [`executor`][executor] is provided, then the shards are called in
+ * parallel (the calling thread takes one of the shards), otherwise one by one on the calling thread. Such calls are
+ * not atomic across the shards, but every shard is called even if the call fails for some of them, then the first
+ * failure is rethrown.
+ *
+ * [`Listener`][SessionTracker.Listener] callbacks receive the shard, not the facade, as the `sessionTracker`
+ * argument, and [`onSessionTrackerInitialized()`][SessionTracker.Listener.onSessionTrackerInitialized] is called once
+ * per shard, with the session records of the shard. Each shard calls the listener under its own lock, so callbacks
+ * of different shards may run concurrently (if the shards are called from different threads, or scattered on the
+ * `executor`), a listener shared by the shards must be thread-safe.
+ *
+ * @param shards [`SessionTracker`][SessionTracker]s to partition the sessions across, must not be empty.
+ * @param executor [`ExecutorService`][ExecutorService] to call the shards in parallel on, optional.
+ *
+ * @throws [IllegalArgumentException] if `shards` is empty.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class ShardedSessionTracker<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    shards: List<SessionTracker<Event, State>>,
+    private val executor: ExecutorService? = null
+) {
+
+    init {
+        require(shards.isNotEmpty()) { "shards must not be empty" }
+    }
+
+    val shards: List<SessionTracker<Event, State>> = ArrayList(shards)
+
+    /**
+     * A sum of the shard versions, so it grows on any change in any shard.
+     *
+     * @see [SessionTracker.version]
+     */
+    val version: Long
+        get() = shards.sumOf { it.version }
+
+    /**
+     * @return the shard of the session.
+     */
+    @JvmName("shardFor")
+    fun shardFor(sessionId: SessionId): SessionTracker<Event, State> {
+        val hash = sessionId.value.hashCode()
+        // spread the higher bits, as String hashes of similar IDs differ in the lower bits mostly
+        return shards[((hash xor (hash ushr 16)) and Int.MAX_VALUE) % shards.size]
+    }
+
+    /**
+     * Initializes all the shards, one by one on the calling thread, so the
+     * [`onSessionTrackerInitialized()`][SessionTracker.Listener.onSessionTrackerInitialized] callbacks of the shards
+     * are never called concurrently. If initializing fails for any shard, then the rest of the shards are still
+     * initialized, and the first failure is rethrown.
+     *
+     * @see [SessionTracker.initialize]
+     */
+    fun initialize(sessionTrackerListener: SessionTracker.Listener<Event, State>) {
+        scatterGather(shards, null) { shard -> shard.initialize(sessionTrackerListener) }
+    }
+
+    /**
+     * @return session records of all the shards, grouped by shard.
+     *
+     * @see [SessionTracker.getSessionRecords]
+     */
+    fun getSessionRecords(): List<SessionRecord<State>> {
+        return scatterGather { shard -> shard.getSessionRecords() }.flatten()
+    }
+
+    /**
+     * @see [SessionTracker.trackSession]
+     */
+    @JvmName("trackSession")
+    fun trackSession(sessionId: SessionId, state: State) {
+        shardFor(sessionId).trackSession(sessionId, state)
+    }
+
+    /**
+     * @see [SessionTracker.untrackSession]
+     */
+    @JvmName("untrackSession")
+    fun untrackSession(sessionId: SessionId) {
+        shardFor(sessionId).untrackSession(sessionId)
+    }
+
+    /**
+     * @see [SessionTracker.untrackAllSessions]
+     */
+    fun untrackAllSessions() {
+        scatterGather { shard -> shard.untrackAllSessions() }
+    }
+
+    /**
+     * @see [SessionTracker.untrackSessions]
+     */
+    fun untrackSessions(states: Set<State>): Int {
+        return scatterGather { shard -> shard.untrackSessions(states) }.sum()
+    }
+
+    /**
+     * @see [SessionTracker.untrackSessions]
+     */
+    fun untrackSessions(predicate: (SessionRecord<State>) -> Boolean): Int {
+        return scatterGather { shard -> shard.untrackSessions(predicate) }.sum()
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvent]
+     */
+    @JvmName("consumeEvent")
+    fun consumeEvent(sessionId: SessionId, event: Event): Boolean {
+        return shardFor(sessionId).consumeEvent(sessionId, event)
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvent]
+     */
+    @JvmName("consumeEvent")
+    fun consumeEvent(sessionId: SessionId, event: Event, idempotencyKey: String): Boolean {
+        return shardFor(sessionId).consumeEvent(sessionId, event, idempotencyKey)
+    }
+
+    /**
+     * @see [SessionTracker.compareAndConsume]
+     */
+    @JvmName("compareAndConsume")
+    fun compareAndConsume(
+        sessionId: SessionId,
+        expectedState: State,
+        event: Event
+    ): SessionTracker.CompareAndConsumeResult {
+        return shardFor(sessionId).compareAndConsume(sessionId, expectedState, event)
+    }
+
+    /**
+     * @see [SessionTracker.trackOrConsume]
+     */
+    @JvmName("trackOrConsume")
+    fun trackOrConsume(sessionId: SessionId, initialState: State, event: Event): Boolean {
+        return shardFor(sessionId).trackOrConsume(sessionId, initialState, event)
+    }
+
+    /**
+     * @see [SessionTracker.compute]
+     */
+    @JvmName("compute")
+    fun compute(sessionId: SessionId, function: (State?) -> SessionAction<Event, State>): State? {
+        return shardFor(sessionId).compute(sessionId, function)
+    }
+
+    /**
+     * @see [SessionTracker.consumeEventForAll]
+     */
+    fun consumeEventForAll(event: Event, states: Set<State>): Int {
+        return scatterGather { shard -> shard.consumeEventForAll(event, states) }.sum()
+    }
+
+    /**
+     * @see [SessionTracker.consumeEventForAll]
+     */
+    fun consumeEventForAll(event: Event, predicate: (SessionRecord<State>) -> Boolean): Int {
+        return scatterGather { shard -> shard.consumeEventForAll(event, predicate) }.sum()
+    }
+
+    /**
+     * Splits the events by shard, preserving the order of the events of every session.
+     *
+     * @see [SessionTracker.consumeEvents]
+     */
+    @JvmOverloads
+    fun consumeEvents(events: List<Pair<SessionId, Event>>, coalesceCallbacks: Boolean = false): Int {
+        val eventsPerShard = events.groupBy { (sessionId, _) -> shardFor(sessionId) }
+        return scatterGather { shard ->
+            eventsPerShard[shard]?.let { shardEvents -> shard.consumeEvents(shardEvents, coalesceCallbacks) } ?: 0
+        }.sum()
+    }
+
+    /**
+     * Adds the listener to all the shards.
+     *
+     * @see [SessionTracker.addListener]
+     */
+    @JvmOverloads
+    fun addListener(
+        listener: SessionTracker.Listener<Event, State>,
+        filter: ListenerFilter<Event, State> = ListenerFilter()
+    ) {
+        shards.forEach { shard -> shard.addListener(listener, filter) }
+    }
+
+    /**
+     * Removes the listener from all the shards.
+     *
+     * @see [SessionTracker.removeListener]
+     */
+    fun removeListener(listener: SessionTracker.Listener<Event, State>) {
+        shards.forEach { shard -> shard.removeListener(listener) }
+    }
+
+    /**
+     * Calls the action for every shard and gathers the results, in the order of the shards.
+     */
+    private fun <T> scatterGather(action: (SessionTracker<Event, State>) -> T): List<T> {
+        return scatterGather(shards, executor, action)
+    }
+}
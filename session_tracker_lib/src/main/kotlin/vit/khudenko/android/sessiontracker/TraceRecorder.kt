@@ -0,0 +1,566 @@
+package vit.khudenko.android.sessiontracker
+
+import java.io.BufferedOutputStream
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.EnumSet
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Records every public `SessionTracker` call, that may change the session records (from
+ * [`initialize()`][SessionTracker.initialize] to [`consumeEvents()`][SessionTracker.consumeEvents]), as well as the
+ * [`getSessionRecords()`][SessionTracker.getSessionRecords] calls and the events applied by
+ * [`SessionTimeouts`][SessionTimeouts], into a compact binary trace, to be replayed later with
+ * [`TraceReplayer`][TraceReplayer], e.g. against a newer `SessionTracker` version or another
+ * [`ISessionTrackerStorage`][ISessionTrackerStorage]. Pass an instance via the `SessionTracker` constructor.
+ *
+ * Calls are recorded while `SessionTracker` holds its lock, so the trace order is the order the calls have been
+ * executed in. Every entry keeps the time elapsed since the recording has started and the ID of the calling thread.
+ * For `initialize()`, the session records read from the storage are recorded, so the replay starts from the same
+ * state. Predicates and functions can not be recorded, so their outcome is: the sessions matched by the
+ * [`untrackSessions()`][SessionTracker.untrackSessions] and
+ * [`consumeEventForAll()`][SessionTracker.consumeEventForAll] predicates, and the
+ * [`SessionAction`][SessionAction] returned by the [`compute()`][SessionTracker.compute] function.
+ * `consumeEvent()` calls resolved by [`IdempotencyKeys`][IdempotencyKeys] without taking the lock change nothing,
+ * and are not recorded. Events rejected by the [`EventThrottle`][EventThrottle] are recorded as regular
+ * `consumeEvent()` calls.
+ *
+ * Recording a call only puts an entry into a bounded queue, the entries are encoded and written to the
+ * [`output`][output] through an 8 KB buffer by a drain task on the [`executor`][executor], so the `SessionTracker`
+ * lock is never held for the trace I/O. Once the queue is full, [`maxBytes`][maxBytes] have been written, or the
+ * output has failed, recording stops silently, so a recorder is safe to leave on in production for a while: the trace
+ * then ends with the last entry written, it never has gaps. Recording stops as well, if the `executor` rejects the
+ * drain task. Call [`close()`][close] to write the queued entries, flush the buffer and close the output.
+ *
+ * Trace format (big-endian, see [`DataOutputStream`][DataOutputStream], var-ints are LEB128-encoded):
+ * - header: 4 bytes magic, 1 byte format version, then the `Event` and the `State` enum constant names
+ * (var-int count + modified UTF-8 strings each), so enum constants may be reordered between versions;
+ * - per entry: 1 byte operation code, var-int nanoseconds since the previous entry, var-int thread ID, then
+ * operation-specific fields. Session IDs are interned: a var-int index of an already written ID, or the next index
+ * followed by the ID itself.
+ *
+ * Use [`readTrace()`][readTrace] to decode a trace.
+ *
+ * @param output [`OutputStream`][OutputStream] to write the trace to.
+ * @param executor [`Executor`][Executor] to run the drain task on.
+ * @param eventEnumValues all the values of the [`Event`][Event] enum.
+ * @param stateEnumValues all the values of the [`State`][State] enum.
+ * @param maxBytes max size of the trace, in bytes.
+ * @param capacity max number of the entries in the queue.
+ *
+ * @throws [IllegalArgumentException] if `maxBytes` or `capacity` is not positive.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class TraceRecorder<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    output: OutputStream,
+    private val executor: Executor,
+    eventEnumValues: EnumSet<Event>,
+    stateEnumValues: EnumSet<State>,
+    val maxBytes: Int = 16 * 1024 * 1024,
+    val capacity: Int = 4096
+) : Closeable {
+
+    companion object {
+        private const val MAGIC = 0x53545243 // "STRC"
+        private const val FORMAT_VERSION = 1
+
+        private val OPERATIONS = listOf(
+            SessionTracker.Operation.INITIALIZE,
+            SessionTracker.Operation.GET_SESSION_RECORDS,
+            SessionTracker.Operation.TRACK_SESSION,
+            SessionTracker.Operation.UNTRACK_SESSION,
+            SessionTracker.Operation.CONSUME_EVENT,
+            SessionTracker.Operation.UNTRACK_ALL_SESSIONS,
+            SessionTracker.Operation.TRACK_OR_CONSUME,
+            SessionTracker.Operation.COMPUTE,
+            SessionTracker.Operation.COMPARE_AND_CONSUME,
+            SessionTracker.Operation.CONSUME_EVENT_FOR_ALL,
+            SessionTracker.Operation.UNTRACK_SESSIONS,
+            SessionTracker.Operation.CONSUME_EVENTS
+        )
+
+        // a CONSUME_EVENT entry for an event applied by SessionTimeouts
+        private const val TIMER_EVENT_CODE = 12
+
+        private const val ACTION_TRACK = 0
+        private const val ACTION_CONSUME_EVENT = 1
+        private const val ACTION_UNTRACK = 2
+        private const val ACTION_NONE = 3
+
+        /**
+         * Decodes a trace written by a `TraceRecorder`. An incomplete entry at the end is ignored.
+         *
+         * @param input [`InputStream`][InputStream] to read the trace from, it is not closed.
+         * @param eventEnumValues all the values of the [`Event`][Event] enum.
+         * @param stateEnumValues all the values of the [`State`][State] enum.
+         *
+         * @throws [IOException] if the input is not a trace, or if the trace refers to an `Event` or a `State`
+         * missing in the given enum values.
+         */
+        @JvmStatic
+        @Throws(IOException::class)
+        fun <Event : Enum<Event>, State : Enum<State>> readTrace(
+            input: InputStream,
+            eventEnumValues: EnumSet<Event>,
+            stateEnumValues: EnumSet<State>
+        ): List<Entry<Event, State>> {
+            val dataInput = DataInputStream(input)
+            if (dataInput.readInt() != MAGIC) {
+                throw IOException("Not a ${TraceRecorder::class.java.simpleName} trace")
+            }
+            val formatVersion = dataInput.readUnsignedByte()
+            if (formatVersion != FORMAT_VERSION) {
+                throw IOException("Unsupported trace format version $formatVersion")
+            }
+            val events = readEnumConstants(dataInput, eventEnumValues)
+            val states = readEnumConstants(dataInput, stateEnumValues)
+            val sessionIds = ArrayList<SessionId>()
+
+            fun readSessionId(): SessionId {
+                val index = readVarLong(dataInput).toInt()
+                if (index == sessionIds.size) {
+                    sessionIds.add(SessionId(dataInput.readUTF()))
+                }
+                return sessionIds[index]
+            }
+
+            fun readState(): State {
+                val index = readVarLong(dataInput).toInt()
+                return states[index] ?: throw IOException("Unknown state '${states.nameAt(index)}'")
+            }
+
+            fun readEvent(): Event {
+                val index = readVarLong(dataInput).toInt()
+                return events[index] ?: throw IOException("Unknown event '${events.nameAt(index)}'")
+            }
+
+            fun readSessionIds(): List<SessionId> = List(readVarLong(dataInput).toInt()) { readSessionId() }
+
+            val entries = mutableListOf<Entry<Event, State>>()
+            var timestampNanos = 0L
+            while (true) {
+                try {
+                    val code = dataInput.readByte().toInt()
+                    val operation = if (code == TIMER_EVENT_CODE) {
+                        SessionTracker.Operation.CONSUME_EVENT
+                    } else {
+                        OPERATIONS.getOrNull(code) ?: throw IOException("Unknown operation code $code")
+                    }
+                    timestampNanos += readVarLong(dataInput)
+                    val threadId = readVarLong(dataInput)
+                    val entry = when (operation) {
+                        SessionTracker.Operation.INITIALIZE -> {
+                            val count = readVarLong(dataInput).toInt()
+                            val sessionRecords = List(count) {
+                                val sessionId = readSessionId()
+                                val state = readState()
+                                SessionRecord(sessionId, state, readVarLong(dataInput))
+                            }
+                            Entry<Event, State>(operation, timestampNanos, threadId, sessionRecords = sessionRecords)
+                        }
+                        SessionTracker.Operation.TRACK_SESSION -> {
+                            val sessionId = readSessionId()
+                            Entry(operation, timestampNanos, threadId, sessionId, state = readState())
+                        }
+                        SessionTracker.Operation.UNTRACK_SESSION -> {
+                            Entry(operation, timestampNanos, threadId, readSessionId())
+                        }
+                        SessionTracker.Operation.CONSUME_EVENT -> {
+                            val sessionId = readSessionId()
+                            Entry(
+                                operation, timestampNanos, threadId, sessionId,
+                                event = readEvent(),
+                                timer = code == TIMER_EVENT_CODE
+                            )
+                        }
+                        SessionTracker.Operation.TRACK_OR_CONSUME,
+                        SessionTracker.Operation.COMPARE_AND_CONSUME -> {
+                            val sessionId = readSessionId()
+                            val state = readState()
+                            Entry(operation, timestampNanos, threadId, sessionId, event = readEvent(), state = state)
+                        }
+                        SessionTracker.Operation.COMPUTE -> {
+                            val sessionId = readSessionId()
+                            val action: SessionAction<Event, State> = when (val kind = dataInput.readByte().toInt()) {
+                                ACTION_TRACK -> SessionAction.Track(readState())
+                                ACTION_CONSUME_EVENT -> SessionAction.ConsumeEvent(readEvent())
+                                ACTION_UNTRACK -> SessionAction.Untrack()
+                                ACTION_NONE -> SessionAction.None()
+                                else -> throw IOException("Unknown session action $kind")
+                            }
+                            Entry(operation, timestampNanos, threadId, sessionId, action = action)
+                        }
+                        SessionTracker.Operation.CONSUME_EVENT_FOR_ALL -> {
+                            val event = readEvent()
+                            Entry(operation, timestampNanos, threadId, event = event, sessionIds = readSessionIds())
+                        }
+                        SessionTracker.Operation.UNTRACK_SESSIONS -> {
+                            Entry(operation, timestampNanos, threadId, sessionIds = readSessionIds())
+                        }
+                        SessionTracker.Operation.CONSUME_EVENTS -> {
+                            val coalesceCallbacks = dataInput.readBoolean()
+                            val events = List(readVarLong(dataInput).toInt()) {
+                                val sessionId = readSessionId()
+                                sessionId to readEvent()
+                            }
+                            Entry(
+                                operation, timestampNanos, threadId,
+                                events = events,
+                                coalesceCallbacks = coalesceCallbacks
+                            )
+                        }
+                        else -> Entry(operation, timestampNanos, threadId)
+                    }
+                    entries.add(entry)
+                } catch (e: EOFException) {
+                    break
+                }
+            }
+            return entries
+        }
+
+        private class EnumConstants<T : Enum<T>>(
+            private val names: List<String>,
+            private val values: List<T?>
+        ) {
+            operator fun get(index: Int): T? = values.getOrNull(index)
+            fun nameAt(index: Int): String? = names.getOrNull(index)
+        }
+
+        private fun <T : Enum<T>> readEnumConstants(
+            dataInput: DataInputStream,
+            enumValues: EnumSet<T>
+        ): EnumConstants<T> {
+            val valuesByName = enumValues.associateBy { it.name }
+            val names = List(readVarLong(dataInput).toInt()) { dataInput.readUTF() }
+            return EnumConstants(names, names.map { valuesByName[it] })
+        }
+
+        private fun writeVarLong(dataOutput: DataOutputStream, value: Long) {
+            var remaining = value
+            while (remaining and 0x7FL.inv() != 0L) {
+                dataOutput.writeByte(((remaining and 0x7F) or 0x80).toInt())
+                remaining = remaining ushr 7
+            }
+            dataOutput.writeByte(remaining.toInt())
+        }
+
+        private fun readVarLong(dataInput: DataInputStream): Long {
+            var value = 0L
+            var shift = 0
+            while (shift < 64) {
+                val byte = dataInput.readUnsignedByte()
+                value = value or ((byte and 0x7F).toLong() shl shift)
+                if (byte and 0x80 == 0) {
+                    return value
+                }
+                shift += 7
+            }
+            throw IOException("Malformed var-int")
+        }
+    }
+
+    /**
+     * A recorded call.
+     *
+     * @param timestampNanos time elapsed since the recording has started.
+     * @param threadId ID of the calling thread.
+     * @param sessionId `null` unless the call is for a single session.
+     * @param event `null` unless the call has an event argument.
+     * @param state initial state for [`TRACK_SESSION`][SessionTracker.Operation.TRACK_SESSION] and
+     * [`TRACK_OR_CONSUME`][SessionTracker.Operation.TRACK_OR_CONSUME], expected state for
+     * [`COMPARE_AND_CONSUME`][SessionTracker.Operation.COMPARE_AND_CONSUME], `null` otherwise.
+     * @param sessionRecords session records read from the storage, empty unless
+     * [`INITIALIZE`][SessionTracker.Operation.INITIALIZE].
+     * @param sessionIds sessions matched by the predicate, empty unless
+     * [`UNTRACK_SESSIONS`][SessionTracker.Operation.UNTRACK_SESSIONS] or
+     * [`CONSUME_EVENT_FOR_ALL`][SessionTracker.Operation.CONSUME_EVENT_FOR_ALL].
+     * @param events events of [`CONSUME_EVENTS`][SessionTracker.Operation.CONSUME_EVENTS], empty otherwise.
+     * @param coalesceCallbacks `coalesceCallbacks` argument of
+     * [`CONSUME_EVENTS`][SessionTracker.Operation.CONSUME_EVENTS].
+     * @param action [`SessionAction`][SessionAction] returned by the function of
+     * [`COMPUTE`][SessionTracker.Operation.COMPUTE], `null` otherwise.
+     * @param timer `true` for a [`CONSUME_EVENT`][SessionTracker.Operation.CONSUME_EVENT] applied by
+     * [`SessionTimeouts`][SessionTimeouts].
+     */
+    data class Entry<Event : Enum<Event>, State : Enum<State>>(
+        val operation: SessionTracker.Operation,
+        val timestampNanos: Long,
+        val threadId: Long,
+        val sessionId: SessionId? = null,
+        val event: Event? = null,
+        val state: State? = null,
+        val sessionRecords: List<SessionRecord<State>> = emptyList(),
+        val sessionIds: List<SessionId> = emptyList(),
+        val events: List<Pair<SessionId, Event>> = emptyList(),
+        val coalesceCallbacks: Boolean = false,
+        val action: SessionAction<Event, State>? = null,
+        val timer: Boolean = false
+    ) {
+        /**
+         * A workaround for accessing [sessionId] from a Java codebase (since SessionId is a Kotlin value class).
+         */
+        @JvmName("sessionId")
+        fun sessionId(): SessionId? = sessionId
+    }
+
+    init {
+        require(maxBytes > 0) { "maxBytes must be positive" }
+        require(capacity > 0) { "capacity must be positive" }
+    }
+
+    private val entries = ArrayBlockingQueue<Entry<Event, State>>(capacity)
+    private val scheduled = AtomicBoolean()
+    private val drain = Runnable { drainEntries() }
+    private val startedAtNanos = System.nanoTime()
+    private val written = AtomicLong()
+
+    @Volatile
+    private var recording = true
+
+    // the rest is accessed by one thread at a time, while holding the TraceRecorder lock
+    private val dataOutput = DataOutputStream(BufferedOutputStream(output, 8 * 1024))
+    private val sessionIndices = HashMap<SessionId, Int>()
+    private var lastTimestampNanos = 0L
+    private var outputOpen = true
+
+    /**
+     * Number of the entries written so far.
+     */
+    val entryCount: Long
+        get() = written.get()
+
+    /**
+     * `false` once the recorder has been closed, its queue has been full, it has reached [`maxBytes`][maxBytes],
+     * it has failed to write or its drain task has been rejected.
+     */
+    val isRecording: Boolean
+        get() = recording
+
+    init {
+        write {
+            dataOutput.writeInt(MAGIC)
+            dataOutput.writeByte(FORMAT_VERSION)
+            writeVarLong(dataOutput, eventEnumValues.size.toLong())
+            eventEnumValues.forEach { dataOutput.writeUTF(it.name) }
+            writeVarLong(dataOutput, stateEnumValues.size.toLong())
+            stateEnumValues.forEach { dataOutput.writeUTF(it.name) }
+        }
+    }
+
+    /**
+     * Writes the queued entries and flushes the buffer to the output.
+     */
+    @Synchronized
+    fun flush() {
+        writeQueuedEntries()
+        write { dataOutput.flush() }
+    }
+
+    /**
+     * Stops recording, writes the queued entries and closes the output.
+     */
+    @Synchronized
+    override fun close() {
+        recording = false
+        writeQueuedEntries()
+        closeOutput()
+    }
+
+    /**
+     * Must be called while holding the `SessionTracker` lock, so the entries are queued in the execution order.
+     */
+    internal fun record(
+        operation: SessionTracker.Operation,
+        sessionId: SessionId? = null,
+        event: Event? = null,
+        state: State? = null,
+        sessionRecords: List<SessionRecord<State>> = emptyList(),
+        sessionIds: List<SessionId> = emptyList(),
+        events: List<Pair<SessionId, Event>> = emptyList(),
+        coalesceCallbacks: Boolean = false,
+        action: SessionAction<Event, State>? = null,
+        timer: Boolean = false
+    ) {
+        if (!recording) {
+            return
+        }
+        val entry = Entry(
+            operation,
+            System.nanoTime() - startedAtNanos,
+            Thread.currentThread().id,
+            sessionId,
+            event,
+            state,
+            sessionRecords,
+            sessionIds,
+            events,
+            coalesceCallbacks,
+            action,
+            timer
+        )
+        if (!entries.offer(entry)) {
+            // dropping the entry would leave a gap, so the trace ends with the entries queued so far
+            recording = false
+        }
+        scheduleDrain()
+    }
+
+    private fun scheduleDrain() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            executor.execute(drain)
+        } catch (e: RuntimeException) {
+            // e.g. a RejectedExecutionException, the trace ends with the entries queued so far (written on close()),
+            // and the SessionTracker call must not fail
+            recording = false
+            scheduled.set(false)
+        }
+    }
+
+    @Synchronized
+    private fun drainEntries() {
+        try {
+            writeQueuedEntries()
+        } finally {
+            scheduled.set(false)
+            // an entry could have been queued after the last poll
+            if (entries.isNotEmpty()) {
+                scheduleDrain()
+            }
+        }
+    }
+
+    private fun writeQueuedEntries() {
+        while (true) {
+            val entry = entries.poll() ?: break
+            writeEntry(entry)
+        }
+    }
+
+    private fun writeEntry(entry: Entry<Event, State>) {
+        if (outputOpen && dataOutput.size() >= maxBytes) {
+            recording = false
+            closeOutput()
+        }
+        write {
+            val code = if (entry.timer) TIMER_EVENT_CODE else OPERATIONS.indexOf(entry.operation)
+            dataOutput.writeByte(code)
+            writeVarLong(dataOutput, (entry.timestampNanos - lastTimestampNanos).coerceAtLeast(0L))
+            writeVarLong(dataOutput, entry.threadId)
+            when (entry.operation) {
+                SessionTracker.Operation.INITIALIZE -> {
+                    writeVarLong(dataOutput, entry.sessionRecords.size.toLong())
+                    entry.sessionRecords.forEach { sessionRecord ->
+                        writeSessionId(sessionRecord.sessionId)
+                        writeVarLong(dataOutput, sessionRecord.state.ordinal.toLong())
+                        writeVarLong(dataOutput, sessionRecord.version)
+                    }
+                }
+                SessionTracker.Operation.TRACK_SESSION -> {
+                    writeSessionId(entry.sessionId!!)
+                    writeVarLong(dataOutput, entry.state!!.ordinal.toLong())
+                }
+                SessionTracker.Operation.UNTRACK_SESSION -> {
+                    writeSessionId(entry.sessionId!!)
+                }
+                SessionTracker.Operation.CONSUME_EVENT -> {
+                    writeSessionId(entry.sessionId!!)
+                    writeVarLong(dataOutput, entry.event!!.ordinal.toLong())
+                }
+                SessionTracker.Operation.TRACK_OR_CONSUME,
+                SessionTracker.Operation.COMPARE_AND_CONSUME -> {
+                    writeSessionId(entry.sessionId!!)
+                    writeVarLong(dataOutput, entry.state!!.ordinal.toLong())
+                    writeVarLong(dataOutput, entry.event!!.ordinal.toLong())
+                }
+                SessionTracker.Operation.COMPUTE -> {
+                    writeSessionId(entry.sessionId!!)
+                    when (val action = entry.action!!) {
+                        is SessionAction.Track -> {
+                            dataOutput.writeByte(ACTION_TRACK)
+                            writeVarLong(dataOutput, action.state.ordinal.toLong())
+                        }
+                        is SessionAction.ConsumeEvent -> {
+                            dataOutput.writeByte(ACTION_CONSUME_EVENT)
+                            writeVarLong(dataOutput, action.event.ordinal.toLong())
+                        }
+                        is SessionAction.Untrack -> dataOutput.writeByte(ACTION_UNTRACK)
+                        is SessionAction.None -> dataOutput.writeByte(ACTION_NONE)
+                    }
+                }
+                SessionTracker.Operation.CONSUME_EVENT_FOR_ALL -> {
+                    writeVarLong(dataOutput, entry.event!!.ordinal.toLong())
+                    writeSessionIds(entry.sessionIds)
+                }
+                SessionTracker.Operation.UNTRACK_SESSIONS -> {
+                    writeSessionIds(entry.sessionIds)
+                }
+                SessionTracker.Operation.CONSUME_EVENTS -> {
+                    dataOutput.writeBoolean(entry.coalesceCallbacks)
+                    writeVarLong(dataOutput, entry.events.size.toLong())
+                    entry.events.forEach { (sessionId, event) ->
+                        writeSessionId(sessionId)
+                        writeVarLong(dataOutput, event.ordinal.toLong())
+                    }
+                }
+                SessionTracker.Operation.GET_SESSION_RECORDS,
+                SessionTracker.Operation.UNTRACK_ALL_SESSIONS -> Unit
+            }
+            lastTimestampNanos = entry.timestampNanos
+            written.incrementAndGet()
+        }
+    }
+
+    private fun writeSessionIds(sessionIds: List<SessionId>) {
+        writeVarLong(dataOutput, sessionIds.size.toLong())
+        sessionIds.forEach { writeSessionId(it) }
+    }
+
+    private fun writeSessionId(sessionId: SessionId) {
+        val index = sessionIndices[sessionId]
+        if (index != null) {
+            writeVarLong(dataOutput, index.toLong())
+        } else {
+            val newIndex = sessionIndices.size
+            writeVarLong(dataOutput, newIndex.toLong())
+            dataOutput.writeUTF(sessionId.value)
+            sessionIndices[sessionId] = newIndex
+        }
+    }
+
+    private fun closeOutput() {
+        if (outputOpen) {
+            outputOpen = false
+            try {
+                dataOutput.close()
+            } catch (e: IOException) {
+                // nothing to do, the trace is incomplete
+            }
+        }
+    }
+
+    private inline fun write(action: () -> Unit) {
+        if (!outputOpen) {
+            return
+        }
+        try {
+            action.invoke()
+        } catch (e: IOException) {
+            recording = false
+            closeOutput()
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package vit.khudenko.android.sessiontracker
+
+import java.lang.reflect.Method
+import java.util.EnumMap
+import java.util.concurrent.ExecutorService
+
+/**
+ * Replays a trace recorded by [`TraceRecorder`][TraceRecorder] against a `SessionTracker`, e.g. to gate a
+ * `SessionTracker` upgrade or an [`ISessionTrackerStorage`][ISessionTrackerStorage] change on a real workload, and
+ * reports the throughput, the latency percentiles per operation and the allocated memory.
+ *
+ * Calls are replayed as fast as possible, the recorded timing is not reproduced. Without an
+ * [`executor`][executor], all the calls are replayed one by one on the calling thread, in the trace order. With an
+ * `executor`, the calls of every recorded thread are replayed on a thread of their own (the calling thread takes one
+ * of them), in the trace order per recorded thread, so the replay has the recorded contention. Calls recorded before
+ * `initialize()` are skipped.
+ *
+ * Calls with a predicate or a function are replayed with their recorded outcome: `untrackSessions()` and
+ * `consumeEventForAll()` select the sessions matched while recording, and `compute()` performs the recorded
+ * [`SessionAction`][SessionAction]. Events applied by [`SessionTimeouts`][SessionTimeouts] are replayed bypassing the
+ * event throttle, the same as while recording.
+ *
+ * Allocated memory is measured per replaying thread via `com.sun.management.ThreadMXBean`, so it is only available
+ * when replaying on a JVM that supports it (not on Android), otherwise it is reported as `-1`.
+ *
+ * @param entries trace entries, see [`TraceRecorder.readTrace()`][TraceRecorder.readTrace].
+ * @param executor [`ExecutorService`][ExecutorService] to replay the recorded threads in parallel on, optional.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class TraceReplayer<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    entries: List<TraceRecorder.Entry<Event, State>>,
+    private val executor: ExecutorService? = null
+) {
+
+    /**
+     * Replay results.
+     *
+     * @param callCount number of the replayed calls, including `initialize()`.
+     * @param durationNanos wall time of the replay.
+     * @param latencies call latencies per operation.
+     * @param allocatedBytes memory allocated by the replaying threads, `-1` if not available.
+     */
+    class Report internal constructor(
+        val callCount: Long,
+        val durationNanos: Long,
+        val latencies: Map<SessionTracker.Operation, LatencyHistogram.Snapshot>,
+        val allocatedBytes: Long
+    ) {
+
+        /**
+         * Replayed calls per second.
+         */
+        val throughput: Double
+            get() = if (durationNanos == 0L) 0.0 else callCount * 1_000_000_000.0 / durationNanos
+
+        override fun toString(): String {
+            return "${Report::class.java.simpleName}(callCount=$callCount, durationNanos=$durationNanos, " +
+                    "throughput=$throughput, allocatedBytes=$allocatedBytes, latencies=$latencies)"
+        }
+    }
+
+    private val entries: List<TraceRecorder.Entry<Event, State>> = ArrayList(entries)
+
+    /**
+     * Seeds the [`sessionTrackerStorage`][sessionTrackerStorage] with the session records recorded for
+     * `initialize()`, then replays the calls, starting with `initialize()`. Seeding is not measured.
+     *
+     * @param sessionTracker a `SessionTracker` to replay the calls against, not initialized yet.
+     * @param sessionTrackerStorage [`ISessionTrackerStorage`][ISessionTrackerStorage] the `sessionTracker` is created
+     * with, expected to be empty.
+     * @param sessionTrackerListener [`Listener`][SessionTracker.Listener] to initialize the `sessionTracker` with.
+     *
+     * @return a [`Report`][Report] of the replay.
+     *
+     * @throws [IllegalArgumentException] if the trace has no `initialize()` call.
+     */
+    fun replay(
+        sessionTracker: SessionTracker<Event, State>,
+        sessionTrackerStorage: ISessionTrackerStorage<State>,
+        sessionTrackerListener: SessionTracker.Listener<Event, State>
+    ): Report {
+        val initializeIndex = entries.indexOfFirst { it.operation == SessionTracker.Operation.INITIALIZE }
+        require(initializeIndex >= 0) { "trace has no initialize() call" }
+        entries[initializeIndex].sessionRecords.forEach { sessionTrackerStorage.createSessionRecord(it) }
+
+        val histograms = EnumMap<SessionTracker.Operation, LatencyHistogram>(SessionTracker.Operation::class.java)
+        entries.forEach { entry -> histograms.getOrPut(entry.operation) { LatencyHistogram() } }
+        val calls = entries.subList(initializeIndex + 1, entries.size)
+            .filter { it.operation != SessionTracker.Operation.INITIALIZE }
+        val callsPerThread = if (executor == null) listOf(calls) else calls.groupBy { it.threadId }.values.toList()
+
+        val startedAt = System.nanoTime()
+        val allocatedBytesBefore = AllocationCounter.currentThreadAllocatedBytes()
+        measure(histograms, SessionTracker.Operation.INITIALIZE) {
+            sessionTracker.initialize(sessionTrackerListener)
+        }
+        val allocatedBytesAfter = AllocationCounter.currentThreadAllocatedBytes()
+        val threadAllocatedBytes = scatterGather(callsPerThread, executor) { threadCalls ->
+            replayCalls(sessionTracker, threadCalls, histograms)
+        }
+        val durationNanos = System.nanoTime() - startedAt
+
+        val allocatedBytes = if (allocatedBytesBefore < 0 || threadAllocatedBytes.any { it < 0 }) {
+            -1L
+        } else {
+            allocatedBytesAfter - allocatedBytesBefore + threadAllocatedBytes.sum()
+        }
+        return Report(
+            callCount = calls.size + 1L,
+            durationNanos = durationNanos,
+            latencies = histograms.mapValues { (_, histogram) -> histogram.snapshot() },
+            allocatedBytes = allocatedBytes
+        )
+    }
+
+    /**
+     * @return memory allocated by the calling thread while replaying, or `-1` if not available.
+     */
+    private fun replayCalls(
+        sessionTracker: SessionTracker<Event, State>,
+        calls: List<TraceRecorder.Entry<Event, State>>,
+        histograms: Map<SessionTracker.Operation, LatencyHistogram>
+    ): Long {
+        val allocatedBytesBefore = AllocationCounter.currentThreadAllocatedBytes()
+        calls.forEach { entry ->
+            measure(histograms, entry.operation) {
+                when (entry.operation) {
+                    SessionTracker.Operation.GET_SESSION_RECORDS -> {
+                        sessionTracker.getSessionRecords()
+                    }
+                    SessionTracker.Operation.TRACK_SESSION -> {
+                        sessionTracker.trackSession(entry.sessionId!!, entry.state!!)
+                    }
+                    SessionTracker.Operation.UNTRACK_SESSION -> {
+                        sessionTracker.untrackSession(entry.sessionId!!)
+                    }
+                    SessionTracker.Operation.CONSUME_EVENT -> {
+                        if (entry.timer) {
+                            sessionTracker.consumeTimerEvent(entry.sessionId!!, entry.event!!)
+                        } else {
+                            sessionTracker.consumeEvent(entry.sessionId!!, entry.event!!)
+                        }
+                    }
+                    SessionTracker.Operation.UNTRACK_ALL_SESSIONS -> {
+                        sessionTracker.untrackAllSessions()
+                    }
+                    SessionTracker.Operation.TRACK_OR_CONSUME -> {
+                        sessionTracker.trackOrConsume(entry.sessionId!!, entry.state!!, entry.event!!)
+                    }
+                    SessionTracker.Operation.COMPUTE -> {
+                        val action = entry.action!!
+                        sessionTracker.compute(entry.sessionId!!) { action }
+                    }
+                    SessionTracker.Operation.COMPARE_AND_CONSUME -> {
+                        sessionTracker.compareAndConsume(entry.sessionId!!, entry.state!!, entry.event!!)
+                    }
+                    SessionTracker.Operation.CONSUME_EVENT_FOR_ALL -> {
+                        val sessionIds = entry.sessionIds.toHashSet()
+                        sessionTracker.consumeEventForAll(entry.event!!) { it.sessionId in sessionIds }
+                    }
+                    SessionTracker.Operation.UNTRACK_SESSIONS -> {
+                        val sessionIds = entry.sessionIds.toHashSet()
+                        sessionTracker.untrackSessions { it.sessionId in sessionIds }
+                    }
+                    SessionTracker.Operation.CONSUME_EVENTS -> {
+                        sessionTracker.consumeEvents(entry.events, entry.coalesceCallbacks)
+                    }
+                    else -> throw IllegalStateException("Unexpected trace operation ${entry.operation}")
+                }
+            }
+        }
+        val allocatedBytesAfter = AllocationCounter.currentThreadAllocatedBytes()
+        return if (allocatedBytesBefore < 0) -1L else allocatedBytesAfter - allocatedBytesBefore
+    }
+
+    private inline fun measure(
+        histograms: Map<SessionTracker.Operation, LatencyHistogram>,
+        operation: SessionTracker.Operation,
+        call: () -> Unit
+    ) {
+        val startedAt = System.nanoTime()
+        call.invoke()
+        histograms.getValue(operation).record(System.nanoTime() - startedAt)
+    }
+
+    /**
+     * Reads `com.sun.management.ThreadMXBean.getThreadAllocatedBytes()` reflectively, as neither
+     * `java.lang.management` nor `com.sun.management` are available on Android.
+     */
+    private object AllocationCounter {
+
+        private val threadMXBean: Any?
+        private val getThreadAllocatedBytes: Method?
+
+        init {
+            var bean: Any? = null
+            var method: Method? = null
+            try {
+                bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean")
+                    .invoke(null)
+                method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", Long::class.javaPrimitiveType)
+                if (!method.declaringClass.isInstance(bean)) {
+                    method = null
+                }
+            } catch (e: Exception) {
+                method = null
+            }
+            threadMXBean = bean
+            getThreadAllocatedBytes = method
+        }
+
+        fun currentThreadAllocatedBytes(): Long {
+            val method = getThreadAllocatedBytes ?: return -1L
+            return try {
+                method.invoke(threadMXBean, Thread.currentThread().id) as Long
+            } catch (e: Exception) {
+                -1L
+            }
+        }
+    }
+}
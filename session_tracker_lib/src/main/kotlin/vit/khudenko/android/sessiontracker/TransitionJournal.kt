@@ -0,0 +1,129 @@
+package vit.khudenko.android.sessiontracker
+
+/**
+ * A fixed-size in-memory journal of the most recent [`SessionTracker.consumeEvent()`][SessionTracker.consumeEvent]
+ * outcomes. Pass an instance via the `SessionTracker` constructor.
+ *
+ * The journal is a ring buffer of preallocated arrays, so recording an entry does not allocate. Once the journal is
+ * full, every new entry overwrites the oldest one.
+ *
+ * The journal is meant to be a cheap forensic tool, that can stay turned on in production: use [`dump()`][dump]
+ * on demand, or [`installCrashDump()`][installCrashDump] to get the journal logged on a crash.
+ *
+ * @param capacity max number of entries to keep.
+ *
+ * @throws [IllegalArgumentException] if capacity is not positive.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class TransitionJournal<Event : Enum<Event>, State : Enum<State>>(
+    val capacity: Int = 256
+) {
+
+    init {
+        require(capacity > 0) { "capacity must be positive" }
+    }
+
+    enum class Outcome {
+        /**
+         * The event has caused a session tracking state change.
+         */
+        APPLIED,
+
+        /**
+         * The event has been ignored by the session state machine in the current state.
+         */
+        IGNORED,
+
+        /**
+         * The session is not tracked (or is being untracked), so the event has been ignored.
+         */
+        UNTRACKED
+    }
+
+    /**
+     * @param oldState session tracking state before the event, `null` if session is not tracked.
+     * @param newState session tracking state after the event, `null` if session is not tracked.
+     */
+    data class Entry<Event : Enum<Event>, State : Enum<State>>(
+        val timestampMillis: Long,
+        val sessionId: SessionId,
+        val event: Event,
+        val oldState: State?,
+        val newState: State?,
+        val outcome: Outcome
+    )
+
+    private val timestamps = LongArray(capacity)
+    private val sessionIds = arrayOfNulls<String>(capacity)
+    private val events = arrayOfNulls<Enum<*>>(capacity)
+    private val oldStates = arrayOfNulls<Enum<*>>(capacity)
+    private val newStates = arrayOfNulls<Enum<*>>(capacity)
+    private val outcomes = arrayOfNulls<Outcome>(capacity)
+    private var nextIndex = 0
+    private var size = 0
+
+    @Synchronized
+    internal fun record(sessionId: SessionId, event: Event, oldState: State?, newState: State?, outcome: Outcome) {
+        val index = nextIndex
+        timestamps[index] = System.currentTimeMillis()
+        sessionIds[index] = sessionId.value
+        events[index] = event
+        oldStates[index] = oldState
+        newStates[index] = newState
+        outcomes[index] = outcome
+        nextIndex = (index + 1) % capacity
+        if (size < capacity) {
+            size++
+        }
+    }
+
+    /**
+     * @return journal entries, the oldest entry goes first.
+     */
+    @Synchronized
+    fun dump(): List<Entry<Event, State>> {
+        val firstIndex = (nextIndex - size + capacity) % capacity
+        return (0 until size).map { offset ->
+            val index = (firstIndex + offset) % capacity
+            @Suppress("UNCHECKED_CAST")
+            Entry(
+                timestampMillis = timestamps[index],
+                sessionId = SessionId(sessionIds[index]!!),
+                event = events[index] as Event,
+                oldState = oldStates[index] as State?,
+                newState = newStates[index] as State?,
+                outcome = outcomes[index]!!
+            )
+        }
+    }
+
+    @Synchronized
+    fun clear() {
+        sessionIds.fill(null)
+        events.fill(null)
+        oldStates.fill(null)
+        newStates.fill(null)
+        outcomes.fill(null)
+        nextIndex = 0
+        size = 0
+    }
+
+    /**
+     * Installs a default uncaught exception handler, that logs the journal entries (the oldest entry goes first)
+     * via the [`logger`][logger] and then delegates to the previously installed default handler (if any).
+     */
+    fun installCrashDump(logger: SessionTracker.Logger, logTag: String = SessionTracker.TAG) {
+        val previousHandler = Thread.getDefaultUncaughtExceptionHandler()
+        Thread.setDefaultUncaughtExceptionHandler { thread, throwable ->
+            try {
+                val entries = dump()
+                logger.e(logTag, "${TransitionJournal::class.java.simpleName}: ${entries.size} entries")
+                entries.forEach { entry -> logger.e(logTag, entry.toString()) }
+            } finally {
+                previousHandler?.uncaughtException(thread, throwable)
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Counters of [`SessionTracker.consumeEvent()`][SessionTracker.consumeEvent] outcomes, indexed by the event and the
+ * session tracking state the event was consumed in. Pass an instance via the `SessionTracker` constructor.
+ *
+ * The counters are flat arrays indexed by enum ordinals, updating a counter is a single atomic increment without any
+ * allocations, so the statistics can stay turned on permanently. Use [`snapshot()`][snapshot] to read the counters.
+ *
+ * @param eventClass class of the [`Event`][Event] enum.
+ * @param stateClass class of the [`State`][State] enum.
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class TransitionStatistics<Event : Enum<Event>, State : Enum<State>>(
+    eventClass: Class<Event>,
+    stateClass: Class<State>
+) {
+
+    private val events: Array<Event> = eventClass.enumConstants!!
+    private val states: Array<State> = stateClass.enumConstants!!
+    private val applied = AtomicLongArray(events.size * states.size)
+    private val ignored = AtomicLongArray(events.size * states.size)
+    private val untracked = AtomicLongArray(events.size)
+
+    internal fun onApplied(event: Event, fromState: State) {
+        applied.incrementAndGet(event.ordinal * states.size + fromState.ordinal)
+    }
+
+    internal fun onIgnored(event: Event, state: State) {
+        ignored.incrementAndGet(event.ordinal * states.size + state.ordinal)
+    }
+
+    internal fun onUntracked(event: Event) {
+        untracked.incrementAndGet(event.ordinal)
+    }
+
+    fun snapshot(): Matrix<Event, State> {
+        return Matrix(
+            events = events,
+            states = states,
+            applied = LongArray(applied.length()) { applied.get(it) },
+            ignored = LongArray(ignored.length()) { ignored.get(it) },
+            untracked = LongArray(untracked.length()) { untracked.get(it) }
+        )
+    }
+
+    /**
+     * An immutable copy of the [`TransitionStatistics`][TransitionStatistics] counters.
+     */
+    class Matrix<Event : Enum<Event>, State : Enum<State>> internal constructor(
+        private val events: Array<Event>,
+        private val states: Array<State>,
+        private val applied: LongArray,
+        private val ignored: LongArray,
+        private val untracked: LongArray
+    ) {
+
+        /**
+         * @return number of times the event has caused a state change, when consumed in the given state.
+         */
+        fun applied(event: Event, fromState: State): Long = applied[event.ordinal * states.size + fromState.ordinal]
+
+        /**
+         * @return number of times the event has been ignored, when consumed in the given state.
+         */
+        fun ignored(event: Event, state: State): Long = ignored[event.ordinal * states.size + state.ordinal]
+
+        /**
+         * @return number of times the event has been consumed for a not tracked (or untracking) session.
+         */
+        fun untracked(event: Event): Long = untracked[event.ordinal]
+
+        override fun toString(): String {
+            return buildString {
+                append(Matrix::class.java.simpleName).append('(')
+                var first = true
+                for (event in events) {
+                    for (state in states) {
+                        val appliedCount = applied(event, state)
+                        val ignoredCount = ignored(event, state)
+                        if (appliedCount != 0L || ignoredCount != 0L) {
+                            if (!first) append(", ")
+                            append("$event@$state: applied=$appliedCount, ignored=$ignoredCount")
+                            first = false
+                        }
+                    }
+                    if (untracked(event) != 0L) {
+                        if (!first) append(", ")
+                        append("$event: untracked=${untracked(event)}")
+                        first = false
+                    }
+                }
+                append(')')
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package vit.khudenko.android.sessiontracker
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Time budgets for the work [`SessionTracker`][SessionTracker] performs synchronously while holding its lock:
+ * [`ISessionTrackerStorage`][ISessionTrackerStorage] calls and [`SessionTracker.Listener`][SessionTracker.Listener]
+ * callbacks. Pass an instance via the `SessionTracker` constructor.
+ *
+ * Similar to Android `StrictMode`, `Watchdog` does not interrupt a slow call, instead every call exceeding its budget
+ * is reported to the [`violationListener`][violationListener] right after the call has returned. The
+ * `violationListener` is called on the same thread, normally while `SessionTracker` holds its lock (callbacks delivered
+ * on a `listenerExecutor` are reported on the executor), so it should only log or post the violation somewhere.
+ * Throwing from the `violationListener` is a way to crash on violations in debug builds.
+ *
+ * @param storageBudgetMillis budget for a single `ISessionTrackerStorage` call, in milliseconds.
+ * @param listenerBudgetMillis budget for a single `SessionTracker.Listener` callback, in milliseconds.
+ * @param violationListener [`ViolationListener`][ViolationListener] to report violations to.
+ *
+ * @throws [IllegalArgumentException] if any of the budgets is negative.
+ */
+class Watchdog(
+    storageBudgetMillis: Long,
+    listenerBudgetMillis: Long,
+    private val violationListener: ViolationListener
+) {
+
+    private val storageBudgetNanos: Long = TimeUnit.MILLISECONDS.toNanos(storageBudgetMillis)
+    private val listenerBudgetNanos: Long = TimeUnit.MILLISECONDS.toNanos(listenerBudgetMillis)
+
+    init {
+        require(storageBudgetMillis >= 0) { "storageBudgetMillis must not be negative" }
+        require(listenerBudgetMillis >= 0) { "listenerBudgetMillis must not be negative" }
+    }
+
+    fun interface ViolationListener {
+        fun onViolation(violation: Violation)
+    }
+
+    /**
+     * A call that has exceeded its time budget. Durations are in nanoseconds.
+     */
+    sealed class Violation {
+
+        /**
+         * ID of the session the call was made for, `null` for calls not specific to a session.
+         */
+        abstract val sessionId: SessionId?
+        abstract val durationNanos: Long
+        abstract val budgetNanos: Long
+
+        data class Storage(
+            val operation: SessionTracker.StorageOperation,
+            override val sessionId: SessionId?,
+            override val durationNanos: Long,
+            override val budgetNanos: Long
+        ) : Violation()
+
+        data class Listener(
+            val callback: SessionTracker.ListenerCallback,
+            override val sessionId: SessionId?,
+            override val durationNanos: Long,
+            override val budgetNanos: Long
+        ) : Violation()
+    }
+
+    internal fun onStorageCall(operation: SessionTracker.StorageOperation, sessionId: SessionId?, durationNanos: Long) {
+        if (durationNanos > storageBudgetNanos) {
+            violationListener.onViolation(
+                Violation.Storage(operation, sessionId, durationNanos, storageBudgetNanos)
+            )
+        }
+    }
+
+    internal fun onListenerCallback(
+        callback: SessionTracker.ListenerCallback,
+        sessionId: SessionId?,
+        durationNanos: Long
+    ) {
+        if (durationNanos > listenerBudgetNanos) {
+            violationListener.onViolation(
+                Violation.Listener(callback, sessionId, durationNanos, listenerBudgetNanos)
+            )
+        }
+    }
+}
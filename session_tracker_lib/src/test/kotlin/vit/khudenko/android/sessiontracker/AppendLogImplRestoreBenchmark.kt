@@ -0,0 +1,54 @@
+package vit.khudenko.android.sessiontracker
+
+import org.junit.Ignore
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import vit.khudenko.android.sessiontracker.test_util.State
+import java.util.EnumSet
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures [`AppendLogImpl`][ISessionTrackerStorage.AppendLogImpl] restore time depending on the log length, to
+ * choose a `snapshotInterval`. Not a regular test, remove the `@Ignore` to run it manually.
+ */
+@Ignore("benchmark")
+class AppendLogImplRestoreBenchmark {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    @Test
+    fun `restore time vs log length`() {
+        val sessionCount = 100
+        val stateEnumValues = EnumSet.allOf(State::class.java)
+        for (logLength in listOf(sessionCount, 1_000, 10_000, 100_000)) {
+            val directory = temporaryFolder.newFolder()
+            val storage = ISessionTrackerStorage.AppendLogImpl(directory, stateEnumValues, Int.MAX_VALUE)
+            (1..sessionCount).forEach {
+                storage.createSessionRecord(SessionRecord(SessionId("session_id_$it"), State.ACTIVE))
+            }
+            // the log has an entry per created session, batches keep the number of syncs low
+            (0 until logLength - sessionCount).chunked(1000).forEach { batch ->
+                storage.updateSessionRecords(
+                    batch.map { i ->
+                        val sessionId = SessionId("session_id_${i % sessionCount + 1}")
+                        SessionRecord(sessionId, State.values()[i % 2], i.toLong())
+                    }
+                )
+            }
+
+            val iterations = 10
+            repeat(3) {
+                // warm-up
+                ISessionTrackerStorage.AppendLogImpl(directory, stateEnumValues).readAllSessionRecords()
+            }
+            val startedAt = System.nanoTime()
+            repeat(iterations) {
+                ISessionTrackerStorage.AppendLogImpl(directory, stateEnumValues).readAllSessionRecords()
+            }
+            val micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt) / iterations
+            println("log length $logLength: restore takes $micros us")
+        }
+    }
+}
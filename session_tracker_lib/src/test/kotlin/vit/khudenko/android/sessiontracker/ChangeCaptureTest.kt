@@ -0,0 +1,296 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.EnumSet
+import java.util.concurrent.RejectedExecutionException
+import kotlin.concurrent.thread
+
+class ChangeCaptureTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    private val stateEnumValues = EnumSet.allOf(State::class.java)
+    private val nowMillis = 1_000_000L
+
+    // runs the drain task once triggered by the test
+    private val pendingTasks = mutableListOf<Runnable>()
+    private val executor = { task: Runnable -> pendingTasks.add(task); Unit }
+
+    private fun runPendingTasks() {
+        while (pendingTasks.isNotEmpty()) {
+            pendingTasks.removeAt(0).run()
+        }
+    }
+
+    private val sessionTracker = SessionTracker(
+        sessionTrackerStorage = createStorageMock(emptyList()),
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock()
+    ).apply { initialize(mock()) }
+
+    private fun createChangeCapture(
+        sink: ChangeCapture.Sink,
+        capacity: Int = 16,
+        overflowPolicy: ChangeCapture.OverflowPolicy = ChangeCapture.OverflowPolicy.DROP_NEWEST
+    ) = ChangeCapture<Event, State>(sink, executor, capacity, overflowPolicy, { nowMillis })
+
+    @Test
+    fun `changes are captured`() {
+        val output = ByteArrayOutputStream()
+        val changeCapture = createChangeCapture({ bytes, length -> output.write(bytes, 0, length) })
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId2, Event.LOGOUT_AND_FORGET)
+        sessionTracker.untrackSessions(setOf(State.INACTIVE))
+
+        // nothing is written by the SessionTracker calls
+        assertEquals(0, output.size())
+        runPendingTasks()
+
+        assertEquals(
+            listOf(
+                ChangeCapture.Change(ChangeCapture.Change.Type.TRACKED, nowMillis, sessionId1, 1L, null, State.ACTIVE),
+                ChangeCapture.Change(ChangeCapture.Change.Type.TRACKED, nowMillis, sessionId2, 2L, null, State.ACTIVE),
+                ChangeCapture.Change(
+                    ChangeCapture.Change.Type.STATE_CHANGED, nowMillis, sessionId1, 3L, State.ACTIVE, State.INACTIVE
+                ),
+                ChangeCapture.Change(
+                    ChangeCapture.Change.Type.STATE_CHANGED, nowMillis, sessionId2, 4L, State.ACTIVE, State.FORGOTTEN
+                ),
+                ChangeCapture.Change(
+                    ChangeCapture.Change.Type.UNTRACKED, nowMillis, sessionId2, 4L, State.FORGOTTEN, null
+                ),
+                ChangeCapture.Change(
+                    ChangeCapture.Change.Type.UNTRACKED, nowMillis, sessionId1, 3L, State.INACTIVE, null
+                )
+            ),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), stateEnumValues)
+        )
+        assertEquals(6L, changeCapture.publishedCount)
+        assertEquals(6L, changeCapture.writtenCount)
+        assertEquals(0L, changeCapture.droppedCount)
+        // a single drain task for the whole batch
+        assertEquals(0, pendingTasks.size)
+    }
+
+    @Test
+    fun `overflow drops the newest changes`() {
+        val output = ByteArrayOutputStream()
+        val changeCapture = createChangeCapture({ bytes, length -> output.write(bytes, 0, length) }, capacity = 2)
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.untrackAllSessions()
+        runPendingTasks()
+
+        assertEquals(
+            listOf(ChangeCapture.Change.Type.TRACKED to sessionId1, ChangeCapture.Change.Type.TRACKED to sessionId2),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), stateEnumValues)
+                .map { it.type to it.sessionId }
+        )
+        assertEquals(2L, changeCapture.writtenCount)
+        assertEquals(2L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `overflow drops the oldest changes`() {
+        val output = ByteArrayOutputStream()
+        val changeCapture = createChangeCapture(
+            { bytes, length -> output.write(bytes, 0, length) },
+            capacity = 2,
+            overflowPolicy = ChangeCapture.OverflowPolicy.DROP_OLDEST
+        )
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.untrackAllSessions()
+        runPendingTasks()
+
+        assertEquals(
+            listOf(ChangeCapture.Change.Type.UNTRACKED to sessionId1, ChangeCapture.Change.Type.UNTRACKED to sessionId2),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), stateEnumValues)
+                .map { it.type to it.sessionId }
+        )
+        assertEquals(4L, changeCapture.publishedCount)
+        assertEquals(2L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `queue never exceeds the capacity under concurrent publishing`() {
+        // the drain task never runs
+        val changeCapture = ChangeCapture<Event, State>({ _, _ -> }, { }, capacity = 100)
+        val sessionRecord = SessionRecord(sessionId1, State.ACTIVE)
+
+        val threads = (1..4).map {
+            thread {
+                repeat(1000) { changeCapture.onSessionTrackingStarted(sessionTracker, sessionRecord) }
+            }
+        }
+        threads.forEach { it.join() }
+
+        assertEquals(100L, changeCapture.publishedCount)
+        assertEquals(3900L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `changes queued when the drain task is rejected are dropped`() {
+        val output = ByteArrayOutputStream()
+        var rejecting = true
+        val changeCapture = ChangeCapture<Event, State>(
+            { bytes, length -> output.write(bytes, 0, length) },
+            { task ->
+                if (rejecting) {
+                    throw RejectedExecutionException("shut down")
+                }
+                pendingTasks.add(task)
+            }
+        )
+        sessionTracker.addListener(changeCapture)
+
+        // the SessionTracker call does not fail
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+
+        assertEquals(1L, changeCapture.droppedCount)
+
+        // the drain task is scheduled again for the next change
+        rejecting = false
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        runPendingTasks()
+
+        assertEquals(
+            listOf(sessionId2),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), stateEnumValues).map { it.sessionId }
+        )
+        assertEquals(1L, changeCapture.writtenCount)
+        assertEquals(1L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `sink failures are counted as drops`() {
+        val changeCapture = createChangeCapture({ _, _ -> throw IOException("disk full") })
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        runPendingTasks()
+
+        assertEquals(0L, changeCapture.writtenCount)
+        assertEquals(1L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `sink exceptions are counted as drops`() {
+        val output = ByteArrayOutputStream()
+        var fail = true
+        val changeCapture = createChangeCapture({ bytes, length ->
+            if (fail) {
+                fail = false
+                throw IllegalStateException("sink is broken")
+            }
+            output.write(bytes, 0, length)
+        })
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        runPendingTasks()
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        runPendingTasks()
+
+        assertEquals(
+            listOf(sessionId2),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), stateEnumValues).map { it.sessionId }
+        )
+        assertEquals(1L, changeCapture.writtenCount)
+        assertEquals(1L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `changes failed to be encoded are dropped`() {
+        val output = ByteArrayOutputStream()
+        val changeCapture = createChangeCapture({ bytes, length -> output.write(bytes, 0, length) })
+        sessionTracker.addListener(changeCapture)
+        // longer than 65535 bytes in modified UTF-8
+        val longSessionId = SessionId("x".repeat(65536))
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(longSessionId, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        runPendingTasks()
+
+        assertEquals(
+            listOf(sessionId1, sessionId2),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), stateEnumValues).map { it.sessionId }
+        )
+        assertEquals(3L, changeCapture.publishedCount)
+        assertEquals(2L, changeCapture.writtenCount)
+        assertEquals(1L, changeCapture.droppedCount)
+    }
+
+    @Test
+    fun `rotating file sink`() {
+        val directory = temporaryFolder.newFolder()
+        val recordSize = 35 // 1 + 8 + 8 + (2 + 12) + 2 + 2
+        val sink = ChangeCapture.RotatingFileSink(directory, maxFileBytes = 2L * recordSize, maxFiles = 2)
+        val changeCapture = createChangeCapture(sink)
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        runPendingTasks()
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        runPendingTasks()
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+        runPendingTasks()
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        runPendingTasks()
+        sessionTracker.untrackSession(sessionId1)
+        runPendingTasks()
+        sink.close()
+
+        assertEquals(listOf("changes-1.bin", "changes-2.bin"), sink.files().map { it.name })
+        val versions = sink.files().map { file ->
+            file.inputStream().use { input -> ChangeCapture.readChanges(input, stateEnumValues).map { it.version } }
+        }
+        assertEquals(listOf(listOf(3L, 4L), listOf(4L)), versions)
+
+        // writing continues in the most recent file
+        val restartedSink = ChangeCapture.RotatingFileSink(directory, maxFileBytes = 2L * recordSize, maxFiles = 2)
+        restartedSink.write(ByteArray(recordSize), recordSize)
+        restartedSink.close()
+        assertEquals(listOf(2L * recordSize, 2L * recordSize), restartedSink.files().map { it.length() })
+    }
+
+    @Test
+    fun misuse() {
+        assertThrows(IllegalArgumentException::class.java, "capacity must be positive") {
+            createChangeCapture({ _, _ -> }, capacity = 0)
+        }
+        assertThrows(IllegalArgumentException::class.java, "maxFileBytes must be positive") {
+            ChangeCapture.RotatingFileSink(temporaryFolder.root, maxFileBytes = 0L)
+        }
+        assertThrows(IllegalArgumentException::class.java, "maxFiles must be positive") {
+            ChangeCapture.RotatingFileSink(temporaryFolder.root, maxFiles = 0)
+        }
+    }
+}
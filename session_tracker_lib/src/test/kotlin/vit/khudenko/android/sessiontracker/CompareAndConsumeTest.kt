@@ -0,0 +1,101 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.SessionTracker.CompareAndConsumeResult
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class CompareAndConsumeTest {
+
+    private val sessionId = SessionId("session_id")
+
+    private val storage = createStorageMock(listOf(SessionRecord(sessionId, State.ACTIVE)))
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    @Test
+    fun applied() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(
+            CompareAndConsumeResult.APPLIED,
+            sessionTracker.compareAndConsume(sessionId, State.ACTIVE, Event.LOGOUT)
+        )
+
+        assertEquals(listOf(SessionRecord(sessionId, State.INACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage).updateSessionRecord(SessionRecord(sessionId, State.INACTIVE))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId, State.INACTIVE), State.ACTIVE)
+    }
+
+    @Test
+    fun `state mismatch`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(
+            CompareAndConsumeResult.STATE_MISMATCH,
+            sessionTracker.compareAndConsume(sessionId, State.INACTIVE, Event.LOGOUT)
+        )
+
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage, never()).updateSessionRecord(any())
+    }
+
+    @Test
+    fun ignored() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(
+            CompareAndConsumeResult.IGNORED,
+            sessionTracker.compareAndConsume(sessionId, State.ACTIVE, Event.LOGIN)
+        )
+
+        verify(storage, never()).updateSessionRecord(any())
+    }
+
+    @Test
+    fun `unknown session`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(
+            CompareAndConsumeResult.UNKNOWN_SESSION,
+            sessionTracker.compareAndConsume(SessionId("unknown_session_id"), State.ACTIVE, Event.LOGOUT)
+        )
+    }
+
+    @Test
+    fun `auto-untracked session`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(
+            CompareAndConsumeResult.APPLIED,
+            sessionTracker.compareAndConsume(sessionId, State.ACTIVE, Event.LOGOUT_AND_FORGET)
+        )
+        assertEquals(
+            CompareAndConsumeResult.UNKNOWN_SESSION,
+            sessionTracker.compareAndConsume(sessionId, State.FORGOTTEN, Event.LOGIN)
+        )
+
+        verify(storage).deleteSessionRecord(sessionId)
+    }
+
+    @Test
+    fun `not initialized`() {
+        assertThrows(
+            RuntimeException::class.java,
+            "SessionTracker must be initialized before calling its #compareAndConsume method"
+        ) {
+            createSessionTracker(storage).compareAndConsume(sessionId, State.ACTIVE, Event.LOGOUT)
+        }
+        assertEquals(
+            CompareAndConsumeResult.UNKNOWN_SESSION,
+            createSessionTracker(storage, SessionTracker.Mode.RELAXED).compareAndConsume(sessionId, State.ACTIVE, Event.LOGOUT)
+        )
+    }
+}
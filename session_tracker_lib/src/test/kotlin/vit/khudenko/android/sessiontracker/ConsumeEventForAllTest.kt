@@ -0,0 +1,153 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.inOrder
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class ConsumeEventForAllTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+    private val sessionId3 = SessionId("session_id_3")
+
+    private val storage = createStorageMock(
+        listOf(
+            SessionRecord(sessionId1, State.ACTIVE),
+            SessionRecord(sessionId2, State.INACTIVE),
+            SessionRecord(sessionId3, State.ACTIVE)
+        )
+    )
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    @Test
+    fun `event is applied to sessions in the given states and persisted with a single call`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(2, sessionTracker.consumeEventForAll(Event.LOGOUT, setOf(State.ACTIVE)))
+
+        assertEquals(
+            listOf(
+                SessionRecord(sessionId1, State.INACTIVE),
+                SessionRecord(sessionId2, State.INACTIVE),
+                SessionRecord(sessionId3, State.INACTIVE)
+            ),
+            sessionTracker.getSessionRecords()
+        )
+        with(inOrder(storage, listener)) {
+            verify(listener).onSessionStateChanged(
+                sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE
+            )
+            verify(listener).onSessionStateChanged(
+                sessionTracker, SessionRecord(sessionId3, State.INACTIVE), State.ACTIVE
+            )
+            verify(storage).updateSessionRecords(
+                listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId3, State.INACTIVE))
+            )
+        }
+        verify(storage, never()).updateSessionRecord(any())
+    }
+
+    @Test
+    fun `predicate variant`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(1, sessionTracker.consumeEventForAll(Event.LOGOUT) { it.sessionId == sessionId3 })
+
+        assertEquals(
+            listOf(
+                SessionRecord(sessionId1, State.ACTIVE),
+                SessionRecord(sessionId2, State.INACTIVE),
+                SessionRecord(sessionId3, State.INACTIVE)
+            ),
+            sessionTracker.getSessionRecords()
+        )
+        verify(storage).updateSessionRecords(listOf(SessionRecord(sessionId3, State.INACTIVE)))
+    }
+
+    @Test
+    fun `no matching sessions`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(0, sessionTracker.consumeEventForAll(Event.LOGIN, setOf(State.FORGOTTEN)))
+        // ignored by the state machines
+        assertEquals(0, sessionTracker.consumeEventForAll(Event.LOGIN, setOf(State.ACTIVE)))
+
+        verify(storage, never()).updateSessionRecords(any())
+        verify(listener, never()).onSessionStateChanged(any(), any(), any())
+    }
+
+    @Test
+    fun `auto-untracked sessions are deleted, not updated`() {
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(2, sessionTracker.consumeEventForAll(Event.LOGOUT_AND_FORGET, setOf(State.ACTIVE)))
+
+        assertEquals(listOf(SessionRecord(sessionId2, State.INACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage).deleteSessionRecord(sessionId1)
+        verify(storage).deleteSessionRecord(sessionId3)
+        verify(storage, never()).updateSessionRecords(any())
+    }
+
+    @Test
+    fun `session untracked by a listener is dropped from the batch`() {
+        val sessionTracker = createSessionTracker(storage)
+        doAnswer { invocation ->
+            val sessionRecord = invocation.getArgument<SessionRecord<State>>(1)
+            if (sessionRecord.sessionId == sessionId1) {
+                sessionTracker.untrackSession(sessionId1)
+            }
+            Unit
+        }.`when`(listener).onSessionStateChanged(eq(sessionTracker), any(), eq(State.ACTIVE))
+        sessionTracker.initialize(listener)
+
+        assertEquals(2, sessionTracker.consumeEventForAll(Event.LOGOUT, setOf(State.ACTIVE)))
+
+        assertEquals(
+            listOf(SessionRecord(sessionId2, State.INACTIVE), SessionRecord(sessionId3, State.INACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+        with(inOrder(storage)) {
+            verify(storage).deleteSessionRecord(sessionId1)
+            verify(storage).updateSessionRecords(listOf(SessionRecord(sessionId3, State.INACTIVE)))
+        }
+    }
+
+    @Test
+    fun `not initialized`() {
+        assertThrows(
+            RuntimeException::class.java,
+            "SessionTracker must be initialized before calling its #consumeEventForAll method"
+        ) {
+            createSessionTracker(storage).consumeEventForAll(Event.LOGOUT, setOf(State.ACTIVE))
+        }
+        assertEquals(
+            0,
+            createSessionTracker(storage, SessionTracker.Mode.RELAXED).consumeEventForAll(Event.LOGOUT, setOf(State.ACTIVE))
+        )
+    }
+
+    @Test
+    fun `batch is not persisted if a listener throws`() {
+        val listener = mock<SessionTracker.Listener<Event, State>> {
+            on { onSessionStateChanged(any(), any(), any()) } doAnswer { throw IllegalStateException("listener failed") }
+        }
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertThrows(IllegalStateException::class.java, "listener failed") {
+            sessionTracker.consumeEventForAll(Event.LOGOUT, setOf(State.ACTIVE))
+        }
+
+        verify(storage, never()).updateSessionRecords(any())
+    }
+}
@@ -0,0 +1,156 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.inOrder
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.verifyNoMoreInteractions
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.EnumSet
+import java.util.concurrent.Executor
+
+class ConsumeEventsTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+    private val sessionId3 = SessionId("session_id_3")
+
+    private val storage = createStorageMock(
+        listOf(
+            SessionRecord(sessionId1, State.ACTIVE, 1L),
+            SessionRecord(sessionId2, State.ACTIVE, 2L),
+            SessionRecord(sessionId3, State.INACTIVE, 3L)
+        )
+    )
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    private val sessionTracker = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock()
+    ).apply { initialize(listener) }
+
+    private val events = listOf(
+        sessionId1 to Event.LOGOUT,
+        sessionId2 to Event.LOGOUT,
+        sessionId1 to Event.LOGIN,
+        sessionId2 to Event.LOGIN,
+        sessionId3 to Event.LOGOUT, // ignored
+        sessionId2 to Event.LOGOUT,
+        sessionId1 to Event.LOGOUT_AND_FORGET,
+        sessionId1 to Event.LOGIN, // session is untracked
+        SessionId("unknown") to Event.LOGIN
+    )
+
+    @Test
+    fun `every session is persisted once`() {
+        assertEquals(2, sessionTracker.consumeEvents(events))
+
+        assertEquals(
+            listOf(SessionRecord(sessionId2, State.INACTIVE), SessionRecord(sessionId3, State.INACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+        verify(storage).updateSessionRecords(listOf(SessionRecord(sessionId2, State.INACTIVE)))
+        verify(storage).deleteSessionRecord(sessionId1)
+        verify(storage, never()).updateSessionRecord(any())
+
+        // a callback per transition
+        inOrder(listener) {
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE)
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId1, State.ACTIVE), State.INACTIVE)
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId1, State.FORGOTTEN), State.ACTIVE)
+            verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId1, State.FORGOTTEN))
+        }
+        inOrder(listener) {
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.INACTIVE), State.ACTIVE)
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.ACTIVE), State.INACTIVE)
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.INACTIVE), State.ACTIVE)
+        }
+    }
+
+    @Test
+    fun `coalesced callbacks`() {
+        val versionBefore = sessionTracker.version
+
+        assertEquals(2, sessionTracker.consumeEvents(events, coalesceCallbacks = true))
+
+        assertEquals(
+            listOf(SessionRecord(sessionId2, State.INACTIVE), SessionRecord(sessionId3, State.INACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+        verify(storage).updateSessionRecords(listOf(SessionRecord(sessionId2, State.INACTIVE)))
+        verify(storage).deleteSessionRecord(sessionId1)
+        verify(storage, never()).updateSessionRecord(any())
+
+        // a single net callback per session
+        verify(listener).onSessionTrackerInitialized(any(), any())
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId1, State.FORGOTTEN), State.ACTIVE)
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId1, State.FORGOTTEN))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.INACTIVE), State.ACTIVE)
+        verifyNoMoreInteractions(listener)
+
+        // the session state machine keeps working from the final state
+        assertEquals(true, sessionTracker.consumeEvent(sessionId2, Event.LOGIN))
+        assertEquals(versionBefore + 4, sessionTracker.version)
+    }
+
+    @Test
+    fun `coalesced callbacks reach the registered listeners`() {
+        val logoutListener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(logoutListener, ListenerFilter(events = setOf(Event.LOGOUT)))
+        val output = ByteArrayOutputStream()
+        val changeCapture = ChangeCapture<Event, State>(
+            { bytes, length -> output.write(bytes, 0, length) },
+            Executor { it.run() },
+            clock = { 0L }
+        )
+        sessionTracker.addListener(changeCapture)
+
+        sessionTracker.consumeEvents(events, coalesceCallbacks = true)
+
+        // the net change is matched by the last event, that has changed the session state
+        verify(logoutListener).onSessionStateChanged(
+            sessionTracker, SessionRecord(sessionId2, State.INACTIVE), State.ACTIVE
+        )
+        // events do not filter other callbacks
+        verify(logoutListener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId1, State.FORGOTTEN))
+        verifyNoMoreInteractions(logoutListener)
+        assertEquals(
+            listOf(
+                ChangeCapture.Change(
+                    ChangeCapture.Change.Type.STATE_CHANGED, 0L, sessionId1, 4L, State.ACTIVE, State.FORGOTTEN
+                ),
+                ChangeCapture.Change(ChangeCapture.Change.Type.UNTRACKED, 0L, sessionId1, 4L, State.FORGOTTEN, null),
+                ChangeCapture.Change(
+                    ChangeCapture.Change.Type.STATE_CHANGED, 0L, sessionId2, 6L, State.ACTIVE, State.INACTIVE
+                )
+            ),
+            ChangeCapture.readChanges(ByteArrayInputStream(output.toByteArray()), EnumSet.allOf(State::class.java))
+        )
+    }
+
+    @Test
+    fun `coalesced events cancelling each other out`() {
+        val versionBefore = sessionTracker.version
+
+        val consumedCount = sessionTracker.consumeEvents(
+            listOf(sessionId1 to Event.LOGOUT, sessionId1 to Event.LOGIN),
+            coalesceCallbacks = true
+        )
+
+        assertEquals(0, consumedCount)
+        assertEquals(versionBefore, sessionTracker.version)
+        verify(storage, never()).updateSessionRecords(any())
+        verify(listener, never()).onSessionStateChanged(any(), any(), any())
+    }
+}
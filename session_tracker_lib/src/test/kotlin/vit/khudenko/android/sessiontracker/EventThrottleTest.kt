@@ -0,0 +1,146 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class EventThrottleTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    private var nowMillis = 1_000_000L
+
+    private val storage = createStorageMock(emptyList())
+    private val metrics = SessionTracker.Metrics.DefaultImpl()
+
+    private fun createSessionTracker(
+        eventThrottle: EventThrottle<Event>,
+        sessionTimeouts: SessionTimeouts<Event, State>? = null
+    ) = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        metrics = metrics,
+        sessionTimeouts = sessionTimeouts,
+        eventThrottle = eventThrottle
+    ).apply { initialize(mock()) }
+
+    @Test
+    fun `rate limiting`() {
+        val sessionTracker = createSessionTracker(
+            EventThrottle(
+                rateLimits = mapOf(Event.LOGOUT to EventThrottle.RateLimit(burst = 2, refillIntervalMillis = 1000L)),
+                clock = { nowMillis }
+            )
+        )
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+
+        // a burst of 2
+        assertTrue(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+        assertTrue(sessionTracker.consumeEvent(sessionId1, Event.LOGIN))
+        assertTrue(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+        assertTrue(sessionTracker.consumeEvent(sessionId1, Event.LOGIN))
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+
+        // buckets are per session
+        assertTrue(sessionTracker.consumeEvent(sessionId2, Event.LOGOUT))
+
+        // a token is refilled
+        nowMillis += 999
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+        nowMillis += 1
+        assertTrue(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+
+        assertEquals(
+            listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId2, State.INACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+        assertEquals(2L, metrics.snapshot().eventsRateLimited)
+        assertEquals(0L, metrics.snapshot().eventsDebounced)
+    }
+
+    @Test
+    fun `debouncing applies the last event of the window`() {
+        val sessionTimeouts = SessionTimeouts<Event, State>(tickMillis = 100L, wheelSize = 8, clock = { nowMillis })
+        val sessionTracker = createSessionTracker(
+            EventThrottle(
+                debouncedEvents = setOf(Event.LOGIN, Event.LOGOUT),
+                debounceWindowMillis = 1000L,
+                clock = { nowMillis }
+            ),
+            sessionTimeouts
+        )
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+
+        // flapping
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+        nowMillis += 300
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGIN))
+        nowMillis += 300
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+        assertEquals(0, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+
+        // the window is over
+        nowMillis += 400
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.INACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage, times(1)).updateSessionRecord(any())
+
+        // a new window
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGIN))
+        nowMillis += 1000
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+
+        assertEquals(4L, metrics.snapshot().eventsDebounced)
+    }
+
+    @Test
+    fun `debounced event is dropped on untracking`() {
+        val sessionTimeouts = SessionTimeouts<Event, State>(tickMillis = 100L, wheelSize = 8, clock = { nowMillis })
+        val sessionTracker = createSessionTracker(
+            EventThrottle(debouncedEvents = setOf(Event.LOGOUT), debounceWindowMillis = 1000L, clock = { nowMillis }),
+            sessionTimeouts
+        )
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+
+        assertFalse(sessionTracker.consumeEvent(sessionId1, Event.LOGOUT))
+        sessionTracker.untrackSession(sessionId1)
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+
+        nowMillis += 1000
+        assertEquals(0, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun misuse() {
+        assertThrows(IllegalArgumentException::class.java, "EventThrottle debouncing requires SessionTimeouts") {
+            createSessionTracker(EventThrottle(debouncedEvents = setOf(Event.LOGOUT), debounceWindowMillis = 1000L))
+        }
+        assertThrows(IllegalArgumentException::class.java, "debounceWindowMillis must be positive") {
+            EventThrottle(debouncedEvents = setOf(Event.LOGOUT))
+        }
+        assertThrows(IllegalArgumentException::class.java, "burst must be positive") {
+            EventThrottle.RateLimit(burst = 0, refillIntervalMillis = 1000L)
+        }
+        assertThrows(IllegalArgumentException::class.java, "refillIntervalMillis must be positive") {
+            EventThrottle.RateLimit(burst = 1, refillIntervalMillis = 0L)
+        }
+    }
+}
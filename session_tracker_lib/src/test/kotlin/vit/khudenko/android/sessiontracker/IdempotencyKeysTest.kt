@@ -0,0 +1,133 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class IdempotencyKeysTest {
+
+    private val sessionId = SessionId("session_id")
+
+    private var nowMillis = 0L
+
+    private val storage = createStorageMock(listOf(SessionRecord(sessionId, State.ACTIVE)))
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    private fun createSessionTracker(
+        idempotencyKeys: IdempotencyKeys?,
+        mode: SessionTracker.Mode = SessionTracker.Mode.STRICT,
+        logger: SessionTracker.Logger = mock()
+    ) = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = mode,
+        logger = logger,
+        idempotencyKeys = idempotencyKeys
+    ).apply { initialize(listener) }
+
+    @Test
+    fun `duplicates get the original outcome`() {
+        val sessionTracker = createSessionTracker(IdempotencyKeys(clock = { nowMillis }))
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(false, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-2"))
+        assertEquals(false, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-2"))
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGIN, "key-3"))
+
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage, times(2)).updateSessionRecord(any())
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId, State.INACTIVE), State.ACTIVE)
+    }
+
+    @Test
+    fun `keys expire`() {
+        val sessionTracker = createSessionTracker(IdempotencyKeys(windowMillis = 1000L, clock = { nowMillis }))
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGIN, "key-2"))
+
+        // still within the window, so the event is not applied again
+        nowMillis += 1000
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), sessionTracker.getSessionRecords())
+
+        nowMillis += 1
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(listOf(SessionRecord(sessionId, State.INACTIVE)), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `the oldest keys are evicted`() {
+        val sessionTracker = createSessionTracker(IdempotencyKeys(capacityPerSession = 2, clock = { nowMillis }))
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(false, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-2"))
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGIN, "key-3"))
+
+        // key-1 is evicted, so the event is applied again
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+    }
+
+    @Test
+    fun `keys are forgotten on untracking`() {
+        val sessionTracker = createSessionTracker(IdempotencyKeys(clock = { nowMillis }))
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+
+        sessionTracker.untrackSession(sessionId)
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+    }
+
+    @Test
+    fun `idempotency keys are off by default`() {
+        assertThrows(
+            RuntimeException::class.java,
+            "consumeEvent: idempotency keys are not remembered, SessionTracker is created without IdempotencyKeys"
+        ) {
+            createSessionTracker(null).consumeEvent(sessionId, Event.LOGOUT, "key-1")
+        }
+
+        val logger = mock<SessionTracker.Logger>()
+        val sessionTracker = createSessionTracker(null, SessionTracker.Mode.RELAXED, logger)
+
+        // not de-duplicated
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGIN, "key-2"))
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT, "key-1"))
+        verify(logger, times(3)).e(
+            SessionTracker.TAG,
+            "consumeEvent: idempotency keys are not remembered, SessionTracker is created without IdempotencyKeys"
+        )
+    }
+
+    @Test
+    fun misuse() {
+        val idempotencyKeys = IdempotencyKeys()
+        createSessionTracker(idempotencyKeys)
+
+        assertThrows(
+            IllegalStateException::class.java,
+            "IdempotencyKeys can not be shared between SessionTracker instances"
+        ) {
+            createSessionTracker(idempotencyKeys)
+        }
+        assertThrows(IllegalArgumentException::class.java, "capacityPerSession must be positive") {
+            IdempotencyKeys(capacityPerSession = 0)
+        }
+        assertThrows(IllegalArgumentException::class.java, "windowMillis must be positive") {
+            IdempotencyKeys(windowMillis = 0L)
+        }
+    }
+}
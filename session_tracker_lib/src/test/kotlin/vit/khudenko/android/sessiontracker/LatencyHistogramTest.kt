@@ -0,0 +1,97 @@
+package vit.khudenko.android.sessiontracker
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+
+class LatencyHistogramTest {
+
+    @Test
+    fun `empty histogram`() {
+        val snapshot = LatencyHistogram().snapshot()
+
+        assertEquals(0L, snapshot.count)
+        assertEquals(0L, snapshot.sum)
+        assertEquals(0L, snapshot.max)
+        assertEquals(0.0, snapshot.mean, 0.0)
+        assertEquals(0L, snapshot.valueAtPercentile(99.0))
+    }
+
+    @Test
+    fun `small values are recorded exactly`() {
+        val histogram = LatencyHistogram()
+
+        (0L..7L).forEach { histogram.record(it) }
+
+        val snapshot = histogram.snapshot()
+        assertEquals(8L, snapshot.count)
+        assertEquals(28L, snapshot.sum)
+        assertEquals(7L, snapshot.max)
+        assertEquals(3L, snapshot.valueAtPercentile(50.0))
+        assertEquals(7L, snapshot.valueAtPercentile(100.0))
+    }
+
+    @Test
+    fun `large values are recorded with bounded relative error`() {
+        val values = listOf(9L, 100L, 1_000L, 12_345L, 1_000_000L, 987_654_321L, Long.MAX_VALUE / 3)
+
+        values.forEach { value ->
+            val histogram = LatencyHistogram()
+            histogram.record(value)
+            histogram.record(value + 1) // guarantees value is not the max, so the bucket bound is reported
+
+            val reported = histogram.snapshot().valueAtPercentile(50.0)
+
+            assertTrue("reported $reported for $value", reported >= value)
+            assertTrue("reported $reported for $value", (reported - value).toDouble() / value <= 0.125)
+        }
+    }
+
+    @Test
+    fun `bucket upper bound is consistent with bucket index`() {
+        listOf(0L, 1L, 7L, 8L, 15L, 16L, 17L, 1023L, 1024L, Long.MAX_VALUE).forEach { value ->
+            val index = LatencyHistogram.bucketIndex(value)
+
+            assertTrue(LatencyHistogram.bucketUpperBound(index) >= value)
+            if (index > 0) {
+                assertTrue(LatencyHistogram.bucketUpperBound(index - 1) < value)
+            }
+        }
+    }
+
+    @Test
+    fun `negative values are recorded as zero`() {
+        val histogram = LatencyHistogram()
+
+        histogram.record(-5L)
+
+        val snapshot = histogram.snapshot()
+        assertEquals(1L, snapshot.count)
+        assertEquals(0L, snapshot.sum)
+        assertEquals(0L, snapshot.valueAtPercentile(100.0))
+    }
+
+    @Test
+    fun `percentiles follow the recorded distribution`() {
+        val histogram = LatencyHistogram()
+
+        repeat(99) { histogram.record(10L) }
+        histogram.record(10_000L)
+
+        val snapshot = histogram.snapshot()
+        assertEquals(10L, snapshot.valueAtPercentile(50.0))
+        assertEquals(10L, snapshot.valueAtPercentile(99.0))
+        assertEquals(10_000L, snapshot.valueAtPercentile(100.0))
+        assertEquals(10_000L, snapshot.max)
+    }
+
+    @Test
+    fun `percentile out of range`() {
+        val snapshot = LatencyHistogram().snapshot()
+
+        assertThrows(IllegalArgumentException::class.java, "percentile must be in [0.0, 100.0] range") {
+            snapshot.valueAtPercentile(100.1)
+        }
+    }
+}
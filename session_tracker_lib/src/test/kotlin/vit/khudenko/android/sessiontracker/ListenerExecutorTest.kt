@@ -0,0 +1,277 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.inOrder
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.verifyNoMoreInteractions
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ListenerExecutorTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    private class ManualExecutor : Executor {
+        val runnables = mutableListOf<Runnable>()
+
+        override fun execute(command: Runnable) {
+            runnables.add(command)
+        }
+
+        fun runAll() {
+            while (runnables.isNotEmpty()) {
+                runnables.removeAt(0).run()
+            }
+        }
+    }
+
+    private fun createSessionTracker(
+        listenerExecutor: Executor,
+        sessionTimeouts: SessionTimeouts<Event, State>? = null
+    ) = SessionTracker(
+        sessionTrackerStorage = createStorageMock(listOf(SessionRecord(sessionId1, State.ACTIVE))),
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        listenerExecutor = listenerExecutor,
+        sessionTimeouts = sessionTimeouts
+    )
+
+    private fun createLockCheckingListener(
+        holdsLock: MutableList<Boolean>
+    ): SessionTracker.Listener<Event, State> {
+        return object : SessionTracker.Listener<Event, State> by mock() {
+            override fun onSessionStateChanged(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>,
+                oldState: State
+            ) {
+                holdsLock.add(Thread.holdsLock(sessionTracker))
+            }
+        }
+    }
+
+    @Test
+    fun `callbacks are delivered on the executor in order`() {
+        val executor = ManualExecutor()
+        val sessionTracker = createSessionTracker(executor)
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+
+        sessionTracker.initialize(listener)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId2, Event.LOGOUT_AND_FORGET) // auto-untrack
+        sessionTracker.untrackAllSessions()
+
+        verifyNoMoreInteractions(listener)
+        assertEquals(1, executor.runnables.size) // a single drain is scheduled at a time
+
+        executor.runAll()
+
+        with(inOrder(listener)) {
+            verify(listener).onSessionTrackerInitialized(
+                sessionTracker, listOf(SessionRecord(sessionId1, State.ACTIVE))
+            )
+            verify(listener).onSessionTrackingStarted(sessionTracker, SessionRecord(sessionId2, State.ACTIVE))
+            verify(listener).onSessionStateChanged(
+                sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE
+            )
+            verify(listener).onSessionStateChanged(
+                sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN), State.ACTIVE
+            )
+            verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN))
+            verify(listener).onAllSessionsTrackingStopped(
+                eq(sessionTracker), eq(listOf(SessionRecord(sessionId1, State.INACTIVE)))
+            )
+        }
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `sequence numbers are passed to a sequence aware listener`() {
+        val executor = ManualExecutor()
+        val sessionTracker = createSessionTracker(executor)
+        val events = mutableListOf<String>()
+        val listener = object : SessionTracker.Listener<Event, State>, SessionTracker.CallbackSequenceAware {
+            override fun onCallbackSequenceNumber(sequenceNumber: Long) {
+                events.add("#$sequenceNumber")
+            }
+
+            override fun onSessionTrackerInitialized(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecords: List<SessionRecord<State>>
+            ) {
+                events.add("initialized")
+            }
+
+            override fun onSessionTrackingStarted(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>
+            ) {
+                events.add("started")
+            }
+
+            override fun onSessionStateChanged(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>,
+                oldState: State
+            ) {
+                events.add("changed")
+            }
+
+            override fun onSessionTrackingStopped(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>
+            ) {
+                events.add("stopped")
+            }
+
+            override fun onAllSessionsTrackingStopped(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecords: List<SessionRecord<State>>
+            ) {
+                events.add("all stopped")
+            }
+        }
+
+        sessionTracker.initialize(listener)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.untrackSession(sessionId2)
+        executor.runAll()
+
+        assertEquals(listOf("#1", "initialized", "#2", "started", "#3", "stopped"), events)
+    }
+
+    @Test
+    fun `callbacks are delivered without holding the lock`() {
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            lateinit var sessionTracker: SessionTracker<Event, State>
+            val holdsLock = mutableListOf<Boolean>()
+            val latch = CountDownLatch(21)
+            val listener = mock<SessionTracker.Listener<Event, State>>()
+            val lockCheckingListener = object : SessionTracker.Listener<Event, State> by listener {
+                override fun onSessionStateChanged(
+                    sessionTracker: SessionTracker<Event, State>,
+                    sessionRecord: SessionRecord<State>,
+                    oldState: State
+                ) {
+                    synchronized(holdsLock) { holdsLock.add(Thread.holdsLock(sessionTracker)) }
+                    listener.onSessionStateChanged(sessionTracker, sessionRecord, oldState)
+                    latch.countDown()
+                }
+
+                override fun onSessionTrackerInitialized(
+                    sessionTracker: SessionTracker<Event, State>,
+                    sessionRecords: List<SessionRecord<State>>
+                ) {
+                    latch.countDown()
+                }
+            }
+            sessionTracker = createSessionTracker(executor)
+            sessionTracker.initialize(lockCheckingListener)
+
+            repeat(10) {
+                sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+                sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+            }
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS))
+
+            assertEquals(20, holdsLock.size)
+            assertFalse(holdsLock.any { it })
+            with(inOrder(listener)) {
+                repeat(10) {
+                    verify(listener).onSessionStateChanged(
+                        sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE
+                    )
+                    verify(listener).onSessionStateChanged(
+                        sessionTracker, SessionRecord(sessionId1, State.ACTIVE), State.INACTIVE
+                    )
+                }
+            }
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun `throwing callback does not stall the following callbacks`() {
+        val executor = ManualExecutor()
+        val sessionTracker = createSessionTracker(executor)
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        val throwingListener = object : SessionTracker.Listener<Event, State> by listener {
+            override fun onSessionTrackingStarted(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>
+            ) {
+                throw IllegalStateException("listener failure")
+            }
+        }
+
+        sessionTracker.initialize(throwingListener)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.untrackSession(sessionId2)
+
+        try {
+            executor.runAll()
+        } catch (e: IllegalStateException) {
+            assertEquals("listener failure", e.message)
+        }
+        executor.runAll()
+
+        verify(listener).onSessionTrackerInitialized(any(), any())
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.ACTIVE))
+    }
+
+    @Test
+    fun `direct executor runs the callbacks of a compound action once the lock is released`() {
+        val sessionTracker = createSessionTracker(Executor { it.run() })
+        val holdsLock = mutableListOf<Boolean>()
+        sessionTracker.initialize(createLockCheckingListener(holdsLock))
+
+        synchronized(sessionTracker) {
+            sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+            sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+        }
+
+        assertEquals(emptyList<Boolean>(), holdsLock)
+
+        sessionTracker.dispatchListenerCallbacks()
+
+        assertEquals(listOf(false, false), holdsLock)
+    }
+
+    @Test
+    fun `direct executor runs the callbacks of fired timeouts without holding the lock`() {
+        var nowMillis = 0L
+        val sessionTimeouts = SessionTimeouts<Event, State>(
+            timeouts = mapOf(State.ACTIVE to SessionTimeouts.Timeout(1000L, Event.LOGOUT)),
+            tickMillis = 100L,
+            clock = { nowMillis }
+        )
+        val sessionTracker = createSessionTracker(Executor { it.run() }, sessionTimeouts)
+        val holdsLock = mutableListOf<Boolean>()
+        sessionTracker.initialize(createLockCheckingListener(holdsLock))
+
+        nowMillis += 1100
+        assertEquals(1, sessionTimeouts.advance())
+
+        assertEquals(listOf(false), holdsLock)
+        assertEquals(listOf(SessionRecord(sessionId1, State.INACTIVE)), sessionTracker.getSessionRecords())
+    }
+}
@@ -0,0 +1,128 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.verifyNoMoreInteractions
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class ListenerFilterTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    private fun createSessionTracker() =
+        createSessionTracker(createStorageMock(listOf(SessionRecord(sessionId1, State.ACTIVE))))
+
+    private fun SessionTracker<Event, State>.runScenario() {
+        initialize(mock())
+        trackSession(sessionId2, State.INACTIVE)
+        consumeEvent(sessionId1, Event.LOGOUT)
+        consumeEvent(sessionId2, Event.LOGIN)
+        consumeEvent(sessionId2, Event.LOGOUT_AND_FORGET) // auto-untrack
+        untrackAllSessions()
+    }
+
+    @Test
+    fun `listener without filter gets all callbacks`() {
+        val sessionTracker = createSessionTracker()
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(listener)
+
+        sessionTracker.runScenario()
+
+        verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(SessionRecord(sessionId1, State.ACTIVE)))
+        verify(listener).onSessionTrackingStarted(sessionTracker, SessionRecord(sessionId2, State.INACTIVE))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE)
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.ACTIVE), State.INACTIVE)
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN), State.ACTIVE)
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN))
+        verify(listener).onAllSessionsTrackingStopped(sessionTracker, listOf(SessionRecord(sessionId1, State.INACTIVE)))
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `state filter`() {
+        val sessionTracker = createSessionTracker()
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(listener, ListenerFilter(states = setOf(State.FORGOTTEN)))
+
+        sessionTracker.runScenario()
+
+        verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN), State.ACTIVE)
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN))
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `state filter matches both old and new state of a state change`() {
+        val sessionTracker = createSessionTracker()
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(listener, ListenerFilter(states = setOf(State.INACTIVE)))
+
+        sessionTracker.runScenario()
+
+        verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
+        verify(listener).onSessionTrackingStarted(sessionTracker, SessionRecord(sessionId2, State.INACTIVE))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE)
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.ACTIVE), State.INACTIVE)
+        verify(listener).onAllSessionsTrackingStopped(sessionTracker, listOf(SessionRecord(sessionId1, State.INACTIVE)))
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `event filter`() {
+        val sessionTracker = createSessionTracker()
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(listener, ListenerFilter(events = setOf(Event.LOGIN)))
+
+        sessionTracker.runScenario()
+
+        verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(SessionRecord(sessionId1, State.ACTIVE)))
+        verify(listener).onSessionTrackingStarted(sessionTracker, SessionRecord(sessionId2, State.INACTIVE))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.ACTIVE), State.INACTIVE)
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN))
+        verify(listener).onAllSessionsTrackingStopped(sessionTracker, listOf(SessionRecord(sessionId1, State.INACTIVE)))
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `session ID filter`() {
+        val sessionTracker = createSessionTracker()
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(listener, ListenerFilter(sessionIds = setOf(sessionId2)))
+
+        sessionTracker.runScenario()
+
+        verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
+        verify(listener).onSessionTrackingStarted(sessionTracker, SessionRecord(sessionId2, State.INACTIVE))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.ACTIVE), State.INACTIVE)
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN), State.ACTIVE)
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.FORGOTTEN))
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `removed listener is not notified`() {
+        val sessionTracker = createSessionTracker()
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        val otherListener = mock<SessionTracker.Listener<Event, State>>()
+        sessionTracker.addListener(listener)
+        sessionTracker.addListener(otherListener)
+        sessionTracker.initialize(mock())
+
+        sessionTracker.removeListener(listener)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+
+        verify(listener).onSessionTrackerInitialized(any(), any())
+        verifyNoMoreInteractions(listener)
+        verify(otherListener).onSessionStateChanged(
+            sessionTracker, SessionRecord(sessionId1, State.INACTIVE), State.ACTIVE
+        )
+    }
+}
@@ -0,0 +1,155 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class LockProfilerTest {
+
+    private val sessionId = SessionId("session_id")
+
+    private fun createSessionTracker(
+        storage: ISessionTrackerStorage<State>,
+        lockProfiler: LockProfiler
+    ) = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = emptySet(),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        lockProfiler = lockProfiler
+    )
+
+    @Test
+    fun `hold time, storage dominated calls and longest holders`() {
+        val storage = createStorageMock(emptyList()).apply {
+            doAnswer { Thread.sleep(30) }.`when`(this).createSessionRecord(any())
+        }
+        val lockProfiler = LockProfiler(longestHoldersCapacity = 2)
+        val sessionTracker = createSessionTracker(storage, lockProfiler)
+
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.getSessionRecords()
+
+        val report = lockProfiler.report()
+
+        SessionTracker.Operation.values().forEach { operation ->
+            val expectedCount = when (operation) {
+                SessionTracker.Operation.INITIALIZE,
+                SessionTracker.Operation.TRACK_SESSION,
+                SessionTracker.Operation.CONSUME_EVENT,
+                SessionTracker.Operation.GET_SESSION_RECORDS -> 1L
+                else -> 0L
+            }
+            assertEquals(operation.name, expectedCount, report.operations.getValue(operation).count)
+        }
+
+        val trackSessionStats = report.operations.getValue(SessionTracker.Operation.TRACK_SESSION)
+        assertTrue(trackSessionStats.maxHoldNanos >= 30_000_000L)
+        assertEquals(1L, trackSessionStats.storageDominatedCount)
+
+        assertEquals(2, report.longestHolders.size)
+        val longestHolder = report.longestHolders.first()
+        assertEquals(SessionTracker.Operation.TRACK_SESSION, longestHolder.operation)
+        assertEquals(sessionId, longestHolder.sessionId)
+        assertTrue(longestHolder.storageDominated)
+        assertTrue(report.longestHolders[0].holdNanos >= report.longestHolders[1].holdNanos)
+    }
+
+    @Test
+    fun `wait time`() {
+        val lockProfiler = LockProfiler()
+        val sessionTracker = createSessionTracker(createStorageMock(emptyList()), lockProfiler)
+        sessionTracker.initialize(mock())
+
+        val lockAcquired = CountDownLatch(1)
+        val lockOwner = thread {
+            synchronized(sessionTracker) {
+                lockAcquired.countDown()
+                Thread.sleep(50)
+            }
+        }
+        lockAcquired.await()
+
+        sessionTracker.untrackAllSessions()
+        lockOwner.join()
+
+        val stats = lockProfiler.report().operations.getValue(SessionTracker.Operation.UNTRACK_ALL_SESSIONS)
+        assertEquals(1L, stats.count)
+        assertTrue(stats.maxWaitNanos >= 40_000_000L)
+        assertEquals(0L, stats.storageDominatedCount)
+        val holder = lockProfiler.report().longestHolders.first {
+            it.operation == SessionTracker.Operation.UNTRACK_ALL_SESSIONS
+        }
+        assertNull(holder.sessionId)
+        assertFalse(holder.storageDominated)
+    }
+
+    @Test
+    fun `nested calls are a part of the outer call`() {
+        val lockProfiler = LockProfiler()
+        val sessionTracker = createSessionTracker(createStorageMock(emptyList()), lockProfiler)
+        val listener = mock<SessionTracker.Listener<Event, State>> {
+            on { onSessionStateChanged(any(), any(), any()) } doAnswer { sessionTracker.getSessionRecords(); Unit }
+        }
+        sessionTracker.initialize(listener)
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+
+        val operations = lockProfiler.report().operations
+        assertEquals(1L, operations.getValue(SessionTracker.Operation.CONSUME_EVENT).count)
+        assertEquals(0L, operations.getValue(SessionTracker.Operation.GET_SESSION_RECORDS).count)
+    }
+
+    @Test
+    fun `profiler shared by several trackers`() {
+        val lockProfiler = LockProfiler(longestHoldersCapacity = 4)
+        val sessionTrackers = List(4) { createSessionTracker(createStorageMock(emptyList()), lockProfiler) }
+        sessionTrackers.forEach { it.initialize(mock()) }
+
+        sessionTrackers
+            .map { sessionTracker -> thread { repeat(1000) { sessionTracker.getSessionRecords() } } }
+            .forEach { it.join() }
+
+        val report = lockProfiler.report()
+        assertEquals(4000L, report.operations.getValue(SessionTracker.Operation.GET_SESSION_RECORDS).count)
+        assertEquals(4, report.longestHolders.size)
+        val maxHoldNanos = report.operations.values.maxOf { it.maxHoldNanos }
+        assertEquals(maxHoldNanos, report.longestHolders.first().holdNanos)
+    }
+
+    @Test
+    fun reset() {
+        val lockProfiler = LockProfiler()
+        val sessionTracker = createSessionTracker(createStorageMock(emptyList()), lockProfiler)
+        sessionTracker.initialize(mock())
+
+        lockProfiler.reset()
+
+        val report = lockProfiler.report()
+        assertTrue(report.operations.values.all { it.count == 0L })
+        assertTrue(report.longestHolders.isEmpty())
+    }
+
+    @Test
+    fun `invalid longest holders capacity`() {
+        assertThrows(IllegalArgumentException::class.java, "longestHoldersCapacity must be positive") {
+            LockProfiler(longestHoldersCapacity = 0)
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.inOrder
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.whenever
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.anySessionId
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class PersistFinalStateOnlyTest {
+
+    private val sessionId = SessionId("session_id")
+
+    private val storage = createStorageMock(listOf(SessionRecord(sessionId, State.ACTIVE)))
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    private val sessionStateTransitionsSupplier = mock<ISessionStateTransitionsSupplier<Event, State>> {
+        on { getStateTransitions(anySessionId()) } doReturn listOf(
+            Transition(
+                Event.LOGIN,
+                listOf(State.INACTIVE, State.ACTIVE)
+            ),
+            Transition(
+                Event.LOGOUT,
+                listOf(State.ACTIVE, State.FORGOTTEN, State.INACTIVE)
+            ),
+            Transition(
+                Event.LOGOUT_AND_FORGET,
+                listOf(State.ACTIVE, State.INACTIVE, State.FORGOTTEN)
+            )
+        )
+    }
+
+    private fun createSessionTracker(autoUntrackStates: Set<State>, persistFinalStateOnly: Boolean) = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = sessionStateTransitionsSupplier,
+        autoUntrackStates = autoUntrackStates,
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        persistFinalStateOnly = persistFinalStateOnly
+    ).apply { initialize(listener) }
+
+    @Test
+    fun `every state of the path is persisted by default`() {
+        val sessionTracker = createSessionTracker(autoUntrackStates = emptySet(), persistFinalStateOnly = false)
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT))
+
+        inOrder(storage) {
+            verify(storage).updateSessionRecord(SessionRecord(sessionId, State.FORGOTTEN))
+            verify(storage).updateSessionRecord(SessionRecord(sessionId, State.INACTIVE))
+        }
+    }
+
+    @Test
+    fun `only the final state of the path is persisted`() {
+        val sessionTracker = createSessionTracker(autoUntrackStates = emptySet(), persistFinalStateOnly = true)
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT))
+
+        assertEquals(listOf(SessionRecord(sessionId, State.INACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage).updateSessionRecord(SessionRecord(sessionId, State.INACTIVE))
+        verify(storage, never()).updateSessionRecord(SessionRecord(sessionId, State.FORGOTTEN))
+
+        // callbacks are still delivered per state
+        inOrder(listener) {
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId, State.FORGOTTEN), State.ACTIVE)
+            verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId, State.INACTIVE), State.FORGOTTEN)
+        }
+    }
+
+    @Test
+    fun `path ending with auto-untracking is not persisted`() {
+        val sessionTracker = createSessionTracker(autoUntrackStates = setOf(State.FORGOTTEN), persistFinalStateOnly = true)
+
+        assertEquals(true, sessionTracker.consumeEvent(sessionId, Event.LOGOUT_AND_FORGET))
+
+        assertEquals(emptyList<SessionRecord<State>>(), sessionTracker.getSessionRecords())
+        verify(storage, never()).updateSessionRecord(any())
+        verify(storage).deleteSessionRecord(sessionId)
+    }
+
+    @Test
+    fun `final state is not persisted if a listener throws`() {
+        val sessionTracker = createSessionTracker(autoUntrackStates = emptySet(), persistFinalStateOnly = true)
+        whenever(listener.onSessionStateChanged(any(), any(), any())).thenThrow(IllegalStateException("listener failed"))
+
+        assertThrows(IllegalStateException::class.java, "listener failed") {
+            sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        }
+
+        verify(storage, never()).updateSessionRecord(any())
+    }
+}
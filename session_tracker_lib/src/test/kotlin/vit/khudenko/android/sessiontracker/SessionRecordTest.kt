@@ -14,4 +14,48 @@ class SessionRecordTest {
 
         assertEquals(sessionId, sessionRecord.sessionId())
     }
+
+    @Test
+    fun version() {
+        val sessionId = SessionId("id")
+
+        assertEquals(0L, SessionRecord(sessionId, State.ACTIVE).version)
+        assertEquals(3L, SessionRecord(sessionId, State.ACTIVE, 3L).version)
+    }
+
+    @Test
+    fun `version does not affect equality`() {
+        val sessionId = SessionId("id")
+
+        val sessionRecord = SessionRecord(sessionId, State.ACTIVE)
+        val versionedSessionRecord = SessionRecord(sessionId, State.ACTIVE, 3L)
+
+        assertEquals(sessionRecord, versionedSessionRecord)
+        assertEquals(sessionRecord.hashCode(), versionedSessionRecord.hashCode())
+    }
+
+    @Test
+    fun `copy keeps version`() {
+        val sessionRecord = SessionRecord(SessionId("id"), State.ACTIVE, 3L)
+
+        assertEquals(3L, sessionRecord.copy(state = State.INACTIVE).version)
+        assertEquals(4L, sessionRecord.copy(version = 4L).version)
+        assertEquals(SessionRecord(SessionId("id"), State.INACTIVE), sessionRecord.copy(state = State.INACTIVE))
+    }
+
+    @Test
+    fun destructuring() {
+        val (sessionId, state) = SessionRecord(SessionId("id"), State.ACTIVE, 3L)
+
+        assertEquals(SessionId("id"), sessionId)
+        assertEquals(State.ACTIVE, state)
+    }
+
+    @Test
+    fun `toString includes version`() {
+        assertEquals(
+            "SessionRecord(sessionId=SessionId(value=id), state=ACTIVE, version=3)",
+            SessionRecord(SessionId("id"), State.ACTIVE, 3L).toString()
+        )
+    }
 }
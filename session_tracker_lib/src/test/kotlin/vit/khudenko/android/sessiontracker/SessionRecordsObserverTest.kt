@@ -0,0 +1,136 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class SessionRecordsObserverTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    private fun createSessionTracker() =
+        createSessionTracker(createStorageMock(listOf(SessionRecord(sessionId1, State.ACTIVE))))
+
+    @Test
+    fun `observer receives a snapshot per change`() {
+        val sessionTracker = createSessionTracker()
+        val snapshots = mutableListOf<List<SessionRecord<State>>>()
+
+        sessionTracker.addSessionRecordsObserver { snapshots.add(it) }
+        assertEquals(0, snapshots.size) // not initialized yet
+
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId2, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN) // ignored
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId2, Event.LOGIN)
+        sessionTracker.consumeEvent(sessionId2, Event.LOGOUT_AND_FORGET) // auto-untrack
+        sessionTracker.untrackAllSessions()
+
+        assertEquals(
+            listOf(
+                listOf(SessionRecord(sessionId1, State.ACTIVE)),
+                listOf(SessionRecord(sessionId1, State.ACTIVE), SessionRecord(sessionId2, State.INACTIVE)),
+                listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId2, State.INACTIVE)),
+                listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId2, State.ACTIVE)),
+                listOf(SessionRecord(sessionId1, State.INACTIVE)),
+                emptyList()
+            ),
+            snapshots
+        )
+    }
+
+    @Test
+    fun `observer added after initialization receives the current snapshot`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.initialize(mock())
+
+        val snapshots = mutableListOf<List<SessionRecord<State>>>()
+        sessionTracker.addSessionRecordsObserver { snapshots.add(it) }
+
+        assertEquals(listOf(listOf(SessionRecord(sessionId1, State.ACTIVE))), snapshots)
+    }
+
+    @Test
+    fun `observers share the same snapshot`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.initialize(mock())
+
+        val snapshots1 = mutableListOf<List<SessionRecord<State>>>()
+        val snapshots2 = mutableListOf<List<SessionRecord<State>>>()
+        sessionTracker.addSessionRecordsObserver { snapshots1.add(it) }
+        sessionTracker.addSessionRecordsObserver { snapshots2.add(it) }
+
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+
+        assertEquals(2, snapshots1.size)
+        assertSame(snapshots1[1], snapshots2[1])
+    }
+
+    @Test
+    fun `removed observer is not notified`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.initialize(mock())
+
+        val snapshots = mutableListOf<List<SessionRecord<State>>>()
+        val observer = SessionTracker.SessionRecordsObserver<State> { snapshots.add(it) }
+        sessionTracker.addSessionRecordsObserver(observer)
+        sessionTracker.removeSessionRecordsObserver(observer)
+
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+
+        assertEquals(1, snapshots.size)
+    }
+
+    @Test
+    fun `changes made from the listener are published as a single snapshot`() {
+        val sessionTracker = createSessionTracker()
+        val snapshots = mutableListOf<List<SessionRecord<State>>>()
+        sessionTracker.initialize(object : SessionTracker.Listener<Event, State> {
+            override fun onSessionTrackerInitialized(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecords: List<SessionRecord<State>>
+            ) {}
+
+            override fun onSessionTrackingStarted(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>
+            ) {
+                sessionTracker.consumeEvent(sessionRecord.sessionId, Event.LOGIN)
+            }
+
+            override fun onSessionStateChanged(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>,
+                oldState: State
+            ) {}
+
+            override fun onSessionTrackingStopped(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecord: SessionRecord<State>
+            ) {}
+
+            override fun onAllSessionsTrackingStopped(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecords: List<SessionRecord<State>>
+            ) {}
+        })
+        sessionTracker.addSessionRecordsObserver { snapshots.add(it) }
+
+        sessionTracker.trackSession(sessionId2, State.INACTIVE)
+
+        assertEquals(
+            listOf(
+                listOf(SessionRecord(sessionId1, State.ACTIVE)),
+                listOf(SessionRecord(sessionId1, State.ACTIVE), SessionRecord(sessionId2, State.ACTIVE))
+            ),
+            snapshots
+        )
+    }
+}
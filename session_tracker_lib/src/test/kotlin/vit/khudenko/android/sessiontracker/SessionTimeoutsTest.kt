@@ -0,0 +1,201 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class SessionTimeoutsTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    private var nowMillis = 1_000_000L
+
+    private fun createSessionTimeouts(wheelSize: Int = 8) = SessionTimeouts<Event, State>(
+        timeouts = mapOf(
+            State.ACTIVE to SessionTimeouts.Timeout(1000L, Event.LOGOUT),
+            State.INACTIVE to SessionTimeouts.Timeout(5000L, Event.LOGIN)
+        ),
+        tickMillis = 100L,
+        wheelSize = wheelSize,
+        clock = { nowMillis }
+    )
+
+    private fun createSessionTracker(
+        sessionTimeouts: SessionTimeouts<Event, State>,
+        sessionRecords: List<SessionRecord<State>> = emptyList()
+    ) = SessionTracker(
+        sessionTrackerStorage = createStorageMock(sessionRecords),
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        sessionTimeouts = sessionTimeouts
+    ).apply { initialize(mock()) }
+
+    @Test
+    fun `timeout fires the configured event`() {
+        val sessionTimeouts = createSessionTimeouts()
+        val sessionTracker = createSessionTracker(sessionTimeouts)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+
+        nowMillis += 999
+        assertEquals(0, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+
+        nowMillis += 100
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.INACTIVE)), sessionTracker.getSessionRecords())
+
+        // the timeout of the new state is started, it fires within a tick after the deadline
+        nowMillis += 5000
+        assertEquals(0, sessionTimeouts.advance())
+        nowMillis += 100
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `timeouts longer than a wheel revolution`() {
+        val sessionTimeouts = createSessionTimeouts(wheelSize = 4)
+        val sessionTracker = createSessionTracker(sessionTimeouts)
+
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+
+        for (i in 1..49) {
+            nowMillis += 100
+            assertEquals(0, sessionTimeouts.advance())
+        }
+        nowMillis += 100
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `long pause between advance calls`() {
+        val sessionTimeouts = createSessionTimeouts(wheelSize = 4)
+        val sessionTracker = createSessionTracker(sessionTimeouts)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.INACTIVE)
+
+        nowMillis += 60_000
+        assertEquals(2, sessionTimeouts.advance())
+        assertEquals(
+            listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId2, State.ACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+    }
+
+    @Test
+    fun `state change, untracking and touch`() {
+        val sessionTimeouts = createSessionTimeouts()
+        val sessionTracker = createSessionTracker(sessionTimeouts)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+
+        nowMillis += 500
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        sessionTimeouts.touch(sessionId2)
+
+        nowMillis += 700
+        assertEquals(0, sessionTimeouts.advance())
+
+        sessionTracker.untrackSession(sessionId2)
+
+        nowMillis += 10_000
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+
+        sessionTracker.untrackAllSessions()
+
+        nowMillis += 10_000
+        assertEquals(0, sessionTimeouts.advance())
+    }
+
+    @Test
+    fun `restored sessions get timeouts`() {
+        val sessionTimeouts = createSessionTimeouts()
+        val sessionTracker = createSessionTracker(sessionTimeouts, listOf(SessionRecord(sessionId1, State.ACTIVE)))
+
+        nowMillis += 1000
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.INACTIVE)), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `scheduled events`() {
+        val sessionTimeouts = SessionTimeouts<Event, State>(tickMillis = 100L, wheelSize = 8, clock = { nowMillis })
+        val sessionTracker = createSessionTracker(sessionTimeouts)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+
+        val logout = sessionTimeouts.scheduleEvent(sessionId1, Event.LOGOUT, 1000L)!!
+        sessionTimeouts.scheduleEvent(sessionId1, Event.LOGIN, 1500L)
+        val cancelled = sessionTimeouts.scheduleEvent(sessionId1, Event.LOGOUT, 1200L)!!
+
+        assertEquals(sessionId1, logout.sessionId)
+        assertEquals(Event.LOGOUT, logout.event)
+        assertEquals(true, cancelled.cancel())
+        assertEquals(false, cancelled.cancel())
+
+        // both expire within the same advance() call, and fire in the order of their deadlines
+        nowMillis += 1500
+        assertEquals(2, sessionTimeouts.advance())
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), sessionTracker.getSessionRecords())
+        assertEquals(false, logout.cancel())
+    }
+
+    @Test
+    fun `scheduled events are cancelled on untracking`() {
+        val sessionTimeouts = SessionTimeouts<Event, State>(tickMillis = 100L, wheelSize = 8, clock = { nowMillis })
+        val sessionTracker = createSessionTracker(sessionTimeouts)
+
+        assertEquals(null, sessionTimeouts.scheduleEvent(sessionId1, Event.LOGOUT, 1000L))
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        val scheduledEvent = sessionTimeouts.scheduleEvent(sessionId1, Event.LOGOUT, 1000L)!!
+        sessionTimeouts.scheduleEvent(sessionId2, Event.LOGOUT_AND_FORGET, 500L)
+        sessionTimeouts.scheduleEvent(sessionId2, Event.LOGIN, 1000L)
+
+        sessionTracker.untrackSession(sessionId1)
+        assertEquals(false, scheduledEvent.cancel())
+
+        // sessionId2 gets auto-untracked by the first event
+        nowMillis += 1000
+        assertEquals(1, sessionTimeouts.advance())
+        assertEquals(emptyList<SessionRecord<State>>(), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun misuse() {
+        val sessionTimeouts = createSessionTimeouts()
+
+        assertThrows(IllegalStateException::class.java, "SessionTimeouts is not passed to a SessionTracker") {
+            sessionTimeouts.advance()
+        }
+
+        createSessionTracker(sessionTimeouts)
+
+        assertThrows(
+            IllegalStateException::class.java,
+            "SessionTimeouts can not be shared between SessionTracker instances"
+        ) {
+            createSessionTracker(sessionTimeouts)
+        }
+        assertThrows(IllegalArgumentException::class.java, "durationMillis must be positive") {
+            SessionTimeouts.Timeout(0L, Event.LOGOUT)
+        }
+        assertThrows(IllegalArgumentException::class.java, "tickMillis must be positive") {
+            SessionTimeouts<Event, State>(emptyMap(), tickMillis = 0L)
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.anySessionId
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class SessionTrackerComputeTest {
+
+    private val sessionId = SessionId("session_id")
+
+    private val storage = createStorageMock(emptyList())
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    private fun createSessionTracker() = createSessionTracker(storage).apply { initialize(listener) }
+
+    @Test
+    fun `trackOrConsume tracks a new session`() {
+        val sessionTracker = createSessionTracker()
+
+        assertTrue(sessionTracker.trackOrConsume(sessionId, State.ACTIVE, Event.LOGIN))
+
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage).createSessionRecord(SessionRecord(sessionId, State.ACTIVE))
+        verify(listener).onSessionTrackingStarted(sessionTracker, SessionRecord(sessionId, State.ACTIVE))
+    }
+
+    @Test
+    fun `trackOrConsume consumes the event for a tracked session`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.trackSession(sessionId, State.INACTIVE)
+
+        assertTrue(sessionTracker.trackOrConsume(sessionId, State.ACTIVE, Event.LOGIN))
+        assertFalse(sessionTracker.trackOrConsume(sessionId, State.ACTIVE, Event.LOGIN))
+
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), sessionTracker.getSessionRecords())
+        verify(storage).updateSessionRecord(SessionRecord(sessionId, State.ACTIVE))
+        verify(listener).onSessionStateChanged(sessionTracker, SessionRecord(sessionId, State.ACTIVE), State.INACTIVE)
+    }
+
+    @Test
+    fun `compute performs the returned action`() {
+        val sessionTracker = createSessionTracker()
+        val observedStates = mutableListOf<State?>()
+
+        assertEquals(
+            State.ACTIVE,
+            sessionTracker.compute(sessionId) { state ->
+                observedStates.add(state)
+                SessionAction.Track(State.ACTIVE)
+            }
+        )
+        assertEquals(
+            State.INACTIVE,
+            sessionTracker.compute(sessionId) { state ->
+                observedStates.add(state)
+                SessionAction.ConsumeEvent(Event.LOGOUT)
+            }
+        )
+        assertEquals(
+            State.INACTIVE,
+            sessionTracker.compute(sessionId) { state ->
+                observedStates.add(state)
+                SessionAction.None()
+            }
+        )
+        assertNull(
+            sessionTracker.compute(sessionId) { state ->
+                observedStates.add(state)
+                SessionAction.Untrack()
+            }
+        )
+        assertNull(
+            sessionTracker.compute(sessionId) { state ->
+                observedStates.add(state)
+                SessionAction.None()
+            }
+        )
+
+        assertEquals(listOf(null, State.ACTIVE, State.INACTIVE, State.INACTIVE, null), observedStates)
+        verify(storage).createSessionRecord(SessionRecord(sessionId, State.ACTIVE))
+        verify(storage).updateSessionRecord(SessionRecord(sessionId, State.INACTIVE))
+        verify(storage).deleteSessionRecord(sessionId)
+    }
+
+    @Test
+    fun `compute ignores actions not applicable to the session`() {
+        val sessionTracker = createSessionTracker()
+
+        assertNull(sessionTracker.compute(sessionId) { SessionAction.ConsumeEvent(Event.LOGIN) })
+        assertNull(sessionTracker.compute(sessionId) { SessionAction.Untrack() })
+
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+        assertEquals(State.ACTIVE, sessionTracker.compute(sessionId) { SessionAction.Track(State.INACTIVE) })
+
+        verify(storage).createSessionRecord(any())
+        verify(storage, never()).deleteSessionRecord(anySessionId())
+    }
+
+    @Test
+    fun `compute returns null for an auto-untracked session`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+
+        assertNull(sessionTracker.compute(sessionId) { SessionAction.ConsumeEvent(Event.LOGOUT_AND_FORGET) })
+
+        assertEquals(emptyList<SessionRecord<State>>(), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `compute tracking a session in auto-untrack state`() {
+        val sessionTracker = createSessionTracker()
+
+        assertThrows(
+            IllegalArgumentException::class.java,
+            "Unable to track session: session with ID 'session_id' is in auto-untrack state (FORGOTTEN)"
+        ) {
+            sessionTracker.compute(sessionId) { SessionAction.Track(State.FORGOTTEN) }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class SessionTrackerMetricsTest {
+
+    private lateinit var metrics: SessionTracker.Metrics.DefaultImpl
+    private lateinit var storage: ISessionTrackerStorage<State>
+    private lateinit var listener: SessionTracker.Listener<Event, State>
+
+    @Before
+    fun setUp() {
+        metrics = SessionTracker.Metrics.DefaultImpl()
+        storage = createStorageMock(listOf(SessionRecord(SessionId("session_id_1"), State.ACTIVE)))
+        listener = mock()
+    }
+
+    private fun createSessionTracker() = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        metrics = metrics
+    )
+
+    @Test
+    fun `counters and gauges`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.initialize(listener)
+
+        sessionTracker.trackSession(SessionId("session_id_2"), State.INACTIVE)
+        sessionTracker.trackSession(SessionId("session_id_3"), State.ACTIVE)
+
+        assertTrue(sessionTracker.consumeEvent(SessionId("session_id_1"), Event.LOGOUT))
+        assertFalse(sessionTracker.consumeEvent(SessionId("session_id_2"), Event.LOGOUT))
+        assertFalse(sessionTracker.consumeEvent(SessionId("unknown"), Event.LOGOUT))
+        assertTrue(sessionTracker.consumeEvent(SessionId("session_id_3"), Event.LOGOUT_AND_FORGET)) // auto-untrack
+
+        sessionTracker.untrackSession(SessionId("session_id_2"))
+
+        val snapshot = metrics.snapshot()
+        assertEquals(2L, snapshot.eventsAccepted)
+        assertEquals(2L, snapshot.eventsIgnored)
+        assertEquals(2L, snapshot.sessionsTracked)
+        assertEquals(2L, snapshot.sessionsUntracked)
+        assertEquals(
+            mapOf(State.ACTIVE.name to 0L, State.INACTIVE.name to 1L, State.FORGOTTEN.name to 0L),
+            snapshot.sessionsPerState
+        )
+        assertEquals(4L, snapshot.consumeEventLockWait.count)
+        assertEquals(4L, snapshot.consumeEventStateMachine.count)
+        assertEquals(4L, snapshot.consumeEventStorage.count)
+        assertEquals(4L, snapshot.consumeEventListener.count)
+        assertEquals(1L, snapshot.storageCalls.getValue(SessionTracker.StorageOperation.READ_ALL).count)
+        assertEquals(2L, snapshot.storageCalls.getValue(SessionTracker.StorageOperation.CREATE).count)
+        assertEquals(1L, snapshot.storageCalls.getValue(SessionTracker.StorageOperation.UPDATE).count)
+        assertEquals(2L, snapshot.storageCalls.getValue(SessionTracker.StorageOperation.DELETE).count)
+        assertEquals(0L, snapshot.storageCalls.getValue(SessionTracker.StorageOperation.DELETE_ALL).count)
+
+        sessionTracker.untrackAllSessions()
+
+        val snapshotAfterUntrackAll = metrics.snapshot()
+        assertEquals(3L, snapshotAfterUntrackAll.sessionsUntracked)
+        assertEquals(0L, snapshotAfterUntrackAll.sessionsPerState.getValue(State.INACTIVE.name))
+        assertEquals(
+            1L,
+            snapshotAfterUntrackAll.storageCalls.getValue(SessionTracker.StorageOperation.DELETE_ALL).count
+        )
+    }
+
+    @Test
+    fun `consumeEvent latency is split into storage and listener time`() {
+        storage = createStorageMock(listOf(SessionRecord(SessionId("session_id_1"), State.ACTIVE))).apply {
+            doAnswer { Thread.sleep(20) }.`when`(this).updateSessionRecord(any())
+        }
+        listener = mock {
+            on { onSessionStateChanged(any(), any(), any()) } doAnswer { Thread.sleep(40) }
+        }
+
+        val sessionTracker = createSessionTracker()
+        sessionTracker.initialize(listener)
+
+        assertTrue(sessionTracker.consumeEvent(SessionId("session_id_1"), Event.LOGOUT))
+
+        val snapshot = metrics.snapshot()
+        assertTrue(snapshot.consumeEventStorage.max >= 20_000_000L)
+        assertTrue(snapshot.consumeEventStorage.max < 40_000_000L)
+        assertTrue(snapshot.consumeEventListener.max >= 40_000_000L)
+        assertEquals(1L, snapshot.consumeEventStateMachine.count)
+    }
+
+    @Test
+    fun `lock wait is not overwritten by a nested call`() {
+        lateinit var sessionTracker: SessionTracker<Event, State>
+        listener = mock {
+            // a nested call, that does not wait for the lock
+            on { onSessionStateChanged(any(), any(), any()) } doAnswer { sessionTracker.getSessionRecords(); Unit }
+        }
+        sessionTracker = createSessionTracker()
+        sessionTracker.initialize(listener)
+
+        val lockAcquired = CountDownLatch(1)
+        val lockOwner = thread {
+            synchronized(sessionTracker) {
+                lockAcquired.countDown()
+                Thread.sleep(50)
+            }
+        }
+        lockAcquired.await()
+
+        assertTrue(sessionTracker.consumeEvent(SessionId("session_id_1"), Event.LOGOUT))
+        lockOwner.join()
+
+        assertTrue(metrics.snapshot().consumeEventLockWait.max >= 40_000_000L)
+    }
+
+    @Test
+    fun `events consumed by batch, bulk and compound calls are reported`() {
+        val sessionTracker = createSessionTracker()
+        sessionTracker.initialize(listener)
+        sessionTracker.trackSession(SessionId("session_id_2"), State.INACTIVE)
+
+        assertEquals(
+            2,
+            sessionTracker.consumeEvents(
+                listOf(
+                    SessionId("session_id_1") to Event.LOGOUT,
+                    SessionId("session_id_2") to Event.LOGIN,
+                    SessionId("session_id_2") to Event.LOGIN
+                )
+            )
+        )
+        assertEquals(1, sessionTracker.consumeEventForAll(Event.LOGIN, setOf(State.INACTIVE)))
+        assertEquals(
+            State.INACTIVE,
+            sessionTracker.compute(SessionId("session_id_1")) { SessionAction.ConsumeEvent(Event.LOGOUT) }
+        )
+        assertEquals(
+            1,
+            sessionTracker.consumeEvents(
+                listOf(SessionId("session_id_2") to Event.LOGOUT, SessionId("session_id_2") to Event.LOGOUT),
+                coalesceCallbacks = true
+            )
+        )
+
+        val snapshot = metrics.snapshot()
+        assertEquals(5L, snapshot.eventsAccepted)
+        assertEquals(2L, snapshot.eventsIgnored)
+        assertEquals(7L, snapshot.consumeEventStateMachine.count)
+    }
+
+    @Test
+    fun `no-op metrics`() {
+        val sessionTracker = SessionTracker(
+            sessionTrackerStorage = storage,
+            sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+            autoUntrackStates = emptySet(),
+            mode = SessionTracker.Mode.STRICT,
+            logger = mock()
+        )
+        sessionTracker.initialize(listener)
+
+        assertTrue(sessionTracker.consumeEvent(SessionId("session_id_1"), Event.LOGOUT))
+        assertEquals(
+            listOf(SessionRecord(SessionId("session_id_1"), State.INACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+    }
+}
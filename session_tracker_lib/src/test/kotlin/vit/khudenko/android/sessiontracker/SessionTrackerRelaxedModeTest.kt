@@ -93,6 +93,7 @@ class SessionTrackerRelaxedModeTest {
         sessionTracker.initialize(listener)
 
         verify(storage).readAllSessionRecords()
+        verify(storage).readMaxVersion()
         verify(logger).e(
             SessionTracker.TAG,
             "initialize: session with ID '${sessionId.value}' is in auto-untrack state (${State.FORGOTTEN})" +
@@ -122,6 +123,7 @@ class SessionTrackerRelaxedModeTest {
         }
 
         verify(storage).readAllSessionRecords()
+        verify(storage).readMaxVersion()
         verifyNoMoreInteractions(storage)
         verifyNoMoreInteractions(listener)
     }
@@ -714,6 +716,7 @@ class SessionTrackerRelaxedModeTest {
 
         with(inOrder(listener, storage)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(listener).onSessionStateChanged(sessionTracker, updatedSessionRecord1, sessionRecord1.state)
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
@@ -767,6 +770,7 @@ class SessionTrackerRelaxedModeTest {
 
         with(inOrder(listener, storage)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(listener).onSessionStateChanged(sessionTracker, updatedSessionRecord1, sessionRecord1.state)
             verify(storage).deleteAllSessionRecords()
@@ -901,6 +905,7 @@ class SessionTrackerRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, sessionRecords)
             verify(storage).deleteSessionRecord(sessionRecord.sessionId)
             verify(listener).onSessionTrackingStopped(sessionTracker, sessionRecord)
@@ -939,6 +944,7 @@ class SessionTrackerRelaxedModeTest {
         with(inOrder(storage, listener, logger)) {
             verify(logger).d(SessionTracker.TAG, "initialize: starting..")
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, sessionRecords)
             verify(logger).d(SessionTracker.TAG, "untrackSession: sessionId = '${sessionRecord.sessionId.value}'")
             verify(storage).deleteSessionRecord(sessionRecord.sessionId)
@@ -0,0 +1,220 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.json.JSONObject
+import org.junit.Assert
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import java.io.File
+import java.io.IOException
+import java.util.EnumSet
+
+class SessionTrackerStorageAppendLogImplTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+    private val sessionId3 = SessionId("session_id_3")
+
+    private val directory: File
+        get() = File(temporaryFolder.root, "sessions")
+
+    private fun createStorage(snapshotInterval: Int = 1000) = ISessionTrackerStorage.AppendLogImpl(
+        directory,
+        EnumSet.allOf(State::class.java),
+        snapshotInterval
+    )
+
+    private fun writeChanges(storage: ISessionTrackerStorage<State>) {
+        storage.createSessionRecord(SessionRecord(sessionId1, State.ACTIVE, 1L))
+        storage.createSessionRecord(SessionRecord(sessionId2, State.ACTIVE, 2L))
+        storage.createSessionRecord(SessionRecord(sessionId3, State.ACTIVE, 3L))
+        storage.updateSessionRecord(SessionRecord(sessionId1, State.INACTIVE, 4L))
+        storage.updateSessionRecords(
+            listOf(SessionRecord(sessionId2, State.INACTIVE, 5L), SessionRecord(sessionId3, State.INACTIVE, 6L))
+        )
+        storage.deleteSessionRecord(sessionId2)
+    }
+
+    private val expectedSessionRecords = listOf(
+        SessionRecord(sessionId1, State.INACTIVE, 4L),
+        SessionRecord(sessionId3, State.INACTIVE, 6L)
+    )
+
+    private fun assertSessionRecords(expected: List<SessionRecord<State>>, actual: List<SessionRecord<State>>) {
+        assertEquals(expected, actual)
+        assertEquals(expected.map { it.version }, actual.map { it.version })
+    }
+
+    @Test
+    fun `empty storage`() {
+        assertEquals(emptyList<SessionRecord<State>>(), createStorage().readAllSessionRecords())
+    }
+
+    @Test
+    fun `changes are restored from the log`() {
+        val storage = createStorage()
+        writeChanges(storage)
+
+        assertSessionRecords(expectedSessionRecords, storage.readAllSessionRecords())
+        assertSessionRecords(expectedSessionRecords, createStorage().readAllSessionRecords())
+        // a commit entry follows the batch
+        assertEquals(8, File(directory, "log").readLines().size)
+        assertFalse(File(directory, "snapshot.json").exists())
+    }
+
+    @Test
+    fun `log is compacted into a snapshot`() {
+        val storage = createStorage(snapshotInterval = 3)
+        writeChanges(storage)
+
+        assertSessionRecords(expectedSessionRecords, createStorage(snapshotInterval = 3).readAllSessionRecords())
+        // the snapshot has been taken on the 4th change, then 3 more entries (and a commit entry) have been appended
+        assertEquals(4, File(directory, "log").readLines().size)
+
+        storage.deleteSessionRecords(listOf(sessionId1))
+        assertSessionRecords(expectedSessionRecords.drop(1), createStorage().readAllSessionRecords())
+        assertFalse(File(directory, "log").exists())
+    }
+
+    @Test
+    fun `delete all`() {
+        val storage = createStorage()
+        writeChanges(storage)
+
+        storage.deleteAllSessionRecords()
+
+        assertEquals(emptyList<SessionRecord<State>>(), createStorage().readAllSessionRecords())
+        assertFalse(File(directory, "log").exists())
+    }
+
+    @Test
+    fun `incomplete log entry is ignored`() {
+        writeChanges(createStorage())
+        File(directory, "log").appendText("{\"op\":\"delete\",\"id\":\"session_")
+
+        val storage = createStorage()
+        assertSessionRecords(expectedSessionRecords, storage.readAllSessionRecords())
+
+        storage.deleteSessionRecord(sessionId3)
+        assertSessionRecords(expectedSessionRecords.take(1), createStorage().readAllSessionRecords())
+    }
+
+    @Test
+    fun `incomplete batch is ignored`() {
+        writeChanges(createStorage())
+        createStorage().updateSessionRecords(
+            listOf(SessionRecord(sessionId1, State.ACTIVE, 7L), SessionRecord(sessionId3, State.ACTIVE, 8L))
+        )
+        // drop the commit entry, as if the app has been killed before writing it
+        val logFile = File(directory, "log")
+        logFile.writeText(logFile.readLines().dropLast(1).joinToString(separator = "\n", postfix = "\n"))
+
+        val storage = createStorage()
+        assertSessionRecords(expectedSessionRecords, storage.readAllSessionRecords())
+
+        storage.deleteSessionRecord(sessionId3)
+        assertSessionRecords(expectedSessionRecords.take(1), createStorage().readAllSessionRecords())
+    }
+
+    @Test
+    fun `log entries compacted into the snapshot are skipped`() {
+        writeChanges(createStorage())
+        val log = File(directory, "log").readText()
+
+        // compact, then put the log back, as if the app has been killed before deleting it
+        createStorage(snapshotInterval = 1).updateSessionRecord(SessionRecord(sessionId1, State.ACTIVE, 7L))
+        File(directory, "log").writeText(log)
+
+        assertSessionRecords(
+            listOf(SessionRecord(sessionId1, State.ACTIVE, 7L), SessionRecord(sessionId3, State.INACTIVE, 6L)),
+            createStorage().readAllSessionRecords()
+        )
+    }
+
+    @Test
+    fun `max version includes deleted session records`() {
+        val storage = createStorage()
+        assertEquals(0L, storage.readMaxVersion())
+
+        writeChanges(storage)
+        storage.deleteSessionRecord(sessionId3)
+
+        assertEquals(6L, storage.readMaxVersion())
+        assertEquals(6L, createStorage().readMaxVersion())
+
+        // compacted into the snapshot
+        storage.deleteAllSessionRecords()
+
+        assertEquals(6L, createStorage().readMaxVersion())
+    }
+
+    @Test
+    fun `failed write leaves the session records intact`() {
+        val storage = createStorage()
+        storage.createSessionRecord(SessionRecord(sessionId1, State.ACTIVE, 1L))
+        // the log can not be appended to, once its file is replaced with a directory
+        val logFile = File(directory, "log")
+        logFile.delete()
+        logFile.mkdir()
+
+        Assert.assertThrows(IOException::class.java) {
+            storage.updateSessionRecord(SessionRecord(sessionId1, State.INACTIVE, 2L))
+        }
+
+        assertSessionRecords(listOf(SessionRecord(sessionId1, State.ACTIVE, 1L)), storage.readAllSessionRecords())
+        assertEquals(1L, storage.readMaxVersion())
+
+        // the log may end with an incomplete entry, so the next write compacts the log into a snapshot
+        logFile.delete()
+        storage.updateSessionRecord(SessionRecord(sessionId1, State.INACTIVE, 2L))
+
+        assertTrue(File(directory, "snapshot.json").exists())
+        assertFalse(logFile.exists())
+        assertSessionRecords(
+            listOf(SessionRecord(sessionId1, State.INACTIVE, 2L)),
+            createStorage().readAllSessionRecords()
+        )
+    }
+
+    @Test
+    fun `log entries keep the events causing the updates`() {
+        val sessionTracker = createSessionTracker(createStorage()).apply { initialize(mock()) }
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        sessionTracker.trackSession(sessionId2, State.INACTIVE)
+        sessionTracker.trackSession(sessionId3, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+        sessionTracker.consumeEventForAll(Event.LOGIN, setOf(State.INACTIVE))
+
+        // the batch of the last call is followed by a commit entry
+        assertEquals(
+            listOf(null, null, null, "LOGIN", "LOGIN", "LOGIN", null),
+            File(directory, "log").readLines().map { JSONObject(it).opt("event") }
+        )
+        assertSessionRecords(
+            listOf(
+                SessionRecord(sessionId1, State.ACTIVE, 4L),
+                SessionRecord(sessionId2, State.ACTIVE, 5L),
+                SessionRecord(sessionId3, State.ACTIVE, 6L)
+            ),
+            createStorage().readAllSessionRecords()
+        )
+    }
+
+    @Test
+    fun misuse() {
+        assertThrows(IllegalArgumentException::class.java, "snapshotInterval must be positive") {
+            createStorage(snapshotInterval = 0)
+        }
+    }
+}
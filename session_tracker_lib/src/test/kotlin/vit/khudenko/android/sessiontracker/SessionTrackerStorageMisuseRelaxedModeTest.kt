@@ -67,6 +67,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).updateSessionRecord(updatedSessionRecord1)
             verifyStorageMisuseErrorLogged(logger, "consumeEvent")
@@ -98,6 +99,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord))
             verify(storage).updateSessionRecord(updatedSessionRecord)
             verifyStorageMisuseErrorLogged(logger, "trackSession")
@@ -128,6 +130,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord))
             verify(storage).updateSessionRecord(updatedSessionRecord)
             verifyStorageMisuseErrorLogged(logger, "untrackSession")
@@ -160,6 +163,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).updateSessionRecord(updatedSessionRecord1)
             verifyStorageMisuseErrorLogged(logger, "untrackAllSessions")
@@ -190,6 +194,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(sessionRecord)
             verifyStorageMisuseErrorLogged(logger, "consumeEvent")
@@ -220,6 +225,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(sessionRecord)
             verifyStorageMisuseErrorLogged(logger, "trackSession")
@@ -250,6 +256,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(sessionRecord)
             verifyStorageMisuseErrorLogged(logger, "untrackSession")
@@ -280,6 +287,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(sessionRecord)
             verifyStorageMisuseErrorLogged(logger, "untrackAllSessions")
@@ -310,6 +318,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
             verifyStorageMisuseErrorLogged(logger, "consumeEvent")
@@ -339,6 +348,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord))
             verify(storage).deleteSessionRecord(sessionRecord.sessionId)
             verifyStorageMisuseErrorLogged(logger, "trackSession")
@@ -369,6 +379,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
             verifyStorageMisuseErrorLogged(logger, "untrackSession")
@@ -399,6 +410,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
             verifyStorageMisuseErrorLogged(logger, "untrackAllSessions")
@@ -429,6 +441,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
             verifyStorageMisuseErrorLogged(logger, "consumeEvent")
@@ -461,6 +474,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
             verifyStorageMisuseErrorLogged(logger, "trackSession")
@@ -491,6 +505,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
             verifyStorageMisuseErrorLogged(logger, "untrackSession")
@@ -521,6 +536,7 @@ class SessionTrackerStorageMisuseRelaxedModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
             verifyStorageMisuseErrorLogged(logger, "untrackAllSessions")
@@ -71,6 +71,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).updateSessionRecord(updatedSessionRecord1)
         }
@@ -104,6 +105,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord))
             verify(storage).updateSessionRecord(updatedSessionRecord)
         }
@@ -137,6 +139,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord))
             verify(storage).updateSessionRecord(updatedSessionRecord)
         }
@@ -171,6 +174,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).updateSessionRecord(updatedSessionRecord1)
         }
@@ -206,6 +210,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(SessionRecord(sessionId, state))
         }
@@ -240,6 +245,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(SessionRecord(sessionId, state))
         }
@@ -274,6 +280,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(SessionRecord(sessionId, state))
         }
@@ -308,6 +315,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
             verify(storage).createSessionRecord(SessionRecord(sessionId, state))
         }
@@ -341,6 +349,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
         }
@@ -373,6 +382,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord))
             verify(storage).deleteSessionRecord(sessionRecord.sessionId)
         }
@@ -406,6 +416,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
         }
@@ -439,6 +450,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
         }
@@ -472,6 +484,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
         }
@@ -505,6 +518,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
         }
@@ -538,6 +552,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
         }
@@ -571,6 +586,7 @@ class SessionTrackerStorageMisuseStrictModeTest {
 
         with(inOrder(storage, listener)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(storage).deleteAllSessionRecords()
         }
@@ -19,6 +19,7 @@ class SessionTrackerStorageSharedPrefsImplTest {
         val sessionRecord = mockk<SessionRecord<State>> {
             every { sessionId } returns SessionId("sessionId")
             every { state } returns sessionRecordState
+            every { version } returns 7L
         }
 
         val prefsEditor = mockk<SharedPreferences.Editor> {
@@ -42,7 +43,8 @@ class SessionTrackerStorageSharedPrefsImplTest {
             sessionRecord.sessionId
             sessionRecord.state
             sessionRecordState.ordinal
-            prefsEditor.putString("session_records", "[{\"id\":\"sessionId\",\"state\":123}]")
+            sessionRecord.version
+            prefsEditor.putString("session_records", "[{\"version\":7,\"id\":\"sessionId\",\"state\":123}]")
             prefsEditor.commit()
         }
     }
@@ -68,6 +70,7 @@ class SessionTrackerStorageSharedPrefsImplTest {
         val sessionRecord = mockk<SessionRecord<State>> {
             every { sessionId } returns SessionId("sessionId")
             every { state } returns sessionRecordState
+            every { version } returns 7L
         }
 
         storage.createSessionRecord(sessionRecord)
@@ -78,9 +81,11 @@ class SessionTrackerStorageSharedPrefsImplTest {
             sessionRecord.sessionId
             sessionRecord.state
             sessionRecordState.ordinal
+            sessionRecord.version
             prefsEditor.putString(
                 "session_records",
-                "[{\"id\":\"sessionId-1\",\"state\":1},{\"id\":\"sessionId\",\"state\":123}]"
+                "[{\"version\":0,\"id\":\"sessionId-1\",\"state\":1}," +
+                        "{\"version\":7,\"id\":\"sessionId\",\"state\":123}]"
             )
             prefsEditor.commit()
         }
@@ -125,6 +130,30 @@ class SessionTrackerStorageSharedPrefsImplTest {
         }
     }
 
+    @Test
+    fun `readAllSessionRecords - versioned records`() {
+        val prefs = mockk<SharedPreferences> {
+            every {
+                getString("session_records", "[]")
+            } returns "[{\"id\":\"sessionId-0\",\"state\":0,\"version\":5},{\"id\":\"sessionId-1\",\"state\":1}]"
+        }
+        val storage = ISessionTrackerStorage.SharedPrefsImpl<State>(
+            prefs,
+            EnumSet.allOf(State::class.java)
+        )
+
+        val sessionRecords = storage.readAllSessionRecords()
+
+        assertEquals(
+            listOf(
+                SessionRecord(SessionId("sessionId-0"), State.values()[0]),
+                SessionRecord(SessionId("sessionId-1"), State.values()[1])
+            ),
+            sessionRecords
+        )
+        assertEquals(listOf(5L, 0L), sessionRecords.map { it.version })
+    }
+
     @Test
     fun `updateSessionRecord - target record is present`() {
         val prefsEditor = mockk<SharedPreferences.Editor> {
@@ -147,6 +176,7 @@ class SessionTrackerStorageSharedPrefsImplTest {
         val sessionRecord = mockk<SessionRecord<State>> {
             every { sessionId } returns SessionId("sessionId")
             every { state } returns sessionRecordState
+            every { version } returns 7L
         }
 
         storage.updateSessionRecord(sessionRecord)
@@ -158,7 +188,8 @@ class SessionTrackerStorageSharedPrefsImplTest {
             sessionRecord.sessionId
             sessionRecord.state
             sessionRecordState.ordinal
-            prefsEditor.putString("session_records", "[{\"id\":\"sessionId\",\"state\":1}]")
+            sessionRecord.version
+            prefsEditor.putString("session_records", "[{\"version\":7,\"id\":\"sessionId\",\"state\":1}]")
             prefsEditor.commit()
         }
     }
@@ -189,7 +220,44 @@ class SessionTrackerStorageSharedPrefsImplTest {
             prefs.getString("session_records", "[]")
             sessionRecord.sessionId
             prefs.edit()
-            prefsEditor.putString("session_records", "[{\"id\":\"sessionId-1\",\"state\":1}]")
+            prefsEditor.putString("session_records", "[{\"version\":0,\"id\":\"sessionId-1\",\"state\":1}]")
+            prefsEditor.commit()
+        }
+    }
+
+    @Test
+    fun updateSessionRecords() {
+        val prefsEditor = mockk<SharedPreferences.Editor> {
+            every { putString("session_records", any()) } returns this@mockk
+            every { commit() } returns true
+        }
+        val prefs = mockk<SharedPreferences> {
+            every {
+                getString("session_records", "[]")
+            } returns "[{\"id\":\"sessionId-0\",\"state\":0},{\"id\":\"sessionId-1\",\"state\":1}]"
+            every { edit() } returns prefsEditor
+        }
+
+        val storage = ISessionTrackerStorage.SharedPrefsImpl<State>(
+            prefs,
+            EnumSet.allOf(State::class.java)
+        )
+
+        storage.updateSessionRecords(
+            listOf(
+                SessionRecord(SessionId("sessionId-1"), State.values()[0], 3L),
+                SessionRecord(SessionId("sessionId-2"), State.values()[0], 4L)
+            )
+        )
+
+        verifySequence {
+            prefs.getString("session_records", "[]")
+            prefs.edit()
+            prefsEditor.putString(
+                "session_records",
+                "[{\"version\":0,\"id\":\"sessionId-0\",\"state\":0}," +
+                        "{\"version\":3,\"id\":\"sessionId-1\",\"state\":0}]"
+            )
             prefsEditor.commit()
         }
     }
@@ -198,12 +266,14 @@ class SessionTrackerStorageSharedPrefsImplTest {
     fun `deleteSessionRecord - target record is present`() {
         val prefsEditor = mockk<SharedPreferences.Editor> {
             every { putString("session_records", any()) } returns this@mockk
+            every { putLong("max_version", any()) } returns this@mockk
             every { commit() } returns true
         }
         val prefs = mockk<SharedPreferences> {
             every {
                 getString("session_records", "[]")
             } returns "[{\"id\":\"sessionId-0\",\"state\":0},{\"id\":\"sessionId-1\",\"state\":1}]"
+            every { getLong("max_version", 0L) } returns 0L
             every { edit() } returns prefsEditor
         }
 
@@ -216,8 +286,10 @@ class SessionTrackerStorageSharedPrefsImplTest {
 
         verifySequence {
             prefs.getString("session_records", "[]")
+            prefs.getLong("max_version", 0L)
             prefs.edit()
-            prefsEditor.putString("session_records", "[{\"id\":\"sessionId-1\",\"state\":1}]")
+            prefsEditor.putString("session_records", "[{\"version\":0,\"id\":\"sessionId-1\",\"state\":1}]")
+            prefsEditor.putLong("max_version", 0L)
             prefsEditor.commit()
         }
     }
@@ -226,10 +298,12 @@ class SessionTrackerStorageSharedPrefsImplTest {
     fun `deleteSessionRecord - target record is absent`() {
         val prefsEditor = mockk<SharedPreferences.Editor> {
             every { putString("session_records", any()) } returns this@mockk
+            every { putLong("max_version", any()) } returns this@mockk
             every { commit() } returns true
         }
         val prefs = mockk<SharedPreferences> {
             every { getString("session_records", "[]") } returns "[{\"id\":\"sessionId-1\",\"state\":1}]"
+            every { getLong("max_version", 0L) } returns 0L
             every { edit() } returns prefsEditor
         }
 
@@ -242,8 +316,10 @@ class SessionTrackerStorageSharedPrefsImplTest {
 
         verifySequence {
             prefs.getString("session_records", "[]")
+            prefs.getLong("max_version", 0L)
             prefs.edit()
-            prefsEditor.putString("session_records", "[{\"id\":\"sessionId-1\",\"state\":1}]")
+            prefsEditor.putString("session_records", "[{\"version\":0,\"id\":\"sessionId-1\",\"state\":1}]")
+            prefsEditor.putLong("max_version", 0L)
             prefsEditor.commit()
         }
     }
@@ -252,9 +328,12 @@ class SessionTrackerStorageSharedPrefsImplTest {
     fun deleteAllSessionRecords() {
         val prefsEditor = mockk<SharedPreferences.Editor> {
             every { putString("session_records", any()) } returns this@mockk
+            every { putLong("max_version", any()) } returns this@mockk
             every { commit() } returns true
         }
         val prefs = mockk<SharedPreferences> {
+            every { getString("session_records", "[]") } returns "[{\"id\":\"sessionId\",\"state\":0,\"version\":5}]"
+            every { getLong("max_version", 0L) } returns 3L
             every { edit() } returns prefsEditor
         }
 
@@ -266,9 +345,44 @@ class SessionTrackerStorageSharedPrefsImplTest {
         storage.deleteAllSessionRecords()
 
         verifySequence {
+            prefs.getString("session_records", "[]")
+            prefs.getLong("max_version", 0L)
             prefs.edit()
             prefsEditor.putString("session_records", "[]")
+            prefsEditor.putLong("max_version", 5L)
             prefsEditor.commit()
         }
     }
+
+    @Test
+    fun `readMaxVersion - includes deleted session records`() {
+        val prefs = mockk<SharedPreferences> {
+            every {
+                getString("session_records", "[]")
+            } returns "[{\"id\":\"sessionId-0\",\"state\":0,\"version\":5},{\"id\":\"sessionId-1\",\"state\":1}]"
+            every { getLong("max_version", 0L) } returns 8L
+        }
+        val storage = ISessionTrackerStorage.SharedPrefsImpl<State>(
+            prefs,
+            EnumSet.allOf(State::class.java)
+        )
+
+        assertEquals(8L, storage.readMaxVersion())
+    }
+
+    @Test
+    fun `readMaxVersion - no deleted session records`() {
+        val prefs = mockk<SharedPreferences> {
+            every {
+                getString("session_records", "[]")
+            } returns "[{\"id\":\"sessionId-0\",\"state\":0,\"version\":5},{\"id\":\"sessionId-1\",\"state\":1}]"
+            every { getLong("max_version", 0L) } returns 0L
+        }
+        val storage = ISessionTrackerStorage.SharedPrefsImpl<State>(
+            prefs,
+            EnumSet.allOf(State::class.java)
+        )
+
+        assertEquals(5L, storage.readMaxVersion())
+    }
 }
@@ -95,6 +95,7 @@ class SessionTrackerStrictModeTest {
         }
 
         verify(storage).readAllSessionRecords()
+        verify(storage).readMaxVersion()
         verifyNoMoreInteractions(storage, listener)
     }
 
@@ -118,6 +119,7 @@ class SessionTrackerStrictModeTest {
         }
 
         verify(storage).readAllSessionRecords()
+        verify(storage).readMaxVersion()
         verifyNoMoreInteractions(storage, listener)
     }
 
@@ -224,6 +226,7 @@ class SessionTrackerStrictModeTest {
         }
 
         verify(storage).readAllSessionRecords()
+        verify(storage).readMaxVersion()
         verify(listener).onSessionTrackerInitialized(sessionTracker, emptyList())
         verifyNoMoreInteractions(storage, listener)
 
@@ -718,6 +721,7 @@ class SessionTrackerStrictModeTest {
 
         with(inOrder(listener, storage)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(listener).onSessionStateChanged(sessionTracker, updatedSessionRecord1, sessionRecord1.state)
             verify(storage).deleteSessionRecord(sessionRecord1.sessionId)
@@ -771,6 +775,7 @@ class SessionTrackerStrictModeTest {
 
         with(inOrder(listener, storage)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, listOf(sessionRecord1, sessionRecord2))
             verify(listener).onSessionStateChanged(sessionTracker, updatedSessionRecord1, sessionRecord1.state)
             verify(storage).deleteAllSessionRecords()
@@ -901,6 +906,7 @@ class SessionTrackerStrictModeTest {
 
         with(inOrder(storage, listener, logger)) {
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, sessionRecords)
             verify(storage).deleteSessionRecord(sessionRecord.sessionId)
             verify(listener).onSessionTrackingStopped(sessionTracker, sessionRecord)
@@ -939,6 +945,7 @@ class SessionTrackerStrictModeTest {
         with(inOrder(storage, listener, logger)) {
             verify(logger).d(SessionTracker.TAG, "initialize: starting..")
             verify(storage).readAllSessionRecords()
+            verify(storage).readMaxVersion()
             verify(listener).onSessionTrackerInitialized(sessionTracker, sessionRecords)
             verify(logger).d(SessionTracker.TAG, "untrackSession: sessionId = '${sessionRecord.sessionId.value}'")
             verify(storage).deleteSessionRecord(sessionRecord.sessionId)
@@ -0,0 +1,139 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.argumentCaptor
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.util.EnumSet
+
+class SessionTrackerVersionTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+
+    @Test
+    fun `version is restored from storage`() {
+        val sessionTracker = createSessionTracker(
+            createStorageMock(
+                listOf(
+                    SessionRecord(sessionId1, State.ACTIVE, 7L),
+                    SessionRecord(sessionId2, State.INACTIVE)
+                )
+            )
+        )
+
+        sessionTracker.initialize(listener)
+
+        assertEquals(7L, sessionTracker.version)
+        assertEquals(listOf(7L, 0L), sessionTracker.getSessionRecords().map { it.version })
+    }
+
+    @Test
+    fun `versions are incremented on changes`() {
+        val storage = createStorageMock(emptyList())
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(0L, sessionTracker.version)
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+
+        assertEquals(2L, sessionTracker.version)
+        assertEquals(listOf(1L, 2L), sessionTracker.getSessionRecords().map { it.version })
+
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+
+        assertEquals(3L, sessionTracker.version)
+        assertEquals(listOf(3L, 2L), sessionTracker.getSessionRecords().map { it.version })
+
+        // ignored event does not change anything
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+
+        assertEquals(3L, sessionTracker.version)
+
+        sessionTracker.untrackSession(sessionId2)
+
+        assertEquals(4L, sessionTracker.version)
+        assertEquals(listOf(3L), sessionTracker.getSessionRecords().map { it.version })
+
+        sessionTracker.untrackAllSessions()
+
+        assertEquals(5L, sessionTracker.version)
+
+        argumentCaptor<SessionRecord<State>>().apply {
+            verify(storage, times(2)).createSessionRecord(capture())
+            assertEquals(listOf(1L, 2L), allValues.map { it.version })
+        }
+        argumentCaptor<SessionRecord<State>>().apply {
+            verify(storage).updateSessionRecord(capture())
+            assertEquals(3L, firstValue.version)
+        }
+    }
+
+    @Test
+    fun `listener gets versioned records`() {
+        val sessionTracker = createSessionTracker(createStorageMock(emptyList())).apply { initialize(listener) }
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT_AND_FORGET)
+
+        argumentCaptor<SessionRecord<State>>().apply {
+            verify(listener).onSessionTrackingStarted(eq(sessionTracker), capture())
+            verify(listener).onSessionStateChanged(
+                eq(sessionTracker),
+                capture(),
+                eq(State.ACTIVE)
+            )
+            verify(listener).onSessionTrackingStopped(eq(sessionTracker), capture())
+            assertEquals(listOf(1L, 2L, 2L), allValues.map { it.version })
+        }
+        assertEquals(3L, sessionTracker.version)
+    }
+
+    @Test
+    fun `session records observer gets versioned records`() {
+        val sessionTracker = createSessionTracker(createStorageMock(emptyList())).apply { initialize(listener) }
+        val snapshots = mutableListOf<List<SessionRecord<State>>>()
+        sessionTracker.addSessionRecordsObserver { snapshots.add(it) }
+
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+
+        assertEquals(listOf(emptyList(), listOf(1L), listOf(2L)), snapshots.map { it.map { record -> record.version } })
+    }
+
+    @Test
+    fun `versions of untracked sessions are not reused after a restart`() {
+        val directory = temporaryFolder.newFolder()
+        val storage = ISessionTrackerStorage.AppendLogImpl(directory, EnumSet.allOf(State::class.java))
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+        sessionTracker.trackSession(sessionId1, State.ACTIVE)
+        sessionTracker.trackSession(sessionId2, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId2, Event.LOGOUT)
+        sessionTracker.untrackSession(sessionId2)
+
+        val restartedSessionTracker = createSessionTracker(
+            ISessionTrackerStorage.AppendLogImpl(directory, EnumSet.allOf(State::class.java))
+        ).apply { initialize(listener) }
+
+        assertEquals(3L, restartedSessionTracker.version)
+
+        restartedSessionTracker.trackSession(sessionId2, State.ACTIVE)
+
+        assertEquals(listOf(1L, 4L), restartedSessionTracker.getSessionRecords().map { it.version })
+    }
+}
@@ -0,0 +1,199 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.util.concurrent.Executors
+
+class ShardedSessionTrackerTest {
+
+    private val sessionIds = (1..20).map { SessionId("session_id_$it") }
+
+    private val storages = (1..3).map { createStorageMock(emptyList()) }
+    private val listener = mock<SessionTracker.Listener<Event, State>>()
+    private val executor = Executors.newFixedThreadPool(2)
+
+    private val shardedSessionTracker = ShardedSessionTracker(
+        storages.map { storage ->
+            SessionTracker(
+                sessionTrackerStorage = storage,
+                sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+                autoUntrackStates = setOf(State.FORGOTTEN),
+                mode = SessionTracker.Mode.STRICT,
+                logger = mock()
+            )
+        },
+        executor
+    ).apply { initialize(listener) }
+
+    @After
+    fun tearDown() {
+        executor.shutdown()
+    }
+
+    @Test
+    fun `sessions are partitioned across the shards`() {
+        sessionIds.forEach { shardedSessionTracker.trackSession(it, State.ACTIVE) }
+
+        shardedSessionTracker.shards.forEach { shard ->
+            verify(listener).onSessionTrackerInitialized(shard, emptyList())
+            val shardSessionIds = shard.getSessionRecords().map { it.sessionId }
+            // every shard gets a share of the sessions
+            assert(shardSessionIds.isNotEmpty())
+            shardSessionIds.forEach { sessionId -> assertSame(shard, shardedSessionTracker.shardFor(sessionId)) }
+        }
+        storages.forEachIndexed { index, storage ->
+            val shard = shardedSessionTracker.shards[index]
+            verify(storage, times(shard.getSessionRecords().size)).createSessionRecord(any())
+        }
+        assertEquals(
+            sessionIds.toSet(),
+            shardedSessionTracker.getSessionRecords().map { it.sessionId }.toSet()
+        )
+        assertEquals(20L, shardedSessionTracker.version)
+    }
+
+    @Test
+    fun `per-session calls are routed to the shard of the session`() {
+        val sessionId = sessionIds.first()
+        val shard = shardedSessionTracker.shardFor(sessionId)
+
+        shardedSessionTracker.trackSession(sessionId, State.ACTIVE)
+        assertEquals(true, shardedSessionTracker.consumeEvent(sessionId, Event.LOGOUT))
+        assertEquals(
+            SessionTracker.CompareAndConsumeResult.APPLIED,
+            shardedSessionTracker.compareAndConsume(sessionId, State.INACTIVE, Event.LOGIN)
+        )
+
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), shard.getSessionRecords())
+        shardedSessionTracker.shards.filter { it !== shard }.forEach { otherShard ->
+            assertEquals(emptyList<SessionRecord<State>>(), otherShard.getSessionRecords())
+        }
+
+        shardedSessionTracker.untrackSession(sessionId)
+        assertEquals(emptyList<SessionRecord<State>>(), shardedSessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `cross-shard calls`() {
+        sessionIds.forEach { shardedSessionTracker.trackSession(it, State.ACTIVE) }
+
+        assertEquals(20, shardedSessionTracker.consumeEventForAll(Event.LOGOUT, setOf(State.ACTIVE)))
+        // no net change for the first session
+        assertEquals(
+            1,
+            shardedSessionTracker.consumeEvents(
+                listOf(sessionIds[0] to Event.LOGIN, sessionIds[1] to Event.LOGIN, sessionIds[0] to Event.LOGOUT),
+                coalesceCallbacks = true
+            )
+        )
+        assertEquals(setOf(sessionIds[1]), shardedSessionTracker.getSessionRecords()
+            .filter { it.state == State.ACTIVE }
+            .map { it.sessionId }
+            .toSet()
+        )
+
+        assertEquals(1, shardedSessionTracker.untrackSessions(setOf(State.ACTIVE)))
+        assertEquals(19, shardedSessionTracker.getSessionRecords().size)
+
+        shardedSessionTracker.untrackAllSessions()
+        assertEquals(emptyList<SessionRecord<State>>(), shardedSessionTracker.getSessionRecords())
+        storages.forEach { storage -> verify(storage).deleteAllSessionRecords() }
+    }
+
+    @Test
+    fun `cross-shard call failure is propagated`() {
+        val sessionTracker = ShardedSessionTracker(
+            (1..3).map {
+                SessionTracker(
+                    sessionTrackerStorage = createStorageMock(emptyList()),
+                    sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+                    autoUntrackStates = setOf(State.FORGOTTEN),
+                    mode = SessionTracker.Mode.STRICT,
+                    logger = mock()
+                )
+            },
+            executor
+        )
+
+        assertThrows(
+            RuntimeException::class.java,
+            "SessionTracker must be initialized before calling its #getSessionRecords method"
+        ) {
+            sessionTracker.getSessionRecords()
+        }
+
+        assertThrows(IllegalArgumentException::class.java, "shards must not be empty") {
+            ShardedSessionTracker<Event, State>(emptyList())
+        }
+    }
+
+    @Test
+    fun `cross-shard call is complete for all the shards before the failure is propagated`() {
+        listOf(null, executor).forEach { executor ->
+            val shardStorages = (1..3).map { index ->
+                createStorageMock(listOf(SessionRecord(SessionId("session_id_$index"), State.ACTIVE)))
+            }
+            val shards = shardStorages.map { storage ->
+                SessionTracker(
+                    sessionTrackerStorage = storage,
+                    sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+                    autoUntrackStates = setOf(State.FORGOTTEN),
+                    mode = SessionTracker.Mode.STRICT,
+                    logger = mock()
+                )
+            }
+            // the first shard is left uninitialized, so calling it fails
+            shards.drop(1).forEach { shard -> shard.initialize(mock()) }
+
+            assertThrows(
+                RuntimeException::class.java,
+                "SessionTracker must be initialized before calling its #untrackSessions method"
+            ) {
+                ShardedSessionTracker(shards, executor).untrackSessions(setOf(State.ACTIVE))
+            }
+
+            shardStorages.drop(1).forEach { storage -> verify(storage).deleteSessionRecords(any()) }
+            assertEquals(emptyList<SessionRecord<State>>(), shards[1].getSessionRecords())
+            assertEquals(emptyList<SessionRecord<State>>(), shards[2].getSessionRecords())
+        }
+    }
+
+    @Test
+    fun `shards are initialized one by one on the calling thread`() {
+        val threads = mutableListOf<Thread>()
+        val initializedListener = object : SessionTracker.Listener<Event, State> by mock() {
+            override fun onSessionTrackerInitialized(
+                sessionTracker: SessionTracker<Event, State>,
+                sessionRecords: List<SessionRecord<State>>
+            ) {
+                threads.add(Thread.currentThread())
+            }
+        }
+
+        ShardedSessionTracker(
+            (1..3).map {
+                SessionTracker(
+                    sessionTrackerStorage = createStorageMock(emptyList()),
+                    sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+                    autoUntrackStates = setOf(State.FORGOTTEN),
+                    mode = SessionTracker.Mode.STRICT,
+                    logger = mock()
+                )
+            },
+            executor
+        ).initialize(initializedListener)
+
+        assertEquals(List(3) { Thread.currentThread() }, threads)
+    }
+}
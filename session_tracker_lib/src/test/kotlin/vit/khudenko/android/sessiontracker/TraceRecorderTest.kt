@@ -0,0 +1,353 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.EnumSet
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+
+class TraceRecorderTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+    private val sessionId3 = SessionId("session_id_3")
+
+    private val eventEnumValues = EnumSet.allOf(Event::class.java)
+    private val stateEnumValues = EnumSet.allOf(State::class.java)
+
+    private val directExecutor = Executor { it.run() }
+
+    // runs the drain task once triggered by the test
+    private val pendingTasks = mutableListOf<Runnable>()
+    private val pendingExecutor = Executor { pendingTasks.add(it) }
+
+    private fun runPendingTasks() {
+        while (pendingTasks.isNotEmpty()) {
+            pendingTasks.removeAt(0).run()
+        }
+    }
+
+    private fun createSessionTracker(
+        traceRecorder: TraceRecorder<Event, State>,
+        sessionRecords: List<SessionRecord<State>> = emptyList(),
+        sessionTimeouts: SessionTimeouts<Event, State>? = null
+    ) = SessionTracker(
+        sessionTrackerStorage = createStorageMock(sessionRecords),
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock(),
+        sessionTimeouts = sessionTimeouts,
+        idempotencyKeys = IdempotencyKeys(),
+        traceRecorder = traceRecorder
+    )
+
+    @Test
+    fun `calls are recorded`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder, listOf(SessionRecord(sessionId1, State.ACTIVE, 7L)))
+
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId2, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId2, Event.LOGIN, "key")
+        // resolved by the idempotency key, not recorded
+        sessionTracker.consumeEvent(sessionId2, Event.LOGIN, "key")
+        sessionTracker.getSessionRecords()
+        sessionTracker.trackOrConsume(sessionId3, State.INACTIVE, Event.LOGIN)
+        sessionTracker.compareAndConsume(sessionId3, State.INACTIVE, Event.LOGIN)
+        sessionTracker.compute(sessionId3) { SessionAction.ConsumeEvent(Event.LOGOUT) }
+        sessionTracker.consumeEventForAll(Event.LOGIN) { it.sessionId == sessionId3 }
+        sessionTracker.consumeEvents(listOf(sessionId1 to Event.LOGIN, sessionId2 to Event.LOGOUT), true)
+        sessionTracker.untrackSessions(setOf(State.ACTIVE))
+        sessionTracker.untrackSession(sessionId2)
+        sessionTracker.untrackAllSessions()
+        traceRecorder.close()
+
+        assertEquals(13L, traceRecorder.entryCount)
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+
+        assertEquals(
+            listOf(
+                SessionTracker.Operation.INITIALIZE,
+                SessionTracker.Operation.TRACK_SESSION,
+                SessionTracker.Operation.CONSUME_EVENT,
+                SessionTracker.Operation.CONSUME_EVENT,
+                SessionTracker.Operation.GET_SESSION_RECORDS,
+                SessionTracker.Operation.TRACK_OR_CONSUME,
+                SessionTracker.Operation.COMPARE_AND_CONSUME,
+                SessionTracker.Operation.COMPUTE,
+                SessionTracker.Operation.CONSUME_EVENT_FOR_ALL,
+                SessionTracker.Operation.CONSUME_EVENTS,
+                SessionTracker.Operation.UNTRACK_SESSIONS,
+                SessionTracker.Operation.UNTRACK_SESSION,
+                SessionTracker.Operation.UNTRACK_ALL_SESSIONS
+            ),
+            entries.map { it.operation }
+        )
+        assertEquals(listOf(SessionRecord(sessionId1, State.ACTIVE)), entries[0].sessionRecords)
+        assertEquals(7L, entries[0].sessionRecords.single().version)
+        assertEquals(sessionId2, entries[1].sessionId)
+        assertEquals(State.INACTIVE, entries[1].state)
+        assertEquals(sessionId1, entries[2].sessionId)
+        assertEquals(Event.LOGOUT, entries[2].event)
+        assertFalse(entries[2].timer)
+        assertEquals(sessionId2, entries[3].sessionId)
+        assertEquals(Event.LOGIN, entries[3].event)
+        assertNull(entries[4].sessionId)
+        entries.subList(5, 7).forEach { entry ->
+            assertEquals(sessionId3, entry.sessionId)
+            assertEquals(State.INACTIVE, entry.state)
+            assertEquals(Event.LOGIN, entry.event)
+        }
+        assertEquals(sessionId3, entries[7].sessionId)
+        assertEquals(Event.LOGOUT, (entries[7].action as SessionAction.ConsumeEvent).event)
+        assertEquals(Event.LOGIN, entries[8].event)
+        assertEquals(listOf(sessionId3), entries[8].sessionIds)
+        assertEquals(listOf(sessionId1 to Event.LOGIN, sessionId2 to Event.LOGOUT), entries[9].events)
+        assertTrue(entries[9].coalesceCallbacks)
+        assertEquals(setOf(sessionId1, sessionId3), entries[10].sessionIds.toSet())
+        assertEquals(sessionId2, entries[11].sessionId)
+        assertNull(entries[12].sessionId)
+
+        assertTrue(entries.all { it.threadId == Thread.currentThread().id })
+        assertEquals(entries.map { it.timestampNanos }.sorted(), entries.map { it.timestampNanos })
+    }
+
+    @Test
+    fun `timer events are recorded`() {
+        var nowMillis = 1_000_000L
+        val sessionTimeouts = SessionTimeouts<Event, State>(tickMillis = 100L, clock = { nowMillis })
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder, sessionTimeouts = sessionTimeouts)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        sessionTimeouts.scheduleEvent(sessionId1, Event.LOGIN, 100L)
+
+        nowMillis += 200L
+        sessionTimeouts.advance()
+        traceRecorder.close()
+
+        val entry = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        ).last()
+        assertEquals(SessionTracker.Operation.CONSUME_EVENT, entry.operation)
+        assertEquals(sessionId1, entry.sessionId)
+        assertEquals(Event.LOGIN, entry.event)
+        assertTrue(entry.timer)
+    }
+
+    @Test
+    fun `entries are written on the executor`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, pendingExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+
+        // nothing is written by the SessionTracker calls
+        assertEquals(0L, traceRecorder.entryCount)
+        // a single drain task for all the entries
+        assertEquals(1, pendingTasks.size)
+        runPendingTasks()
+
+        assertEquals(3L, traceRecorder.entryCount)
+        traceRecorder.close()
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+        assertEquals(3, entries.size)
+    }
+
+    @Test
+    fun `recording stops once the queue is full`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, pendingExecutor, eventEnumValues, stateEnumValues, capacity = 2)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+        runPendingTasks()
+        sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        runPendingTasks()
+
+        assertFalse(traceRecorder.isRecording)
+        traceRecorder.close()
+        // the trace ends with the last entry queued, without gaps
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+        assertEquals(
+            listOf(SessionTracker.Operation.INITIALIZE, SessionTracker.Operation.TRACK_SESSION),
+            entries.map { it.operation }
+        )
+    }
+
+    @Test
+    fun `recording stops once the drain task has been rejected`() {
+        val output = ByteArrayOutputStream()
+        var rejecting = false
+        val executor = Executor { task ->
+            if (rejecting) {
+                throw RejectedExecutionException("shut down")
+            }
+            pendingTasks.add(task)
+        }
+        val traceRecorder = TraceRecorder(output, executor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        runPendingTasks()
+        rejecting = true
+
+        // the SessionTracker calls do not fail
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+
+        assertFalse(traceRecorder.isRecording)
+        traceRecorder.close()
+        // the trace ends with the entries queued before the rejection
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+        assertEquals(
+            listOf(SessionTracker.Operation.INITIALIZE, SessionTracker.Operation.TRACK_SESSION),
+            entries.map { it.operation }
+        )
+    }
+
+    @Test
+    fun `session IDs are written once`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        traceRecorder.flush()
+        val sizeAfterTracking = output.size()
+
+        repeat(100) {
+            sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+            sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        }
+        traceRecorder.flush()
+
+        // op code + time delta + thread ID + session index + event, a few bytes each
+        assertTrue(output.size() - sizeAfterTracking < 200 * (1 + 4 + 1 + 1 + 1))
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+        assertEquals(202, entries.size)
+        assertTrue(entries.drop(1).all { it.sessionId == sessionId1 })
+    }
+
+    @Test
+    fun `recording stops once maxBytes have been written`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues, maxBytes = 256)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+
+        repeat(100) {
+            sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+            sessionTracker.consumeEvent(sessionId1, Event.LOGOUT)
+        }
+
+        assertFalse(traceRecorder.isRecording)
+        assertTrue(traceRecorder.entryCount < 202)
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+        assertEquals(traceRecorder.entryCount, entries.size.toLong())
+    }
+
+    @Test
+    fun `recording stops once the output has failed`() {
+        val output = object : OutputStream() {
+            override fun write(b: Int) {
+                throw IOException("disk full")
+            }
+        }
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+
+        // the buffer is flushed on closing
+        traceRecorder.close()
+
+        assertFalse(traceRecorder.isRecording)
+        assertEquals(listOf(SessionRecord(sessionId1, State.INACTIVE)), sessionTracker.getSessionRecords())
+    }
+
+    @Test
+    fun `incomplete entry at the end is ignored`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        traceRecorder.close()
+        val bytes = output.toByteArray()
+
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(bytes.copyOf(bytes.size - 1)), eventEnumValues, stateEnumValues
+        )
+
+        assertEquals(listOf(SessionTracker.Operation.INITIALIZE), entries.map { it.operation })
+    }
+
+    @Test
+    fun `unknown input is rejected`() {
+        assertThrows(IOException::class.java, "Not a TraceRecorder trace") {
+            TraceRecorder.readTrace(ByteArrayInputStream(ByteArray(16)), eventEnumValues, stateEnumValues)
+        }
+    }
+
+    @Test
+    fun `trace referring to a missing event is rejected`() {
+        val output = ByteArrayOutputStream()
+        val traceRecorder = TraceRecorder(output, directExecutor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(traceRecorder)
+        sessionTracker.initialize(mock())
+        sessionTracker.trackSession(sessionId1, State.INACTIVE)
+        sessionTracker.consumeEvent(sessionId1, Event.LOGIN)
+        traceRecorder.close()
+
+        assertThrows(IOException::class.java, "Unknown event 'LOGIN'") {
+            TraceRecorder.readTrace(
+                ByteArrayInputStream(output.toByteArray()),
+                EnumSet.complementOf(EnumSet.of(Event.LOGIN)),
+                stateEnumValues
+            )
+        }
+    }
+
+    @Test
+    fun misuse() {
+        assertThrows(IllegalArgumentException::class.java, "maxBytes must be positive") {
+            TraceRecorder(ByteArrayOutputStream(), directExecutor, eventEnumValues, stateEnumValues, maxBytes = 0)
+        }
+        assertThrows(IllegalArgumentException::class.java, "capacity must be positive") {
+            TraceRecorder(ByteArrayOutputStream(), directExecutor, eventEnumValues, stateEnumValues, capacity = 0)
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.EnumSet
+import java.util.concurrent.Executors
+
+class TraceReplayerTest {
+
+    @get:Rule
+    val temporaryFolder = TemporaryFolder()
+
+    private val eventEnumValues = EnumSet.allOf(Event::class.java)
+    private val stateEnumValues = EnumSet.allOf(State::class.java)
+
+    private fun createSessionTracker(
+        sessionTrackerStorage: ISessionTrackerStorage<State>,
+        traceRecorder: TraceRecorder<Event, State>? = null
+    ) = SessionTracker(
+        sessionTrackerStorage = sessionTrackerStorage,
+        sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+        autoUntrackStates = setOf(State.FORGOTTEN),
+        mode = SessionTracker.Mode.RELAXED,
+        logger = mock(),
+        traceRecorder = traceRecorder
+    )
+
+    private fun createStorage() = ISessionTrackerStorage.AppendLogImpl(temporaryFolder.newFolder(), stateEnumValues)
+
+    /**
+     * Records the workload of every thread against a `SessionTracker`, that has the given session records restored.
+     */
+    private fun record(
+        sessionRecords: List<SessionRecord<State>>,
+        vararg workloads: (SessionTracker<Event, State>) -> Unit
+    ): Pair<List<TraceRecorder.Entry<Event, State>>, List<SessionRecord<State>>> {
+        val storage = createStorage()
+        sessionRecords.forEach { storage.createSessionRecord(it) }
+        val output = ByteArrayOutputStream()
+        val executor = Executors.newSingleThreadExecutor()
+        val traceRecorder = TraceRecorder(output, executor, eventEnumValues, stateEnumValues)
+        val sessionTracker = createSessionTracker(storage, traceRecorder)
+        sessionTracker.initialize(mock())
+        workloads.map { workload -> Thread { workload.invoke(sessionTracker) } }
+            .onEach { it.start() }
+            .forEach { it.join() }
+        traceRecorder.close()
+        executor.shutdown()
+        val entries = TraceRecorder.readTrace(
+            ByteArrayInputStream(output.toByteArray()), eventEnumValues, stateEnumValues
+        )
+        return entries to sessionTracker.getSessionRecords()
+    }
+
+    private fun workload(vararg ids: String): (SessionTracker<Event, State>) -> Unit = { sessionTracker ->
+        val sessionIds = ids.map { SessionId(it) }
+        sessionIds.forEach { sessionId ->
+            sessionTracker.trackSession(sessionId, State.INACTIVE)
+            repeat(10) {
+                sessionTracker.consumeEvent(sessionId, Event.LOGIN)
+                sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+            }
+            sessionTracker.getSessionRecords()
+        }
+        sessionTracker.consumeEvent(sessionIds.first(), Event.LOGIN)
+        sessionTracker.consumeEvent(sessionIds.last(), Event.LOGIN)
+        sessionTracker.consumeEvent(sessionIds.last(), Event.LOGOUT_AND_FORGET)
+        sessionTracker.untrackSession(sessionIds[1])
+    }
+
+    @Test
+    fun `replay reproduces the recorded session records`() {
+        val restoredSessionRecord = SessionRecord(SessionId("restored"), State.ACTIVE, 1L)
+        val (entries, recordedSessionRecords) = record(
+            listOf(restoredSessionRecord),
+            workload("a1", "a2", "a3")
+        )
+        val storage = createStorage()
+        val sessionTracker = createSessionTracker(storage)
+
+        val report = TraceReplayer(entries).replay(sessionTracker, storage, mock())
+
+        assertEquals(recordedSessionRecords, sessionTracker.getSessionRecords())
+        assertEquals(recordedSessionRecords, storage.readAllSessionRecords())
+        assertEquals(entries.size.toLong(), report.callCount)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.INITIALIZE).count)
+        assertEquals(3L, report.latencies.getValue(SessionTracker.Operation.TRACK_SESSION).count)
+        assertEquals(63L, report.latencies.getValue(SessionTracker.Operation.CONSUME_EVENT).count)
+        assertEquals(3L, report.latencies.getValue(SessionTracker.Operation.GET_SESSION_RECORDS).count)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.UNTRACK_SESSION).count)
+        assertTrue(report.durationNanos > 0)
+        assertTrue(report.throughput > 0.0)
+        // replayed on a HotSpot JVM
+        assertTrue(report.allocatedBytes > 0)
+    }
+
+    @Test
+    fun `calls with predicates and functions are replayed with the recorded outcome`() {
+        val (entries, recordedSessionRecords) = record(emptyList(), { sessionTracker ->
+            val sessionIds = (1..6).map { SessionId("s$it") }
+            sessionIds.forEach { sessionTracker.trackOrConsume(it, State.INACTIVE, Event.LOGIN) }
+            sessionTracker.untrackAllSessions()
+            sessionIds.forEach { sessionTracker.trackOrConsume(it, State.INACTIVE, Event.LOGIN) }
+            sessionTracker.compareAndConsume(sessionIds[0], State.INACTIVE, Event.LOGIN)
+            sessionTracker.compute(sessionIds[1]) { state ->
+                if (state == State.INACTIVE) SessionAction.ConsumeEvent(Event.LOGIN) else SessionAction.None()
+            }
+            sessionTracker.compute(sessionIds[2]) { SessionAction.Untrack() }
+            sessionTracker.consumeEventForAll(Event.LOGIN) { it.sessionId.value.endsWith("4") }
+            sessionTracker.consumeEvents(
+                listOf(sessionIds[4] to Event.LOGIN, sessionIds[4] to Event.LOGOUT, sessionIds[5] to Event.LOGIN),
+                coalesceCallbacks = true
+            )
+            sessionTracker.untrackSessions { it.sessionId == sessionIds[0] }
+        })
+        val storage = createStorage()
+        val sessionTracker = createSessionTracker(storage)
+
+        val report = TraceReplayer(entries).replay(sessionTracker, storage, mock())
+
+        assertEquals(recordedSessionRecords, sessionTracker.getSessionRecords())
+        assertEquals(recordedSessionRecords, storage.readAllSessionRecords())
+        assertEquals(entries.size.toLong(), report.callCount)
+        assertEquals(12L, report.latencies.getValue(SessionTracker.Operation.TRACK_OR_CONSUME).count)
+        assertEquals(2L, report.latencies.getValue(SessionTracker.Operation.COMPUTE).count)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.UNTRACK_ALL_SESSIONS).count)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.COMPARE_AND_CONSUME).count)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.CONSUME_EVENT_FOR_ALL).count)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.CONSUME_EVENTS).count)
+        assertEquals(1L, report.latencies.getValue(SessionTracker.Operation.UNTRACK_SESSIONS).count)
+    }
+
+    @Test
+    fun `recorded threads are replayed in parallel on the executor`() {
+        val (entries, recordedSessionRecords) = record(
+            emptyList(),
+            workload("a1", "a2", "a3"),
+            workload("b1", "b2", "b3"),
+            workload("c1", "c2", "c3")
+        )
+        assertEquals(4, entries.map { it.threadId }.distinct().size)
+        val storage = createStorage()
+        val sessionTracker = createSessionTracker(storage)
+        val executor = Executors.newFixedThreadPool(2)
+
+        val report = try {
+            TraceReplayer(entries, executor).replay(sessionTracker, storage, mock())
+        } finally {
+            executor.shutdown()
+        }
+
+        // sessions of different threads are independent, so only the order of the records may differ
+        assertEquals(recordedSessionRecords.toSet(), sessionTracker.getSessionRecords().toSet())
+        assertEquals(entries.size.toLong(), report.callCount)
+        assertEquals(189L, report.latencies.getValue(SessionTracker.Operation.CONSUME_EVENT).count)
+        assertTrue(report.allocatedBytes > 0)
+    }
+
+    @Test
+    fun `trace without initialize() is rejected`() {
+        val entries = listOf(
+            TraceRecorder.Entry<Event, State>(SessionTracker.Operation.GET_SESSION_RECORDS, 0L, 1L)
+        )
+        val storage = createStorage()
+
+        assertThrows(IllegalArgumentException::class.java, "trace has no initialize() call") {
+            TraceReplayer(entries).replay(createSessionTracker(storage), storage, mock())
+        }
+    }
+}
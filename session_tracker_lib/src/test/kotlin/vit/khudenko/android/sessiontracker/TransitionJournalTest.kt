@@ -0,0 +1,102 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class TransitionJournalTest {
+
+    private val sessionId = SessionId("session_id")
+
+    @Test
+    fun `consumeEvent outcomes are recorded`() {
+        val journal = TransitionJournal<Event, State>()
+        val sessionTracker = SessionTracker(
+            sessionTrackerStorage = createStorageMock(listOf(SessionRecord(sessionId, State.ACTIVE))),
+            sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+            autoUntrackStates = emptySet(),
+            mode = SessionTracker.Mode.STRICT,
+            logger = mock(),
+            transitionJournal = journal
+        )
+        sessionTracker.initialize(mock())
+
+        val startedAt = System.currentTimeMillis()
+
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(SessionId("unknown"), Event.LOGIN)
+
+        val entries = journal.dump()
+
+        assertEquals(
+            listOf(
+                Triple(sessionId, Event.LOGOUT, TransitionJournal.Outcome.APPLIED),
+                Triple(sessionId, Event.LOGOUT, TransitionJournal.Outcome.IGNORED),
+                Triple(SessionId("unknown"), Event.LOGIN, TransitionJournal.Outcome.UNTRACKED)
+            ),
+            entries.map { Triple(it.sessionId, it.event, it.outcome) }
+        )
+        assertEquals(listOf(State.ACTIVE, State.INACTIVE, null), entries.map { it.oldState })
+        assertEquals(listOf(State.INACTIVE, State.INACTIVE, null), entries.map { it.newState })
+        assertTrue(entries.all { it.timestampMillis >= startedAt })
+    }
+
+    @Test
+    fun `oldest entries are overwritten`() {
+        val journal = TransitionJournal<Event, State>(capacity = 2)
+
+        journal.record(SessionId("1"), Event.LOGIN, State.INACTIVE, State.ACTIVE, TransitionJournal.Outcome.APPLIED)
+        journal.record(SessionId("2"), Event.LOGIN, State.INACTIVE, State.ACTIVE, TransitionJournal.Outcome.APPLIED)
+        journal.record(SessionId("3"), Event.LOGIN, State.INACTIVE, State.ACTIVE, TransitionJournal.Outcome.APPLIED)
+
+        assertEquals(listOf(SessionId("2"), SessionId("3")), journal.dump().map { it.sessionId })
+
+        journal.clear()
+
+        assertEquals(emptyList<TransitionJournal.Entry<Event, State>>(), journal.dump())
+    }
+
+    @Test
+    fun `crash dump`() {
+        val journal = TransitionJournal<Event, State>()
+        journal.record(SessionId("1"), Event.LOGIN, State.INACTIVE, State.ACTIVE, TransitionJournal.Outcome.APPLIED)
+        val logger = mock<SessionTracker.Logger>()
+        val previousHandler = mock<Thread.UncaughtExceptionHandler>()
+        val originalHandler = Thread.getDefaultUncaughtExceptionHandler()
+        Thread.setDefaultUncaughtExceptionHandler(previousHandler)
+        try {
+            journal.installCrashDump(logger, "tag")
+
+            val thread = Thread.currentThread()
+            val throwable = RuntimeException()
+            Thread.getDefaultUncaughtExceptionHandler()!!.uncaughtException(thread, throwable)
+
+            verify(logger).e("tag", "TransitionJournal: 1 entries")
+            verify(logger).e(eq("tag"), eq(journal.dump().single().toString()))
+            verify(previousHandler).uncaughtException(thread, throwable)
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(originalHandler)
+        }
+    }
+
+    @Test
+    fun `invalid capacity`() {
+        assertThrows(IllegalArgumentException::class.java, "capacity must be positive") {
+            TransitionJournal<Event, State>(capacity = 0)
+        }
+    }
+
+    @Test
+    fun capacity() {
+        assertEquals(8, TransitionJournal<Event, State>(capacity = 8).capacity)
+    }
+}
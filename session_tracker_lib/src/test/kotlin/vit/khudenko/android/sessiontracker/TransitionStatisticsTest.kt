@@ -0,0 +1,63 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class TransitionStatisticsTest {
+
+    private val sessionId = SessionId("session_id")
+
+    @Test
+    fun `consumeEvent outcomes are counted`() {
+        val statistics = TransitionStatistics(Event::class.java, State::class.java)
+        val sessionTracker = SessionTracker(
+            sessionTrackerStorage = createStorageMock(listOf(SessionRecord(sessionId, State.ACTIVE))),
+            sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+            autoUntrackStates = setOf(State.FORGOTTEN),
+            mode = SessionTracker.Mode.STRICT,
+            logger = mock(),
+            transitionStatistics = statistics
+        )
+        sessionTracker.initialize(mock())
+
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.consumeEvent(sessionId, Event.LOGIN)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT_AND_FORGET) // auto-untrack
+        sessionTracker.consumeEvent(sessionId, Event.LOGIN)
+
+        val matrix = statistics.snapshot()
+
+        assertEquals(1L, matrix.applied(Event.LOGOUT, State.ACTIVE))
+        assertEquals(2L, matrix.ignored(Event.LOGOUT, State.INACTIVE))
+        assertEquals(1L, matrix.applied(Event.LOGIN, State.INACTIVE))
+        assertEquals(1L, matrix.applied(Event.LOGOUT_AND_FORGET, State.ACTIVE))
+        assertEquals(1L, matrix.untracked(Event.LOGIN))
+        assertEquals(0L, matrix.untracked(Event.LOGOUT))
+        assertEquals(0L, matrix.ignored(Event.LOGIN, State.ACTIVE))
+        assertEquals(
+            "Matrix(LOGIN@INACTIVE: applied=1, ignored=0, LOGIN: untracked=1, " +
+                    "LOGOUT@ACTIVE: applied=1, ignored=0, LOGOUT@INACTIVE: applied=0, ignored=2, " +
+                    "LOGOUT_AND_FORGET@ACTIVE: applied=1, ignored=0)",
+            matrix.toString()
+        )
+    }
+
+    @Test
+    fun `snapshot is immutable`() {
+        val statistics = TransitionStatistics(Event::class.java, State::class.java)
+        statistics.onApplied(Event.LOGIN, State.INACTIVE)
+
+        val matrix = statistics.snapshot()
+        statistics.onApplied(Event.LOGIN, State.INACTIVE)
+
+        assertEquals(1L, matrix.applied(Event.LOGIN, State.INACTIVE))
+        assertEquals(2L, statistics.snapshot().applied(Event.LOGIN, State.INACTIVE))
+    }
+}
@@ -3,6 +3,7 @@ package vit.khudenko.android.sessiontracker
 import com.nhaarman.mockitokotlin2.mock
 import com.nhaarman.mockitokotlin2.verify
 import com.nhaarman.mockitokotlin2.verifyNoMoreInteractions
+import org.junit.Assert.assertEquals
 import org.junit.Assert.assertFalse
 import org.junit.Assert.assertTrue
 import org.junit.Before
@@ -59,6 +60,14 @@ class UninitializedSessionTrackerRelaxedModeTest {
         verify("untrackAllSessions") { sessionTracker.untrackAllSessions() }
     }
 
+    @Test
+    fun `compareAndConsume() called with uninitialized sessionTracker`() {
+        verify("compareAndConsume") {
+            val result = sessionTracker.compareAndConsume(SessionId("session_id"), State.ACTIVE, Event.LOGIN)
+            assertEquals(SessionTracker.CompareAndConsumeResult.UNKNOWN_SESSION, result)
+        }
+    }
+
     @Test
     fun `getSessionRecords() called with uninitialized sessionTracker`() {
         verify("getSessionRecords") {
@@ -0,0 +1,102 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.inOrder
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.verify
+import com.nhaarman.mockitokotlin2.verifyNoMoreInteractions
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.anySessionId
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionTracker
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class UntrackSessionsTest {
+
+    private val sessionId1 = SessionId("session_id_1")
+    private val sessionId2 = SessionId("session_id_2")
+    private val sessionId3 = SessionId("session_id_3")
+
+    private val storage = createStorageMock(
+        listOf(
+            SessionRecord(sessionId1, State.INACTIVE),
+            SessionRecord(sessionId2, State.ACTIVE),
+            SessionRecord(sessionId3, State.INACTIVE)
+        )
+    )
+
+    interface BulkAwareListener : SessionTracker.Listener<Event, State>, SessionTracker.BulkListener<Event, State>
+
+    @Test
+    fun `sessions in the given states are untracked and deleted with a single call`() {
+        val listener = mock<BulkAwareListener>()
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(2, sessionTracker.untrackSessions(setOf(State.INACTIVE)))
+
+        assertEquals(listOf(SessionRecord(sessionId2, State.ACTIVE)), sessionTracker.getSessionRecords())
+        with(inOrder(storage, listener)) {
+            verify(storage).deleteSessionRecords(listOf(sessionId1, sessionId3))
+            verify(listener).onSessionsTrackingStopped(
+                sessionTracker,
+                listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId3, State.INACTIVE))
+            )
+        }
+        verify(storage, never()).deleteSessionRecord(anySessionId())
+        verify(listener, never()).onSessionTrackingStopped(any(), any())
+    }
+
+    @Test
+    fun `listener not implementing BulkListener gets a callback per session`() {
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(1, sessionTracker.untrackSessions { it.sessionId == sessionId2 })
+
+        assertEquals(
+            listOf(SessionRecord(sessionId1, State.INACTIVE), SessionRecord(sessionId3, State.INACTIVE)),
+            sessionTracker.getSessionRecords()
+        )
+        verify(storage).deleteSessionRecords(listOf(sessionId2))
+        verify(listener).onSessionTrackingStopped(sessionTracker, SessionRecord(sessionId2, State.ACTIVE))
+    }
+
+    @Test
+    fun `filtered listener gets matching sessions only`() {
+        val listener = mock<BulkAwareListener>()
+        val sessionTracker = createSessionTracker(storage).apply { initialize(mock()) }
+        sessionTracker.addListener(listener, ListenerFilter(sessionIds = setOf(sessionId3)))
+
+        assertEquals(3, sessionTracker.untrackSessions { true })
+
+        verify(listener).onSessionsTrackingStopped(sessionTracker, listOf(SessionRecord(sessionId3, State.INACTIVE)))
+        verifyNoMoreInteractions(listener)
+    }
+
+    @Test
+    fun `no matching sessions`() {
+        val listener = mock<BulkAwareListener>()
+        val sessionTracker = createSessionTracker(storage).apply { initialize(listener) }
+
+        assertEquals(0, sessionTracker.untrackSessions(setOf(State.FORGOTTEN)))
+
+        assertEquals(3, sessionTracker.getSessionRecords().size)
+        verify(storage, never()).deleteSessionRecords(any())
+        verify(listener, never()).onSessionsTrackingStopped(any(), any())
+    }
+
+    @Test
+    fun `not initialized`() {
+        assertThrows(
+            RuntimeException::class.java,
+            "SessionTracker must be initialized before calling its #untrackSessions method"
+        ) {
+            createSessionTracker(storage).untrackSessions(setOf(State.INACTIVE))
+        }
+        assertEquals(0, createSessionTracker(storage, SessionTracker.Mode.RELAXED).untrackSessions(setOf(State.INACTIVE)))
+    }
+}
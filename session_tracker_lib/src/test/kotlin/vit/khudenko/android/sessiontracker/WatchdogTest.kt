@@ -0,0 +1,92 @@
+package vit.khudenko.android.sessiontracker
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.mock
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.test_util.Event
+import vit.khudenko.android.sessiontracker.test_util.State
+import vit.khudenko.android.sessiontracker.test_util.assertThrows
+import vit.khudenko.android.sessiontracker.test_util.createSessionStateTransitionsSupplierMock
+import vit.khudenko.android.sessiontracker.test_util.createStorageMock
+
+class WatchdogTest {
+
+    private val sessionId = SessionId("session_id")
+
+    // advanced by the slow calls only
+    private var nowNanos = 0L
+
+    @Test
+    fun `slow storage call and slow listener callback are reported`() {
+        val violations = mutableListOf<Watchdog.Violation>()
+        val storage = createStorageMock(emptyList()).apply {
+            doAnswer { nowNanos += 30_000_000L }.`when`(this).updateSessionRecord(any())
+        }
+        val listener = mock<SessionTracker.Listener<Event, State>> {
+            on { onSessionTrackingStarted(any(), any()) } doAnswer { nowNanos += 30_000_000L; Unit }
+        }
+        val sessionTracker = SessionTracker(
+            sessionTrackerStorage = storage,
+            sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+            autoUntrackStates = emptySet(),
+            mode = SessionTracker.Mode.STRICT,
+            logger = mock(),
+            watchdog = Watchdog(
+                storageBudgetMillis = 20,
+                listenerBudgetMillis = 20,
+                violationListener = { violations.add(it) }
+            )
+        ).apply { nanoClock = { nowNanos } }
+
+        sessionTracker.initialize(listener)
+        sessionTracker.trackSession(sessionId, State.ACTIVE)
+        sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+        sessionTracker.untrackSession(sessionId)
+
+        assertEquals(2, violations.size)
+
+        val listenerViolation = violations[0] as Watchdog.Violation.Listener
+        assertEquals(SessionTracker.ListenerCallback.ON_SESSION_TRACKING_STARTED, listenerViolation.callback)
+        assertEquals(sessionId, listenerViolation.sessionId)
+        assertEquals(20_000_000L, listenerViolation.budgetNanos)
+        assertEquals(30_000_000L, listenerViolation.durationNanos)
+
+        val storageViolation = violations[1] as Watchdog.Violation.Storage
+        assertEquals(SessionTracker.StorageOperation.UPDATE, storageViolation.operation)
+        assertEquals(sessionId, storageViolation.sessionId)
+        assertEquals(20_000_000L, storageViolation.budgetNanos)
+        assertEquals(30_000_000L, storageViolation.durationNanos)
+    }
+
+    @Test
+    fun `throwing violation listener fails the call`() {
+        val sessionTracker = SessionTracker(
+            sessionTrackerStorage = createStorageMock(emptyList()),
+            sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+            autoUntrackStates = emptySet(),
+            mode = SessionTracker.Mode.STRICT,
+            logger = mock(),
+            watchdog = Watchdog(
+                storageBudgetMillis = 0,
+                listenerBudgetMillis = Long.MAX_VALUE / 1_000_000L,
+                violationListener = { throw IllegalStateException("slow ${it.javaClass.simpleName}") }
+            )
+        ).apply { nanoClock = { ++nowNanos } }
+
+        assertThrows(IllegalStateException::class.java, "slow Storage") {
+            sessionTracker.initialize(mock())
+        }
+    }
+
+    @Test
+    fun `negative budgets`() {
+        assertThrows(IllegalArgumentException::class.java, "storageBudgetMillis must not be negative") {
+            Watchdog(-1, 0) {}
+        }
+        assertThrows(IllegalArgumentException::class.java, "listenerBudgetMillis must not be negative") {
+            Watchdog(0, -1) {}
+        }
+    }
+}
@@ -40,6 +40,17 @@ fun createStorageMock(sessions: List<SessionRecord<State>>) = mock<ISessionTrack
     on { readAllSessionRecords() } doReturn Collections.unmodifiableList(sessions)
 }
 
+fun createSessionTracker(
+    storage: ISessionTrackerStorage<State>,
+    mode: SessionTracker.Mode = SessionTracker.Mode.STRICT
+) = SessionTracker(
+    sessionTrackerStorage = storage,
+    sessionStateTransitionsSupplier = createSessionStateTransitionsSupplierMock(),
+    autoUntrackStates = setOf(State.FORGOTTEN),
+    mode = mode,
+    logger = mock()
+)
+
 fun verifyInitialization(
     sessionTracker: SessionTracker<Event, State>,
     sessionRecords: List<SessionRecord<State>>,
@@ -55,6 +66,7 @@ fun verifyInitialization(
             verify(logger).d(SessionTracker.TAG, "initialize: starting..")
         }
         verify(storage).readAllSessionRecords()
+        verify(storage).readMaxVersion()
         verify(listener).onSessionTrackerInitialized(sessionTracker, sessionRecords)
         if (mode.verbose) {
             verify(logger).d(eq(SessionTracker.TAG), argThat(matches("^initialize: done, took \\d+ ms$")))
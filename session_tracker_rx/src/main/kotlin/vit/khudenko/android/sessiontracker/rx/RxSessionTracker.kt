@@ -0,0 +1,315 @@
+package vit.khudenko.android.sessiontracker.rx
+
+import io.reactivex.Completable
+import io.reactivex.Observable
+import io.reactivex.Scheduler
+import io.reactivex.Single
+import io.reactivex.SingleEmitter
+import io.reactivex.exceptions.Exceptions
+import io.reactivex.functions.Function
+import io.reactivex.schedulers.Schedulers
+import vit.khudenko.android.sessiontracker.SessionId
+import vit.khudenko.android.sessiontracker.SessionRecord
+import vit.khudenko.android.sessiontracker.SessionTracker
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * An RxJava 2 facade for [`SessionTracker`][SessionTracker].
+ *
+ * Returned `Completable`s and `Single`s are cold: the call is submitted to the wrapped `SessionTracker` on
+ * subscription. Submitted calls are executed one at a time on the [`scheduler`][scheduler] in the order of
+ * subscription, so subscribers never block a thread waiting for the `SessionTracker` lock or for the
+ * [`ISessionTrackerStorage`][vit.khudenko.android.sessiontracker.ISessionTrackerStorage] I/O. Calls submitted
+ * concurrently are processed in batches of up to 32 calls, all calls of a batch are executed under a single
+ * `SessionTracker` lock acquisition. Results are emitted on the `scheduler` once the lock is released. After a full
+ * batch, the next one is scheduled as a new task on the `scheduler`, so a steady stream of calls does not starve other
+ * users of the lock, e.g. direct callers or [`SessionTimeouts`][vit.khudenko.android.sessiontracker.SessionTimeouts].
+ *
+ * A call disposed before it has been executed is skipped.
+ *
+ * For the facade to be effective, the wrapped `SessionTracker` should not be called directly by other code.
+ *
+ * [`SessionTracker.Listener`][SessionTracker.Listener] callbacks are invoked on the `scheduler`.
+ *
+ * @param sessionTracker [`SessionTracker`][SessionTracker] to wrap.
+ * @param scheduler [`Scheduler`][Scheduler] to execute calls (and thus the storage I/O) on. Defaults to a dedicated
+ * single-thread scheduler, see [`createScheduler()`][createScheduler].
+ *
+ * @param [Event] event parameter of enum type.
+ * @param [State] state parameter of enum type.
+ */
+class RxSessionTracker<Event : Enum<Event>, State : Enum<State>> @JvmOverloads constructor(
+    private val sessionTracker: SessionTracker<Event, State>,
+    private val scheduler: Scheduler = createScheduler()
+) {
+
+    companion object {
+
+        private const val MAX_BATCH_SIZE = 32
+
+        /**
+         * @return a new [`Scheduler`][Scheduler] backed by a single daemon thread.
+         */
+        @JvmStatic
+        fun createScheduler(): Scheduler {
+            return Schedulers.from(
+                Executors.newSingleThreadExecutor { runnable ->
+                    Thread(runnable, SessionTracker::class.java.simpleName).apply { isDaemon = true }
+                }
+            )
+        }
+    }
+
+    private val requests = ConcurrentLinkedQueue<Request<Event, State, *>>()
+    private val wip = AtomicInteger()
+    private val drain = Runnable { drainRequests() }
+
+    private val sessionRecords: Observable<List<SessionRecord<State>>> =
+        Observable
+            .create<List<SessionRecord<State>>> { emitter ->
+                val observer = SessionTracker.SessionRecordsObserver<State> { emitter.onNext(it) }
+                emitter.setCancellable { sessionTracker.removeSessionRecordsObserver(observer) }
+                sessionTracker.addSessionRecordsObserver(observer)
+            }
+            .observeOn(scheduler)
+            .replay(1)
+            .refCount()
+
+    /**
+     * @see [SessionTracker.version]
+     */
+    val version: Long
+        get() = sessionTracker.version
+
+    /**
+     * @see [SessionTracker.initialize]
+     */
+    fun initialize(sessionTrackerListener: SessionTracker.Listener<Event, State>): Completable {
+        return submit { it.initialize(sessionTrackerListener) }.ignoreElement()
+    }
+
+    /**
+     * @see [SessionTracker.getSessionRecords]
+     */
+    fun getSessionRecords(): Single<List<SessionRecord<State>>> {
+        return submit { it.getSessionRecords() }
+    }
+
+    /**
+     * @see [SessionTracker.trackSession]
+     */
+    @JvmName("trackSession")
+    fun trackSession(sessionId: SessionId, state: State): Completable {
+        return submit { it.trackSession(sessionId, state) }.ignoreElement()
+    }
+
+    /**
+     * @see [SessionTracker.untrackSession]
+     */
+    @JvmName("untrackSession")
+    fun untrackSession(sessionId: SessionId): Completable {
+        return submit { it.untrackSession(sessionId) }.ignoreElement()
+    }
+
+    /**
+     * @see [SessionTracker.untrackAllSessions]
+     */
+    fun untrackAllSessions(): Completable {
+        return submit { it.untrackAllSessions() }.ignoreElement()
+    }
+
+    /**
+     * @see [SessionTracker.untrackSessions]
+     */
+    fun untrackSessions(states: Set<State>): Single<Int> {
+        return submit { it.untrackSessions(states) }
+    }
+
+    /**
+     * @see [SessionTracker.untrackSessions]
+     */
+    fun untrackSessions(predicate: (SessionRecord<State>) -> Boolean): Single<Int> {
+        return submit { it.untrackSessions(predicate) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvent]
+     */
+    @JvmName("consumeEvent")
+    fun consumeEvent(sessionId: SessionId, event: Event): Single<Boolean> {
+        return submit { it.consumeEvent(sessionId, event) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvent]
+     */
+    @JvmName("consumeEvent")
+    fun consumeEvent(sessionId: SessionId, event: Event, idempotencyKey: String): Single<Boolean> {
+        return submit { it.consumeEvent(sessionId, event, idempotencyKey) }
+    }
+
+    /**
+     * @see [SessionTracker.compareAndConsume]
+     */
+    @JvmName("compareAndConsume")
+    fun compareAndConsume(
+        sessionId: SessionId,
+        expectedState: State,
+        event: Event
+    ): Single<SessionTracker.CompareAndConsumeResult> {
+        return submit { it.compareAndConsume(sessionId, expectedState, event) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEventForAll]
+     */
+    fun consumeEventForAll(event: Event, states: Set<State>): Single<Int> {
+        return submit { it.consumeEventForAll(event, states) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEventForAll]
+     */
+    fun consumeEventForAll(event: Event, predicate: (SessionRecord<State>) -> Boolean): Single<Int> {
+        return submit { it.consumeEventForAll(event, predicate) }
+    }
+
+    /**
+     * @see [SessionTracker.consumeEvents]
+     */
+    @JvmOverloads
+    fun consumeEvents(events: List<Pair<SessionId, Event>>, coalesceCallbacks: Boolean = false): Single<Int> {
+        return submit { it.consumeEvents(events, coalesceCallbacks) }
+    }
+
+    /**
+     * @see [SessionTracker.trackOrConsume]
+     */
+    @JvmName("trackOrConsume")
+    fun trackOrConsume(sessionId: SessionId, initialState: State, event: Event): Single<Boolean> {
+        return submit { it.trackOrConsume(sessionId, initialState, event) }
+    }
+
+    /**
+     * Executes a compound action, e.g. a few `SessionTracker` calls depending on each other, as a single call.
+     * The action is executed while holding the `SessionTracker` lock, so it is atomic with regard to other calls.
+     *
+     * @param action an action to execute on the wrapped `SessionTracker`, must not return `null`.
+     */
+    fun <T : Any> execute(action: Function<SessionTracker<Event, State>, T>): Single<T> {
+        return submit { action.apply(it) }
+    }
+
+    /**
+     * @return a hot [`Observable`][Observable] of the tracked session records. Once `SessionTracker` is initialized,
+     * it emits the current session records, and then every subsequent change. Emissions are immutable snapshots
+     * shared between all observers, observers are called on the [`scheduler`][scheduler].
+     *
+     * @see [SessionTracker.addSessionRecordsObserver]
+     */
+    fun observeSessionRecords(): Observable<List<SessionRecord<State>>> = sessionRecords
+
+    /**
+     * @return an [`Observable`][Observable] of the session record of the session with the given `sessionId`. It
+     * emits once the session is tracked, then on every session tracking state change, and completes once the session
+     * is untracked.
+     *
+     * @see [observeSessionRecords]
+     */
+    @JvmName("observeSession")
+    fun observeSession(sessionId: SessionId): Observable<SessionRecord<State>> {
+        return sessionRecords
+            .map { sessionRecords -> sessionRecords.filter { it.sessionId == sessionId } }
+            .distinctUntilChanged()
+            .skipWhile { it.isEmpty() }
+            .takeWhile { it.isNotEmpty() }
+            .map { it.single() }
+    }
+
+    private fun <T : Any> submit(action: (SessionTracker<Event, State>) -> T): Single<T> {
+        return Single.create { emitter ->
+            requests.offer(Request(action, emitter))
+            if (wip.getAndIncrement() == 0) {
+                scheduler.scheduleDirect(drain)
+            }
+        }
+    }
+
+    private fun drainRequests() {
+        val batch = ArrayList<Request<Event, State, *>>(MAX_BATCH_SIZE)
+        var fatalError: Throwable? = null
+        var missed = 1
+        while (true) {
+            synchronized(sessionTracker) {
+                while (batch.size < MAX_BATCH_SIZE) {
+                    val request = requests.poll() ?: break
+                    request.execute(sessionTracker)
+                    batch.add(request)
+                }
+            }
+            sessionTracker.dispatchListenerCallbacks()
+            batch.forEach { request ->
+                request.deliver()
+                fatalError = fatalError ?: request.fatalError
+            }
+            val full = batch.size == MAX_BATCH_SIZE
+            batch.clear()
+            if (full) {
+                // more calls may be queued, let other users of the lock and of the scheduler in before the next batch
+                // (wip is left as is, so the next task accounts for all the calls submitted so far)
+                scheduler.scheduleDirect(drain)
+                break
+            }
+            missed = wip.addAndGet(-missed)
+            if (missed == 0) {
+                break
+            }
+        }
+        // rethrown once the drain loop is left, so the facade keeps processing subsequent requests
+        fatalError?.let { Exceptions.throwIfFatal(it) }
+    }
+
+    private class Request<Event : Enum<Event>, State : Enum<State>, T : Any>(
+        private val action: (SessionTracker<Event, State>) -> T,
+        private val emitter: SingleEmitter<T>
+    ) {
+        private var result: T? = null
+        private var error: Throwable? = null
+        var fatalError: Throwable? = null
+            private set
+
+        fun execute(sessionTracker: SessionTracker<Event, State>) {
+            if (emitter.isDisposed) {
+                return
+            }
+            try {
+                // T is non-null, but a Java action may still return null
+                val value: T? = action.invoke(sessionTracker)
+                if (value == null) {
+                    error = NullPointerException("action returned null")
+                } else {
+                    result = value
+                }
+            } catch (e: Throwable) {
+                error = e
+                try {
+                    Exceptions.throwIfFatal(e)
+                } catch (fatal: Throwable) {
+                    fatalError = fatal
+                }
+            }
+        }
+
+        fun deliver() {
+            val error = this.error
+            val result = this.result
+            if (error != null) {
+                emitter.tryOnError(error)
+            } else if (result != null) {
+                emitter.onSuccess(result)
+            }
+        }
+    }
+}
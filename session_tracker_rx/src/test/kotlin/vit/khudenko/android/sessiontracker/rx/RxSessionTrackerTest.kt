@@ -0,0 +1,233 @@
+package vit.khudenko.android.sessiontracker.rx
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.verify
+import io.reactivex.Completable
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import vit.khudenko.android.sessiontracker.ISessionTrackerStorage
+import vit.khudenko.android.sessiontracker.SessionId
+import vit.khudenko.android.sessiontracker.SessionRecord
+import vit.khudenko.android.sessiontracker.SessionTracker
+import vit.khudenko.android.sessiontracker.Transition
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class RxSessionTrackerTest {
+
+    enum class Event {
+        LOGIN, LOGOUT
+    }
+
+    enum class State {
+        ACTIVE, INACTIVE
+    }
+
+    private val sessionId = SessionId("session_id")
+    private val threadName = "session-tracker-rx"
+
+    private lateinit var storage: ISessionTrackerStorage<State>
+    private lateinit var scheduler: Scheduler
+
+    @Before
+    fun setUp() {
+        storage = mock {
+            on { readAllSessionRecords() } doReturn emptyList()
+        }
+        scheduler = Schedulers.from(Executors.newSingleThreadExecutor { runnable -> Thread(runnable, threadName) })
+    }
+
+    @After
+    fun tearDown() {
+        scheduler.shutdown()
+    }
+
+    private fun createSessionTracker() = SessionTracker(
+        sessionTrackerStorage = storage,
+        sessionStateTransitionsSupplier = {
+            listOf(
+                Transition(Event.LOGIN, listOf(State.INACTIVE, State.ACTIVE)),
+                Transition(Event.LOGOUT, listOf(State.ACTIVE, State.INACTIVE))
+            )
+        },
+        autoUntrackStates = emptySet(),
+        mode = SessionTracker.Mode.STRICT,
+        logger = mock()
+    )
+
+    @Test
+    fun `calls are delegated to the session tracker`() {
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+        val listener = mock<SessionTracker.Listener<Event, State>>()
+
+        tracker.initialize(listener).blockingAwait()
+        tracker.trackSession(sessionId, State.ACTIVE).blockingAwait()
+
+        assertTrue(tracker.consumeEvent(sessionId, Event.LOGOUT).blockingGet())
+        assertEquals(false, tracker.consumeEvent(sessionId, Event.LOGOUT).blockingGet())
+        assertEquals(listOf(SessionRecord(sessionId, State.INACTIVE)), tracker.getSessionRecords().blockingGet())
+
+        tracker.untrackSession(sessionId).blockingAwait()
+        assertEquals(emptyList<SessionRecord<State>>(), tracker.getSessionRecords().blockingGet())
+
+        tracker.trackSession(sessionId, State.ACTIVE).blockingAwait()
+        tracker.untrackAllSessions().blockingAwait()
+        assertEquals(emptyList<SessionRecord<State>>(), tracker.getSessionRecords().blockingGet())
+
+        verify(storage).updateSessionRecord(SessionRecord(sessionId, State.INACTIVE))
+        verify(listener).onAllSessionsTrackingStopped(any(), any())
+    }
+
+    @Test
+    fun `calls are executed on the scheduler, one at a time`() {
+        val storageThreadNames = mutableSetOf<String>()
+        var concurrentCalls = 0
+        var maxConcurrentCalls = 0
+        storage = mock {
+            on { readAllSessionRecords() } doReturn emptyList()
+            on { createSessionRecord(any()) } doAnswer {
+                synchronized(storageThreadNames) {
+                    storageThreadNames.add(Thread.currentThread().name)
+                    concurrentCalls++
+                    maxConcurrentCalls = maxOf(maxConcurrentCalls, concurrentCalls)
+                }
+                Thread.sleep(1)
+                synchronized(storageThreadNames) { concurrentCalls-- }
+                Unit
+            }
+        }
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+        tracker.initialize(mock()).blockingAwait()
+
+        Completable
+            .merge(
+                (1..100).map { index ->
+                    tracker.trackSession(SessionId("session_$index"), State.ACTIVE).subscribeOn(Schedulers.io())
+                }
+            )
+            .blockingAwait()
+
+        assertEquals(100, tracker.getSessionRecords().blockingGet().size)
+        assertEquals(setOf(threadName), storageThreadNames)
+        assertEquals(1, maxConcurrentCalls)
+    }
+
+    @Test
+    fun `lock is released between the batches for a concurrent direct caller`() {
+        // runs the scheduled tasks once triggered by the test
+        val pendingTasks = mutableListOf<Runnable>()
+        val sessionTracker = createSessionTracker()
+        val tracker = RxSessionTracker(sessionTracker, Schedulers.from { pendingTasks.add(it) })
+        sessionTracker.initialize(mock())
+        val completions = (1..100).map { index ->
+            tracker.trackSession(SessionId("session_$index"), State.ACTIVE).test()
+        }
+
+        var batches = 0
+        while (pendingTasks.isNotEmpty()) {
+            pendingTasks.removeAt(0).run()
+            batches++
+            if (batches == 1) {
+                // the queue is not empty yet, but a direct caller on another thread gets the lock
+                val directCaller = Thread { sessionTracker.trackSession(sessionId, State.INACTIVE) }
+                directCaller.start()
+                directCaller.join(5000)
+                assertFalse(directCaller.isAlive)
+                assertEquals(33, sessionTracker.getSessionRecords().size)
+            }
+        }
+
+        assertEquals(4, batches)
+        completions.forEach { it.assertComplete() }
+        assertEquals(101, sessionTracker.getSessionRecords().size)
+    }
+
+    @Test
+    fun `compound action is executed atomically`() {
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+        tracker.initialize(mock()).blockingAwait()
+
+        val consumed = tracker
+            .execute { sessionTracker ->
+                sessionTracker.trackSession(sessionId, State.ACTIVE)
+                sessionTracker.consumeEvent(sessionId, Event.LOGOUT)
+            }
+            .blockingGet()
+
+        assertTrue(consumed)
+        assertEquals(listOf(SessionRecord(sessionId, State.INACTIVE)), tracker.getSessionRecords().blockingGet())
+    }
+
+    @Test
+    fun `session tracker exceptions are propagated to the subscriber`() {
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+
+        tracker.trackSession(sessionId, State.ACTIVE) // not initialized
+            .test()
+            .awaitDone(5, TimeUnit.SECONDS)
+            .assertErrorMessage("SessionTracker must be initialized before calling its #trackSession method")
+    }
+
+    @Test
+    fun `fatal error does not stop processing of subsequent calls`() {
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+        tracker.initialize(mock()).blockingAwait()
+
+        tracker.execute<Boolean> { throw StackOverflowError("fatal") }
+            .test()
+            .awaitDone(5, TimeUnit.SECONDS)
+            .assertError(StackOverflowError::class.java)
+
+        tracker.trackSession(sessionId, State.ACTIVE)
+            .test()
+            .awaitDone(5, TimeUnit.SECONDS)
+            .assertComplete()
+        assertEquals(listOf(SessionRecord(sessionId, State.ACTIVE)), tracker.getSessionRecords().blockingGet())
+    }
+
+    @Test
+    fun `observeSessionRecords emits the current and then the changed session records`() {
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+        tracker.initialize(mock()).blockingAwait()
+        tracker.trackSession(sessionId, State.ACTIVE).blockingAwait()
+
+        val observer = tracker.observeSessionRecords().test()
+        tracker.consumeEvent(sessionId, Event.LOGOUT).blockingGet()
+        tracker.untrackSession(sessionId).blockingAwait()
+
+        observer
+            .awaitCount(3)
+            .assertValues(
+                listOf(SessionRecord(sessionId, State.ACTIVE)),
+                listOf(SessionRecord(sessionId, State.INACTIVE)),
+                emptyList()
+            )
+        observer.dispose()
+    }
+
+    @Test
+    fun `observeSession emits the session record until the session is untracked`() {
+        val tracker = RxSessionTracker(createSessionTracker(), scheduler)
+        tracker.initialize(mock()).blockingAwait()
+
+        val observer = tracker.observeSession(sessionId).test()
+        tracker.trackSession(sessionId, State.ACTIVE).blockingAwait()
+        tracker.trackSession(SessionId("other_session_id"), State.ACTIVE).blockingAwait()
+        tracker.consumeEvent(sessionId, Event.LOGOUT).blockingGet()
+        tracker.untrackSession(sessionId).blockingAwait()
+
+        observer
+            .awaitDone(5, TimeUnit.SECONDS)
+            .assertValues(SessionRecord(sessionId, State.ACTIVE), SessionRecord(sessionId, State.INACTIVE))
+            .assertComplete()
+    }
+}